@@ -22,8 +22,10 @@ import org.opentripplanner.graph_builder.services.GraphBuilder;
 import org.opentripplanner.model.GraphBundle;
 import org.opentripplanner.routing.contraction.ContractionHierarchySet;
 import org.opentripplanner.routing.contraction.ModeAndOptimize;
+import org.opentripplanner.routing.contraction.StreetWeighting;
 import org.opentripplanner.routing.core.Graph;
 import org.opentripplanner.routing.impl.ContractionHierarchySerializationLibrary;
+import org.opentripplanner.routing.impl.StreetVertexIndexData;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -44,6 +46,10 @@ public class GraphBuilderTask {
 
     private double _contractionFactor = 1.0;
 
+    private List<ModeAndOptimize> _customizedModeList;
+
+    private List<StreetWeighting> _customizedWeightings;
+
     @Autowired
     public void setGraph(Graph graph) {
         _graph = graph;
@@ -77,6 +83,22 @@ public class GraphBuilderTask {
         _contractionFactor = contractionFactor;
     }
 
+    /**
+     * Builds a customizable contraction hierarchy as well, customized for these modes; it can be
+     * customized for other street weightings without rebuilding.
+     */
+    public void setCustomizedModes(List<ModeAndOptimize> modeList) {
+        _customizedModeList = modeList;
+    }
+
+    /**
+     * Builds a customizable contraction hierarchy as well, customized for these street
+     * weightings, which may set a walk reluctance, speed or slope limit of their own.
+     */
+    public void setCustomizedWeightings(List<StreetWeighting> weightings) {
+        _customizedWeightings = weightings;
+    }
+
     public void run() throws IOException {
         
         File graphPath = _graphBundle.getGraphPath();
@@ -90,7 +112,14 @@ public class GraphBuilderTask {
             load.buildGraph(_graph);
         
         ContractionHierarchySet chs = new ContractionHierarchySet(_graph, _modeList, _contractionFactor);
+        chs.setCustomizedModes(_customizedModeList);
+        chs.setCustomizedWeightings(_customizedWeightings);
         chs.build();
+
+        /* save the spatial indexes with the graph, so that they need not be rebuilt on load */
+        _log.info("building spatial indexes");
+        _graph.putService(StreetVertexIndexData.class, new StreetVertexIndexData(_graph));
+
         ContractionHierarchySerializationLibrary.writeGraph(chs, graphPath);
     }
 }
@@ -0,0 +1,128 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.opentripplanner.graph_builder.services.GraphBuilder;
+import org.opentripplanner.graph_builder.services.IntDisjointSet;
+import org.opentripplanner.routing.core.Edge;
+import org.opentripplanner.routing.core.Graph;
+import org.opentripplanner.routing.core.GraphVertex;
+import org.opentripplanner.routing.core.TransitStop;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link GraphBuilder} plugin that finds the connected components of the graph (ignoring the
+ * direction of edges) with union-find, logs statistics about them, and removes the small ones:
+ * islands of streets which are not connected to the rest of the network, and where a trip could
+ * start or end but not get anywhere. Components with transit stops are never removed.
+ * 
+ * Works on any graph, so it can follow the OSM or shapefile street builders, or run once the
+ * transit network has been linked in.
+ */
+public class ConnectivityGraphBuilderImpl implements GraphBuilder {
+
+    private static Logger _log = LoggerFactory.getLogger(ConnectivityGraphBuilderImpl.class);
+
+    private int islandSize = 20;
+
+    private int numComponents;
+
+    private int largestComponent;
+
+    private int numPrunedVertices;
+
+    /**
+     * Components with fewer vertices than this are removed. If 0, nothing is removed, and only the
+     * statistics are logged.
+     */
+    public void setIslandSize(int islandSize) {
+        this.islandSize = islandSize;
+    }
+
+    @Override
+    public void buildGraph(Graph graph) {
+        List<GraphVertex> vertices = new ArrayList<GraphVertex>(graph.getVertices());
+        HashMap<String, Integer> indices = new HashMap<String, Integer>();
+        for (int i = 0; i < vertices.size(); ++i) {
+            indices.put(vertices.get(i).vertex.getLabel(), i);
+        }
+
+        IntDisjointSet components = new IntDisjointSet(vertices.size());
+        for (int i = 0; i < vertices.size(); ++i) {
+            for (Edge e : vertices.get(i).getOutgoing()) {
+                Integer j = indices.get(e.getToVertex().getLabel());
+                if (j != null) {
+                    components.union(i, j);
+                }
+            }
+        }
+
+        /* statistics, and which components have stops */
+        boolean[] hasStops = new boolean[vertices.size()];
+        int[] histogram = new int[5];
+        numComponents = 0;
+        largestComponent = 0;
+        for (int i = 0; i < vertices.size(); ++i) {
+            int root = components.find(i);
+            if (vertices.get(i).vertex instanceof TransitStop) {
+                hasStops[root] = true;
+            }
+            if (root == i) {
+                int size = components.size(root);
+                ++numComponents;
+                largestComponent = Math.max(largestComponent, size);
+                ++histogram[Math.min((int) Math.log10(size), histogram.length - 1)];
+            }
+        }
+        _log.info("graph has " + numComponents + " connected components; the largest has "
+                + largestComponent + " of " + vertices.size() + " vertices");
+        _log.info("components by size: 1-9: " + histogram[0] + ", 10-99: " + histogram[1]
+                + ", 100-999: " + histogram[2] + ", 1000-9999: " + histogram[3] + ", 10000+: "
+                + histogram[4]);
+
+        numPrunedVertices = 0;
+        int numPrunedComponents = 0;
+        for (int i = 0; i < vertices.size(); ++i) {
+            int root = components.find(i);
+            if (components.size(root) < islandSize && !hasStops[root]) {
+                graph.removeVertexAndEdges(vertices.get(i).vertex);
+                ++numPrunedVertices;
+                if (root == i) {
+                    ++numPrunedComponents;
+                }
+            }
+        }
+        if (numPrunedVertices > 0) {
+            _log.info("removed " + numPrunedComponents + " islands of fewer than " + islandSize
+                    + " vertices, with " + numPrunedVertices + " vertices in all");
+        }
+    }
+
+    public int getNumComponents() {
+        return numComponents;
+    }
+
+    public int getLargestComponent() {
+        return largestComponent;
+    }
+
+    public int getNumPrunedVertices() {
+        return numPrunedVertices;
+    }
+}
@@ -44,6 +44,7 @@ import org.opentripplanner.graph_builder.model.GtfsBundle;
 import org.opentripplanner.graph_builder.model.GtfsBundles;
 import org.opentripplanner.graph_builder.services.EntityReplacementStrategy;
 import org.opentripplanner.graph_builder.services.GraphBuilder;
+import org.opentripplanner.gtfs.CompactStopTimeDaoImpl;
 import org.opentripplanner.gtfs.GtfsContext;
 import org.opentripplanner.gtfs.GtfsLibrary;
 import org.opentripplanner.routing.core.Graph;
@@ -86,6 +87,18 @@ public class GtfsGraphBuilderImpl implements GraphBuilder {
         _dao = dao;
     }
 
+    /**
+     * Keeps stop times packed into arrays rather than as objects, and only creates StopTimes
+     * for one trip at a time while building the graph. This replaces any DAO set before.
+     */
+    public void setStreamStopTimes(boolean streamStopTimes) {
+        if (streamStopTimes) {
+            _dao = new CompactStopTimeDaoImpl();
+        } else if (_dao instanceof CompactStopTimeDaoImpl) {
+            _dao = new GtfsRelationalDaoImpl();
+        }
+    }
+
     public void setEntityReplacementStrategy(EntityReplacementStrategy strategy) {
         _entityReplacementStrategy = strategy;
     }
@@ -0,0 +1,45 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.impl;
+
+import org.opentripplanner.graph_builder.services.GraphBuilder;
+import org.opentripplanner.routing.core.Graph;
+import org.opentripplanner.routing.transferpatterns.TransferPatterns;
+import org.opentripplanner.routing.transferpatterns.TransferPatternsBuilder;
+
+/**
+ * {@link GraphBuilder} plugin that precomputes the transfer patterns of every transit stop and
+ * stores them in the graph. Should be called after the transit data and any transfers (see
+ * {@link TransfersGraphBuilderImpl}) have been added.
+ */
+public class TransferPatternsGraphBuilderImpl implements GraphBuilder {
+
+    private int maxRides = 5;
+
+    /**
+     * The most rides in any journey to precompute.
+     */
+    public void setMaxRides(int maxRides) {
+        this.maxRides = maxRides;
+    }
+
+    @Override
+    public void buildGraph(Graph graph) {
+        TransferPatternsBuilder builder = new TransferPatternsBuilder(graph);
+        builder.setMaxRides(maxRides);
+        TransferPatterns transferPatterns = builder.build();
+        graph.putService(TransferPatterns.class, transferPatterns);
+    }
+
+}
@@ -0,0 +1,42 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.impl;
+
+import org.opentripplanner.graph_builder.services.GraphBuilder;
+import org.opentripplanner.routing.core.Graph;
+import org.opentripplanner.routing.edgetype.loader.TransferGenerator;
+
+/**
+ * {@link GraphBuilder} plugin that precomputes walking transfers between nearby transit stops.
+ * Should be called after {@link TransitToStreetNetworkGraphBuilderImpl}.
+ */
+public class TransfersGraphBuilderImpl implements GraphBuilder {
+
+    private double maxDistance = 1000;
+
+    /**
+     * The longest transfer to create, in meters of walking.
+     */
+    public void setMaxDistance(double maxDistance) {
+        this.maxDistance = maxDistance;
+    }
+
+    @Override
+    public void buildGraph(Graph graph) {
+        TransferGenerator generator = new TransferGenerator(graph);
+        generator.setMaxDistance(maxDistance);
+        generator.createTransfers();
+    }
+
+}
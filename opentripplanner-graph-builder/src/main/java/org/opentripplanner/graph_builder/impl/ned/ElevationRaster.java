@@ -0,0 +1,102 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.impl.ned;
+
+/**
+ * A single elevation tile held as a plain float array, in row-major order starting from the
+ * northwest corner, sampled with bilinear interpolation between pixel centers. Unlike geotools
+ * coverages, it can be sampled from several threads at once.
+ */
+public class ElevationRaster {
+
+    /** Samples at or below this (such as the NED's -3.4e38) are missing data */
+    public static final float NO_DATA = -1e30f;
+
+    private double minX, maxY, cellWidth, cellHeight;
+
+    private int width, height;
+
+    private float[] samples;
+
+    /**
+     * @param minX the western edge of the tile
+     * @param maxY the northern edge of the tile
+     * @param cellWidth the width of a pixel
+     * @param cellHeight the height of a pixel
+     * @param samples width * height samples, row by row from the north
+     */
+    public ElevationRaster(double minX, double maxY, double cellWidth, double cellHeight,
+            int width, int height, float[] samples) {
+        if (samples.length < width * height) {
+            throw new IllegalArgumentException("expected " + width * height + " samples, got "
+                    + samples.length);
+        }
+        this.minX = minX;
+        this.maxY = maxY;
+        this.cellWidth = cellWidth;
+        this.cellHeight = cellHeight;
+        this.width = width;
+        this.height = height;
+        this.samples = samples;
+    }
+
+    public double getMinX() {
+        return minX;
+    }
+
+    public double getMaxX() {
+        return minX + width * cellWidth;
+    }
+
+    public double getMinY() {
+        return maxY - height * cellHeight;
+    }
+
+    public double getMaxY() {
+        return maxY;
+    }
+
+    public boolean contains(double x, double y) {
+        return x >= minX && x <= getMaxX() && y >= getMinY() && y <= maxY;
+    }
+
+    /**
+     * @return the interpolated elevation at (x, y), or NaN if the point is outside the tile or
+     *         there is no data around it. Missing samples are left out of the interpolation.
+     */
+    public double getElevation(double x, double y) {
+        if (!contains(x, y)) {
+            return Double.NaN;
+        }
+        /* pixel coordinates, relative to pixel centers; clamped at the edges of the tile */
+        double px = Math.min(Math.max((x - minX) / cellWidth - 0.5, 0), width - 1);
+        double py = Math.min(Math.max((maxY - y) / cellHeight - 0.5, 0), height - 1);
+        int x0 = (int) px, y0 = (int) py;
+        int x1 = Math.min(x0 + 1, width - 1), y1 = Math.min(y0 + 1, height - 1);
+        double fx = px - x0, fy = py - y0;
+
+        double elevation = 0, weight = 0;
+        for (int corner = 0; corner < 4; ++corner) {
+            int cx = (corner & 1) == 0 ? x0 : x1;
+            int cy = (corner & 2) == 0 ? y0 : y1;
+            double w = ((corner & 1) == 0 ? 1 - fx : fx) * ((corner & 2) == 0 ? 1 - fy : fy);
+            float sample = samples[cy * width + cx];
+            if (w > 0 && sample > NO_DATA) {
+                elevation += sample * w;
+                weight += w;
+            }
+        }
+        return weight > 0 ? elevation / weight : Double.NaN;
+    }
+}
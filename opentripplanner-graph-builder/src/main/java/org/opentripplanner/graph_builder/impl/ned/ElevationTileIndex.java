@@ -0,0 +1,120 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.impl.ned;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A spatial index of {@link ElevationRaster} tiles, so that finding the tile under a point takes
+ * a bucket lookup rather than trying every tile in turn. Buckets are the size of the smallest
+ * tile, so each holds only the few tiles that touch it. Once built, the index can be sampled
+ * from several threads at once.
+ */
+public class ElevationTileIndex {
+
+    private List<ElevationRaster> tiles = new ArrayList<ElevationRaster>();
+
+    private double minX, minY, bucketWidth, bucketHeight;
+
+    private int nx, ny;
+
+    /* written last, so that a thread that sees it also sees the bounds above */
+    private volatile ElevationRaster[][] buckets;
+
+    public void add(ElevationRaster tile) {
+        tiles.add(tile);
+        buckets = null;
+    }
+
+    public int getNumTiles() {
+        return tiles.size();
+    }
+
+    /**
+     * @return the elevation at (x, y) from the first tile added that has data there, or NaN if
+     *         none does
+     */
+    public double getElevation(double x, double y) {
+        ElevationRaster[][] buckets = this.buckets;
+        if (buckets == null) {
+            buckets = index();
+        }
+        int i = (int) Math.floor((x - minX) / bucketWidth);
+        int j = (int) Math.floor((y - minY) / bucketHeight);
+        /* points on the outer edges of the tiles */
+        if (i == nx) {
+            --i;
+        }
+        if (j == ny) {
+            --j;
+        }
+        if (i < 0 || j < 0 || i >= nx || j >= ny) {
+            return Double.NaN;
+        }
+        for (ElevationRaster tile : buckets[j * nx + i]) {
+            double elevation = tile.getElevation(x, y);
+            if (!Double.isNaN(elevation)) {
+                return elevation;
+            }
+        }
+        return Double.NaN;
+    }
+
+    private synchronized ElevationRaster[][] index() {
+        if (buckets != null) {
+            return buckets;
+        }
+        if (tiles.isEmpty()) {
+            nx = ny = 0;
+            buckets = new ElevationRaster[0][];
+            return buckets;
+        }
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        minX = minY = Double.POSITIVE_INFINITY;
+        bucketWidth = bucketHeight = Double.POSITIVE_INFINITY;
+        for (ElevationRaster tile : tiles) {
+            minX = Math.min(minX, tile.getMinX());
+            minY = Math.min(minY, tile.getMinY());
+            maxX = Math.max(maxX, tile.getMaxX());
+            maxY = Math.max(maxY, tile.getMaxY());
+            bucketWidth = Math.min(bucketWidth, tile.getMaxX() - tile.getMinX());
+            bucketHeight = Math.min(bucketHeight, tile.getMaxY() - tile.getMinY());
+        }
+        nx = Math.max((int) Math.ceil((maxX - minX) / bucketWidth), 1);
+        ny = Math.max((int) Math.ceil((maxY - minY) / bucketHeight), 1);
+
+        List<List<ElevationRaster>> lists = new ArrayList<List<ElevationRaster>>(nx * ny);
+        for (int b = 0; b < nx * ny; ++b) {
+            lists.add(new ArrayList<ElevationRaster>(4));
+        }
+        for (ElevationRaster tile : tiles) {
+            int i0 = Math.max((int) Math.floor((tile.getMinX() - minX) / bucketWidth), 0);
+            int i1 = Math.min((int) Math.floor((tile.getMaxX() - minX) / bucketWidth), nx - 1);
+            int j0 = Math.max((int) Math.floor((tile.getMinY() - minY) / bucketHeight), 0);
+            int j1 = Math.min((int) Math.floor((tile.getMaxY() - minY) / bucketHeight), ny - 1);
+            for (int j = j0; j <= j1; ++j) {
+                for (int i = i0; i <= i1; ++i) {
+                    lists.get(j * nx + i).add(tile);
+                }
+            }
+        }
+        ElevationRaster[][] built = new ElevationRaster[nx * ny][];
+        for (int b = 0; b < nx * ny; ++b) {
+            built[b] = lists.get(b).toArray(new ElevationRaster[lists.get(b).size()]);
+        }
+        buckets = built;
+        return built;
+    }
+}
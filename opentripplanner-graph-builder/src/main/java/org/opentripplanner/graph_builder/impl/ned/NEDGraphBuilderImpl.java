@@ -13,14 +13,26 @@
 
 package org.opentripplanner.graph_builder.impl.ned;
 
+import java.awt.image.Raster;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.media.jai.InterpolationBilinear;
 
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.coverage.grid.Interpolator2D;
 import org.geotools.geometry.DirectPosition2D;
+import org.geotools.geometry.Envelope2D;
 import org.opengis.coverage.Coverage;
 import org.opentripplanner.common.geometry.PackedCoordinateSequence;
 import org.opentripplanner.graph_builder.services.GraphBuilder;
@@ -28,9 +40,13 @@ import org.opentripplanner.graph_builder.services.ned.NEDGridCoverageFactory;
 import org.opentripplanner.routing.core.Edge;
 import org.opentripplanner.routing.core.Graph;
 import org.opentripplanner.routing.core.GraphVertex;
+import org.opentripplanner.routing.core.Vertex;
 import org.opentripplanner.routing.edgetype.EdgeWithElevation;
 import org.opentripplanner.routing.edgetype.StreetVertex;
 import org.opentripplanner.routing.impl.DistanceLibrary;
+import org.opentripplanner.routing.util.CompactElevationProfile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
@@ -43,15 +59,28 @@ import com.vividsolutions.jts.geom.Geometry;
  * measured from the start, and the y-coord representing the sampled elevation at that point (both
  * in meters).
  * 
+ * Grid coverages are copied into {@link ElevationRaster}s behind an {@link ElevationTileIndex}, so
+ * that streets can be sampled on several threads without going through geotools for each
+ * sample. Other coverages are sampled directly, on a single thread.
+ * 
  * @author demory
  * 
  */
 public class NEDGraphBuilderImpl implements GraphBuilder {
 
+    private static Logger _log = LoggerFactory.getLogger(NEDGraphBuilderImpl.class);
+
+    /* the number of streets sampled by each task */
+    private static final int BATCH_SIZE = 1000;
+
     private NEDGridCoverageFactory gridCoverageFactory;
 
     private Coverage coverage;
 
+    private ElevationTileIndex tileIndex;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
     /**
      * The distance between samples in meters. Defaults to 10m, the approximate resolution of 1/3
      * arc-second NED data.
@@ -66,26 +95,164 @@ public class NEDGraphBuilderImpl implements GraphBuilder {
         distanceBetweenSamplesM = distance;
     }
 
+    /**
+     * Sets the number of threads sampling streets; defaults to the number of processors.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
     @Override
     public void buildGraph(Graph graph) {
 
         Coverage gridCov = gridCoverageFactory.getGridCoverage();
-        
-        // If gridCov is a GridCoverage2D, apply a bilinear interpolator. Otherwise, just use the
-        // coverage as is (note: UnifiedGridCoverages created by NEDGridCoverageFactoryImpl handle
-        // interpolation internally)           
-        coverage = (gridCov instanceof GridCoverage2D) ? 
-                Interpolator2D.create((GridCoverage2D) gridCov, new InterpolationBilinear()) :
-                gridCov;
+        tileIndex = createTileIndex(gridCov);
+
+        if (tileIndex == null) {
+            // If gridCov is a GridCoverage2D, apply a bilinear interpolator. Otherwise, just use
+            // the coverage as is (note: UnifiedGridCoverages created by NEDGridCoverageFactoryImpl
+            // handle interpolation internally)
+            coverage = (gridCov instanceof GridCoverage2D) ?
+                    Interpolator2D.create((GridCoverage2D) gridCov, new InterpolationBilinear()) :
+                    gridCov;
+        }
 
+        /*
+         * streets share their profile with every turn leaving them, and with the street going the
+         * other way, so sample each street once
+         */
+        Set<Vertex> streets = new LinkedHashSet<Vertex>();
+        List<EdgeWithElevation> edges = new ArrayList<EdgeWithElevation>();
+        Map<StreetVertex, StreetVertex> reverses = new LinkedHashMap<StreetVertex, StreetVertex>();
         for (GraphVertex gv : graph.getVertices()) {
             for (Edge ee : gv.getOutgoing()) {
-                if (ee instanceof EdgeWithElevation) {
-                    processEdge((EdgeWithElevation) ee);
+                if (ee instanceof EdgeWithElevation && streets.add(ee.getFromVertex())) {
+                    edges.add((EdgeWithElevation) ee);
+                    StreetVertex reverse = getReverse(graph, ee.getFromVertex());
+                    if (reverse != null && streets.add(reverse)) {
+                        reverses.put((StreetVertex) ee.getFromVertex(), reverse);
+                    }
                 }
             }
         }
+        _log.debug("sampling elevation for " + edges.size() + " streets");
+
+        if (tileIndex == null || threads <= 1) {
+            for (EdgeWithElevation ee : edges) {
+                processEdge(ee);
+            }
+        } else {
+            processEdgesInParallel(edges);
+        }
+        for (Map.Entry<StreetVertex, StreetVertex> entry : reverses.entrySet()) {
+            entry.getValue().setElevationProfile(reverse(entry.getKey()));
+        }
+        tileIndex = null;
+        coverage = null;
+    }
+
+    private void processEdgesInParallel(List<EdgeWithElevation> edges) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        try {
+            for (int i = 0; i < edges.size(); i += BATCH_SIZE) {
+                final List<EdgeWithElevation> batch = edges.subList(i,
+                        Math.min(i + BATCH_SIZE, edges.size()));
+                futures.add(executor.submit(new Callable<Object>() {
+                    public Object call() {
+                        for (EdgeWithElevation ee : batch) {
+                            processEdge(ee);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException("interrupted while sampling elevation", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("error sampling elevation", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * @return the street vertex for the other direction of a street, or null if there is none
+     */
+    private static StreetVertex getReverse(Graph graph, Vertex v) {
+        if (!(v instanceof StreetVertex)) {
+            return null;
+        }
+        StreetVertex street = (StreetVertex) v;
+        boolean back = !street.getLabel().equals(street.getEdgeId());
+        Vertex reverse = graph.getVertex(street.getEdgeId() + (back ? "" : " back"));
+        if (!(reverse instanceof StreetVertex) || reverse == v) {
+            return null;
+        }
+        Coordinate[] coords = street.getGeometry().getCoordinates();
+        Coordinate[] reverseCoords = ((StreetVertex) reverse).getGeometry().getCoordinates();
+        if (!coords[0].equals(reverseCoords[reverseCoords.length - 1])
+                || !coords[coords.length - 1].equals(reverseCoords[0])) {
+            return null;
+        }
+        return (StreetVertex) reverse;
+    }
+
+    /**
+     * @return the elevation profile of a street traversed the other way
+     */
+    private static PackedCoordinateSequence reverse(StreetVertex street) {
+        PackedCoordinateSequence profile = street.getElevationProfile();
+        if (profile == null) {
+            return null;
+        }
+        if (profile instanceof CompactElevationProfile) {
+            return ((CompactElevationProfile) profile).reverse();
+        }
+        int size = profile.size();
+        double length = profile.getX(size - 1);
+        double[] coords = new double[size * 2];
+        for (int i = 0; i < size; ++i) {
+            coords[i * 2] = length - profile.getX(size - 1 - i);
+            coords[i * 2 + 1] = profile.getY(size - 1 - i);
+        }
+        return new PackedCoordinateSequence.Double(coords, 2);
+    }
+
+    /**
+     * Copies grid coverages into a tile index.
+     * 
+     * @return the index, or null if the coverage isn't made of grid coverages
+     */
+    private ElevationTileIndex createTileIndex(Coverage coverage) {
+        List<Coverage> regions = new ArrayList<Coverage>();
+        if (coverage instanceof UnifiedGridCoverage) {
+            regions.addAll(((UnifiedGridCoverage) coverage).getRegions());
+        } else {
+            regions.add(coverage);
+        }
+        ElevationTileIndex index = new ElevationTileIndex();
+        for (Coverage region : regions) {
+            if (!(region instanceof GridCoverage2D)) {
+                return null;
+            }
+            index.add(createRaster((GridCoverage2D) region));
+        }
+        return index;
+    }
 
+    private static ElevationRaster createRaster(GridCoverage2D coverage) {
+        Raster raster = coverage.getRenderedImage().getData();
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        float[] samples = raster.getSamples(raster.getMinX(), raster.getMinY(), width, height, 0,
+                (float[]) null);
+        Envelope2D envelope = coverage.getEnvelope2D();
+        return new ElevationRaster(envelope.getMinX(), envelope.getMaxY(), envelope.getWidth()
+                / width, envelope.getHeight() / height, width, height, samples);
     }
 
     /**
@@ -195,6 +362,11 @@ public class NEDGraphBuilderImpl implements GraphBuilder {
      * @return elevation in meters
      */
     private double getElevation(double x, double y) {
+        if (tileIndex != null) {
+            double elevation = tileIndex.getElevation(x, y);
+            // points outside the coverage get zero, as below
+            return Double.isNaN(elevation) ? 0 : elevation;
+        }
         double values[] = new double[1];
         try {
             coverage.evaluate(new DirectPosition2D(x, y), values);
@@ -14,6 +14,7 @@
 package org.opentripplanner.graph_builder.impl.ned;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import org.geotools.coverage.AbstractCoverage;
 import org.geotools.coverage.grid.GridCoverage2D;
@@ -84,4 +85,11 @@ public class UnifiedGridCoverage extends AbstractCoverage {
         regions.add(regionCoverage);
     }
 
+    /**
+     * @return the coverages stitched together, in the order they were added
+     */
+    public List<Coverage> getRegions() {
+        return regions;
+    }
+
 }
@@ -32,7 +32,7 @@ public class FileBasedOpenStreetMapProviderImpl implements OpenStreetMapProvider
     @Override
     public void readOSM(OpenStreetMapContentHandler handler) {
         try {
-            OpenStreetMapParser parser = new OpenStreetMapParser();
+            StreamingOpenStreetMapParser parser = new StreamingOpenStreetMapParser();
             if (_path.getName().endsWith(".gz")) {
                 InputStream in = new GZIPInputStream(new FileInputStream(_path));
                 parser.parseMap(in, handler);
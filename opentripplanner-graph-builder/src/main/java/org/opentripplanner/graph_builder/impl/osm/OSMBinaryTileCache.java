@@ -0,0 +1,329 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.impl.osm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opentripplanner.graph_builder.model.osm.OSMMap;
+import org.opentripplanner.graph_builder.model.osm.OSMNode;
+import org.opentripplanner.graph_builder.model.osm.OSMNodeRef;
+import org.opentripplanner.graph_builder.model.osm.OSMRelation;
+import org.opentripplanner.graph_builder.model.osm.OSMRelationMember;
+import org.opentripplanner.graph_builder.model.osm.OSMTag;
+import org.opentripplanner.graph_builder.model.osm.OSMWay;
+import org.opentripplanner.graph_builder.model.osm.OSMWithTags;
+
+/**
+ * A compact binary copy of a parsed OSM tile, so that it need not be parsed again.
+ * 
+ * The file holds a table of the tile's tag keys, values and member roles, then its nodes, ways
+ * and relations in order of id. Ids, coordinates (in units of 1e-7 degree) and node refs are
+ * stored as variable-length differences from the previous one, and tags as indices into the
+ * string table.
+ * 
+ * A cache file is used only if it is at least as new as the tile it was made from.
+ */
+public class OSMBinaryTileCache {
+
+    private static final int MAGIC = 0x4f534d43; // "OSMC"
+
+    private static final int VERSION = 1;
+
+    private static final double SCALE = 1e7;
+
+    private static final String[] MEMBER_TYPES = { "node", "way", "relation" };
+
+    /**
+     * @return the cache file for an OSM file
+     */
+    public static File getCacheFile(File osmFile) {
+        return new File(osmFile.getParentFile(), osmFile.getName() + ".bin");
+    }
+
+    /**
+     * @return true if the OSM file has a cache file which is at least as new as it is
+     */
+    public static boolean isUpToDate(File osmFile) {
+        File cacheFile = getCacheFile(osmFile);
+        return cacheFile.exists() && cacheFile.lastModified() >= osmFile.lastModified();
+    }
+
+    public static void write(OSMMap map, File file) throws IOException {
+        List<OSMNode> nodes = sorted(map.getNodes());
+        List<OSMWay> ways = sorted(map.getWays());
+        List<OSMRelation> relations = sorted(map.getRelations());
+
+        /* the string table */
+        Map<String, Integer> strings = new HashMap<String, Integer>();
+        List<String> table = new ArrayList<String>();
+        for (OSMNode node : nodes) {
+            addStrings(node, strings, table);
+        }
+        for (OSMWay way : ways) {
+            addStrings(way, strings, table);
+        }
+        for (OSMRelation relation : relations) {
+            addStrings(relation, strings, table);
+            for (OSMRelationMember member : relation.getMembers()) {
+                addString(member.getRole(), strings, table);
+            }
+        }
+
+        /*
+         * written to a temporary file first, so that a failed write leaves no cache behind, and
+         * concurrent writes of the same tile do not mix
+         */
+        File temporary = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile()
+                .getParentFile());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temporary), 65536));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeVarint(out, table.size());
+            for (String s : table) {
+                out.writeUTF(s);
+            }
+
+            writeVarint(out, nodes.size());
+            long lastId = 0, lastLat = 0, lastLon = 0;
+            for (OSMNode node : nodes) {
+                long lat = Math.round(node.getLat() * SCALE);
+                long lon = Math.round(node.getLon() * SCALE);
+                writeSigned(out, node.getId() - lastId);
+                writeSigned(out, lat - lastLat);
+                writeSigned(out, lon - lastLon);
+                writeTags(out, node, strings);
+                lastId = node.getId();
+                lastLat = lat;
+                lastLon = lon;
+            }
+
+            writeVarint(out, ways.size());
+            lastId = 0;
+            for (OSMWay way : ways) {
+                writeSigned(out, way.getId() - lastId);
+                writeTags(out, way, strings);
+                List<Long> refs = way.getNodeRefs();
+                writeVarint(out, refs.size());
+                long lastRef = 0;
+                for (long ref : refs) {
+                    writeSigned(out, ref - lastRef);
+                    lastRef = ref;
+                }
+                lastId = way.getId();
+            }
+
+            writeVarint(out, relations.size());
+            lastId = 0;
+            for (OSMRelation relation : relations) {
+                writeSigned(out, relation.getId() - lastId);
+                writeTags(out, relation, strings);
+                List<OSMRelationMember> members = relation.getMembers();
+                writeVarint(out, members.size());
+                long lastRef = 0;
+                for (OSMRelationMember member : members) {
+                    int type = 0;
+                    while (type < MEMBER_TYPES.length && !MEMBER_TYPES[type].equals(member.getType())) {
+                        ++type;
+                    }
+                    out.writeByte(type);
+                    writeSigned(out, member.getRef() - lastRef);
+                    writeVarint(out, strings.get(member.getRole() == null ? "" : member
+                            .getRole()));
+                    lastRef = member.getRef();
+                }
+                lastId = relation.getId();
+            }
+            out.close();
+        } catch (IOException ex) {
+            out.close();
+            temporary.delete();
+            throw ex;
+        }
+        if (!temporary.renameTo(file)) {
+            file.delete();
+            if (!temporary.renameTo(file)) {
+                temporary.delete();
+                throw new IOException("could not write " + file);
+            }
+        }
+    }
+
+    public static OSMMap read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), 65536));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not an OSM tile cache: " + file);
+            }
+            String[] table = new String[(int) readVarint(in)];
+            for (int i = 0; i < table.length; ++i) {
+                table[i] = in.readUTF();
+            }
+            OSMMap map = new OSMMap();
+
+            int count = (int) readVarint(in);
+            long id = 0, lat = 0, lon = 0;
+            for (int i = 0; i < count; ++i) {
+                OSMNode node = new OSMNode();
+                id += readSigned(in);
+                lat += readSigned(in);
+                lon += readSigned(in);
+                node.setId(id);
+                node.setLat(lat / SCALE);
+                node.setLon(lon / SCALE);
+                readTags(in, node, table);
+                map.addNode(node);
+            }
+
+            count = (int) readVarint(in);
+            id = 0;
+            for (int i = 0; i < count; ++i) {
+                OSMWay way = new OSMWay();
+                id += readSigned(in);
+                way.setId(id);
+                readTags(in, way, table);
+                int refs = (int) readVarint(in);
+                long ref = 0;
+                for (int j = 0; j < refs; ++j) {
+                    ref += readSigned(in);
+                    OSMNodeRef nodeRef = new OSMNodeRef();
+                    nodeRef.setRef(ref);
+                    way.addNodeRef(nodeRef);
+                }
+                map.addWay(way);
+            }
+
+            count = (int) readVarint(in);
+            id = 0;
+            for (int i = 0; i < count; ++i) {
+                OSMRelation relation = new OSMRelation();
+                id += readSigned(in);
+                relation.setId(id);
+                readTags(in, relation, table);
+                int members = (int) readVarint(in);
+                long ref = 0;
+                for (int j = 0; j < members; ++j) {
+                    OSMRelationMember member = new OSMRelationMember();
+                    int type = in.readByte();
+                    member.setType(type < MEMBER_TYPES.length ? MEMBER_TYPES[type] : null);
+                    ref += readSigned(in);
+                    member.setRef(ref);
+                    member.setRole(table[(int) readVarint(in)]);
+                    relation.addMember(member);
+                }
+                map.addRelation(relation);
+            }
+            return map;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static <T> List<T> sorted(Map<Long, T> entities) {
+        List<Long> ids = new ArrayList<Long>(entities.keySet());
+        Collections.sort(ids);
+        List<T> sorted = new ArrayList<T>(ids.size());
+        for (Long id : ids) {
+            sorted.add(entities.get(id));
+        }
+        return sorted;
+    }
+
+    private static void addStrings(OSMWithTags entity, Map<String, Integer> strings,
+            List<String> table) {
+        for (Map.Entry<String, String> tag : entity.getTags().entrySet()) {
+            addString(tag.getKey(), strings, table);
+            addString(tag.getValue(), strings, table);
+        }
+    }
+
+    private static void addString(String s, Map<String, Integer> strings, List<String> table) {
+        if (s == null) {
+            s = "";
+        }
+        if (!strings.containsKey(s)) {
+            strings.put(s, table.size());
+            table.add(s);
+        }
+    }
+
+    private static void writeTags(DataOutputStream out, OSMWithTags entity,
+            Map<String, Integer> strings) throws IOException {
+        Map<String, String> tags = entity.getTags();
+        writeVarint(out, tags.size());
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            writeVarint(out, strings.get(tag.getKey()));
+            writeVarint(out, strings.get(tag.getValue() == null ? "" : tag.getValue()));
+        }
+    }
+
+    private static void readTags(DataInputStream in, OSMWithTags entity, String[] table)
+            throws IOException {
+        int count = (int) readVarint(in);
+        for (int i = 0; i < count; ++i) {
+            OSMTag tag = new OSMTag();
+            String key = table[(int) readVarint(in)];
+            String value = table[(int) readVarint(in)];
+            tag.setK(key);
+            if (key.equals("name")) {
+                value = value.intern();
+            }
+            tag.setV(value);
+            entity.addTag(tag);
+        }
+    }
+
+    private static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static void writeSigned(DataOutputStream out, long value) throws IOException {
+        writeVarint(out, (value << 1) ^ (value >> 63));
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint in OSM tile cache");
+    }
+
+    private static long readSigned(DataInputStream in) throws IOException {
+        long value = readVarint(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
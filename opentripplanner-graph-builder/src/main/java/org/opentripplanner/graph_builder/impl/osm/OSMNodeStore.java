@@ -0,0 +1,259 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.impl.osm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.opentripplanner.graph_builder.services.LongSet;
+
+/**
+ * The coordinates of OSM nodes, by id, kept in primitive arrays rather than as OSMNode objects:
+ * a sorted array of ids, and the latitude and longitude of each as ints in units of 1e-7 degree
+ * (the precision of OSM data).
+ * 
+ * A store can either take any node added to it, or only the nodes with a set of ids given up
+ * front. In the latter case, the coordinates can be kept in a memory-mapped file rather than on
+ * the heap.
+ */
+public class OSMNodeStore {
+
+    private static final double SCALE = 1e7;
+
+    /** the latitude of nodes which are not (or no longer) stored */
+    private static final int MISSING = Integer.MIN_VALUE;
+
+    private long[] ids;
+
+    private int size;
+
+    /* latitude and longitude of each node, in the order of ids */
+    private IntBuffer coordinates;
+
+    /* whether only the ids given at construction are stored */
+    private boolean fixed;
+
+    /* false if nodes have been added out of order since the ids were last sorted */
+    private boolean sorted = true;
+
+    /**
+     * Creates a store that takes any node added to it. If a node is added more than once, the
+     * first coordinates are kept.
+     */
+    public OSMNodeStore() {
+        ids = new long[1024];
+        coordinates = IntBuffer.allocate(ids.length * 2);
+    }
+
+    /**
+     * Creates a store for the nodes with the given ids; other nodes added are ignored.
+     * 
+     * @param ids the ids, in ascending order
+     * @param file if not null, the coordinates are kept in this file, memory-mapped, rather than
+     *        on the heap
+     */
+    public OSMNodeStore(long[] ids, File file) throws IOException {
+        this.ids = ids;
+        this.size = ids.length;
+        this.fixed = true;
+        if (file == null) {
+            coordinates = IntBuffer.allocate(size * 2);
+        } else {
+            RandomAccessFile out = new RandomAccessFile(file, "rw");
+            try {
+                long length = size * 8L;
+                out.setLength(length);
+                /* the mapping stays valid once the file is closed */
+                coordinates = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length)
+                        .asIntBuffer();
+            } finally {
+                out.close();
+            }
+        }
+        for (int i = 0; i < size; ++i) {
+            coordinates.put(i * 2, MISSING);
+        }
+    }
+
+    public void add(long id, double lat, double lon) {
+        int index;
+        if (fixed) {
+            index = Arrays.binarySearch(ids, 0, size, id);
+            if (index < 0 || coordinates.get(index * 2) != MISSING) {
+                return;
+            }
+        } else {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                IntBuffer grown = IntBuffer.allocate(ids.length * 2);
+                coordinates.rewind();
+                grown.put(coordinates);
+                coordinates = grown;
+            }
+            if (size > 0 && id <= ids[size - 1]) {
+                sorted = false;
+            }
+            index = size++;
+            ids[index] = id;
+        }
+        coordinates.put(index * 2, (int) Math.round(lat * SCALE));
+        coordinates.put(index * 2 + 1, (int) Math.round(lon * SCALE));
+    }
+
+    /**
+     * @return the index of the node with the given id, or -1 if it is not stored
+     */
+    public int indexOf(long id) {
+        sort();
+        int index = Arrays.binarySearch(ids, 0, size, id);
+        if (index < 0 || coordinates.get(index * 2) == MISSING) {
+            return -1;
+        }
+        return index;
+    }
+
+    public boolean contains(long id) {
+        return indexOf(id) >= 0;
+    }
+
+    public double getLat(int index) {
+        return coordinates.get(index * 2) / SCALE;
+    }
+
+    public double getLon(int index) {
+        return coordinates.get(index * 2 + 1) / SCALE;
+    }
+
+    /**
+     * @return the number of slots for nodes; see {@link #getId(int)} and {@link #isStored(int)}
+     */
+    public int size() {
+        sort();
+        return size;
+    }
+
+    public long getId(int index) {
+        return ids[index];
+    }
+
+    public boolean isStored(int index) {
+        return coordinates.get(index * 2) != MISSING;
+    }
+
+    public void remove(long id) {
+        int index = indexOf(id);
+        if (index >= 0) {
+            coordinates.put(index * 2, MISSING);
+        }
+    }
+
+    /**
+     * Removes the nodes whose ids are not in the given set
+     */
+    public void retainAll(LongSet keep) {
+        sort();
+        for (int i = 0; i < size; ++i) {
+            if (!keep.contains(ids[i])) {
+                coordinates.put(i * 2, MISSING);
+            }
+        }
+    }
+
+    /**
+     * @return the number of nodes stored
+     */
+    public int count() {
+        sort();
+        int count = 0;
+        for (int i = 0; i < size; ++i) {
+            if (isStored(i)) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Sorts the ids added since the last sort, keeping the first coordinates added for each id
+     */
+    private void sort() {
+        if (sorted) {
+            return;
+        }
+        int[] order = new int[size];
+        for (int i = 0; i < size; ++i) {
+            order[i] = i;
+        }
+        long[] sortedIds = Arrays.copyOf(ids, size);
+        quicksort(sortedIds, order, 0, size - 1);
+
+        long[] newIds = new long[Math.max(size, 16)];
+        IntBuffer newCoordinates = IntBuffer.allocate(newIds.length * 2);
+        int n = 0;
+        for (int i = 0; i < size; ++i) {
+            if (n > 0 && newIds[n - 1] == sortedIds[i]) {
+                /* a later copy of a node */
+                continue;
+            }
+            newIds[n] = sortedIds[i];
+            newCoordinates.put(n * 2, coordinates.get(order[i] * 2));
+            newCoordinates.put(n * 2 + 1, coordinates.get(order[i] * 2 + 1));
+            ++n;
+        }
+        ids = newIds;
+        coordinates = newCoordinates;
+        size = n;
+        sorted = true;
+    }
+
+    /** sorts ids, and order with them, by id and then by order */
+    private static void quicksort(long[] ids, int[] order, int low, int high) {
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            long pivotId = ids[mid];
+            int pivotOrder = order[mid];
+            int i = low, j = high;
+            while (i <= j) {
+                while (ids[i] < pivotId || (ids[i] == pivotId && order[i] < pivotOrder)) {
+                    ++i;
+                }
+                while (ids[j] > pivotId || (ids[j] == pivotId && order[j] > pivotOrder)) {
+                    --j;
+                }
+                if (i <= j) {
+                    long id = ids[i];
+                    ids[i] = ids[j];
+                    ids[j] = id;
+                    int o = order[i];
+                    order[i] = order[j];
+                    order[j] = o;
+                    ++i;
+                    --j;
+                }
+            }
+            /* recurse into the smaller part, loop on the larger */
+            if (j - low < high - i) {
+                quicksort(ids, order, low, j);
+                low = i;
+            } else {
+                quicksort(ids, order, i, high);
+                high = j;
+            }
+        }
+    }
+}
@@ -13,15 +13,13 @@
 
 package org.opentripplanner.graph_builder.impl.osm;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
-import java.util.Set;
 
 import org.opentripplanner.common.model.P2;
 import org.opentripplanner.graph_builder.model.osm.OSMWithTags;
@@ -29,6 +27,8 @@ import org.opentripplanner.graph_builder.model.osm.OSMNode;
 import org.opentripplanner.graph_builder.model.osm.OSMRelation;
 import org.opentripplanner.graph_builder.model.osm.OSMWay;
 import org.opentripplanner.graph_builder.services.GraphBuilder;
+import org.opentripplanner.graph_builder.services.IntDisjointSet;
+import org.opentripplanner.graph_builder.services.LongSet;
 import org.opentripplanner.graph_builder.services.StreetUtils;
 import org.opentripplanner.graph_builder.services.osm.OpenStreetMapContentHandler;
 import org.opentripplanner.graph_builder.services.osm.OpenStreetMapProvider;
@@ -61,6 +61,10 @@ public class OpenStreetMapGraphBuilderImpl implements GraphBuilder {
 
     private HashMap<P2<String>, P2<Double>> safetyFeatures = new HashMap<P2<String>, P2<Double>>();
 
+    private boolean _twoPass = false;
+
+    private File _nodeStorageFile;
+
     private class KeyValuePermission {
         public String key;
 
@@ -89,6 +93,22 @@ public class OpenStreetMapGraphBuilderImpl implements GraphBuilder {
         _providers.addAll(providers);
     }
 
+    /**
+     * If true, the OSM data is read twice: first for the ways, then for only those nodes the ways
+     * refer to. This takes much less memory than keeping every node, at the cost of reading the
+     * data twice.
+     */
+    public void setTwoPass(boolean twoPass) {
+        _twoPass = twoPass;
+    }
+
+    /**
+     * In two-pass mode, keep node coordinates memory-mapped in this file rather than on the heap.
+     */
+    public void setNodeStorageFile(File nodeStorageFile) {
+        _nodeStorageFile = nodeStorageFile;
+    }
+
     /**
      * The set of traversal permissions for a given set of tags.
      * 
@@ -114,9 +134,27 @@ public class OpenStreetMapGraphBuilderImpl implements GraphBuilder {
     @Override
     public void buildGraph(Graph graph) {
         Handler handler = new Handler();
-        for (OpenStreetMapProvider provider : _providers) {
-            _log.debug("gathering osm from provider: " + provider);
-            provider.readOSM(handler);
+        if (_twoPass) {
+            handler.startWayPass();
+            for (OpenStreetMapProvider provider : _providers) {
+                _log.debug("gathering osm ways from provider: " + provider);
+                provider.readOSM(handler);
+            }
+            try {
+                handler.startNodePass(_nodeStorageFile);
+            } catch (IOException ex) {
+                throw new IllegalStateException("error creating node storage in "
+                        + _nodeStorageFile, ex);
+            }
+            for (OpenStreetMapProvider provider : _providers) {
+                _log.debug("gathering osm nodes from provider: " + provider);
+                provider.readOSM(handler);
+            }
+        } else {
+            for (OpenStreetMapProvider provider : _providers) {
+                _log.debug("gathering osm from provider: " + provider);
+                provider.readOSM(handler);
+            }
         }
         _log.debug("building osm street graph");
         handler.buildGraph(graph);
@@ -160,38 +198,67 @@ public class OpenStreetMapGraphBuilderImpl implements GraphBuilder {
 
     private class Handler implements OpenStreetMapContentHandler {
 
-        private Map<Integer, OSMNode> _nodes = new HashMap<Integer, OSMNode>();
+        private OSMNodeStore _nodes = new OSMNodeStore();
 
-        private Map<Integer, OSMWay> _ways = new HashMap<Integer, OSMWay>();
+        private Map<Long, OSMWay> _ways = new HashMap<Long, OSMWay>();
 
-        public void buildGraph(Graph graph) {
+        private boolean _readNodes = true;
 
-            // We want to prune nodes that don't have any edges
-            Set<Integer> nodesWithNeighbors = new HashSet<Integer>();
+        private boolean _readWays = true;
+
+        private int _nodeCount = 0;
+
+        /**
+         * Read only ways, until {@link #startNodePass(File)}
+         */
+        public void startWayPass() {
+            _readNodes = false;
+            _readWays = true;
+        }
 
+        /**
+         * Read only the nodes which the ways read so far refer to
+         */
+        public void startNodePass(File storageFile) throws IOException {
+            LongSet nodesWithNeighbors = getNodesWithNeighbors();
+            _log.debug("storing " + nodesWithNeighbors.size() + " nodes referred to by "
+                    + _ways.size() + " ways");
+            _nodes = new OSMNodeStore(nodesWithNeighbors.toSortedArray(), storageFile);
+            _readNodes = true;
+            _readWays = false;
+        }
+
+        private LongSet getNodesWithNeighbors() {
+            LongSet nodesWithNeighbors = new LongSet();
             for (OSMWay way : _ways.values()) {
-                List<Integer> nodes = way.getNodeRefs();
-                if (nodes.size() > 1)
-                    nodesWithNeighbors.addAll(nodes);
+                List<Long> nodes = way.getNodeRefs();
+                if (nodes.size() > 1) {
+                    for (long node : nodes) {
+                        nodesWithNeighbors.add(node);
+                    }
+                }
             }
+            return nodesWithNeighbors;
+        }
+
+        public void buildGraph(Graph graph) {
 
+            // We want to prune nodes that don't have any edges
             // Remove all simple islands
-            _nodes.keySet().retainAll(nodesWithNeighbors);
+            _nodes.retainAll(getNodesWithNeighbors());
 
             pruneFloatingIslands();
 
             int wayIndex = 0;
 
             // figure out which nodes that are actually intersections
-            Set<Integer> possibleIntersectionNodes = new HashSet<Integer>();
-            Set<Integer> intersectionNodes = new HashSet<Integer>();
+            LongSet possibleIntersectionNodes = new LongSet();
+            LongSet intersectionNodes = new LongSet();
             for (OSMWay way : _ways.values()) {
-                List<Integer> nodes = way.getNodeRefs();
-                for (int node : nodes) {
-                    if (possibleIntersectionNodes.contains(node)) {
+                List<Long> nodes = way.getNodeRefs();
+                for (long node : nodes) {
+                    if (!possibleIntersectionNodes.add(node)) {
                         intersectionNodes.add(node);
-                    } else {
-                        possibleIntersectionNodes.add(node);
                     }
                 }
             }
@@ -208,7 +275,7 @@ public class OpenStreetMapGraphBuilderImpl implements GraphBuilder {
                 if (permissions == StreetTraversalPermission.NONE)
                     continue;
 
-                List<Integer> nodes = way.getNodeRefs();
+                List<Long> nodes = way.getNodeRefs();
 
                 Vertex startEndpoint = null, endEndpoint = null;
 
@@ -221,17 +288,17 @@ public class OpenStreetMapGraphBuilderImpl implements GraphBuilder {
                  * nodes which are shared, create endpoints and StreetVertex instances.
                  */
 
-                Integer startNode = null;
-                OSMNode osmStartNode = null;
+                long startNode = 0;
+                int startIndex = -1;
                 for (int i = 0; i < nodes.size() - 1; i++) {
-                    Integer endNode = nodes.get(i + 1);
-                    if (osmStartNode == null) {
+                    long endNode = nodes.get(i + 1);
+                    if (startIndex < 0) {
                         startNode = nodes.get(i);
-                        osmStartNode = _nodes.get(startNode);
+                        startIndex = _nodes.indexOf(startNode);
                     }
-                    OSMNode osmEndNode = _nodes.get(endNode);
+                    int endIndex = _nodes.indexOf(endNode);
 
-                    if (osmStartNode == null || osmEndNode == null)
+                    if (startIndex < 0 || endIndex < 0)
                         continue;
 
                     LineString geometry;
@@ -241,27 +308,27 @@ public class OpenStreetMapGraphBuilderImpl implements GraphBuilder {
                      * geometry
                      */
                     if (segmentCoordinates.size() == 0) {
-                        segmentCoordinates.add(getCoordinate(osmStartNode));
+                        segmentCoordinates.add(getCoordinate(startIndex));
                     }
 
                     if (intersectionNodes.contains(endNode) || i == nodes.size() - 2) {
-                        segmentCoordinates.add(getCoordinate(osmEndNode));
+                        segmentCoordinates.add(getCoordinate(endIndex));
                         geometry = geometryFactory.createLineString(segmentCoordinates
                                 .toArray(new Coordinate[0]));
                         segmentCoordinates.clear();
                     } else {
-                        segmentCoordinates.add(getCoordinate(osmEndNode));
+                        segmentCoordinates.add(getCoordinate(endIndex));
                         continue;
                     }
 
                     /* generate endpoints */
                     if (startEndpoint == null) {
                         //first iteration on this way
-                        String label = "osm node " + osmStartNode.getId();
+                        String label = "osm node " + startNode;
 
                         startEndpoint = graph.getVertex(label);
                         if (startEndpoint == null) {
-                            Coordinate coordinate = getCoordinate(osmStartNode);
+                            Coordinate coordinate = getCoordinate(startIndex);
                             startEndpoint = new EndpointVertex(label, coordinate.x, coordinate.y,
                                     label);
                             graph.addVertex(startEndpoint);
@@ -271,10 +338,10 @@ public class OpenStreetMapGraphBuilderImpl implements GraphBuilder {
                         startEndpoint = endEndpoint;
                     }
 
-                    String label = "osm node " + osmEndNode.getId();
+                    String label = "osm node " + endNode;
                     endEndpoint = graph.getVertex(label);
                     if (endEndpoint == null) {
-                        Coordinate coordinate = getCoordinate(osmEndNode);
+                        Coordinate coordinate = getCoordinate(endIndex);
                         endEndpoint = new EndpointVertex(label, coordinate.x, coordinate.y, label);
                         graph.addVertex(endEndpoint);
                         endpoints.add(endEndpoint);
@@ -294,7 +361,7 @@ public class OpenStreetMapGraphBuilderImpl implements GraphBuilder {
                     }
 
                     startNode = endNode;
-                    osmStartNode = _nodes.get(startNode);
+                    startIndex = endIndex;
                 }
             }
 
@@ -302,72 +369,50 @@ public class OpenStreetMapGraphBuilderImpl implements GraphBuilder {
             
         }
 
-        private Coordinate getCoordinate(OSMNode osmNode) {
-            return new Coordinate(osmNode.getLon(), osmNode.getLat());
+        private Coordinate getCoordinate(int nodeIndex) {
+            return new Coordinate(_nodes.getLon(nodeIndex), _nodes.getLat(nodeIndex));
         }
 
+        /**
+         * Removes the nodes of small groups of ways which are not connected to anything else. The
+         * nodes of a way are all in the same group, and ways sharing a node are in the same group.
+         */
         private void pruneFloatingIslands() {
-            Map<Integer, HashSet<Integer>> subgraphs = new HashMap<Integer, HashSet<Integer>>();
-            Map<Integer, ArrayList<Integer>> neighborsForNode = new HashMap<Integer, ArrayList<Integer>>();
+            IntDisjointSet subgraphs = new IntDisjointSet(_nodes.size());
             for (OSMWay way : _ways.values()) {
-                List<Integer> nodes = way.getNodeRefs();
-                for (int node : nodes) {
-                    ArrayList<Integer> nodelist = neighborsForNode.get(node);
-                    if (nodelist == null) {
-                        nodelist = new ArrayList<Integer>();
-                        neighborsForNode.put(node, nodelist);
+                int first = -1;
+                for (long node : way.getNodeRefs()) {
+                    int index = _nodes.indexOf(node);
+                    if (index < 0) {
+                        continue;
+                    }
+                    if (first < 0) {
+                        first = index;
+                    } else {
+                        subgraphs.union(first, index);
                     }
-                    nodelist.addAll(nodes);
-                }
-            }
-            /* associate each node with a subgraph */
-            for (int node : _nodes.keySet()) {
-                if (subgraphs.containsKey(node)) {
-                    continue;
-                }
-                HashSet<Integer> subgraph = computeConnectedSubgraph(neighborsForNode, node);
-                for (int subnode : subgraph) {
-                    subgraphs.put(subnode, subgraph);
                 }
             }
             /* remove all tiny subgraphs */
-            for (HashSet<Integer> subgraph : subgraphs.values()) {
-                if (subgraph.size() < 20) {
-                    _nodes.keySet().removeAll(subgraph);
+            for (int i = 0; i < _nodes.size(); ++i) {
+                if (_nodes.isStored(i) && subgraphs.size(subgraphs.find(i)) < 20) {
+                    _nodes.remove(_nodes.getId(i));
                 }
             }
         }
 
-        private HashSet<Integer> computeConnectedSubgraph(
-                Map<Integer, ArrayList<Integer>> neighborsForNode, int startNode) {
-            HashSet<Integer> subgraph = new HashSet<Integer>();
-            Queue<Integer> q = new LinkedList<Integer>();
-            q.add(startNode);
-            while (!q.isEmpty()) {
-                int node = q.poll();
-                for (int neighbor : neighborsForNode.get(node)) {
-                    if (!subgraph.contains(neighbor)) {
-                        subgraph.add(neighbor);
-                        q.add(neighbor);
-                    }
-                }
-            }
-            return subgraph;
-        }
-
         public void addNode(OSMNode node) {
-
-            if (_nodes.containsKey(node.getId()))
+            if (!_readNodes)
                 return;
 
-            _nodes.put(node.getId(), node);
+            _nodes.add(node.getId(), node.getLat(), node.getLon());
 
-            if (_nodes.size() % 1000 == 0)
-                _log.debug("nodes=" + _nodes.size());
+            if (++_nodeCount % 100000 == 0)
+                _log.debug("nodes=" + _nodeCount);
         }
 
         public void addWay(OSMWay way) {
-            if (_ways.containsKey(way.getId()))
+            if (!_readWays || _ways.containsKey(way.getId()))
                 return;
 
             if (!(way.getTags().containsKey("highway") || "platform".equals(way.getTags().get(
@@ -0,0 +1,581 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.impl.osm;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.opentripplanner.graph_builder.model.osm.OSMNode;
+import org.opentripplanner.graph_builder.model.osm.OSMNodeRef;
+import org.opentripplanner.graph_builder.model.osm.OSMRelation;
+import org.opentripplanner.graph_builder.model.osm.OSMRelationMember;
+import org.opentripplanner.graph_builder.model.osm.OSMTag;
+import org.opentripplanner.graph_builder.model.osm.OSMWay;
+import org.opentripplanner.graph_builder.model.osm.OSMWithTags;
+
+/**
+ * Decodes the protocol buffer messages of an OSM PBF file (see
+ * http://wiki.openstreetmap.org/wiki/PBF_Format) into the OSM model classes. The messages are
+ * simple enough that they are read straight off the wire format, rather than with generated
+ * protobuf classes.
+ * 
+ * The methods are static and share no state, so blocks can be decoded on any number of threads.
+ */
+class PBFBlockDecoder {
+
+    /** kinds of entities, for decoding only some of those in a block */
+    public static final int NODES = 1;
+
+    public static final int WAYS = 2;
+
+    public static final int RELATIONS = 4;
+
+    public static final int ALL = NODES | WAYS | RELATIONS;
+
+    private static final List<String> SUPPORTED_FEATURES = Arrays.asList("OsmSchema-V0.6",
+            "DenseNodes");
+
+    private static final String[] MEMBER_TYPES = { "node", "way", "relation" };
+
+    private static final int WIRE_VARINT = 0;
+
+    private static final int WIRE_FIXED64 = 1;
+
+    private static final int WIRE_LENGTH_DELIMITED = 2;
+
+    private static final int WIRE_FIXED32 = 5;
+
+    public static class BlobHeader {
+        public String type;
+
+        public int dataSize;
+    }
+
+    public static class Header {
+        public List<String> requiredFeatures = new ArrayList<String>();
+
+        public List<String> optionalFeatures = new ArrayList<String>();
+
+        /** @return true if the file has all nodes, then all ways, then all relations */
+        public boolean isSorted() {
+            return optionalFeatures.contains("Sort.Type_then_ID");
+        }
+    }
+
+    public static class Block {
+        public List<OSMNode> nodes = new ArrayList<OSMNode>();
+
+        public List<OSMWay> ways = new ArrayList<OSMWay>();
+
+        public List<OSMRelation> relations = new ArrayList<OSMRelation>();
+    }
+
+    public static BlobHeader decodeBlobHeader(byte[] data) throws IOException {
+        BlobHeader header = new BlobHeader();
+        WireReader reader = new WireReader(data, 0, data.length);
+        while (reader.hasNext()) {
+            int key = reader.readKey();
+            switch (key >>> 3) {
+            case 1:
+                header.type = reader.readString();
+                break;
+            case 3:
+                header.dataSize = (int) reader.readVarint();
+                break;
+            default:
+                reader.skip(key);
+            }
+        }
+        return header;
+    }
+
+    /**
+     * @return the uncompressed contents of a Blob message
+     */
+    public static byte[] decodeBlob(byte[] data) throws IOException {
+        WireReader reader = new WireReader(data, 0, data.length);
+        byte[] raw = null;
+        byte[] compressed = null;
+        int rawSize = -1;
+        while (reader.hasNext()) {
+            int key = reader.readKey();
+            switch (key >>> 3) {
+            case 1:
+                raw = reader.readBytes();
+                break;
+            case 2:
+                rawSize = (int) reader.readVarint();
+                break;
+            case 3:
+                compressed = reader.readBytes();
+                break;
+            case 4:
+            case 5:
+                throw new IOException("unsupported PBF blob compression");
+            default:
+                reader.skip(key);
+            }
+        }
+        if (raw != null) {
+            return raw;
+        }
+        if (compressed == null || rawSize < 0) {
+            throw new IOException("PBF blob has no data");
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] inflated = new byte[rawSize];
+            int length = 0;
+            while (length < rawSize && !inflater.finished()) {
+                int n = inflater.inflate(inflated, length, rawSize - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += n;
+            }
+            if (length != rawSize) {
+                throw new IOException("PBF blob is " + length + " bytes, expected " + rawSize);
+            }
+            return inflated;
+        } catch (DataFormatException ex) {
+            throw new IOException("corrupt PBF blob: " + ex.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    public static Header decodeHeader(byte[] data) throws IOException {
+        Header header = new Header();
+        WireReader reader = new WireReader(data, 0, data.length);
+        while (reader.hasNext()) {
+            int key = reader.readKey();
+            switch (key >>> 3) {
+            case 4:
+                header.requiredFeatures.add(reader.readString());
+                break;
+            case 5:
+                header.optionalFeatures.add(reader.readString());
+                break;
+            default:
+                reader.skip(key);
+            }
+        }
+        for (String feature : header.requiredFeatures) {
+            if (!SUPPORTED_FEATURES.contains(feature)) {
+                throw new IOException("PBF file requires unsupported feature " + feature);
+            }
+        }
+        return header;
+    }
+
+    /**
+     * Decodes a PrimitiveBlock.
+     * 
+     * @param kinds the kinds of entities to decode ({@link #NODES}, {@link #WAYS} and
+     *        {@link #RELATIONS}); others are skipped
+     */
+    public static Block decodeBlock(byte[] data, int kinds) throws IOException {
+        /* the string table and scaling come before the groups on the wire, but need not */
+        String[] strings = new String[0];
+        int granularity = 100;
+        long latOffset = 0, lonOffset = 0;
+        List<WireReader> groups = new ArrayList<WireReader>();
+        WireReader reader = new WireReader(data, 0, data.length);
+        while (reader.hasNext()) {
+            int key = reader.readKey();
+            switch (key >>> 3) {
+            case 1:
+                strings = decodeStringTable(reader.readMessage());
+                break;
+            case 2:
+                groups.add(reader.readMessage());
+                break;
+            case 17:
+                granularity = (int) reader.readVarint();
+                break;
+            case 19:
+                latOffset = reader.readVarint();
+                break;
+            case 20:
+                lonOffset = reader.readVarint();
+                break;
+            default:
+                reader.skip(key);
+            }
+        }
+
+        BlockContext context = new BlockContext(strings, granularity, latOffset, lonOffset);
+        Block block = new Block();
+        for (WireReader group : groups) {
+            while (group.hasNext()) {
+                int key = group.readKey();
+                int field = key >>> 3;
+                if (field == 1 && (kinds & NODES) != 0) {
+                    block.nodes.add(decodeNode(group.readMessage(), context));
+                } else if (field == 2 && (kinds & NODES) != 0) {
+                    decodeDenseNodes(group.readMessage(), context, block.nodes);
+                } else if (field == 3 && (kinds & WAYS) != 0) {
+                    block.ways.add(decodeWay(group.readMessage(), context));
+                } else if (field == 4 && (kinds & RELATIONS) != 0) {
+                    block.relations.add(decodeRelation(group.readMessage(), context));
+                } else {
+                    group.skip(key);
+                }
+            }
+        }
+        return block;
+    }
+
+    private static String[] decodeStringTable(WireReader reader) throws IOException {
+        List<String> strings = new ArrayList<String>();
+        while (reader.hasNext()) {
+            int key = reader.readKey();
+            if (key >>> 3 == 1) {
+                strings.add(reader.readString());
+            } else {
+                reader.skip(key);
+            }
+        }
+        return strings.toArray(new String[strings.size()]);
+    }
+
+    private static OSMNode decodeNode(WireReader reader, BlockContext context) throws IOException {
+        OSMNode node = new OSMNode();
+        LongList keys = new LongList(), values = new LongList();
+        long lat = 0, lon = 0;
+        while (reader.hasNext()) {
+            int key = reader.readKey();
+            switch (key >>> 3) {
+            case 1:
+                node.setId(reader.readSignedVarint());
+                break;
+            case 2:
+                reader.readRepeated(key, keys, false, false);
+                break;
+            case 3:
+                reader.readRepeated(key, values, false, false);
+                break;
+            case 8:
+                lat = reader.readSignedVarint();
+                break;
+            case 9:
+                lon = reader.readSignedVarint();
+                break;
+            default:
+                reader.skip(key);
+            }
+        }
+        node.setLat(context.getLat(lat));
+        node.setLon(context.getLon(lon));
+        addTags(node, keys, values, context);
+        return node;
+    }
+
+    private static void decodeDenseNodes(WireReader reader, BlockContext context,
+            List<OSMNode> nodes) throws IOException {
+        LongList ids = new LongList(), lats = new LongList(), lons = new LongList();
+        LongList keysValues = new LongList();
+        while (reader.hasNext()) {
+            int key = reader.readKey();
+            switch (key >>> 3) {
+            case 1:
+                reader.readRepeated(key, ids, true, true);
+                break;
+            case 8:
+                reader.readRepeated(key, lats, true, true);
+                break;
+            case 9:
+                reader.readRepeated(key, lons, true, true);
+                break;
+            case 10:
+                reader.readRepeated(key, keysValues, false, false);
+                break;
+            default:
+                reader.skip(key);
+            }
+        }
+        if (lats.size != ids.size || lons.size != ids.size) {
+            throw new IOException("dense nodes have " + ids.size + " ids but " + lats.size
+                    + " latitudes and " + lons.size + " longitudes");
+        }
+        /* keys and values of all the nodes, each node's ending with 0 */
+        int kv = 0;
+        for (int i = 0; i < ids.size; ++i) {
+            OSMNode node = new OSMNode();
+            node.setId(ids.values[i]);
+            node.setLat(context.getLat(lats.values[i]));
+            node.setLon(context.getLon(lons.values[i]));
+            while (kv < keysValues.size && keysValues.values[kv] != 0) {
+                addTag(node, (int) keysValues.values[kv], (int) keysValues.values[kv + 1],
+                        context);
+                kv += 2;
+            }
+            ++kv;
+            nodes.add(node);
+        }
+    }
+
+    private static OSMWay decodeWay(WireReader reader, BlockContext context) throws IOException {
+        OSMWay way = new OSMWay();
+        LongList keys = new LongList(), values = new LongList(), refs = new LongList();
+        while (reader.hasNext()) {
+            int key = reader.readKey();
+            switch (key >>> 3) {
+            case 1:
+                way.setId(reader.readVarint());
+                break;
+            case 2:
+                reader.readRepeated(key, keys, false, false);
+                break;
+            case 3:
+                reader.readRepeated(key, values, false, false);
+                break;
+            case 8:
+                reader.readRepeated(key, refs, true, true);
+                break;
+            default:
+                reader.skip(key);
+            }
+        }
+        addTags(way, keys, values, context);
+        for (int i = 0; i < refs.size; ++i) {
+            OSMNodeRef ref = new OSMNodeRef();
+            ref.setRef(refs.values[i]);
+            way.addNodeRef(ref);
+        }
+        return way;
+    }
+
+    private static OSMRelation decodeRelation(WireReader reader, BlockContext context)
+            throws IOException {
+        OSMRelation relation = new OSMRelation();
+        LongList keys = new LongList(), values = new LongList();
+        LongList roles = new LongList(), members = new LongList(), types = new LongList();
+        while (reader.hasNext()) {
+            int key = reader.readKey();
+            switch (key >>> 3) {
+            case 1:
+                relation.setId(reader.readVarint());
+                break;
+            case 2:
+                reader.readRepeated(key, keys, false, false);
+                break;
+            case 3:
+                reader.readRepeated(key, values, false, false);
+                break;
+            case 8:
+                reader.readRepeated(key, roles, false, false);
+                break;
+            case 9:
+                reader.readRepeated(key, members, true, true);
+                break;
+            case 10:
+                reader.readRepeated(key, types, false, false);
+                break;
+            default:
+                reader.skip(key);
+            }
+        }
+        addTags(relation, keys, values, context);
+        for (int i = 0; i < members.size; ++i) {
+            OSMRelationMember member = new OSMRelationMember();
+            member.setRef(members.values[i]);
+            member.setType(MEMBER_TYPES[(int) types.values[i]]);
+            member.setRole(context.strings[(int) roles.values[i]]);
+            relation.addMember(member);
+        }
+        return relation;
+    }
+
+    private static void addTags(OSMWithTags entity, LongList keys, LongList values,
+            BlockContext context) {
+        for (int i = 0; i < keys.size; ++i) {
+            addTag(entity, (int) keys.values[i], (int) values.values[i], context);
+        }
+    }
+
+    private static void addTag(OSMWithTags entity, int key, int value, BlockContext context) {
+        OSMTag tag = new OSMTag();
+        String k = context.strings[key];
+        String v = context.strings[value];
+        tag.setK(k);
+        if (k.equals("name")) {
+            v = v.intern();
+        }
+        tag.setV(v);
+        entity.addTag(tag);
+    }
+
+    private static class BlockContext {
+        String[] strings;
+
+        int granularity;
+
+        long latOffset, lonOffset;
+
+        BlockContext(String[] strings, int granularity, long latOffset, long lonOffset) {
+            this.strings = strings;
+            this.granularity = granularity;
+            this.latOffset = latOffset;
+            this.lonOffset = lonOffset;
+        }
+
+        double getLat(long lat) {
+            return (latOffset + (long) granularity * lat) / 1e9;
+        }
+
+        double getLon(long lon) {
+            return (lonOffset + (long) granularity * lon) / 1e9;
+        }
+    }
+
+    private static class LongList {
+        long[] values = new long[16];
+
+        int size = 0;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    /**
+     * Reads protocol buffer wire format from part of a byte array.
+     */
+    private static class WireReader {
+        private byte[] data;
+
+        private int position;
+
+        private int limit;
+
+        WireReader(byte[] data, int offset, int limit) {
+            this.data = data;
+            this.position = offset;
+            this.limit = limit;
+        }
+
+        boolean hasNext() {
+            return position < limit;
+        }
+
+        int readKey() throws IOException {
+            return (int) readVarint();
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (position >= limit) {
+                    throw new IOException("truncated PBF varint");
+                }
+                byte b = data[position++];
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("malformed PBF varint");
+        }
+
+        long readSignedVarint() throws IOException {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private int readLength() throws IOException {
+            int length = (int) readVarint();
+            if (length < 0 || position + length > limit) {
+                throw new IOException("truncated PBF message");
+            }
+            return length;
+        }
+
+        WireReader readMessage() throws IOException {
+            int length = readLength();
+            WireReader message = new WireReader(data, position, position + length);
+            position += length;
+            return message;
+        }
+
+        byte[] readBytes() throws IOException {
+            int length = readLength();
+            byte[] bytes = Arrays.copyOfRange(data, position, position + length);
+            position += length;
+            return bytes;
+        }
+
+        String readString() throws IOException {
+            int length = readLength();
+            try {
+                String s = new String(data, position, length, "UTF-8");
+                position += length;
+                return s;
+            } catch (UnsupportedEncodingException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        /**
+         * Reads a repeated integer field, which may or may not be packed.
+         * 
+         * @param signed whether the values are zigzag encoded (sint32/sint64)
+         * @param delta whether each value is the difference from the previous one
+         */
+        void readRepeated(int key, LongList values, boolean signed, boolean delta)
+                throws IOException {
+            long last = values.size == 0 || !delta ? 0 : values.values[values.size - 1];
+            if ((key & 7) == WIRE_LENGTH_DELIMITED) {
+                WireReader packed = readMessage();
+                while (packed.hasNext()) {
+                    long value = signed ? packed.readSignedVarint() : packed.readVarint();
+                    last = delta ? last + value : value;
+                    values.add(last);
+                }
+            } else {
+                long value = signed ? readSignedVarint() : readVarint();
+                values.add(delta ? last + value : value);
+            }
+        }
+
+        void skip(int key) throws IOException {
+            switch (key & 7) {
+            case WIRE_VARINT:
+                readVarint();
+                break;
+            case WIRE_FIXED64:
+                position += 8;
+                break;
+            case WIRE_LENGTH_DELIMITED:
+                int length = readLength();
+                position += length;
+                break;
+            case WIRE_FIXED32:
+                position += 4;
+                break;
+            default:
+                throw new IOException("unsupported PBF wire type " + (key & 7));
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.impl.osm;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.opentripplanner.graph_builder.model.osm.OSMNode;
+import org.opentripplanner.graph_builder.model.osm.OSMRelation;
+import org.opentripplanner.graph_builder.model.osm.OSMWay;
+import org.opentripplanner.graph_builder.services.osm.OpenStreetMapContentHandler;
+import org.opentripplanner.graph_builder.services.osm.OpenStreetMapProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads OSM data from a .osm.pbf file.
+ * 
+ * The file is read in one thread, and its blocks are decompressed and decoded on a thread pool.
+ * Entities are handed to the content handler from the calling thread, in file order. Files
+ * sorted by type (as most extracts are) are read once; other files are read once each for nodes,
+ * ways and relations, so that the handler always gets all the nodes, then all the ways, then all
+ * the relations.
+ */
+public class PBFOpenStreetMapProviderImpl implements OpenStreetMapProvider {
+
+    private static Logger _log = LoggerFactory.getLogger(PBFOpenStreetMapProviderImpl.class);
+
+    /** larger headers and blobs are not allowed by the format */
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+
+    private static final int MAX_BLOB_SIZE = 32 * 1024 * 1024;
+
+    private File _path;
+
+    private int _threads = Runtime.getRuntime().availableProcessors();
+
+    public void setPath(File path) {
+        _path = path;
+    }
+
+    public void setThreads(int threads) {
+        _threads = threads;
+    }
+
+    @Override
+    public void readOSM(OpenStreetMapContentHandler handler) {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(_threads, 1));
+        try {
+            if (readHeader().isSorted()) {
+                readBlocks(handler, executor, PBFBlockDecoder.ALL);
+            } else {
+                _log.debug("PBF file is not sorted by type; reading it once per type");
+                readBlocks(handler, executor, PBFBlockDecoder.NODES);
+                readBlocks(handler, executor, PBFBlockDecoder.WAYS);
+                readBlocks(handler, executor, PBFBlockDecoder.RELATIONS);
+            }
+        } catch (Exception ex) {
+            throw new IllegalStateException("error loading OSM from path " + _path, ex);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private PBFBlockDecoder.Header readHeader() throws IOException {
+        DataInputStream in = open();
+        try {
+            byte[] blob = readBlob(in, "OSMHeader");
+            if (blob == null) {
+                throw new IOException("PBF file does not start with a header");
+            }
+            return PBFBlockDecoder.decodeHeader(PBFBlockDecoder.decodeBlob(blob));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the data blocks of the file, decoding only the given kinds of entities.
+     */
+    private void readBlocks(OpenStreetMapContentHandler handler, ExecutorService executor,
+            final int kinds) throws IOException, InterruptedException, ExecutionException {
+        /* blocks being decoded, in file order; bounded so that reading can't outrun decoding */
+        LinkedList<Future<PBFBlockDecoder.Block>> pending = new LinkedList<Future<PBFBlockDecoder.Block>>();
+        int maxPending = Math.max(_threads, 1) * 4;
+        DataInputStream in = open();
+        try {
+            while (true) {
+                final byte[] blob = readBlob(in, "OSMData");
+                if (blob == null) {
+                    break;
+                }
+                pending.add(executor.submit(new Callable<PBFBlockDecoder.Block>() {
+                    public PBFBlockDecoder.Block call() throws IOException {
+                        return PBFBlockDecoder.decodeBlock(PBFBlockDecoder.decodeBlob(blob),
+                                kinds);
+                    }
+                }));
+                if (pending.size() >= maxPending) {
+                    deliver(pending.removeFirst().get(), handler);
+                }
+            }
+            while (!pending.isEmpty()) {
+                deliver(pending.removeFirst().get(), handler);
+            }
+        } finally {
+            for (Future<PBFBlockDecoder.Block> future : pending) {
+                future.cancel(true);
+            }
+            in.close();
+        }
+    }
+
+    private void deliver(PBFBlockDecoder.Block block, OpenStreetMapContentHandler handler) {
+        for (OSMNode node : block.nodes) {
+            handler.addNode(node);
+        }
+        for (OSMWay way : block.ways) {
+            handler.addWay(way);
+        }
+        for (OSMRelation relation : block.relations) {
+            handler.addRelation(relation);
+        }
+    }
+
+    private DataInputStream open() throws IOException {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(_path), 65536));
+    }
+
+    /**
+     * Reads blobs until one of the given type, skipping others.
+     * 
+     * @return the blob, still compressed, or null at the end of the file
+     */
+    private byte[] readBlob(DataInputStream in, String type) throws IOException {
+        while (true) {
+            int headerSize;
+            try {
+                headerSize = in.readInt();
+            } catch (EOFException ex) {
+                return null;
+            }
+            if (headerSize < 0 || headerSize > MAX_HEADER_SIZE) {
+                throw new IOException("bad PBF blob header size " + headerSize);
+            }
+            byte[] headerData = new byte[headerSize];
+            in.readFully(headerData);
+            PBFBlockDecoder.BlobHeader header = PBFBlockDecoder.decodeBlobHeader(headerData);
+            if (header.dataSize < 0 || header.dataSize > MAX_BLOB_SIZE) {
+                throw new IOException("bad PBF blob size " + header.dataSize);
+            }
+            if (!type.equals(header.type)) {
+                skipFully(in, header.dataSize);
+                continue;
+            }
+            byte[] blob = new byte[header.dataSize];
+            in.readFully(blob);
+            return blob;
+        }
+    }
+
+    private static void skipFully(DataInputStream in, int n) throws IOException {
+        while (n > 0) {
+            int skipped = in.skipBytes(n);
+            if (skipped <= 0) {
+                throw new EOFException("truncated PBF file");
+            }
+            n -= skipped;
+        }
+    }
+}
@@ -15,9 +15,22 @@ package org.opentripplanner.graph_builder.impl.osm;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.opentripplanner.graph_builder.model.osm.OSMMap;
+import org.opentripplanner.graph_builder.model.osm.OSMNode;
+import org.opentripplanner.graph_builder.model.osm.OSMRelation;
+import org.opentripplanner.graph_builder.model.osm.OSMWay;
+import org.opentripplanner.graph_builder.services.LongSet;
 import org.opentripplanner.graph_builder.services.RegionsSource;
 import org.opentripplanner.graph_builder.services.osm.OpenStreetMapContentHandler;
 import org.opentripplanner.graph_builder.services.osm.OpenStreetMapProvider;
@@ -26,6 +39,14 @@ import org.slf4j.LoggerFactory;
 
 import com.vividsolutions.jts.geom.Envelope;
 
+/**
+ * Reads OSM data for a set of regions, downloading the map tiles covering them as needed.
+ * 
+ * Parsed tiles are kept in an {@link OSMBinaryTileCache} next to the downloaded files, so later
+ * builds over the same regions needn't parse them again. Tiles are loaded on a thread pool and
+ * handed to the content handler in order; nodes, ways and relations repeated where the tiles
+ * overlap are only handed over once.
+ */
 public class RegionBasedOpenStreetMapProviderImpl implements OpenStreetMapProvider {
     
     private static Logger _log = LoggerFactory.getLogger(RegionBasedOpenStreetMapProviderImpl.class);
@@ -33,6 +54,8 @@ public class RegionBasedOpenStreetMapProviderImpl implements OpenStreetMapProvid
     private RegionsSource _regionsSource;
 
     private File _cacheDirectory;
+
+    private int _threads = Runtime.getRuntime().availableProcessors();
     
     public void setRegionsSource(RegionsSource regionsSource) {
         _regionsSource = regionsSource;
@@ -42,6 +65,10 @@ public class RegionBasedOpenStreetMapProviderImpl implements OpenStreetMapProvid
         _cacheDirectory = cacheDirectory;
     }
 
+    public void setThreads(int threads) {
+        _threads = threads;
+    }
+
     @Override
     public void readOSM(OpenStreetMapContentHandler handler) {
 
@@ -50,7 +77,7 @@ public class RegionBasedOpenStreetMapProviderImpl implements OpenStreetMapProvid
         if( _cacheDirectory != null)
             downloader.setCacheDirectory(_cacheDirectory);
         
-        DownloadHandler downloadHandler = new DownloadHandler(handler);
+        DownloadHandler downloadHandler = new DownloadHandler();
 
         try {
             int regionIndex = 0;
@@ -62,28 +89,112 @@ public class RegionBasedOpenStreetMapProviderImpl implements OpenStreetMapProvid
         } catch (IOException ex) {
             throw new IllegalStateException("error downloading osm", ex);
         }
+
+        readTiles(downloadHandler.getMapTiles(), handler);
     }
 
-    private static class DownloadHandler implements OSMDownloaderListener {
-        
-        private Set<String> _visitedMapTiles = new HashSet<String>();
-        
-        private OpenStreetMapParser _parser = new OpenStreetMapParser();
+    /**
+     * Loads the map tiles in parallel, and hands them to the handler in order
+     */
+    void readTiles(List<File> mapTiles, OpenStreetMapContentHandler handler) {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(_threads, 1));
+        /* tiles being loaded; bounded so that loading can't get far ahead of the handler */
+        LinkedList<Future<OSMMap>> pending = new LinkedList<Future<OSMMap>>();
+        int maxPending = Math.max(_threads, 1) * 2;
+        TileMerger merger = new TileMerger(handler);
+        try {
+            for (final File mapTile : mapTiles) {
+                pending.add(executor.submit(new Callable<OSMMap>() {
+                    public OSMMap call() throws Exception {
+                        return loadTile(mapTile);
+                    }
+                }));
+                if (pending.size() >= maxPending) {
+                    merger.add(pending.removeFirst().get());
+                }
+            }
+            while (!pending.isEmpty()) {
+                merger.add(pending.removeFirst().get());
+            }
+        } catch (InterruptedException ex) {
+            throw new IllegalStateException("interrupted while parsing osm", ex);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("error parsing osm", ex.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Reads a tile from its binary cache if that's up to date, or else parses it and caches it.
+     */
+    static OSMMap loadTile(File mapTile) throws Exception {
+        File cacheFile = OSMBinaryTileCache.getCacheFile(mapTile);
+        if (OSMBinaryTileCache.isUpToDate(mapTile)) {
+            try {
+                return OSMBinaryTileCache.read(cacheFile);
+            } catch (IOException ex) {
+                _log.warn("error reading osm tile cache " + cacheFile + "; parsing " + mapTile, ex);
+            }
+        }
+        OSMMap map = new OSMMap();
+        new StreamingOpenStreetMapParser().parseMap(mapTile, map);
+        try {
+            OSMBinaryTileCache.write(map, cacheFile);
+        } catch (IOException ex) {
+            _log.warn("error writing osm tile cache " + cacheFile, ex);
+        }
+        return map;
+    }
+
+    /**
+     * Hands the entities of each tile to a content handler, skipping those already handed over
+     * with a neighboring tile.
+     */
+    private static class TileMerger {
 
         private OpenStreetMapContentHandler _contentHandler;
 
-        public DownloadHandler(OpenStreetMapContentHandler contentHandler) {
+        private LongSet _nodes = new LongSet();
+
+        private LongSet _ways = new LongSet();
+
+        private LongSet _relations = new LongSet();
+
+        public TileMerger(OpenStreetMapContentHandler contentHandler) {
             _contentHandler = contentHandler;
         }
 
+        public void add(OSMMap tile) {
+            for (OSMNode node : tile.getNodes().values()) {
+                if (_nodes.add(node.getId()))
+                    _contentHandler.addNode(node);
+            }
+            for (OSMWay way : tile.getWays().values()) {
+                if (_ways.add(way.getId()))
+                    _contentHandler.addWay(way);
+            }
+            for (OSMRelation relation : tile.getRelations().values()) {
+                if (_relations.add(relation.getId()))
+                    _contentHandler.addRelation(relation);
+            }
+        }
+    }
+
+    private static class DownloadHandler implements OSMDownloaderListener {
+        
+        private Set<String> _visitedMapTiles = new HashSet<String>();
+
+        private List<File> _mapTiles = new ArrayList<File>();
+
         @Override
         public void handleMapTile(String key, double lat, double lon, File pathToMapTile) {
-            try {
-                if( _visitedMapTiles.add(key))
-                    _parser.parseMap(pathToMapTile, _contentHandler);
-            } catch (Exception ex) {
-                throw new IllegalStateException("error parsing osm file " + pathToMapTile, ex);
-            }
+            if (_visitedMapTiles.add(key))
+                _mapTiles.add(pathToMapTile);
+        }
+
+        public List<File> getMapTiles() {
+            return _mapTiles;
         }
     };
 
@@ -0,0 +1,127 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.impl.osm;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.opentripplanner.graph_builder.model.osm.OSMNode;
+import org.opentripplanner.graph_builder.model.osm.OSMNodeRef;
+import org.opentripplanner.graph_builder.model.osm.OSMRelation;
+import org.opentripplanner.graph_builder.model.osm.OSMRelationMember;
+import org.opentripplanner.graph_builder.model.osm.OSMTag;
+import org.opentripplanner.graph_builder.model.osm.OSMWay;
+import org.opentripplanner.graph_builder.model.osm.OSMWithTags;
+import org.opentripplanner.graph_builder.services.osm.OpenStreetMapContentHandler;
+
+/**
+ * Reads OSM XML with a StAX stream reader, handing each node, way and relation to the content
+ * handler as soon as its closing tag is read. Unlike {@link OpenStreetMapParser}, which builds a
+ * DOM of the whole file first, only the element being read is held in memory, so the memory used
+ * does not grow with the size of the file.
+ */
+public class StreamingOpenStreetMapParser {
+
+    private XMLInputFactory factory;
+
+    public StreamingOpenStreetMapParser() {
+        factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    }
+
+    public void parseMap(File path, OpenStreetMapContentHandler map) throws IOException,
+            XMLStreamException {
+        InputStream in = new BufferedInputStream(new FileInputStream(path));
+        try {
+            parseMap(in, map);
+        } finally {
+            in.close();
+        }
+    }
+
+    public void parseMap(InputStream in, OpenStreetMapContentHandler map)
+            throws XMLStreamException {
+        XMLStreamReader reader = factory.createXMLStreamReader(in);
+        try {
+            /* the element being read, if any; tags and members are added to it */
+            OSMWithTags current = null;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if (name.equals("node")) {
+                        OSMNode osmNode = new OSMNode();
+                        osmNode.setId(Long.parseLong(reader.getAttributeValue(null, "id")));
+                        osmNode.setLat(Double.parseDouble(reader.getAttributeValue(null, "lat")));
+                        osmNode.setLon(Double.parseDouble(reader.getAttributeValue(null, "lon")));
+                        current = osmNode;
+                    } else if (name.equals("way")) {
+                        OSMWay osmWay = new OSMWay();
+                        osmWay.setId(Long.parseLong(reader.getAttributeValue(null, "id")));
+                        current = osmWay;
+                    } else if (name.equals("relation")) {
+                        OSMRelation osmRelation = new OSMRelation();
+                        osmRelation.setId(Long.parseLong(reader.getAttributeValue(null, "id")));
+                        current = osmRelation;
+                    } else if (current == null) {
+                        continue;
+                    } else if (name.equals("tag")) {
+                        OSMTag tag = new OSMTag();
+                        String key = reader.getAttributeValue(null, "k");
+                        tag.setK(key);
+                        String value = reader.getAttributeValue(null, "v");
+                        if (key.equals("name")) {
+                            value = value.intern();
+                        }
+                        tag.setV(value);
+                        current.addTag(tag);
+                    } else if (name.equals("nd") && current instanceof OSMWay) {
+                        OSMNodeRef nodeRef = new OSMNodeRef();
+                        nodeRef.setRef(Long.parseLong(reader.getAttributeValue(null, "ref")));
+                        ((OSMWay) current).addNodeRef(nodeRef);
+                    } else if (name.equals("member") && current instanceof OSMRelation) {
+                        OSMRelationMember member = new OSMRelationMember();
+                        member.setType(reader.getAttributeValue(null, "type"));
+                        member.setRef(Long.parseLong(reader.getAttributeValue(null, "ref")));
+                        member.setRole(reader.getAttributeValue(null, "role"));
+                        ((OSMRelation) current).addMember(member);
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && current != null) {
+                    String name = reader.getLocalName();
+                    if (name.equals("node")) {
+                        map.addNode((OSMNode) current);
+                        current = null;
+                    } else if (name.equals("way")) {
+                        map.addWay((OSMWay) current);
+                        current = null;
+                    } else if (name.equals("relation")) {
+                        map.addRelation((OSMRelation) current);
+                        current = null;
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+}
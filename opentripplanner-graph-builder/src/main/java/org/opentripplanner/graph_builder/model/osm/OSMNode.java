@@ -18,17 +18,17 @@ package org.opentripplanner.graph_builder.model.osm;
 
 public class OSMNode extends OSMWithTags {
 
-  private int id;
+  private long id;
 
   private double lat;
 
   private double lon;
 
-  public int getId() {
+  public long getId() {
     return id;
   }
 
-  public void setId(int id) {
+  public void setId(long id) {
     this.id = id;
   }
 
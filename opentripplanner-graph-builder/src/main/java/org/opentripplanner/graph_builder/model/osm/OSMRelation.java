@@ -20,15 +20,15 @@ import java.util.List;
 
 public class OSMRelation extends OSMWithTags {
 
-  private int _id;
+  private long _id;
 
   private List<OSMRelationMember> _members = new ArrayList<OSMRelationMember>();
 
-  public int getId() {
+  public long getId() {
     return _id;
   }
 
-  public void setId(int id) {
+  public void setId(long id) {
     _id = id;
   }
 
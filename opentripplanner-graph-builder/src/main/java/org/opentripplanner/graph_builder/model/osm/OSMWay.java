@@ -21,15 +21,15 @@ import java.util.List;
 
 public class OSMWay extends OSMWithTags {
 
-  private List<Integer> _nodes = new ArrayList<Integer>();
+  private List<Long> _nodes = new ArrayList<Long>();
 
-  private int id;
+  private long id;
 
-  public int getId() {
+  public long getId() {
     return id;
   }
 
-  public void setId(int id) {
+  public void setId(long id) {
     this.id = id;
   }
 
@@ -37,7 +37,7 @@ public class OSMWay extends OSMWithTags {
     _nodes.add(nodeRef.getRef());
   }
 
-  public List<Integer> getNodeRefs() {
+  public List<Long> getNodeRefs() {
     return _nodes;
   }
 }
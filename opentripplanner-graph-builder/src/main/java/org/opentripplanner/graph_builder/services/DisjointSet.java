@@ -13,62 +13,34 @@
 
 package org.opentripplanner.graph_builder.services;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 
-/** basic union-find data structure with path compression */
+/**
+ * basic union-find data structure with path compression, over any objects; see
+ * {@link IntDisjointSet} for a primitive version
+ */
 public class DisjointSet<T> {
 
-    ArrayList<Integer> sets = new ArrayList<Integer>();
+    IntDisjointSet sets = new IntDisjointSet();
     HashMap<T, Integer> setMapping = new HashMap<T, Integer>();
     
     public DisjointSet() {}
     
     public int union(T element1, T element2) {
-        Integer p1 = find(element1);
-        Integer p2 = find(element2);
-        
-        if (p1.equals(p2)) {
-            return p1;
-        }
-        
-        int p1size = -sets.get(p1);
-        int p2size = -sets.get(p2);
-
-        int totalSize = p1size + p2size;
-        
-        if (p1size > p2size) {
-            sets.set(p2, p1);
-            sets.set(p1, -totalSize);
-            return p2;
-        } else {
-            sets.set(p1, p2);
-            sets.set(p2, -totalSize);
-            return p1;
-        }
+        return sets.union(find(element1), find(element2));
     }
     
     public int find(T element) {
         Integer i = setMapping.get(element);
         if (i == null) {
-            setMapping.put(element, sets.size());
-            sets.add(-1);
-            return sets.size() -1;
-        }
-        return compact(i);
-    }
-    
-    private int compact(int i) {
-        int key = sets.get(i);
-        if (key < 0) {
-            return i;
+            int added = sets.add();
+            setMapping.put(element, added);
+            return added;
         }
-        int j = compact(key);
-        sets.set(i, j);
-        return j;
+        return sets.find(i);
     }
     
     public int size(int component) {
-        return -sets.get(component);
+        return sets.size(component);
     }
 }
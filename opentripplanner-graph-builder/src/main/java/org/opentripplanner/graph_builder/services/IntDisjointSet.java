@@ -0,0 +1,115 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.services;
+
+import java.util.Arrays;
+
+/**
+ * Union-find over the ints 0 to n-1, with union by size and path compression, kept in a single
+ * int array. Each entry is the parent of an element, or minus the size of the set for the root of
+ * a set.
+ */
+public class IntDisjointSet {
+
+    private int[] sets;
+
+    private int size;
+
+    public IntDisjointSet() {
+        this(0);
+    }
+
+    /**
+     * Creates n elements, 0 to n-1, each in a set of its own
+     */
+    public IntDisjointSet(int n) {
+        sets = new int[Math.max(n, 16)];
+        Arrays.fill(sets, 0, n, -1);
+        size = n;
+    }
+
+    /**
+     * Adds an element in a set of its own
+     * 
+     * @return the element
+     */
+    public int add() {
+        if (size == sets.length) {
+            sets = Arrays.copyOf(sets, size * 2);
+        }
+        sets[size] = -1;
+        return size++;
+    }
+
+    /**
+     * @return the number of elements
+     */
+    public int getNumElements() {
+        return size;
+    }
+
+    /**
+     * Merges the sets containing two elements
+     * 
+     * @return the root of the smaller set, which is no longer a root
+     */
+    public int union(int element1, int element2) {
+        int p1 = find(element1);
+        int p2 = find(element2);
+
+        if (p1 == p2) {
+            return p1;
+        }
+
+        int p1size = -sets[p1];
+        int p2size = -sets[p2];
+
+        int totalSize = p1size + p2size;
+
+        if (p1size > p2size) {
+            sets[p2] = p1;
+            sets[p1] = -totalSize;
+            return p2;
+        } else {
+            sets[p1] = p2;
+            sets[p2] = -totalSize;
+            return p1;
+        }
+    }
+
+    /**
+     * @return the root of the set containing an element
+     */
+    public int find(int element) {
+        int root = element;
+        while (sets[root] >= 0) {
+            root = sets[root];
+        }
+        /* path compression */
+        while (element != root) {
+            int parent = sets[element];
+            sets[element] = root;
+            element = parent;
+        }
+        return root;
+    }
+
+    /**
+     * @param component the root of a set
+     * @return the number of elements in the set
+     */
+    public int size(int component) {
+        return -sets[component];
+    }
+}
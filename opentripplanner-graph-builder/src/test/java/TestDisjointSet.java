@@ -3,6 +3,7 @@ import java.util.Random;
 
 import org.junit.Test;
 import org.opentripplanner.graph_builder.services.DisjointSet;
+import org.opentripplanner.graph_builder.services.IntDisjointSet;
 
 import junit.framework.TestCase;
 
@@ -54,4 +55,27 @@ public class TestDisjointSet  extends TestCase{
         }
         assertEquals(700, sizeSum);
     }
+
+    public void testPrimitive() {
+        IntDisjointSet set = new IntDisjointSet(4);
+        assertEquals(4, set.getNumElements());
+        set.union(0, 1);
+        assertEquals(set.find(0), set.find(1));
+        assertEquals(2, set.size(set.find(1)));
+        int added = set.add();
+        assertEquals(4, added);
+        assertEquals(1, set.size(set.find(added)));
+        set.union(added, 3);
+        set.union(3, 1);
+        assertEquals(set.find(0), set.find(4));
+        assertEquals(4, set.size(set.find(3)));
+        assertTrue(set.find(2) != set.find(0));
+
+        /* a long chain, which path compression keeps shallow */
+        set = new IntDisjointSet(100000);
+        for (int i = 1; i < 100000; ++i) {
+            set.union(i - 1, i);
+        }
+        assertEquals(100000, set.size(set.find(0)));
+    }
 }
@@ -0,0 +1,82 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.impl;
+
+import junit.framework.TestCase;
+
+import org.onebusaway.gtfs.model.Stop;
+import org.opentripplanner.routing.core.GenericVertex;
+import org.opentripplanner.routing.core.Graph;
+import org.opentripplanner.routing.core.TransitStop;
+import org.opentripplanner.routing.core.Vertex;
+import org.opentripplanner.routing.edgetype.FreeEdge;
+
+public class TestConnectivityGraphBuilderImpl extends TestCase {
+
+    public void testPruneIslands() {
+        Graph graph = new Graph();
+        /* a main network of 30 vertices */
+        Vertex previous = null;
+        for (int i = 0; i < 30; ++i) {
+            Vertex v = graph.addVertex(new GenericVertex("main " + i, i * 0.001, 0));
+            if (previous != null) {
+                graph.addEdge(new FreeEdge(previous, v));
+                graph.addEdge(new FreeEdge(v, previous));
+            }
+            previous = v;
+        }
+        /* an island of three, connected one way only */
+        Vertex a = graph.addVertex(new GenericVertex("island a", 1, 1));
+        Vertex b = graph.addVertex(new GenericVertex("island b", 1, 1.001));
+        Vertex c = graph.addVertex(new GenericVertex("island c", 1, 1.002));
+        graph.addEdge(new FreeEdge(a, b));
+        graph.addEdge(new FreeEdge(c, b));
+        /* an island with a stop */
+        Vertex street = graph.addVertex(new GenericVertex("stop street", 2, 2));
+        Vertex stop = graph.addVertex(new TransitStop("stop", 2, 2, "stop", "stop", new Stop()));
+        graph.addEdge(new FreeEdge(street, stop));
+        /* a lone vertex */
+        graph.addVertex(new GenericVertex("alone", 3, 3));
+
+        ConnectivityGraphBuilderImpl connectivity = new ConnectivityGraphBuilderImpl();
+        connectivity.setIslandSize(20);
+        connectivity.buildGraph(graph);
+
+        assertEquals(4, connectivity.getNumComponents());
+        assertEquals(30, connectivity.getLargestComponent());
+        assertEquals(4, connectivity.getNumPrunedVertices());
+        assertEquals(32, graph.getVertices().size());
+        assertNull(graph.getVertex("island a"));
+        assertNull(graph.getVertex("island b"));
+        assertNull(graph.getVertex("alone"));
+        assertNotNull(graph.getVertex("stop"));
+        assertNotNull(graph.getVertex("stop street"));
+        assertEquals(2, graph.getOutgoing(graph.getVertex("main 1")).size());
+    }
+
+    public void testStatisticsOnly() {
+        Graph graph = new Graph();
+        Vertex a = graph.addVertex(new GenericVertex("a", 0, 0));
+        Vertex b = graph.addVertex(new GenericVertex("b", 0, 1));
+        graph.addEdge(new FreeEdge(a, b));
+        graph.addVertex(new GenericVertex("c", 1, 1));
+
+        ConnectivityGraphBuilderImpl connectivity = new ConnectivityGraphBuilderImpl();
+        connectivity.setIslandSize(0);
+        connectivity.buildGraph(graph);
+        assertEquals(2, connectivity.getNumComponents());
+        assertEquals(0, connectivity.getNumPrunedVertices());
+        assertEquals(3, graph.getVertices().size());
+    }
+}
@@ -0,0 +1,92 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.impl.ned;
+
+import junit.framework.TestCase;
+
+public class TestElevationTileIndex extends TestCase {
+
+    /**
+     * A tile of 10 x 10 pixels of 0.1 degrees, whose elevation is 100 * column + row
+     */
+    private ElevationRaster makeTile(double minX, double maxY) {
+        float[] samples = new float[100];
+        for (int row = 0; row < 10; ++row) {
+            for (int column = 0; column < 10; ++column) {
+                samples[row * 10 + column] = 100 * column + row;
+            }
+        }
+        return new ElevationRaster(minX, maxY, 0.1, 0.1, 10, 10, samples);
+    }
+
+    public void testBilinear() {
+        ElevationRaster tile = makeTile(-80, 40);
+        /* pixel centers */
+        assertEquals(0, tile.getElevation(-79.95, 39.95), 1e-6);
+        assertEquals(100, tile.getElevation(-79.85, 39.95), 1e-6);
+        assertEquals(1, tile.getElevation(-79.95, 39.85), 1e-6);
+        /* halfway between four pixel centers */
+        assertEquals(50.5, tile.getElevation(-79.9, 39.9), 1e-6);
+        /* a quarter of the way across, and three quarters of the way down */
+        assertEquals(25.75, tile.getElevation(-79.925, 39.875), 1e-6);
+        /* clamped to the edge pixels */
+        assertEquals(909, tile.getElevation(-79, 39), 1e-6);
+        assertTrue(Double.isNaN(tile.getElevation(-81, 39.5)));
+    }
+
+    public void testNoData() {
+        float[] samples = new float[] { 10, 20, -3.4e38f, 40 };
+        ElevationRaster tile = new ElevationRaster(0, 2, 1, 1, 2, 2, samples);
+        assertEquals(15, tile.getElevation(1, 1.5), 1e-6);
+        /* the three samples around it that have data */
+        assertEquals(70 / 3.0, tile.getElevation(1, 1), 1e-6);
+        tile = new ElevationRaster(0, 2, 1, 1, 2, 2, new float[] { -3.4e38f, -3.4e38f, 1, 1 });
+        assertTrue(Double.isNaN(tile.getElevation(1, 2)));
+    }
+
+    public void testIndex() {
+        ElevationTileIndex index = new ElevationTileIndex();
+        assertTrue(Double.isNaN(index.getElevation(0, 0)));
+
+        index = new ElevationTileIndex();
+        for (int x = -80; x < -77; ++x) {
+            for (int y = 40; y < 43; ++y) {
+                index.add(makeTile(x, y));
+            }
+        }
+        assertEquals(9, index.getNumTiles());
+        for (int x = -80; x < -77; ++x) {
+            for (int y = 40; y < 43; ++y) {
+                /* the tile ending at y covers y - 1 to y */
+                assertEquals(25.75, index.getElevation(x + 0.075, y - 0.125), 1e-6);
+            }
+        }
+        /* the outer edges */
+        assertEquals(909, index.getElevation(-77, 39), 1e-6);
+        assertEquals(0, index.getElevation(-80, 42), 1e-6);
+        assertTrue(Double.isNaN(index.getElevation(-76.9, 41)));
+        assertTrue(Double.isNaN(index.getElevation(-79, 38.9)));
+    }
+
+    public void testOverlap() {
+        ElevationTileIndex index = new ElevationTileIndex();
+        index.add(makeTile(0, 1));
+        float[] flat = new float[4];
+        java.util.Arrays.fill(flat, 7);
+        index.add(new ElevationRaster(0.5, 1.5, 0.5, 0.5, 2, 2, flat));
+        /* the first tile wins where they overlap */
+        assertEquals(909, index.getElevation(1, 0), 1e-6);
+        assertEquals(7, index.getElevation(1.2, 1.2), 1e-6);
+    }
+}
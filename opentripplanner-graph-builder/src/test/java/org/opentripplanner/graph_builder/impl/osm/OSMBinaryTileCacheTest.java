@@ -0,0 +1,153 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.impl.osm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opentripplanner.graph_builder.model.osm.OSMMap;
+import org.opentripplanner.graph_builder.model.osm.OSMNode;
+import org.opentripplanner.graph_builder.model.osm.OSMRelation;
+import org.opentripplanner.graph_builder.model.osm.OSMRelationMember;
+import org.opentripplanner.graph_builder.model.osm.OSMWay;
+
+public class OSMBinaryTileCacheTest {
+
+    private File tile;
+
+    @Before
+    public void setUp() throws Exception {
+        tile = File.createTempFile("map", ".osm");
+        InputStream in = new GZIPInputStream(getClass().getResourceAsStream("map.osm.gz"));
+        OutputStream out = new FileOutputStream(tile);
+        byte[] buffer = new byte[65536];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        out.close();
+    }
+
+    @After
+    public void tearDown() {
+        OSMBinaryTileCache.getCacheFile(tile).delete();
+        tile.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        OSMMap parsed = new OSMMap();
+        new StreamingOpenStreetMapParser().parseMap(tile, parsed);
+        File cacheFile = OSMBinaryTileCache.getCacheFile(tile);
+        OSMBinaryTileCache.write(parsed, cacheFile);
+        OSMMap cached = OSMBinaryTileCache.read(cacheFile);
+
+        assertEquals(parsed.getNodes().size(), cached.getNodes().size());
+        for (OSMNode node : parsed.getNodes().values()) {
+            OSMNode other = cached.getNodeForId(node.getId());
+            assertEquals(node.getLat(), other.getLat(), 1e-7);
+            assertEquals(node.getLon(), other.getLon(), 1e-7);
+            assertEquals(node.getTags(), other.getTags());
+        }
+        assertEquals(parsed.getWays().size(), cached.getWays().size());
+        for (OSMWay way : parsed.getWays().values()) {
+            OSMWay other = cached.getWayForId(way.getId());
+            assertEquals(way.getNodeRefs(), other.getNodeRefs());
+            assertEquals(way.getTags(), other.getTags());
+        }
+        assertEquals(parsed.getRelations().size(), cached.getRelations().size());
+        for (OSMRelation relation : parsed.getRelations().values()) {
+            OSMRelation other = cached.getRelations().get(relation.getId());
+            assertEquals(relation.getTags(), other.getTags());
+            assertEquals(relation.getMembers().size(), other.getMembers().size());
+            for (int i = 0; i < relation.getMembers().size(); ++i) {
+                OSMRelationMember member = relation.getMembers().get(i);
+                OSMRelationMember otherMember = other.getMembers().get(i);
+                assertEquals(member.getType(), otherMember.getType());
+                assertEquals(member.getRef(), otherMember.getRef());
+                assertEquals(member.getRole(), otherMember.getRole());
+            }
+        }
+
+        /* the cache should be a good deal smaller than the XML */
+        assertTrue(cacheFile.length() * 4 < tile.length());
+    }
+
+    @Test
+    public void testUpToDate() throws Exception {
+        assertFalse(OSMBinaryTileCache.isUpToDate(tile));
+
+        OSMMap map = RegionBasedOpenStreetMapProviderImpl.loadTile(tile);
+        assertEquals(7197, map.getNodes().size());
+        assertTrue(OSMBinaryTileCache.isUpToDate(tile));
+
+        /* a tile downloaded again after caching must be parsed again */
+        tile.setLastModified(OSMBinaryTileCache.getCacheFile(tile).lastModified() + 60000);
+        assertFalse(OSMBinaryTileCache.isUpToDate(tile));
+    }
+
+    @Test
+    public void testOverlappingTiles() throws Exception {
+        RegionBasedOpenStreetMapProviderImpl provider = new RegionBasedOpenStreetMapProviderImpl();
+        provider.setThreads(2);
+        OSMMap map = new OSMMap();
+        /* the second copy is read from the cache, and adds nothing new */
+        provider.readTiles(Arrays.asList(tile, tile), new CountingHandler(map));
+        assertEquals(7197, map.getNodes().size());
+        assertEquals(1511, map.getWays().size());
+        assertEquals(31, map.getRelations().size());
+    }
+
+    /**
+     * Fails on entities handed over more than once
+     */
+    private static class CountingHandler extends OSMMap {
+
+        private OSMMap map;
+
+        public CountingHandler(OSMMap map) {
+            this.map = map;
+        }
+
+        @Override
+        public void addNode(OSMNode node) {
+            assertTrue(map.getNodeForId(node.getId()) == null);
+            map.addNode(node);
+        }
+
+        @Override
+        public void addWay(OSMWay way) {
+            assertTrue(map.getWayForId(way.getId()) == null);
+            map.addWay(way);
+        }
+
+        @Override
+        public void addRelation(OSMRelation relation) {
+            assertFalse(map.getRelations().containsKey(relation.getId()));
+            map.addRelation(relation);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.impl.osm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+import org.opentripplanner.graph_builder.model.osm.OSMMap;
+import org.opentripplanner.graph_builder.model.osm.OSMNode;
+import org.opentripplanner.graph_builder.model.osm.OSMRelation;
+import org.opentripplanner.graph_builder.model.osm.OSMWay;
+
+public class PBFOpenStreetMapProviderImplTest {
+
+    @Test
+    public void testSorted() throws Exception {
+        checkSameAsXml("map.osm.pbf", 1);
+        checkSameAsXml("map.osm.pbf", 4);
+    }
+
+    @Test
+    public void testUnsorted() throws Exception {
+        checkSameAsXml("map-unsorted.osm.pbf", 3);
+    }
+
+    private void checkSameAsXml(String resource, int threads) throws Exception {
+        InputStream in = new GZIPInputStream(getClass().getResourceAsStream("map.osm.gz"));
+        OSMMap xml = new OSMMap();
+        new StreamingOpenStreetMapParser().parseMap(in, xml);
+
+        PBFOpenStreetMapProviderImpl provider = new PBFOpenStreetMapProviderImpl();
+        provider.setPath(new File(getClass().getResource(resource).toURI()));
+        provider.setThreads(threads);
+        OrderCheckingMap pbf = new OrderCheckingMap();
+        provider.readOSM(pbf);
+
+        assertEquals(xml.getNodes().size(), pbf.getNodes().size());
+        for (OSMNode node : xml.getNodes().values()) {
+            OSMNode other = pbf.getNodeForId(node.getId());
+            assertEquals(node.getLat(), other.getLat(), 0.0);
+            assertEquals(node.getLon(), other.getLon(), 0.0);
+            assertEquals(node.getTags(), other.getTags());
+        }
+        assertEquals(xml.getWays().size(), pbf.getWays().size());
+        for (OSMWay way : xml.getWays().values()) {
+            OSMWay other = pbf.getWayForId(way.getId());
+            assertEquals(way.getNodeRefs(), other.getNodeRefs());
+            assertEquals(way.getTags(), other.getTags());
+        }
+        assertEquals(xml.getRelations().size(), pbf.getRelations().size());
+        for (OSMRelation relation : xml.getRelations().values()) {
+            OSMRelation other = pbf.getRelations().get(relation.getId());
+            assertEquals(relation.getTags(), other.getTags());
+            assertEquals(relation.getMembers().size(), other.getMembers().size());
+            for (int i = 0; i < relation.getMembers().size(); ++i) {
+                assertEquals(relation.getMembers().get(i).getRef(), other.getMembers().get(i)
+                        .getRef());
+                assertEquals(relation.getMembers().get(i).getType(), other.getMembers().get(i)
+                        .getType());
+                assertEquals(relation.getMembers().get(i).getRole(), other.getMembers().get(i)
+                        .getRole());
+            }
+        }
+    }
+
+    /** Fails if entities are not given in node, way, relation order */
+    private static class OrderCheckingMap extends OSMMap {
+        public void addNode(OSMNode node) {
+            assertEquals(0, getWays().size());
+            assertEquals(0, getRelations().size());
+            super.addNode(node);
+        }
+
+        public void addWay(OSMWay way) {
+            assertFalse(getNodes().isEmpty());
+            assertEquals(0, getRelations().size());
+            super.addWay(way);
+        }
+    }
+}
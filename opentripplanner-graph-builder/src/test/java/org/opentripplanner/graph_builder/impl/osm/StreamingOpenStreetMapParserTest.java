@@ -0,0 +1,106 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.impl.osm;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+import org.opentripplanner.graph_builder.model.osm.OSMMap;
+import org.opentripplanner.graph_builder.model.osm.OSMNode;
+import org.opentripplanner.graph_builder.model.osm.OSMRelation;
+import org.opentripplanner.graph_builder.model.osm.OSMWay;
+
+public class StreamingOpenStreetMapParserTest {
+
+    @Test
+    public void testParser() throws Exception {
+        InputStream in = new GZIPInputStream(getClass().getResourceAsStream("map.osm.gz"));
+        StreamingOpenStreetMapParser parser = new StreamingOpenStreetMapParser();
+        OSMMap map = new OSMMap();
+        parser.parseMap(in, map);
+
+        Map<Long, OSMNode> nodes = map.getNodes();
+        assertEquals(7197, nodes.size());
+
+        OSMNode nodeB = map.getNodeForId(27308457);
+        assertEquals(27308457, nodeB.getId());
+        assertEquals(52.3850672, nodeB.getLat(), 0.0);
+        assertEquals(16.8396962, nodeB.getLon(), 0.0);
+        Map<String, String> tags = nodeB.getTags();
+        assertEquals("Wieruszowska", tags.get("name"));
+        assertEquals("tram_stop", tags.get("railway"));
+        assertEquals("survey", tags.get("source"));
+        assertEquals("1", tags.get("layer"));
+
+        Map<Long, OSMWay> ways = map.getWays();
+        assertEquals(1511, ways.size());
+
+        OSMWay wayA = map.getWayForId(13490353);
+        List<Long> nodeRefsA = wayA.getNodeRefs();
+        assertEquals(2, nodeRefsA.size());
+        assertEquals(123978834, nodeRefsA.get(0).intValue());
+        assertEquals(123980465, nodeRefsA.get(1).intValue());
+        tags = wayA.getTags();
+        assertEquals("Potlatch 0.9a", tags.get("created_by"));
+        assertEquals("secondary", tags.get("highway"));
+
+        Map<Long, OSMRelation> relations = map.getRelations();
+        assertEquals(31, relations.size());
+        OSMRelation relation = relations.get(83279L);
+        assertEquals("node", relation.getMembers().get(0).getType());
+        assertEquals(27308462, relation.getMembers().get(0).getRef());
+    }
+
+    @Test
+    public void testSameAsDom() throws Exception {
+        byte[] data = readTestMap();
+        OSMMap dom = new OSMMap();
+        new OpenStreetMapParser().parseMap(new ByteArrayInputStream(data), dom);
+        OSMMap streamed = new OSMMap();
+        new StreamingOpenStreetMapParser().parseMap(new ByteArrayInputStream(data), streamed);
+
+        assertEquals(dom.getNodes().size(), streamed.getNodes().size());
+        for (OSMNode node : dom.getNodes().values()) {
+            OSMNode other = streamed.getNodeForId(node.getId());
+            assertEquals(node.getLat(), other.getLat(), 0.0);
+            assertEquals(node.getLon(), other.getLon(), 0.0);
+            assertEquals(node.getTags(), other.getTags());
+        }
+        assertEquals(dom.getWays().size(), streamed.getWays().size());
+        for (OSMWay way : dom.getWays().values()) {
+            OSMWay other = streamed.getWayForId(way.getId());
+            assertEquals(way.getNodeRefs(), other.getNodeRefs());
+            assertEquals(way.getTags(), other.getTags());
+        }
+    }
+
+    private byte[] readTestMap() throws Exception {
+        InputStream in = new GZIPInputStream(getClass().getResourceAsStream("map.osm.gz"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[65536];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
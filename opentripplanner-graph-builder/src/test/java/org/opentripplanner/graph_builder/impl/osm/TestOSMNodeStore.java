@@ -0,0 +1,68 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.impl.osm;
+
+import junit.framework.TestCase;
+
+import org.opentripplanner.graph_builder.services.LongSet;
+
+public class TestOSMNodeStore extends TestCase {
+
+    public void testOpenStore() {
+        OSMNodeStore store = new OSMNodeStore();
+        /* out of order, with an id beyond the range of int, and a duplicate */
+        store.add(5000000000L, 52.3887673, 16.8506243);
+        store.add(7, 1.5, 2.5);
+        store.add(3, -33.8688197, 151.2092955);
+        store.add(7, 10, 20);
+        for (int i = 0; i < 5000; ++i) {
+            store.add(100 + i * 2, i / 1000.0, -i / 1000.0);
+        }
+
+        assertEquals(5003, store.count());
+        int index = store.indexOf(5000000000L);
+        assertEquals(52.3887673, store.getLat(index), 0.0);
+        assertEquals(16.8506243, store.getLon(index), 0.0);
+        index = store.indexOf(7);
+        assertEquals(1.5, store.getLat(index), 0.0);
+        assertEquals(2.5, store.getLon(index), 0.0);
+        index = store.indexOf(3);
+        assertEquals(-33.8688197, store.getLat(index), 0.0);
+        assertEquals(151.2092955, store.getLon(index), 0.0);
+        assertEquals(-1, store.indexOf(101));
+
+        store.remove(7);
+        assertFalse(store.contains(7));
+        LongSet keep = new LongSet();
+        keep.add(3);
+        keep.add(100);
+        store.retainAll(keep);
+        assertEquals(2, store.count());
+        assertTrue(store.contains(100));
+    }
+
+    public void testFixedStore() throws Exception {
+        OSMNodeStore store = new OSMNodeStore(new long[] { 2, 4, 3000000000L }, null);
+        assertEquals(0, store.count());
+        store.add(1, 1, 1);
+        store.add(4, 4.25, -4.25);
+        store.add(4, 0, 0);
+        store.add(3000000000L, 3, 3);
+        assertEquals(2, store.count());
+        assertFalse(store.contains(1));
+        assertFalse(store.contains(2));
+        assertEquals(4.25, store.getLat(store.indexOf(4)), 0.0);
+        assertEquals(-4.25, store.getLon(store.indexOf(4)), 0.0);
+    }
+}
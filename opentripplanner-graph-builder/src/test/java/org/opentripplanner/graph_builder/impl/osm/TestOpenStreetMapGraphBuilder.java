@@ -20,6 +20,7 @@ import junit.framework.TestCase;
 import org.junit.Test;
 import org.opentripplanner.routing.core.Edge;
 import org.opentripplanner.routing.core.Graph;
+import org.opentripplanner.routing.core.GraphVertex;
 import org.opentripplanner.routing.core.Vertex;
 import org.opentripplanner.routing.edgetype.TurnEdge;
 
@@ -109,4 +110,34 @@ public class TestOpenStreetMapGraphBuilder extends TestCase {
         assertTrue("There is no edge from v3 to v4", v4EdgeExists);
         assertTrue("There is no edge from v4back to v3back", v4BackEdgeExists);
     }
+
+    @Test
+    public void testTwoPass() throws Exception {
+        File file = new File(getClass().getResource("map.osm.gz").getFile());
+
+        Graph onePass = new Graph();
+        OpenStreetMapGraphBuilderImpl loader = new OpenStreetMapGraphBuilderImpl();
+        FileBasedOpenStreetMapProviderImpl provider = new FileBasedOpenStreetMapProviderImpl();
+        provider.setPath(file);
+        loader.setProvider(provider);
+        loader.buildGraph(onePass);
+
+        Graph twoPass = new Graph();
+        loader = new OpenStreetMapGraphBuilderImpl();
+        loader.setProvider(provider);
+        loader.setTwoPass(true);
+        File storage = File.createTempFile("nodes", ".bin");
+        storage.deleteOnExit();
+        loader.setNodeStorageFile(storage);
+        loader.buildGraph(twoPass);
+
+        assertTrue(onePass.getVertices().size() > 0);
+        assertEquals(onePass.getVertices().size(), twoPass.getVertices().size());
+        for (GraphVertex gv : onePass.getVertices()) {
+            Vertex v = twoPass.getVertex(gv.vertex.getLabel());
+            assertNotNull(v);
+            assertEquals(gv.vertex.getCoordinate(), v.getCoordinate());
+            assertEquals(gv.getDegreeOut(), twoPass.getOutgoing(v).size());
+        }
+    }
 }
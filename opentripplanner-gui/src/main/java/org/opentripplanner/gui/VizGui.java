@@ -54,7 +54,6 @@ import javax.swing.ListModel;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 
-import org.onebusaway.gtfs.model.Trip;
 import org.opentripplanner.routing.contraction.ContractionHierarchySet;
 import org.opentripplanner.routing.core.Edge;
 import org.opentripplanner.routing.core.Graph;
@@ -382,8 +381,7 @@ public class VizGui extends JFrame implements VertexSelectionListener {
                 ListModel model = new TripPatternListModel(pattern, stopIndex);
                 departurePattern.setModel(model);
 
-                Trip trip = pattern.getExemplar();
-                serviceIdLabel.setText(trip.getServiceId().toString());
+                serviceIdLabel.setText(pattern.getServiceId().toString());
             }
         };
 
@@ -0,0 +1,114 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.integration.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.Parser;
+import org.opentripplanner.graph_builder.impl.osm.OpenStreetMapParser;
+import org.opentripplanner.graph_builder.impl.osm.StreamingOpenStreetMapParser;
+import org.opentripplanner.graph_builder.model.osm.OSMMap;
+
+/**
+ * Compares the throughput of the DOM and streaming (StAX) OpenStreetMap parsers on an extract,
+ * read into memory first so that only parsing is timed.
+ */
+public class OpenStreetMapParserBenchmarkMain {
+
+  private static final String ARG_REPETITIONS = "repetitions";
+
+  public static void main(String[] args) throws Exception {
+
+    Options options = new Options();
+    options.addOption(ARG_REPETITIONS, true, "repetitions");
+
+    Parser parser = new GnuParser();
+    CommandLine cli = parser.parse(options, args);
+    args = cli.getArgs();
+
+    if (args.length != 1) {
+      System.err.println("usage: osm_path (.osm or .osm.gz)");
+      System.exit(-1);
+    }
+
+    OpenStreetMapParserBenchmarkMain task = new OpenStreetMapParserBenchmarkMain();
+    task.setPath(new File(args[0]));
+
+    if (cli.hasOption(ARG_REPETITIONS))
+      task.setRepetitions(Integer.parseInt(cli.getOptionValue(ARG_REPETITIONS)));
+
+    task.run();
+  }
+
+  private File _path;
+
+  private int _repetitions = 10;
+
+  public void setPath(File path) {
+    _path = path;
+  }
+
+  public void setRepetitions(int repetitions) {
+    _repetitions = repetitions;
+  }
+
+  public void run() throws Exception {
+    byte[] data = readMap();
+    OpenStreetMapParser domParser = new OpenStreetMapParser();
+    StreamingOpenStreetMapParser streamingParser = new StreamingOpenStreetMapParser();
+
+    /* warm up */
+    domParser.parseMap(new ByteArrayInputStream(data), new OSMMap());
+    streamingParser.parseMap(new ByteArrayInputStream(data), new OSMMap());
+
+    long t0 = System.nanoTime();
+    for (int i = 0; i < _repetitions; i++)
+      domParser.parseMap(new ByteArrayInputStream(data), new OSMMap());
+    long domTime = System.nanoTime() - t0;
+
+    t0 = System.nanoTime();
+    for (int i = 0; i < _repetitions; i++)
+      streamingParser.parseMap(new ByteArrayInputStream(data), new OSMMap());
+    long streamingTime = System.nanoTime() - t0;
+
+    double megabytes = data.length * (double) _repetitions / (1024 * 1024);
+    System.out.println("dom=" + megabytes / (domTime / 1e9) + " MB/s");
+    System.out.println("streaming=" + megabytes / (streamingTime / 1e9) + " MB/s");
+  }
+
+  private byte[] readMap() throws IOException {
+    InputStream in = new FileInputStream(_path);
+    try {
+      if (_path.getName().endsWith(".gz"))
+        in = new GZIPInputStream(in);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[65536];
+      int n;
+      while ((n = in.read(buffer)) != -1)
+        out.write(buffer, 0, n);
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+}
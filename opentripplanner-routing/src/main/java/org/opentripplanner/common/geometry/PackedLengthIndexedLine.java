@@ -0,0 +1,235 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.common.geometry;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import org.opentripplanner.common.model.P2;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+
+/**
+ * A line with precomputed cumulative segment lengths, stored in primitive arrays. This is a
+ * lightweight replacement for JTS's LocationIndexedLine for the operations we do on street
+ * geometries at query time: projecting a point onto the line, measuring the distance from a point
+ * to the line, and splitting the line. None of these allocate JTS objects except for the split
+ * geometries themselves.
+ *
+ * Positions along the line are given as lengths in the same (planar, degree) units as
+ * {@link Geometry#getLength()}, so that position / {@link #getLength()} is the fraction of the line
+ * before the position. Locating a position on the line is a binary search over the cumulative
+ * lengths; projection and distance necessarily look at every segment, but do so without
+ * allocation.
+ */
+public class PackedLengthIndexedLine implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static GeometryFactory gf = new GeometryFactory();
+
+    /** x0, y0, x1, y1, ... */
+    private final double[] coords;
+
+    /** cumulative[i] is the length of the line from its start to coordinate i */
+    private final double[] cumulative;
+
+    public PackedLengthIndexedLine(Geometry geometry) {
+        this(geometry.getCoordinates());
+    }
+
+    public PackedLengthIndexedLine(Coordinate[] coordinates) {
+        int n = coordinates.length;
+        coords = new double[n * 2];
+        cumulative = new double[n];
+        double length = 0;
+        for (int i = 0; i < n; ++i) {
+            coords[i * 2] = coordinates[i].x;
+            coords[i * 2 + 1] = coordinates[i].y;
+            if (i > 0) {
+                double dx = coords[i * 2] - coords[i * 2 - 2];
+                double dy = coords[i * 2 + 1] - coords[i * 2 - 1];
+                length += Math.sqrt(dx * dx + dy * dy);
+            }
+            cumulative[i] = length;
+        }
+    }
+
+    public int getNumPoints() {
+        return cumulative.length;
+    }
+
+    public double getLength() {
+        return cumulative[cumulative.length - 1];
+    }
+
+    public double getX(int i) {
+        return coords[i * 2];
+    }
+
+    public double getY(int i) {
+        return coords[i * 2 + 1];
+    }
+
+    /**
+     * @return the index of the segment containing the given position (the segment from coordinate
+     *         i to coordinate i + 1). Positions outside the line are clamped to its ends.
+     */
+    public int getSegmentIndex(double position) {
+        int last = cumulative.length - 2;
+        if (last < 0) {
+            return 0;
+        }
+        int i = Arrays.binarySearch(cumulative, position);
+        if (i < 0) {
+            // insertion point is the first coordinate after the position
+            i = -i - 2;
+        } else {
+            // skip over zero-length segments
+            while (i > 0 && cumulative[i - 1] == position) {
+                --i;
+            }
+        }
+        if (i < 0) {
+            return 0;
+        }
+        if (i > last) {
+            return last;
+        }
+        return i;
+    }
+
+    /**
+     * @return the coordinate at the given position along the line
+     */
+    public Coordinate getCoordinate(double position) {
+        if (cumulative.length == 1) {
+            return new Coordinate(coords[0], coords[1]);
+        }
+        int i = getSegmentIndex(position);
+        double segmentLength = cumulative[i + 1] - cumulative[i];
+        double fraction = 0;
+        if (segmentLength > 0) {
+            fraction = (position - cumulative[i]) / segmentLength;
+            if (fraction < 0) {
+                fraction = 0;
+            } else if (fraction > 1) {
+                fraction = 1;
+            }
+        }
+        double x0 = coords[i * 2], y0 = coords[i * 2 + 1];
+        double x1 = coords[i * 2 + 2], y1 = coords[i * 2 + 3];
+        return new Coordinate(x0 + (x1 - x0) * fraction, y0 + (y1 - y0) * fraction);
+    }
+
+    /**
+     * @return the position along the line of the point on the line nearest to (x, y)
+     */
+    public double project(double x, double y) {
+        double bestDistanceSquared = Double.MAX_VALUE;
+        double bestPosition = 0;
+        for (int i = 0; i < cumulative.length - 1; ++i) {
+            double x0 = coords[i * 2], y0 = coords[i * 2 + 1];
+            double dx = coords[i * 2 + 2] - x0, dy = coords[i * 2 + 3] - y0;
+            double fraction = segmentFraction(x - x0, y - y0, dx, dy);
+            double px = x0 + dx * fraction - x, py = y0 + dy * fraction - y;
+            double distanceSquared = px * px + py * py;
+            if (distanceSquared < bestDistanceSquared) {
+                bestDistanceSquared = distanceSquared;
+                bestPosition = cumulative[i] + (cumulative[i + 1] - cumulative[i]) * fraction;
+            }
+        }
+        return bestPosition;
+    }
+
+    public double project(Coordinate c) {
+        return project(c.x, c.y);
+    }
+
+    /**
+     * @return the planar distance from (x, y) to the nearest point on the line, in the same units
+     *         as Geometry.distance
+     */
+    public double distance(double x, double y) {
+        if (cumulative.length == 1) {
+            double dx = coords[0] - x, dy = coords[1] - y;
+            return Math.sqrt(dx * dx + dy * dy);
+        }
+        double bestDistanceSquared = Double.MAX_VALUE;
+        for (int i = 0; i < cumulative.length - 1; ++i) {
+            double x0 = coords[i * 2], y0 = coords[i * 2 + 1];
+            double dx = coords[i * 2 + 2] - x0, dy = coords[i * 2 + 3] - y0;
+            double fraction = segmentFraction(x - x0, y - y0, dx, dy);
+            double px = x0 + dx * fraction - x, py = y0 + dy * fraction - y;
+            double distanceSquared = px * px + py * py;
+            if (distanceSquared < bestDistanceSquared) {
+                bestDistanceSquared = distanceSquared;
+            }
+        }
+        return Math.sqrt(bestDistanceSquared);
+    }
+
+    public double distance(Coordinate c) {
+        return distance(c.x, c.y);
+    }
+
+    /**
+     * Projection of the vector (px, py) onto the segment vector (dx, dy), clamped to [0, 1]
+     */
+    private static double segmentFraction(double px, double py, double dx, double dy) {
+        double lengthSquared = dx * dx + dy * dy;
+        if (lengthSquared == 0) {
+            return 0;
+        }
+        double fraction = (px * dx + py * dy) / lengthSquared;
+        if (fraction < 0) {
+            return 0;
+        }
+        if (fraction > 1) {
+            return 1;
+        }
+        return fraction;
+    }
+
+    /**
+     * Splits the line at the given position. Both halves contain the split point, so the end of
+     * the first is the start of the second.
+     */
+    public P2<LineString> split(double position) {
+        int n = cumulative.length;
+        if (n == 1) {
+            Coordinate c = new Coordinate(coords[0], coords[1]);
+            Coordinate[] single = new Coordinate[] { c, c };
+            return new P2<LineString>(gf.createLineString(single), gf.createLineString(single));
+        }
+        int segment = getSegmentIndex(position);
+        Coordinate splitPoint = getCoordinate(position);
+
+        Coordinate[] beginning = new Coordinate[segment + 2];
+        for (int i = 0; i <= segment; ++i) {
+            beginning[i] = new Coordinate(coords[i * 2], coords[i * 2 + 1]);
+        }
+        beginning[segment + 1] = splitPoint;
+
+        Coordinate[] ending = new Coordinate[n - segment];
+        ending[0] = new Coordinate(splitPoint);
+        for (int i = segment + 1; i < n; ++i) {
+            ending[i - segment] = new Coordinate(coords[i * 2], coords[i * 2 + 1]);
+        }
+        return new P2<LineString>(gf.createLineString(beginning), gf.createLineString(ending));
+    }
+}
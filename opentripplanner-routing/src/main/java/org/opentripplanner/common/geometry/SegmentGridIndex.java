@@ -0,0 +1,380 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.common.geometry;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * A static spatial index of line segments (and points, which are treated as zero-length segments)
+ * on a uniform grid. Every item is indexed by the segments of its geometry, so queries measure the
+ * exact distance from the query point to the item's geometry rather than to its envelope.
+ *
+ * Like JTS's STRtree, items are inserted and then the index is built once; after {@link #build()}
+ * it cannot be modified. All the data is kept in a handful of primitive arrays, so a built index
+ * is compact, serializes quickly and can be queried from any number of threads at once.
+ *
+ * Coordinates are stored as floats relative to the lower left corner of the grid, which keeps
+ * them precise to a few millimeters. Distances are planar, in the units of the coordinates
+ * (degrees), the same as Geometry.distance.
+ */
+public class SegmentGridIndex<T> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** About 200 meters at mid latitudes. */
+    public static final double DEFAULT_CELL_SIZE = 0.002;
+
+    private double cellSize;
+
+    private double originX;
+
+    private double originY;
+
+    private int columns;
+
+    private int rows;
+
+    /** x0, y0, x1, y1 of each segment, relative to the origin */
+    private float[] segments;
+
+    /** the index into items of the item each segment belongs to */
+    private int[] segmentItems;
+
+    private Object[] items;
+
+    /** the segments in cell i are cellSegments[cellStart[i]] to cellSegments[cellStart[i+1] - 1] */
+    private int[] cellStart;
+
+    private int[] cellSegments;
+
+    /* build-time state */
+
+    private transient ArrayList<Object> pendingItems = new ArrayList<Object>();
+
+    private transient double[] pendingCoords = new double[1024];
+
+    private transient int[] pendingItemIndex = new int[256];
+
+    private transient int pendingSegments = 0;
+
+    private transient boolean built = false;
+
+    public SegmentGridIndex() {
+        this(DEFAULT_CELL_SIZE);
+    }
+
+    /**
+     * @param cellSize the minimum width of the grid cells in degrees. Cells are made larger if
+     *        the grid would otherwise have many more cells than segments.
+     */
+    public SegmentGridIndex(double cellSize) {
+        this.cellSize = cellSize;
+    }
+
+    public void insert(Geometry geometry, T item) {
+        insert(geometry.getCoordinates(), item);
+    }
+
+    public void insert(Coordinate point, T item) {
+        insert(new Coordinate[] { point }, item);
+    }
+
+    public void insert(Coordinate[] coordinates, T item) {
+        if (built || items != null) {
+            throw new IllegalStateException("Cannot insert into an index once it has been built");
+        }
+        int itemIndex = pendingItems.size();
+        pendingItems.add(item);
+        if (coordinates.length == 1) {
+            addPendingSegment(coordinates[0], coordinates[0], itemIndex);
+        }
+        for (int i = 0; i < coordinates.length - 1; ++i) {
+            addPendingSegment(coordinates[i], coordinates[i + 1], itemIndex);
+        }
+    }
+
+    private void addPendingSegment(Coordinate a, Coordinate b, int itemIndex) {
+        if (pendingSegments == pendingItemIndex.length) {
+            pendingItemIndex = Arrays.copyOf(pendingItemIndex, pendingSegments * 2);
+            pendingCoords = Arrays.copyOf(pendingCoords, pendingSegments * 8);
+        }
+        pendingCoords[pendingSegments * 4] = a.x;
+        pendingCoords[pendingSegments * 4 + 1] = a.y;
+        pendingCoords[pendingSegments * 4 + 2] = b.x;
+        pendingCoords[pendingSegments * 4 + 3] = b.y;
+        pendingItemIndex[pendingSegments] = itemIndex;
+        ++pendingSegments;
+    }
+
+    public void build() {
+        if (built) {
+            return;
+        }
+        built = true;
+        int n = pendingSegments;
+
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (int i = 0; i < n * 4; i += 2) {
+            minX = Math.min(minX, pendingCoords[i]);
+            maxX = Math.max(maxX, pendingCoords[i]);
+            minY = Math.min(minY, pendingCoords[i + 1]);
+            maxY = Math.max(maxY, pendingCoords[i + 1]);
+        }
+        if (n == 0) {
+            minX = minY = maxX = maxY = 0;
+        }
+        originX = minX;
+        originY = minY;
+        double width = maxX - minX, height = maxY - minY;
+        // don't make (many) more cells than there are segments
+        cellSize = Math.max(cellSize, Math.sqrt(width * height / Math.max(n, 1)));
+        columns = (int) (width / cellSize) + 1;
+        rows = (int) (height / cellSize) + 1;
+
+        segments = new float[n * 4];
+        segmentItems = Arrays.copyOf(pendingItemIndex, n);
+        for (int i = 0; i < n; ++i) {
+            segments[i * 4] = (float) (pendingCoords[i * 4] - originX);
+            segments[i * 4 + 1] = (float) (pendingCoords[i * 4 + 1] - originY);
+            segments[i * 4 + 2] = (float) (pendingCoords[i * 4 + 2] - originX);
+            segments[i * 4 + 3] = (float) (pendingCoords[i * 4 + 3] - originY);
+        }
+        items = pendingItems.toArray();
+
+        // two passes over the segments: count the segments in each cell, then fill them in
+        cellStart = new int[columns * rows + 1];
+        for (int i = 0; i < n; ++i) {
+            int x0 = column(i, 0), x1 = column(i, 2), y0 = row(i, 1), y1 = row(i, 3);
+            for (int x = Math.min(x0, x1); x <= Math.max(x0, x1); ++x) {
+                for (int y = Math.min(y0, y1); y <= Math.max(y0, y1); ++y) {
+                    cellStart[y * columns + x + 1]++;
+                }
+            }
+        }
+        for (int i = 0; i < columns * rows; ++i) {
+            cellStart[i + 1] += cellStart[i];
+        }
+        cellSegments = new int[cellStart[columns * rows]];
+        int[] fill = Arrays.copyOf(cellStart, columns * rows);
+        for (int i = 0; i < n; ++i) {
+            int x0 = column(i, 0), x1 = column(i, 2), y0 = row(i, 1), y1 = row(i, 3);
+            for (int x = Math.min(x0, x1); x <= Math.max(x0, x1); ++x) {
+                for (int y = Math.min(y0, y1); y <= Math.max(y0, y1); ++y) {
+                    cellSegments[fill[y * columns + x]++] = i;
+                }
+            }
+        }
+
+        pendingItems = null;
+        pendingCoords = null;
+        pendingItemIndex = null;
+    }
+
+    private int column(int segment, int ordinate) {
+        return clamp((int) (segments[segment * 4 + ordinate] / cellSize), columns);
+    }
+
+    private int row(int segment, int ordinate) {
+        return clamp((int) (segments[segment * 4 + ordinate] / cellSize), rows);
+    }
+
+    private static int clamp(int i, int size) {
+        return i < 0 ? 0 : (i >= size ? size - 1 : i);
+    }
+
+    public int size() {
+        return items == null ? pendingItems.size() : items.length;
+    }
+
+    /**
+     * @return all items whose geometry is within the given distance of (x, y), nearest first
+     */
+    public List<T> query(double x, double y, double distance) {
+        checkBuilt();
+        Candidates candidates = new Candidates(Integer.MAX_VALUE);
+        double px = x - originX, py = y - originY;
+        int x0 = clamp((int) Math.floor((px - distance) / cellSize), columns);
+        int x1 = clamp((int) Math.floor((px + distance) / cellSize), columns);
+        int y0 = clamp((int) Math.floor((py - distance) / cellSize), rows);
+        int y1 = clamp((int) Math.floor((py + distance) / cellSize), rows);
+        for (int row = y0; row <= y1; ++row) {
+            for (int column = x0; column <= x1; ++column) {
+                int cell = row * columns + column;
+                for (int i = cellStart[cell]; i < cellStart[cell + 1]; ++i) {
+                    int segment = cellSegments[i];
+                    double d = segmentDistance(segment, px, py);
+                    if (d <= distance) {
+                        candidates.offer(segmentItems[segment], d);
+                    }
+                }
+            }
+        }
+        return candidates.toList();
+    }
+
+    public List<T> query(Coordinate c, double distance) {
+        return query(c.x, c.y, distance);
+    }
+
+    /**
+     * @return the k items nearest to (x, y) that are no further away than maxDistance, nearest
+     *         first
+     */
+    public List<T> nearest(double x, double y, int k, double maxDistance) {
+        checkBuilt();
+        Candidates candidates = new Candidates(k);
+        double px = x - originX, py = y - originY;
+        double outsideX = Math.max(Math.max(-px, px - columns * cellSize), 0);
+        double outsideY = Math.max(Math.max(-py, py - rows * cellSize), 0);
+        if (Math.sqrt(outsideX * outsideX + outsideY * outsideY) > maxDistance) {
+            return candidates.toList();
+        }
+        int cx = clamp((int) Math.floor(px / cellSize), columns);
+        int cy = clamp((int) Math.floor(py / cellSize), rows);
+        int maxRing = Math.max(Math.max(cx, columns - 1 - cx), Math.max(cy, rows - 1 - cy));
+        for (int ring = 0; ring <= maxRing; ++ring) {
+            for (int row = cy - ring; row <= cy + ring; ++row) {
+                if (row < 0 || row >= rows) {
+                    continue;
+                }
+                boolean edgeRow = row == cy - ring || row == cy + ring;
+                for (int column = cx - ring; column <= cx + ring; column += edgeRow ? 1
+                        : 2 * ring) {
+                    if (column >= 0 && column < columns) {
+                        int cell = row * columns + column;
+                        for (int i = cellStart[cell]; i < cellStart[cell + 1]; ++i) {
+                            int segment = cellSegments[i];
+                            double d = segmentDistance(segment, px, py);
+                            if (d <= maxDistance) {
+                                candidates.offer(segmentItems[segment], d);
+                            }
+                        }
+                    }
+                    if (ring == 0) {
+                        break;
+                    }
+                }
+            }
+            // everything outside the cells searched so far is at least this far away
+            double searched = Math.min(Math.min(px - (cx - ring) * cellSize, (cx + ring + 1)
+                    * cellSize - px), Math.min(py - (cy - ring) * cellSize, (cy + ring + 1)
+                    * cellSize - py));
+            if (searched > maxDistance) {
+                break;
+            }
+            if (candidates.size == k && candidates.distances[k - 1] <= searched) {
+                break;
+            }
+        }
+        return candidates.toList();
+    }
+
+    public List<T> nearest(Coordinate c, int k, double maxDistance) {
+        return nearest(c.x, c.y, k, maxDistance);
+    }
+
+    private void checkBuilt() {
+        if (!built && items == null) {
+            throw new IllegalStateException("The index must be built before it is queried");
+        }
+    }
+
+    private double segmentDistance(int segment, double px, double py) {
+        int s = segment * 4;
+        double x0 = segments[s], y0 = segments[s + 1];
+        double dx = segments[s + 2] - x0, dy = segments[s + 3] - y0;
+        double lengthSquared = dx * dx + dy * dy;
+        double fraction = 0;
+        if (lengthSquared > 0) {
+            fraction = ((px - x0) * dx + (py - y0) * dy) / lengthSquared;
+            if (fraction < 0) {
+                fraction = 0;
+            } else if (fraction > 1) {
+                fraction = 1;
+            }
+        }
+        double ex = x0 + dx * fraction - px, ey = y0 + dy * fraction - py;
+        return Math.sqrt(ex * ex + ey * ey);
+    }
+
+    /**
+     * The best items found so far by a query, sorted by distance, with each item present at most
+     * once. Queries usually find few items, so this uses insertion into sorted arrays.
+     */
+    private class Candidates {
+        int limit;
+
+        int size = 0;
+
+        int[] itemIndices = new int[8];
+
+        double[] distances = new double[8];
+
+        Candidates(int limit) {
+            this.limit = limit;
+        }
+
+        void offer(int itemIndex, double distance) {
+            if (size == limit && distance >= distances[size - 1]) {
+                return;
+            }
+            // an item may be found through several of its segments; keep its best distance
+            for (int i = 0; i < size; ++i) {
+                if (itemIndices[i] == itemIndex) {
+                    if (distances[i] <= distance) {
+                        return;
+                    }
+                    System.arraycopy(itemIndices, i + 1, itemIndices, i, size - i - 1);
+                    System.arraycopy(distances, i + 1, distances, i, size - i - 1);
+                    --size;
+                    break;
+                }
+            }
+            if (size == itemIndices.length) {
+                itemIndices = Arrays.copyOf(itemIndices, size * 2);
+                distances = Arrays.copyOf(distances, size * 2);
+            }
+            int i = size;
+            while (i > 0 && distances[i - 1] > distance) {
+                --i;
+            }
+            int moved = Math.min(size, limit - 1) - i;
+            if (moved > 0) {
+                System.arraycopy(itemIndices, i, itemIndices, i + 1, moved);
+                System.arraycopy(distances, i, distances, i + 1, moved);
+            }
+            itemIndices[i] = itemIndex;
+            distances[i] = distance;
+            if (size < limit) {
+                ++size;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        List<T> toList() {
+            List<T> result = new ArrayList<T>(size);
+            for (int i = 0; i < size; ++i) {
+                result.add((T) items[itemIndices[i]]);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.gtfs;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.onebusaway.gtfs.impl.GtfsRelationalDaoImpl;
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.Trip;
+
+/**
+ * A GTFS DAO that doesn't keep {@link StopTime} objects, which for a large feed take more memory
+ * than everything else put together. As stop_times.txt is read, each stop time is packed into an
+ * int array for its trip and the object is dropped; {@link #getStopTimesForTrip(Trip)} creates
+ * new StopTimes for a trip every time it is called, which can be discarded as soon as the caller
+ * is done with them. Changes to returned stop times are not stored.
+ * 
+ * Stop times sorted by trip, as they usually are, are appended to the same array one after
+ * another; unsorted ones work too, at the cost of a map lookup each.
+ */
+public class CompactStopTimeDaoImpl extends GtfsRelationalDaoImpl {
+
+    /* the ints stored for each stop time */
+    private static final int ID = 0;
+
+    private static final int STOP = 1;
+
+    private static final int SEQUENCE = 2;
+
+    private static final int ARRIVAL = 3;
+
+    private static final int DEPARTURE = 4;
+
+    private static final int TYPES = 5;
+
+    private static final int SHAPE_DIST_HIGH = 6;
+
+    private static final int SHAPE_DIST_LOW = 7;
+
+    private static final int STOP_TIME_SIZE = 8;
+
+    private static final int UNSET = Integer.MIN_VALUE;
+
+    private Map<Trip, EncodedStopTimes> stopTimesByTrip = new HashMap<Trip, EncodedStopTimes>();
+
+    /* the stop times of the trip last read, since they are usually read trip by trip */
+    private Trip lastTrip;
+
+    private EncodedStopTimes lastStopTimes;
+
+    private List<Stop> stops = new ArrayList<Stop>();
+
+    private Map<Stop, Integer> stopIndices = new HashMap<Stop, Integer>();
+
+    private int nStopTimes = 0;
+
+    @Override
+    public void saveEntity(Object entity) {
+        if (!(entity instanceof StopTime)) {
+            super.saveEntity(entity);
+            return;
+        }
+        StopTime stopTime = (StopTime) entity;
+        Trip trip = stopTime.getTrip();
+        if (trip != lastTrip) {
+            lastStopTimes = stopTimesByTrip.get(trip);
+            if (lastStopTimes == null) {
+                lastStopTimes = new EncodedStopTimes();
+                stopTimesByTrip.put(trip, lastStopTimes);
+            }
+            lastTrip = trip;
+        }
+        if (stopTime.getId() == null) {
+            stopTime.setId(nStopTimes);
+        }
+        lastStopTimes.add(stopTime, getStopIndex(stopTime.getStop()));
+        ++nStopTimes;
+    }
+
+    @Override
+    public void flush() {
+        super.flush();
+        for (EncodedStopTimes stopTimes : stopTimesByTrip.values()) {
+            stopTimes.trim();
+        }
+    }
+
+    @Override
+    public List<StopTime> getStopTimesForTrip(Trip trip) {
+        EncodedStopTimes stopTimes = stopTimesByTrip.get(trip);
+        if (stopTimes == null) {
+            return Collections.emptyList();
+        }
+        return stopTimes.decode(trip);
+    }
+
+    public int getNumStopTimes() {
+        return nStopTimes;
+    }
+
+    /**
+     * Creates every stop time at once, so this takes as much memory as an ordinary DAO.
+     */
+    @Override
+    public Collection<StopTime> getAllStopTimes() {
+        List<StopTime> all = new ArrayList<StopTime>(nStopTimes);
+        for (Map.Entry<Trip, EncodedStopTimes> entry : stopTimesByTrip.entrySet()) {
+            all.addAll(entry.getValue().decode(entry.getKey()));
+        }
+        return all;
+    }
+
+    @Override
+    public List<StopTime> getStopTimesForStop(Stop stop) {
+        List<StopTime> stopTimes = new ArrayList<StopTime>();
+        Integer index = stopIndices.get(stop);
+        if (index == null) {
+            return stopTimes;
+        }
+        for (Map.Entry<Trip, EncodedStopTimes> entry : stopTimesByTrip.entrySet()) {
+            if (entry.getValue().visits(index)) {
+                for (StopTime stopTime : entry.getValue().decode(entry.getKey())) {
+                    if (stopTime.getStop() == stop) {
+                        stopTimes.add(stopTime);
+                    }
+                }
+            }
+        }
+        return stopTimes;
+    }
+
+    @Override
+    public StopTime getStopTimeForId(int id) {
+        for (StopTime stopTime : getAllStopTimes()) {
+            if (stopTime.getId() == id) {
+                return stopTime;
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> Collection<T> getAllEntitiesForType(Class<T> type) {
+        if (type == StopTime.class) {
+            return (Collection<T>) getAllStopTimes();
+        }
+        return super.getAllEntitiesForType(type);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> T getEntityForId(Class<T> type, Serializable id) {
+        if (type == StopTime.class) {
+            return (T) getStopTimeForId((Integer) id);
+        }
+        return super.getEntityForId(type, id);
+    }
+
+    private int getStopIndex(Stop stop) {
+        Integer index = stopIndices.get(stop);
+        if (index == null) {
+            index = stops.size();
+            stops.add(stop);
+            stopIndices.put(stop, index);
+        }
+        return index;
+    }
+
+    /**
+     * The stop times of one trip, STOP_TIME_SIZE ints each. Headsigns and route names are rare
+     * enough to be kept in arrays of their own, only when there are any.
+     */
+    private class EncodedStopTimes {
+
+        private int[] data = new int[STOP_TIME_SIZE * 4];
+
+        private int size = 0;
+
+        private String[] headsigns;
+
+        private String[] routeShortNames;
+
+        public void add(StopTime stopTime, int stop) {
+            if ((size + 1) * STOP_TIME_SIZE > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            int offset = size * STOP_TIME_SIZE;
+            data[offset + ID] = stopTime.getId();
+            data[offset + STOP] = stop;
+            data[offset + SEQUENCE] = stopTime.getStopSequence();
+            data[offset + ARRIVAL] = stopTime.isArrivalTimeSet() ? stopTime.getArrivalTime()
+                    : UNSET;
+            data[offset + DEPARTURE] = stopTime.isDepartureTimeSet() ? stopTime
+                    .getDepartureTime() : UNSET;
+            data[offset + TYPES] = (stopTime.getPickupType() & 0xffff)
+                    | (stopTime.getDropOffType() << 16);
+            long shapeDist = Double.doubleToLongBits(stopTime.isShapeDistTraveledSet() ? stopTime
+                    .getShapeDistTraveled() : Double.NaN);
+            data[offset + SHAPE_DIST_HIGH] = (int) (shapeDist >>> 32);
+            data[offset + SHAPE_DIST_LOW] = (int) shapeDist;
+            if (stopTime.getStopHeadsign() != null) {
+                headsigns = setString(headsigns, stopTime.getStopHeadsign());
+            }
+            if (stopTime.getRouteShortName() != null) {
+                routeShortNames = setString(routeShortNames, stopTime.getRouteShortName());
+            }
+            ++size;
+        }
+
+        private String[] setString(String[] strings, String value) {
+            if (strings == null) {
+                strings = new String[data.length / STOP_TIME_SIZE];
+            } else if (strings.length <= size) {
+                strings = Arrays.copyOf(strings, data.length / STOP_TIME_SIZE);
+            }
+            strings[size] = value;
+            return strings;
+        }
+
+        public void trim() {
+            if (data.length > size * STOP_TIME_SIZE) {
+                data = Arrays.copyOf(data, size * STOP_TIME_SIZE);
+            }
+            if (headsigns != null && headsigns.length > size) {
+                headsigns = Arrays.copyOf(headsigns, size);
+            }
+            if (routeShortNames != null && routeShortNames.length > size) {
+                routeShortNames = Arrays.copyOf(routeShortNames, size);
+            }
+        }
+
+        public boolean visits(int stop) {
+            for (int i = 0; i < size; ++i) {
+                if (data[i * STOP_TIME_SIZE + STOP] == stop) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return new stop times, sorted by stop sequence
+         */
+        public List<StopTime> decode(Trip trip) {
+            List<StopTime> stopTimes = new ArrayList<StopTime>(size);
+            boolean sorted = true;
+            for (int i = 0; i < size; ++i) {
+                int offset = i * STOP_TIME_SIZE;
+                StopTime stopTime = new StopTime();
+                stopTime.setId(data[offset + ID]);
+                stopTime.setTrip(trip);
+                stopTime.setStop(stops.get(data[offset + STOP]));
+                stopTime.setStopSequence(data[offset + SEQUENCE]);
+                if (data[offset + ARRIVAL] != UNSET) {
+                    stopTime.setArrivalTime(data[offset + ARRIVAL]);
+                }
+                if (data[offset + DEPARTURE] != UNSET) {
+                    stopTime.setDepartureTime(data[offset + DEPARTURE]);
+                }
+                stopTime.setPickupType(data[offset + TYPES] & 0xffff);
+                stopTime.setDropOffType(data[offset + TYPES] >> 16);
+                double shapeDist = Double.longBitsToDouble(((long) data[offset + SHAPE_DIST_HIGH] << 32)
+                        | (data[offset + SHAPE_DIST_LOW] & 0xffffffffL));
+                if (!Double.isNaN(shapeDist)) {
+                    stopTime.setShapeDistTraveled(shapeDist);
+                }
+                if (headsigns != null && i < headsigns.length) {
+                    stopTime.setStopHeadsign(headsigns[i]);
+                }
+                if (routeShortNames != null && i < routeShortNames.length) {
+                    stopTime.setRouteShortName(routeShortNames[i]);
+                }
+                if (i > 0 && data[offset - STOP_TIME_SIZE + SEQUENCE] > data[offset + SEQUENCE]) {
+                    sorted = false;
+                }
+                stopTimes.add(stopTime);
+            }
+            if (!sorted) {
+                Collections.sort(stopTimes);
+            }
+            return stopTimes;
+        }
+    }
+}
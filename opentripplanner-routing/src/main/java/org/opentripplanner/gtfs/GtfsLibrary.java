@@ -101,7 +101,11 @@ public class GtfsLibrary {
     }
 
     public static TraverseMode getTraverseMode(Route route) {
-        switch (route.getType()) {
+        return getTraverseMode(route.getType());
+    }
+
+    public static TraverseMode getTraverseMode(int routeType) {
+        switch (routeType) {
         case 0:
             return TraverseMode.TRAM;
         case 1:
@@ -119,7 +123,7 @@ public class GtfsLibrary {
         case 7:
             return TraverseMode.FUNICULAR;
         default:
-            throw new IllegalArgumentException("unknown gtfs route type " + route.getType());
+            throw new IllegalArgumentException("unknown gtfs route type " + routeType);
         }
     }
 
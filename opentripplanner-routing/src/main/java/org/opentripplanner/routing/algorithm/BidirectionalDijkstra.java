@@ -0,0 +1,264 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.algorithm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opentripplanner.routing.core.Edge;
+import org.opentripplanner.routing.core.Graph;
+import org.opentripplanner.routing.core.GraphVertex;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.TraverseOptions;
+import org.opentripplanner.routing.core.TraverseResult;
+import org.opentripplanner.routing.core.Vertex;
+import org.opentripplanner.routing.location.StreetLocation;
+import org.opentripplanner.routing.pqueue.FibHeap;
+import org.opentripplanner.routing.spt.BasicShortestPathTree;
+import org.opentripplanner.routing.spt.GraphPath;
+import org.opentripplanner.routing.spt.SPTEdge;
+import org.opentripplanner.routing.spt.SPTVertex;
+
+/**
+ * Finds the shortest path between two vertices with Dijkstra's algorithm, run from both ends at
+ * once. Each search only has to reach about half way, so far fewer vertices are visited than by
+ * a search from one end; and since no heuristic is needed, the path found is always the
+ * shortest, which A* only promises when its heuristic never overestimates.
+ *
+ * The search from the free end cannot know the time, so only the weights of time-independent
+ * edges, such as streets, are right; options.worstTime is only checked from the end whose time
+ * is given.
+ */
+public class BidirectionalDijkstra {
+
+    /**
+     * @return the shortest path no more costly than options.maxWeight, or null if there is none;
+     *         as with the contraction hierarchies, arrive-by paths are accumulated from the
+     *         target
+     */
+    public static GraphPath getShortestPath(Graph graph, Vertex origin, Vertex target,
+            State init, TraverseOptions options) {
+
+        if (origin == null || target == null) {
+            return null;
+        }
+
+        /* the edges of StreetLocations, by the vertex each search reaches them from */
+        Map<Vertex, List<Edge>> extraOutgoing = new HashMap<Vertex, List<Edge>>();
+        Map<Vertex, List<Edge>> extraIncoming = new HashMap<Vertex, List<Edge>>();
+        addExtraEdges(origin, extraOutgoing, extraIncoming);
+        addExtraEdges(target, extraOutgoing, extraIncoming);
+
+        BasicShortestPathTree upspt = new BasicShortestPathTree();
+        BasicShortestPathTree downspt = new BasicShortestPathTree();
+        int capacity = graph.getVertices().size() + extraOutgoing.size() + extraIncoming.size();
+        FibHeap<SPTVertex> upqueue = new FibHeap<SPTVertex>(capacity);
+        FibHeap<SPTVertex> downqueue = new FibHeap<SPTVertex>(capacity);
+
+        SPTVertex spt_origin = upspt.addVertex(origin, init, 0, options);
+        upqueue.insert(spt_origin, 0);
+        SPTVertex spt_target = downspt.addVertex(target, init, 0, options);
+        downqueue.insert(spt_target, 0);
+
+        Vertex meeting = origin == target ? origin : null;
+        double bestMeetingCost = origin == target ? 0 : Double.POSITIVE_INFINITY;
+
+        while (!upqueue.empty() && !downqueue.empty()) {
+            /*
+             * any path not yet found costs at least as much as the cheapest vertex on each
+             * search's frontier; the search whose frontier is nearer goes on, so that both reach
+             * about as far
+             */
+            double upMin = upqueue.peek_min().weightSum;
+            double downMin = downqueue.peek_min().weightSum;
+            if (upMin + downMin >= bestMeetingCost || upMin + downMin > options.maxWeight) {
+                break;
+            }
+
+            if (upMin <= downMin) {
+                SPTVertex up_u = upqueue.extract_min();
+                Vertex fromv = up_u.mirror;
+                for (Edge edge : getEdges(graph, fromv, extraOutgoing, true)) {
+                    Vertex tov = edge.getToVertex();
+                    TraverseResult wr = edge.traverse(up_u.state, options);
+                    if (wr == null) {
+                        continue;
+                    }
+                    if (wr.weight < 0) {
+                        throw new NegativeWeightException(String.valueOf(wr.weight) + " on edge "
+                                + edge);
+                    }
+                    double new_w = up_u.weightSum + wr.weight;
+                    if (new_w > options.maxWeight) {
+                        continue;
+                    }
+                    if (!options.isArriveBy() && wr.state.getTime() > options.worstTime) {
+                        continue;
+                    }
+                    SPTVertex up_v = upspt.addVertex(tov, wr.state, new_w, options);
+                    if (up_v == null) {
+                        continue;
+                    }
+                    up_v.setParent(up_u, edge);
+                    upqueue.insert_or_dec_key(up_v, new_w);
+
+                    SPTVertex down_v = downspt.getVertex(tov);
+                    if (down_v != null && new_w + down_v.weightSum < bestMeetingCost) {
+                        bestMeetingCost = new_w + down_v.weightSum;
+                        meeting = tov;
+                    }
+                }
+            } else {
+                SPTVertex down_u = downqueue.extract_min();
+                Vertex tov = down_u.mirror;
+                for (Edge edge : getEdges(graph, tov, extraIncoming, false)) {
+                    Vertex fromv = edge.getFromVertex();
+                    TraverseResult wr = edge.traverseBack(down_u.state, options);
+                    if (wr == null) {
+                        continue;
+                    }
+                    if (wr.weight < 0) {
+                        throw new NegativeWeightException(String.valueOf(wr.weight) + " on edge "
+                                + edge);
+                    }
+                    double new_w = down_u.weightSum + wr.weight;
+                    if (new_w > options.maxWeight) {
+                        continue;
+                    }
+                    if (options.isArriveBy() && wr.state.getTime() < options.worstTime) {
+                        continue;
+                    }
+                    SPTVertex down_v = downspt.addVertex(fromv, wr.state, new_w, options);
+                    if (down_v == null) {
+                        continue;
+                    }
+                    down_v.setParent(down_u, edge);
+                    downqueue.insert_or_dec_key(down_v, new_w);
+
+                    SPTVertex up_v = upspt.getVertex(fromv);
+                    if (up_v != null && new_w + up_v.weightSum < bestMeetingCost) {
+                        bestMeetingCost = new_w + up_v.weightSum;
+                        meeting = fromv;
+                    }
+                }
+            }
+        }
+
+        if (meeting == null || bestMeetingCost > options.maxWeight) {
+            return null;
+        }
+
+        /* the edges from the origin to the meeting vertex, then on to the target */
+        List<Edge> edges = new ArrayList<Edge>();
+        for (SPTVertex v = upspt.getVertex(meeting); v.incoming != null; v = v.incoming.fromv) {
+            edges.add(v.incoming.payload);
+        }
+        Collections.reverse(edges);
+        for (SPTVertex v = downspt.getVertex(meeting); v.incoming != null; v = v.incoming.fromv) {
+            edges.add(v.incoming.payload);
+        }
+
+        if (options.isArriveBy()) {
+            return makePathBack(edges, target, init, options);
+        } else {
+            return makePath(edges, origin, init, options);
+        }
+    }
+
+    private static void addExtraEdges(Vertex v, Map<Vertex, List<Edge>> extraOutgoing,
+            Map<Vertex, List<Edge>> extraIncoming) {
+        if (!(v instanceof StreetLocation)) {
+            return;
+        }
+        for (Edge edge : ((StreetLocation) v).getExtra()) {
+            addEdge(extraOutgoing, edge.getFromVertex(), edge);
+            addEdge(extraIncoming, edge.getToVertex(), edge);
+        }
+    }
+
+    private static void addEdge(Map<Vertex, List<Edge>> edges, Vertex v, Edge edge) {
+        List<Edge> vertexEdges = edges.get(v);
+        if (vertexEdges == null) {
+            vertexEdges = new ArrayList<Edge>();
+            edges.put(v, vertexEdges);
+        }
+        vertexEdges.add(edge);
+    }
+
+    private static Collection<Edge> getEdges(Graph graph, Vertex v,
+            Map<Vertex, List<Edge>> extraEdges, boolean outgoing) {
+        GraphVertex gv = graph.getGraphVertex(v);
+        Collection<Edge> edges;
+        if (gv == null) {
+            edges = Collections.emptyList();
+        } else {
+            edges = outgoing ? gv.getOutgoing() : gv.getIncoming();
+        }
+        List<Edge> extra = extraEdges.get(v);
+        if (extra != null) {
+            List<Edge> allEdges = new ArrayList<Edge>(edges.size() + extra.size());
+            allEdges.addAll(edges);
+            allEdges.addAll(extra);
+            edges = allEdges;
+        }
+        return edges;
+    }
+
+    /* traverses the edges again from the origin, so that the states are those of this trip */
+    private static GraphPath makePath(List<Edge> edges, Vertex origin, State init,
+            TraverseOptions options) {
+        GraphPath path = new GraphPath();
+        SPTVertex fromv = new SPTVertex(origin, init, 0, options);
+        path.vertices.add(fromv);
+        for (Edge edge : edges) {
+            TraverseResult wr = edge.traverse(fromv.state, options);
+            if (wr == null) {
+                return null;
+            }
+            SPTVertex tov = new SPTVertex(edge.getToVertex(), wr.state, fromv.weightSum
+                    + wr.weight, options);
+            path.edges.add(new SPTEdge(fromv, tov, edge));
+            path.vertices.add(tov);
+            fromv = tov;
+        }
+        return path;
+    }
+
+    /* traverses the edges back from the target, which is where the time is given */
+    private static GraphPath makePathBack(List<Edge> edges, Vertex target, State init,
+            TraverseOptions options) {
+        GraphPath path = new GraphPath();
+        SPTVertex tov = new SPTVertex(target, init, 0, options);
+        path.vertices.add(tov);
+        for (int i = edges.size() - 1; i >= 0; --i) {
+            Edge edge = edges.get(i);
+            TraverseResult wr = edge.traverseBack(tov.state, options);
+            if (wr == null) {
+                return null;
+            }
+            SPTVertex fromv = new SPTVertex(edge.getFromVertex(), wr.state, tov.weightSum
+                    + wr.weight, options);
+            path.edges.add(new SPTEdge(fromv, tov, edge));
+            path.vertices.add(fromv);
+            tov = fromv;
+        }
+        Collections.reverse(path.edges);
+        Collections.reverse(path.vertices);
+        return path;
+    }
+}
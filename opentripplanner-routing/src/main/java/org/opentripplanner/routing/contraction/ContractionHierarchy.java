@@ -18,9 +18,11 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
@@ -46,6 +48,7 @@ import org.opentripplanner.routing.edgetype.EndpointVertex;
 import org.opentripplanner.routing.edgetype.FreeEdge;
 import org.opentripplanner.routing.edgetype.OutEdge;
 import org.opentripplanner.routing.edgetype.PatternBoard;
+import org.opentripplanner.routing.edgetype.StreetClosures;
 import org.opentripplanner.routing.edgetype.StreetVertex;
 import org.opentripplanner.routing.edgetype.TurnEdge;
 import org.opentripplanner.routing.location.StreetLocation;
@@ -82,8 +85,29 @@ public class ContractionHierarchy implements Serializable {
 
     private transient TraverseOptions options;
 
+    /* the street weighting this hierarchy was built for */
+    private StreetWeighting weighting;
+
     private ThreadPoolExecutor threadPool;
 
+    /* the shortcuts directly over each street, and those directly over each shortcut, for
+     * finding the shortcuts a street closure breaks; built when first needed */
+    private transient StreetClosures indexedClosures;
+
+    private transient HashMap<Integer, List<Shortcut>> shortcutsByStreet;
+
+    private transient IdentityHashMap<Shortcut, List<Shortcut>> shortcutParents;
+
+    private transient volatile BrokenShortcuts brokenShortcuts;
+
+    private static class BrokenShortcuts {
+        StreetClosures closures;
+
+        int version;
+
+        Set<Shortcut> shortcuts;
+    }
+
     /**
      * Returns the set of shortcuts around a vertex, as well as the size of the space searched.
      * 
@@ -383,12 +407,20 @@ public class ContractionHierarchy implements Serializable {
 
         options = new TraverseOptions(new TraverseModeSet(mode));
         options.optimizeFor = optimize;
+        weighting = new StreetWeighting(options);
         this.contractionFactor = contractionFactor;
 
         init();
         useCoreVerticesFrom(orig);
     }
 
+    /**
+     * @return the street weighting this hierarchy was built for, or null if it is not known
+     */
+    public StreetWeighting getWeighting() {
+        return weighting;
+    }
+
     private void useCoreVerticesFrom(Graph orig) {
         for (GraphVertex gv : graph.getVertices()) {
             GraphVertex origgv = orig.getGraphVertex(gv.vertex.getLabel());
@@ -642,6 +674,12 @@ public class ContractionHierarchy implements Serializable {
         }
 
         Map<Vertex, ArrayList<Edge>> extraEdges = getExtraEdges(origin, target);
+
+        Set<Shortcut> broken = null;
+        StreetClosures closures = options.getStreetClosures();
+        if (closures != null && !closures.isEmpty()) {
+            broken = getBrokenShortcuts(closures);
+        }
         
         LabelBasicShortestPathTree upspt = new LabelBasicShortestPathTree();
         LabelBasicShortestPathTree downspt = new LabelBasicShortestPathTree();
@@ -746,7 +784,7 @@ public class ContractionHierarchy implements Serializable {
                         continue;
                     }
 
-                    TraverseResult wr = edge.traverse(state, options);
+                    TraverseResult wr = traverse(edge, state, options, broken);
 
                     // When an edge leads nowhere (as indicated by returning NULL), the iteration is
                     // over.
@@ -850,7 +888,7 @@ public class ContractionHierarchy implements Serializable {
                         continue;
                     }
 
-                    TraverseResult wr = edge.traverseBack(state, options);
+                    TraverseResult wr = traverseBack(edge, state, options, broken);
 
                     // When an edge leads nowhere (as indicated by returning NULL), the iteration is
                     // over.
@@ -914,6 +952,142 @@ public class ContractionHierarchy implements Serializable {
         return path;
     }
 
+    /**
+     * Traverses an edge, unpacking it if it is a shortcut over a closed or reweighted street:
+     * such a shortcut's weight is recomputed from the shortcuts and edges it is made of, and it
+     * cannot be traversed at all if it is over a closed street.
+     */
+    private TraverseResult traverse(Edge edge, State state, TraverseOptions options,
+            Set<Shortcut> broken) {
+        if (broken == null || !broken.contains(edge)) {
+            return edge.traverse(state, options);
+        }
+        Shortcut shortcut = (Shortcut) edge;
+        TraverseResult first = traverse(shortcut.edge1, state, options, broken);
+        if (first == null) {
+            return null;
+        }
+        TraverseResult second = traverse(shortcut.edge2, first.state, options, broken);
+        if (second == null) {
+            return null;
+        }
+        return new TraverseResult(first.weight + second.weight, second.state);
+    }
+
+    private TraverseResult traverseBack(Edge edge, State state, TraverseOptions options,
+            Set<Shortcut> broken) {
+        if (broken == null || !broken.contains(edge)) {
+            return edge.traverseBack(state, options);
+        }
+        Shortcut shortcut = (Shortcut) edge;
+        TraverseResult second = traverseBack(shortcut.edge2, state, options, broken);
+        if (second == null) {
+            return null;
+        }
+        TraverseResult first = traverseBack(shortcut.edge1, second.state, options, broken);
+        if (first == null) {
+            return null;
+        }
+        return new TraverseResult(first.weight + second.weight, first.state);
+    }
+
+    /**
+     * Finds the shortcuts of this hierarchy over streets which are closed or have a cost
+     * multiplier, directly or through other shortcuts. The set is kept until the closures next
+     * change.
+     */
+    public Set<Shortcut> getBrokenShortcuts(StreetClosures closures) {
+        BrokenShortcuts cached = brokenShortcuts;
+        int version = closures.getVersion();
+        if (cached != null && cached.closures == closures && cached.version == version) {
+            return cached.shortcuts;
+        }
+        HashSet<Shortcut> shortcuts = new HashSet<Shortcut>();
+        synchronized (this) {
+            indexShortcuts(closures);
+            ArrayList<Shortcut> stack = new ArrayList<Shortcut>();
+            for (int streetId : closures.getAffectedStreets()) {
+                List<Shortcut> over = shortcutsByStreet.get(streetId);
+                if (over != null) {
+                    stack.addAll(over);
+                }
+            }
+            while (!stack.isEmpty()) {
+                Shortcut shortcut = stack.remove(stack.size() - 1);
+                if (!shortcuts.add(shortcut)) {
+                    continue;
+                }
+                List<Shortcut> parents = shortcutParents.get(shortcut);
+                if (parents != null) {
+                    stack.addAll(parents);
+                }
+            }
+        }
+        cached = new BrokenShortcuts();
+        cached.closures = closures;
+        cached.version = version;
+        cached.shortcuts = shortcuts;
+        brokenShortcuts = cached;
+        return shortcuts;
+    }
+
+    /* called with the lock held */
+    private void indexShortcuts(StreetClosures closures) {
+        if (indexedClosures == closures) {
+            return;
+        }
+        shortcutsByStreet = new HashMap<Integer, List<Shortcut>>();
+        shortcutParents = new IdentityHashMap<Shortcut, List<Shortcut>>();
+        ArrayList<Shortcut> stack = new ArrayList<Shortcut>();
+        for (GraphVertex gv : up.getVertices()) {
+            addShortcuts(gv.getOutgoing(), stack);
+        }
+        for (GraphVertex gv : down.getVertices()) {
+            addShortcuts(gv.getIncoming(), stack);
+        }
+        for (GraphVertex gv : graph.getVertices()) {
+            addShortcuts(gv.getOutgoing(), stack);
+        }
+        Set<Shortcut> seen = new HashSet<Shortcut>();
+        while (!stack.isEmpty()) {
+            Shortcut shortcut = stack.remove(stack.size() - 1);
+            if (!seen.add(shortcut)) {
+                continue;
+            }
+            for (Edge child : new Edge[] { shortcut.edge1, shortcut.edge2 }) {
+                if (child instanceof Shortcut) {
+                    List<Shortcut> parents = shortcutParents.get(child);
+                    if (parents == null) {
+                        parents = new ArrayList<Shortcut>(1);
+                        shortcutParents.put((Shortcut) child, parents);
+                    }
+                    parents.add(shortcut);
+                    stack.add((Shortcut) child);
+                } else {
+                    int streetId = StreetClosures.getStreetId(child);
+                    if (streetId == -1) {
+                        continue;
+                    }
+                    List<Shortcut> over = shortcutsByStreet.get(streetId);
+                    if (over == null) {
+                        over = new ArrayList<Shortcut>(2);
+                        shortcutsByStreet.put(streetId, over);
+                    }
+                    over.add(shortcut);
+                }
+            }
+        }
+        indexedClosures = closures;
+    }
+
+    private static void addShortcuts(Collection<Edge> edges, List<Shortcut> shortcuts) {
+        for (Edge e : edges) {
+            if (e instanceof Shortcut) {
+                shortcuts.add((Shortcut) e);
+            }
+        }
+    }
+
     private Map<Vertex, ArrayList<Edge>> getExtraEdges(Vertex origin, Vertex target) {
         Map<Vertex, ArrayList<Edge>> extraEdges;
         if (origin instanceof StreetLocation) {
@@ -15,11 +15,19 @@ package org.opentripplanner.routing.contraction;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
 import org.opentripplanner.routing.core.Graph;
 import org.opentripplanner.routing.core.TraverseMode;
+import org.opentripplanner.routing.core.TraverseModeSet;
 import org.opentripplanner.routing.core.TraverseOptions;
 import org.opentripplanner.routing.core.Vertex;
 import org.slf4j.Logger;
@@ -36,6 +44,27 @@ public class ContractionHierarchySet implements Serializable {
 
     private double contractionFactor = 1.0;
 
+    /* the weightings to customize the customizable hierarchy for when building, if any */
+    private List<ModeAndOptimize> customizedModeList;
+
+    private List<StreetWeighting> customizedWeightings;
+
+    private CustomizableContractionHierarchy customizable;
+
+    /* metrics customized on purpose, which are kept */
+    private HashMap<StreetWeighting, ContractionMetric> metrics = new HashMap<StreetWeighting, ContractionMetric>();
+
+    /* metrics customized for requests, of which only the most recently used are kept */
+    private transient Map<StreetWeighting, ContractionMetric> recentMetrics;
+
+    private static final int MAX_RECENT_METRICS = 16;
+
+    /* the customizations under way in the background */
+    private transient HashMap<StreetWeighting, Future<ContractionMetric>> pendingMetrics;
+
+    /* customizes one weighting at a time, off the request threads */
+    private transient ExecutorService customizer;
+
     public ContractionHierarchySet() {
         modeList = new ArrayList<ModeAndOptimize>();
     }
@@ -75,6 +104,180 @@ public class ContractionHierarchySet implements Serializable {
             hierarchiesByMode.put(mo, ch);
         }
         /* TODO: cross-hierarchy Shortcut memory optimization */
+        if (customizedModeList != null || customizedWeightings != null) {
+            _log.debug("Building customizable contraction hierarchy");
+            customizable = new CustomizableContractionHierarchy(getGraph());
+            if (customizedModeList != null) {
+                for (ModeAndOptimize mo : customizedModeList) {
+                    TraverseOptions options = new TraverseOptions(new TraverseModeSet(mo.mode));
+                    options.optimizeFor = mo.optimizeFor;
+                    customize(options);
+                }
+            }
+            if (customizedWeightings != null) {
+                for (StreetWeighting weighting : customizedWeightings) {
+                    customize(weighting.getOptions());
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the modes a customizable hierarchy is built and customized for, with their default
+     * weightings; other weightings are customized in the background, rounded, as they are asked
+     * for (see {@link #getMetric(TraverseOptions)}). If neither this nor the customized
+     * weightings are set, no customizable hierarchy is built.
+     */
+    public void setCustomizedModes(List<ModeAndOptimize> modeList) {
+        customizedModeList = modeList;
+    }
+
+    /**
+     * Sets further weightings the customizable hierarchy is built and customized for, such as
+     * those with a walk reluctance, speed or slope limit of their own.
+     */
+    public void setCustomizedWeightings(List<StreetWeighting> weightings) {
+        customizedWeightings = weightings;
+    }
+
+    public CustomizableContractionHierarchy getCustomizableHierarchy() {
+        return customizable;
+    }
+
+    /**
+     * Customizes the customizable hierarchy, building it first if need be, for the street
+     * weighting of the options, replacing any earlier customization for it. This is how street
+     * weights are changed without rebuilding the hierarchies.
+     */
+    public ContractionMetric customize(TraverseOptions options) {
+        CustomizableContractionHierarchy hierarchy;
+        synchronized (this) {
+            if (customizable == null) {
+                customizable = new CustomizableContractionHierarchy(getGraph());
+            }
+            hierarchy = customizable;
+        }
+        ContractionMetric metric = hierarchy.customize(options);
+        synchronized (this) {
+            if (metrics == null) {
+                /* read from before there were metrics */
+                metrics = new HashMap<StreetWeighting, ContractionMetric>();
+            }
+            metrics.put(metric.getWeighting(), metric);
+            getRecentMetrics().remove(metric.getWeighting());
+        }
+        return metric;
+    }
+
+    /**
+     * Customizes the customizable hierarchy for the street weighting of the options on a
+     * background thread, one weighting at a time, unless that is already under way. The metric
+     * is kept, as by {@link #customize(TraverseOptions)}.
+     * 
+     * @return the customization, or null if there is no customizable hierarchy
+     */
+    public Future<ContractionMetric> customizeInBackground(TraverseOptions options) {
+        return customizeInBackground(new StreetWeighting(options), true);
+    }
+
+    private synchronized Future<ContractionMetric> customizeInBackground(
+            final StreetWeighting weighting, final boolean keep) {
+        if (customizable == null) {
+            return null;
+        }
+        if (pendingMetrics == null) {
+            pendingMetrics = new HashMap<StreetWeighting, Future<ContractionMetric>>();
+        }
+        Future<ContractionMetric> pending = pendingMetrics.get(weighting);
+        if (pending != null) {
+            return pending;
+        }
+        if (customizer == null) {
+            customizer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "contraction hierarchy customizer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        final CustomizableContractionHierarchy hierarchy = customizable;
+        pending = customizer.submit(new Callable<ContractionMetric>() {
+            public ContractionMetric call() {
+                try {
+                    if (keep) {
+                        return customize(weighting.getOptions());
+                    }
+                    ContractionMetric metric = hierarchy.customize(weighting.getOptions());
+                    synchronized (ContractionHierarchySet.this) {
+                        getRecentMetrics().put(weighting, metric);
+                    }
+                    return metric;
+                } catch (RuntimeException e) {
+                    _log.warn("error customizing for " + weighting, e);
+                    throw e;
+                } finally {
+                    synchronized (ContractionHierarchySet.this) {
+                        pendingMetrics.remove(weighting);
+                    }
+                }
+            }
+        });
+        pendingMetrics.put(weighting, pending);
+        return pending;
+    }
+
+    /**
+     * Gets the metric of the customizable hierarchy for the street weighting of the options.
+     * This never customizes on the calling thread. If there is no metric for the weighting, one
+     * for the weighting rounded by {@link StreetWeighting#quantize()} is used instead, and if
+     * there is none for that yet, it is customized in the background for later requests. Only
+     * so many weightings round to different values, and only the most recently used of their
+     * metrics are kept, so requests cannot have customizations made without limit.
+     * 
+     * @return the metric, or null if there is none yet, there is no customizable hierarchy or
+     *         the options allow transit, which it does not cover
+     */
+    public ContractionMetric getMetric(TraverseOptions options) {
+        if (options.transitAllowed()) {
+            return null;
+        }
+        StreetWeighting weighting = new StreetWeighting(options);
+        StreetWeighting rounded = weighting.quantize();
+        synchronized (this) {
+            if (customizable == null) {
+                return null;
+            }
+            ContractionMetric metric = findMetric(weighting);
+            if (metric == null) {
+                metric = findMetric(rounded);
+            }
+            if (metric != null) {
+                return metric;
+            }
+        }
+        customizeInBackground(rounded, false);
+        return null;
+    }
+
+    private ContractionMetric findMetric(StreetWeighting weighting) {
+        ContractionMetric metric = metrics.get(weighting);
+        if (metric == null) {
+            metric = getRecentMetrics().get(weighting);
+        }
+        return metric;
+    }
+
+    @SuppressWarnings("serial")
+    private Map<StreetWeighting, ContractionMetric> getRecentMetrics() {
+        if (recentMetrics == null) {
+            recentMetrics = new LinkedHashMap<StreetWeighting, ContractionMetric>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<StreetWeighting, ContractionMetric> eldest) {
+                    return size() > MAX_RECENT_METRICS;
+                }
+            };
+        }
+        return recentMetrics;
     }
 
     public void setContractionFactor(double factor) {
@@ -0,0 +1,426 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.contraction;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.opentripplanner.routing.contraction.CustomizableContractionHierarchy.Workspace;
+import org.opentripplanner.routing.core.Edge;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.TraverseOptions;
+import org.opentripplanner.routing.core.TraverseResult;
+import org.opentripplanner.routing.core.Vertex;
+import org.opentripplanner.routing.location.StreetLocation;
+import org.opentripplanner.routing.spt.GraphPath;
+import org.opentripplanner.routing.spt.SPTEdge;
+import org.opentripplanner.routing.spt.SPTVertex;
+
+/**
+ * The weights of a {@link CustomizableContractionHierarchy} for one {@link StreetWeighting}: the
+ * weight of each arc either way, and the edge or the lower vertex it goes through.
+ *
+ * Searches go upward from both ends along the elimination tree, so they need no priority queue
+ * and find the shortest path exactly.
+ */
+public class ContractionMetric implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private CustomizableContractionHierarchy hierarchy;
+
+    private StreetWeighting weighting;
+
+    /* from the lower vertex of each arc to the higher, and back */
+    private double[] up;
+
+    private double[] down;
+
+    /* the vertex each arc goes through, or -1 if it is an edge */
+    private int[] upVia;
+
+    private int[] downVia;
+
+    private Edge[] upEdge;
+
+    private Edge[] downEdge;
+
+    private static class Access {
+        double weight;
+
+        List<Edge> edges;
+
+        Access(double weight, List<Edge> edges) {
+            this.weight = weight;
+            this.edges = edges;
+        }
+    }
+
+    ContractionMetric(CustomizableContractionHierarchy hierarchy, StreetWeighting weighting,
+            int nArcs) {
+        this.hierarchy = hierarchy;
+        this.weighting = weighting;
+        up = new double[nArcs];
+        down = new double[nArcs];
+        upVia = new int[nArcs];
+        downVia = new int[nArcs];
+        upEdge = new Edge[nArcs];
+        downEdge = new Edge[nArcs];
+    }
+
+    public StreetWeighting getWeighting() {
+        return weighting;
+    }
+
+    public CustomizableContractionHierarchy getHierarchy() {
+        return hierarchy;
+    }
+
+    /* sets an arc to the cheapest of the edges along it */
+    void setEdges(int arc, Edge[] upEdges, Edge[] downEdges, State state,
+            TraverseOptions options) {
+        upVia[arc] = -1;
+        downVia[arc] = -1;
+        up[arc] = Double.POSITIVE_INFINITY;
+        down[arc] = Double.POSITIVE_INFINITY;
+        if (upEdges != null) {
+            for (Edge e : upEdges) {
+                TraverseResult result = e.traverse(state, options);
+                if (result != null && result.weight < up[arc]) {
+                    up[arc] = result.weight;
+                    upEdge[arc] = e;
+                }
+            }
+        }
+        if (downEdges != null) {
+            for (Edge e : downEdges) {
+                TraverseResult result = e.traverse(state, options);
+                if (result != null && result.weight < down[arc]) {
+                    down[arc] = result.weight;
+                    downEdge[arc] = e;
+                }
+            }
+        }
+    }
+
+    /*
+     * improves the arc from y up to z, and back, by the lower triangle through x, given the arcs
+     * from x up to y and from x up to z
+     */
+    void relax(int arc, int x, int xy, int xz) {
+        double weight = down[xy] + up[xz];
+        if (weight < up[arc]) {
+            up[arc] = weight;
+            upVia[arc] = x;
+        }
+        weight = down[xz] + up[xy];
+        if (weight < down[arc]) {
+            down[arc] = weight;
+            downVia[arc] = x;
+        }
+    }
+
+    /**
+     * @return whether paths between the vertices can be found with this hierarchy: they must be
+     *         its street vertices, or locations on its streets
+     */
+    public boolean canRoute(Vertex origin, Vertex target) {
+        return covers(origin) && covers(target);
+    }
+
+    private boolean covers(Vertex v) {
+        return v instanceof StreetLocation || hierarchy.getRank(v) != -1;
+    }
+
+    /**
+     * Finds the shortest path between the vertices for the street weighting of this metric,
+     * which should be that of the options.
+     *
+     * @return the path, or null if there is none, or none within the options' maximum weight
+     *         and worst time
+     */
+    public GraphPath getShortestPath(Vertex origin, Vertex target, State init,
+            TraverseOptions options) {
+        if (origin == null || target == null || origin == target) {
+            return null;
+        }
+        Map<Integer, Access> sources = getAccess(origin, true, options);
+        Map<Integer, Access> targets = getAccess(target, false, options);
+        if (sources.isEmpty() || targets.isEmpty()) {
+            return null;
+        }
+
+        Workspace ws = hierarchy.getWorkspace();
+        int search = ws.nextSearch();
+        int[] forwardVertices = search(sources, ws.forwardSearch, ws.forward, ws.forwardArc,
+                ws.forwardFrom, search, up);
+        int[] backwardVertices = search(targets, ws.backwardSearch, ws.backward,
+                ws.backwardArc, ws.backwardFrom, search, down);
+
+        int meeting = -1;
+        double best = Double.POSITIVE_INFINITY;
+        for (int v : backwardVertices) {
+            if (ws.forwardSearch[v] != search) {
+                continue;
+            }
+            double weight = ws.forward[v] + ws.backward[v];
+            if (weight < best) {
+                best = weight;
+                meeting = v;
+            }
+        }
+        if (meeting == -1 || best > options.maxWeight) {
+            return null;
+        }
+
+        /* the arcs to the meeting vertex from the source, and from there to the target */
+        ArrayList<Edge> edges = new ArrayList<Edge>();
+        ArrayList<int[]> arcs = new ArrayList<int[]>();
+        int v = meeting;
+        while (ws.forwardArc[v] != -1) {
+            arcs.add(new int[] { ws.forwardFrom[v], ws.forwardArc[v] });
+            v = ws.forwardFrom[v];
+        }
+        edges.addAll(sources.get(v).edges);
+        Collections.reverse(arcs);
+        for (int[] arc : arcs) {
+            unpack(arc[0], arc[1], true, edges);
+        }
+        v = meeting;
+        while (ws.backwardArc[v] != -1) {
+            int next = ws.backwardFrom[v];
+            unpack(next, ws.backwardArc[v], false, edges);
+            v = next;
+        }
+        edges.addAll(targets.get(v).edges);
+        if (edges.isEmpty()) {
+            return null;
+        }
+        return makePath(edges, init, options);
+    }
+
+    /**
+     * Searches up the elimination tree from the given vertices.
+     *
+     * @return the vertices searched, which are those above the starting vertices, in rank order
+     */
+    private int[] search(Map<Integer, Access> start, int[] searched, double[] weights,
+            int[] arcs, int[] from, int search, double[] arcWeights) {
+        int[] parent = hierarchy.parent;
+        int count = 0;
+        int[] vertices = new int[16];
+        for (int v : start.keySet()) {
+            while (v != -1 && searched[v] != search) {
+                searched[v] = search;
+                weights[v] = Double.POSITIVE_INFINITY;
+                arcs[v] = -1;
+                if (count == vertices.length) {
+                    vertices = Arrays.copyOf(vertices, count * 2);
+                }
+                vertices[count++] = v;
+                v = parent[v];
+            }
+        }
+        for (Map.Entry<Integer, Access> entry : start.entrySet()) {
+            weights[entry.getKey()] = entry.getValue().weight;
+        }
+        vertices = Arrays.copyOf(vertices, count);
+        Arrays.sort(vertices);
+
+        int[] firstArc = hierarchy.firstArc;
+        int[] arcHead = hierarchy.arcHead;
+        for (int v : vertices) {
+            double weight = weights[v];
+            if (weight == Double.POSITIVE_INFINITY) {
+                continue;
+            }
+            for (int a = firstArc[v]; a < firstArc[v + 1]; ++a) {
+                int head = arcHead[a];
+                double newWeight = weight + arcWeights[a];
+                if (newWeight < weights[head]) {
+                    weights[head] = newWeight;
+                    arcs[head] = a;
+                    from[head] = v;
+                }
+            }
+        }
+        return vertices;
+    }
+
+    /**
+     * Adds the edges along an arc, up from its lower vertex or down to it, to the list.
+     */
+    private void unpack(int tail, int arc, boolean upward, List<Edge> edges) {
+        /* arcs to unpack, as lower vertex, arc and direction (1 up, 0 down), last on top */
+        int[] stack = new int[48];
+        int size = 0;
+        stack[size++] = tail;
+        stack[size++] = arc;
+        stack[size++] = upward ? 1 : 0;
+        while (size > 0) {
+            boolean isUp = stack[--size] == 1;
+            int a = stack[--size];
+            int low = stack[--size];
+            int x = isUp ? upVia[a] : downVia[a];
+            if (x == -1) {
+                edges.add(isUp ? upEdge[a] : downEdge[a]);
+                continue;
+            }
+            int high = hierarchy.arcHead[a];
+            int toLow = hierarchy.getArc(x, low);
+            int toHigh = hierarchy.getArc(x, high);
+            if (size + 6 > stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            /* up is low, down to x, up to high; down is high, down to x, up to low */
+            if (isUp) {
+                stack[size++] = x;
+                stack[size++] = toHigh;
+                stack[size++] = 1;
+                stack[size++] = x;
+                stack[size++] = toLow;
+                stack[size++] = 0;
+            } else {
+                stack[size++] = x;
+                stack[size++] = toLow;
+                stack[size++] = 1;
+                stack[size++] = x;
+                stack[size++] = toHigh;
+                stack[size++] = 0;
+            }
+        }
+    }
+
+    /**
+     * Finds the vertices of the hierarchy nearest a vertex, and the edges to them (or from them,
+     * if not forward). A street vertex is its own; a location's are found over its extra edges.
+     */
+    private Map<Integer, Access> getAccess(Vertex vertex, boolean forward,
+            TraverseOptions options) {
+        HashMap<Integer, Access> access = new HashMap<Integer, Access>();
+        int rank = hierarchy.getRank(vertex);
+        if (rank != -1) {
+            access.put(rank, new Access(0, Collections.<Edge> emptyList()));
+            return access;
+        }
+        if (!(vertex instanceof StreetLocation)) {
+            return access;
+        }
+        List<Edge> extra = ((StreetLocation) vertex).getExtra();
+        State state = new State(0);
+        HashMap<Vertex, Double> weights = new HashMap<Vertex, Double>();
+        HashMap<Vertex, Edge> via = new HashMap<Vertex, Edge>();
+        HashSet<Vertex> done = new HashSet<Vertex>();
+        weights.put(vertex, 0.0);
+        while (true) {
+            Vertex u = null;
+            for (Map.Entry<Vertex, Double> entry : weights.entrySet()) {
+                if (!done.contains(entry.getKey())
+                        && (u == null || entry.getValue() < weights.get(u))) {
+                    u = entry.getKey();
+                }
+            }
+            if (u == null) {
+                break;
+            }
+            done.add(u);
+            double weight = weights.get(u);
+            rank = hierarchy.getRank(u);
+            if (rank != -1) {
+                ArrayList<Edge> edges = new ArrayList<Edge>();
+                for (Vertex v = u; v != vertex;) {
+                    Edge e = via.get(v);
+                    edges.add(e);
+                    v = forward ? e.getFromVertex() : e.getToVertex();
+                }
+                if (forward) {
+                    Collections.reverse(edges);
+                }
+                access.put(rank, new Access(weight, edges));
+                continue;
+            }
+            for (Edge e : extra) {
+                if ((forward ? e.getFromVertex() : e.getToVertex()) != u) {
+                    continue;
+                }
+                Vertex v = forward ? e.getToVertex() : e.getFromVertex();
+                TraverseResult result = e.traverse(state, options);
+                if (result == null || done.contains(v)) {
+                    continue;
+                }
+                Double old = weights.get(v);
+                if (old == null || weight + result.weight < old) {
+                    weights.put(v, weight + result.weight);
+                    via.put(v, e);
+                }
+            }
+        }
+        return access;
+    }
+
+    /* the path along the edges, from the start time forward, or back from the end time */
+    private GraphPath makePath(List<Edge> edges, State init, TraverseOptions options) {
+        GraphPath path = new GraphPath();
+        State state = init;
+        double weight = 0;
+        if (options.isArriveBy()) {
+            SPTVertex tov = new SPTVertex(edges.get(edges.size() - 1).getToVertex(), state, 0,
+                    options);
+            path.vertices.add(tov);
+            for (int i = edges.size() - 1; i >= 0; --i) {
+                Edge e = edges.get(i);
+                TraverseResult result = e.traverseBack(state, options);
+                if (result == null) {
+                    return null;
+                }
+                state = result.state;
+                weight += result.weight;
+                SPTVertex fromv = new SPTVertex(e.getFromVertex(), state, weight, options);
+                path.edges.add(new SPTEdge(fromv, tov, e));
+                path.vertices.add(fromv);
+                tov = fromv;
+            }
+            if (state.getTime() < options.worstTime) {
+                return null;
+            }
+            Collections.reverse(path.edges);
+            Collections.reverse(path.vertices);
+        } else {
+            SPTVertex fromv = new SPTVertex(edges.get(0).getFromVertex(), state, 0, options);
+            path.vertices.add(fromv);
+            for (Edge e : edges) {
+                TraverseResult result = e.traverse(state, options);
+                if (result == null) {
+                    return null;
+                }
+                state = result.state;
+                weight += result.weight;
+                SPTVertex tov = new SPTVertex(e.getToVertex(), state, weight, options);
+                path.edges.add(new SPTEdge(fromv, tov, e));
+                path.vertices.add(tov);
+                fromv = tov;
+            }
+            if (state.getTime() > options.worstTime) {
+                return null;
+            }
+        }
+        return path;
+    }
+}
@@ -0,0 +1,720 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.contraction;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.opentripplanner.routing.core.Edge;
+import org.opentripplanner.routing.core.Graph;
+import org.opentripplanner.routing.core.GraphVertex;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.TraverseOptions;
+import org.opentripplanner.routing.core.Vertex;
+import org.opentripplanner.routing.edgetype.EndpointVertex;
+import org.opentripplanner.routing.edgetype.FreeEdge;
+import org.opentripplanner.routing.edgetype.OutEdge;
+import org.opentripplanner.routing.edgetype.PlainStreetEdge;
+import org.opentripplanner.routing.edgetype.StreetVertex;
+import org.opentripplanner.routing.edgetype.TurnEdge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A contraction hierarchy over the streets of a graph which can be given new street weights
+ * quickly, roughly as described in "Customizable Contraction Hierarchies" by Dibbelt, Strasser
+ * and Wagner.
+ *
+ * Unlike {@link ContractionHierarchy}, the order in which vertices are contracted does not
+ * depend on the weights: it is a nested dissection of the street network by its geometry, and
+ * every vertex is contracted with a shortcut between each pair of its remaining neighbours, with
+ * no witness searches. This is done once. Each weighting then only needs a customization, which
+ * computes the weights of the shortcuts bottom-up, in parallel, and yields a
+ * {@link ContractionMetric} that finds exact shortest paths.
+ *
+ * Only streets are covered: street and endpoint vertices, and the turn, out, free and plain
+ * street edges between them.
+ */
+public class CustomizableContractionHierarchy implements Serializable {
+    private static Logger _log = LoggerFactory.getLogger(CustomizableContractionHierarchy.class);
+
+    private static final long serialVersionUID = 1L;
+
+    /* parts of the dissection no bigger than this are ordered as they come */
+    private static final int LEAF_SIZE = 8;
+
+    /* levels with fewer vertices than this are customized without the thread pool */
+    private static final int MIN_PARALLEL = 256;
+
+    /* the vertices, in the order they are contracted; a vertex's rank is its index here */
+    Vertex[] vertices;
+
+    private HashMap<Vertex, Integer> ranks;
+
+    /* the arcs to each vertex's higher-ranked neighbours, ordered by head */
+    int[] firstArc;
+
+    int[] arcHead;
+
+    /* each vertex's lower-ranked neighbours in rank order, and the arcs from them */
+    int[] firstLowerArc;
+
+    int[] lowerTail;
+
+    int[] lowerArc;
+
+    /* the edges of the graph along each arc, upward (from tail to head) and downward */
+    Edge[][] upEdges;
+
+    Edge[][] downEdges;
+
+    /* the elimination tree: each vertex's lowest-ranked higher neighbour, or -1 */
+    int[] parent;
+
+    /* the vertices by level, each level only having arcs from lower levels */
+    private int[] levelVertices;
+
+    private int[] firstOfLevel;
+
+    private transient volatile ThreadLocal<Workspace> workspaces;
+
+    /* the threads customizations share, which stop when idle */
+    private transient ThreadPoolExecutor threadPool;
+
+    /**
+     * The labels of a search over the hierarchy, kept between searches by the same thread;
+     * a label is only valid if it was set in the current search.
+     */
+    static class Workspace {
+        int search = 0;
+
+        int[] forwardSearch, backwardSearch;
+
+        double[] forward, backward;
+
+        int[] forwardArc, backwardArc;
+
+        int[] forwardFrom, backwardFrom;
+
+        Workspace(int n) {
+            forwardSearch = new int[n];
+            backwardSearch = new int[n];
+            forward = new double[n];
+            backward = new double[n];
+            forwardArc = new int[n];
+            backwardArc = new int[n];
+            forwardFrom = new int[n];
+            backwardFrom = new int[n];
+        }
+
+        int nextSearch() {
+            if (search == Integer.MAX_VALUE) {
+                Arrays.fill(forwardSearch, 0);
+                Arrays.fill(backwardSearch, 0);
+                search = 0;
+            }
+            return ++search;
+        }
+    }
+
+    public CustomizableContractionHierarchy(Graph graph) {
+        long start = System.currentTimeMillis();
+
+        /* number the street vertices, and find their neighbours either way */
+        ArrayList<Vertex> streetVertices = new ArrayList<Vertex>();
+        HashMap<Vertex, Integer> ids = new HashMap<Vertex, Integer>();
+        for (GraphVertex gv : graph.getVertices()) {
+            if (isStreet(gv.vertex)) {
+                ids.put(gv.vertex, streetVertices.size());
+                streetVertices.add(gv.vertex);
+            }
+        }
+        int n = streetVertices.size();
+        ArrayList<Edge> edges = new ArrayList<Edge>();
+        ArrayList<HashSet<Integer>> neighborSets = new ArrayList<HashSet<Integer>>(n);
+        for (int i = 0; i < n; ++i) {
+            neighborSets.add(new HashSet<Integer>());
+        }
+        for (Vertex v : streetVertices) {
+            int from = ids.get(v);
+            for (Edge e : graph.getOutgoing(v)) {
+                Integer to = ids.get(e.getToVertex());
+                if (to == null || to == from || !isStreet(e)) {
+                    continue;
+                }
+                edges.add(e);
+                neighborSets.get(from).add(to);
+                neighborSets.get(to).add(from);
+            }
+        }
+        int[][] neighbors = new int[n][];
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        for (int i = 0; i < n; ++i) {
+            neighbors[i] = toArray(neighborSets.get(i));
+            xs[i] = streetVertices.get(i).getX();
+            ys[i] = streetVertices.get(i).getY();
+        }
+        neighborSets = null;
+
+        /* order the vertices */
+        int[] order = new Dissection(neighbors, xs, ys).order();
+        int[] rankOf = new int[n];
+        vertices = new Vertex[n];
+        ranks = new HashMap<Vertex, Integer>();
+        for (int r = 0; r < n; ++r) {
+            rankOf[order[r]] = r;
+            vertices[r] = streetVertices.get(order[r]);
+            ranks.put(vertices[r], r);
+        }
+
+        /*
+         * contract them: the higher neighbours of a vertex become neighbours of each other, which
+         * it is enough to do for the lowest of them, since it passes the rest on in turn
+         */
+        int[][] upper = new int[n][];
+        for (int r = 0; r < n; ++r) {
+            int[] adjacent = neighbors[order[r]];
+            int count = 0;
+            int[] higher = new int[adjacent.length];
+            for (int id : adjacent) {
+                if (rankOf[id] > r) {
+                    higher[count++] = rankOf[id];
+                }
+            }
+            upper[r] = Arrays.copyOf(higher, count);
+            Arrays.sort(upper[r]);
+        }
+        neighbors = null;
+        parent = new int[n];
+        for (int r = 0; r < n; ++r) {
+            if (upper[r].length == 0) {
+                parent[r] = -1;
+                continue;
+            }
+            int p = upper[r][0];
+            parent[r] = p;
+            upper[p] = merge(upper[p], upper[r], 1);
+        }
+
+        /* the arcs, up and down */
+        firstArc = new int[n + 1];
+        for (int r = 0; r < n; ++r) {
+            firstArc[r + 1] = firstArc[r] + upper[r].length;
+        }
+        int nArcs = firstArc[n];
+        arcHead = new int[nArcs];
+        int[] lowerCount = new int[n + 1];
+        for (int r = 0; r < n; ++r) {
+            System.arraycopy(upper[r], 0, arcHead, firstArc[r], upper[r].length);
+            for (int head : upper[r]) {
+                lowerCount[head + 1]++;
+            }
+        }
+        upper = null;
+        firstLowerArc = new int[n + 1];
+        for (int r = 0; r < n; ++r) {
+            firstLowerArc[r + 1] = firstLowerArc[r] + lowerCount[r + 1];
+        }
+        lowerTail = new int[nArcs];
+        lowerArc = new int[nArcs];
+        int[] next = Arrays.copyOf(firstLowerArc, n);
+        for (int r = 0; r < n; ++r) {
+            for (int a = firstArc[r]; a < firstArc[r + 1]; ++a) {
+                int head = arcHead[a];
+                lowerTail[next[head]] = r;
+                lowerArc[next[head]] = a;
+                next[head]++;
+            }
+        }
+
+        /* the edges along the arcs */
+        upEdges = new Edge[nArcs][];
+        downEdges = new Edge[nArcs][];
+        for (Edge e : edges) {
+            int from = rankOf[ids.get(e.getFromVertex())];
+            int to = rankOf[ids.get(e.getToVertex())];
+            if (from < to) {
+                int a = getArc(from, to);
+                upEdges[a] = append(upEdges[a], e);
+            } else {
+                int a = getArc(to, from);
+                downEdges[a] = append(downEdges[a], e);
+            }
+        }
+
+        /* the levels: a vertex is one above the highest of its lower neighbours */
+        int[] level = new int[n];
+        int nLevels = 0;
+        for (int r = 0; r < n; ++r) {
+            for (int i = firstLowerArc[r]; i < firstLowerArc[r + 1]; ++i) {
+                level[r] = Math.max(level[r], level[lowerTail[i]] + 1);
+            }
+            nLevels = Math.max(nLevels, level[r] + 1);
+        }
+        firstOfLevel = new int[nLevels + 1];
+        for (int r = 0; r < n; ++r) {
+            firstOfLevel[level[r] + 1]++;
+        }
+        for (int l = 0; l < nLevels; ++l) {
+            firstOfLevel[l + 1] += firstOfLevel[l];
+        }
+        levelVertices = new int[n];
+        next = Arrays.copyOf(firstOfLevel, nLevels);
+        for (int r = 0; r < n; ++r) {
+            levelVertices[next[level[r]]++] = r;
+        }
+
+        _log.debug("ordered and contracted " + n + " street vertices with " + nArcs + " arcs in "
+                + nLevels + " levels in " + (System.currentTimeMillis() - start) / 1000.0 + "s");
+    }
+
+    /**
+     * Streets are what is covered: the other vertices and edges are left to other searches.
+     */
+    private static boolean isStreet(Vertex v) {
+        return v instanceof StreetVertex || v instanceof EndpointVertex;
+    }
+
+    private static boolean isStreet(Edge e) {
+        return e instanceof TurnEdge || e instanceof OutEdge || e instanceof FreeEdge
+                || e instanceof PlainStreetEdge;
+    }
+
+    public int getNumVertices() {
+        return vertices.length;
+    }
+
+    public int getNumArcs() {
+        return arcHead.length;
+    }
+
+    /**
+     * @return the rank of the vertex, or -1 if it is not a street vertex of this hierarchy
+     */
+    public int getRank(Vertex v) {
+        Integer rank = ranks.get(v);
+        return rank == null ? -1 : rank;
+    }
+
+    Workspace getWorkspace() {
+        ThreadLocal<Workspace> local = workspaces;
+        if (local == null) {
+            synchronized (this) {
+                if (workspaces == null) {
+                    workspaces = new ThreadLocal<Workspace>();
+                }
+                local = workspaces;
+            }
+        }
+        Workspace workspace = local.get();
+        if (workspace == null) {
+            workspace = new Workspace(vertices.length);
+            local.set(workspace);
+        }
+        return workspace;
+    }
+
+    private synchronized ThreadPoolExecutor getThreadPool() {
+        if (threadPool == null) {
+            int nThreads = Runtime.getRuntime().availableProcessors();
+            threadPool = new ThreadPoolExecutor(nThreads, nThreads, 10, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "customization");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            threadPool.allowCoreThreadTimeOut(true);
+        }
+        return threadPool;
+    }
+
+    /**
+     * @return the arc between the vertices of the given ranks, the first being the lower, or -1
+     */
+    int getArc(int tail, int head) {
+        int i = Arrays.binarySearch(arcHead, firstArc[tail], firstArc[tail + 1], head);
+        return i < 0 ? -1 : i;
+    }
+
+    /**
+     * Computes the weights of every arc for the given options. Only the street weighting of the
+     * options counts (see {@link StreetWeighting}); street closures are not applied.
+     */
+    public ContractionMetric customize(TraverseOptions options) {
+        long start = System.currentTimeMillis();
+        StreetWeighting weighting = new StreetWeighting(options);
+        final TraverseOptions streetOptions = weighting.getOptions();
+        final ContractionMetric metric = new ContractionMetric(this, weighting, getNumArcs());
+
+        ThreadPoolExecutor threadPool = getThreadPool();
+        int nThreads = threadPool.getCorePoolSize();
+        /* the arcs which are edges */
+        final int nArcs = getNumArcs();
+        final int chunk = Math.max(MIN_PARALLEL, nArcs / (nThreads * 4) + 1);
+        ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int first = 0; first < nArcs; first += chunk) {
+            final int from = first;
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    State state = new State(0);
+                    for (int a = from; a < Math.min(from + chunk, nArcs); ++a) {
+                        metric.setEdges(a, upEdges[a], downEdges[a], state, streetOptions);
+                    }
+                    return null;
+                }
+            });
+        }
+        invokeAll(threadPool, tasks);
+
+        /*
+         * the shortcuts, a level at a time: the arcs from a vertex only depend on arcs from
+         * vertices of lower levels
+         */
+        for (int l = 0; l < firstOfLevel.length - 1; ++l) {
+            final int first = firstOfLevel[l];
+            final int end = firstOfLevel[l + 1];
+            if (end - first < MIN_PARALLEL) {
+                for (int i = first; i < end; ++i) {
+                    customizeVertex(levelVertices[i], metric);
+                }
+                continue;
+            }
+            int levelChunk = Math.max(MIN_PARALLEL / 4, (end - first) / (nThreads * 4) + 1);
+            tasks.clear();
+            for (int i = first; i < end; i += levelChunk) {
+                final int from = i;
+                final int to = Math.min(i + levelChunk, end);
+                tasks.add(new Callable<Object>() {
+                    public Object call() {
+                        for (int j = from; j < to; ++j) {
+                            customizeVertex(levelVertices[j], metric);
+                        }
+                        return null;
+                    }
+                });
+            }
+            invokeAll(threadPool, tasks);
+        }
+        _log.debug("customized for " + weighting + " in "
+                + (System.currentTimeMillis() - start) / 1000.0 + "s");
+        return metric;
+    }
+
+    private static void invokeAll(ThreadPoolExecutor threadPool, List<Callable<Object>> tasks) {
+        try {
+            for (Future<Object> future : threadPool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Improves each arc from a vertex y to a higher vertex z by the paths through the lower
+     * triangles: the vertices x below both that are neighbours of both.
+     */
+    private void customizeVertex(int y, ContractionMetric metric) {
+        for (int c = firstArc[y]; c < firstArc[y + 1]; ++c) {
+            int z = arcHead[c];
+            int i = firstLowerArc[y], iEnd = firstLowerArc[y + 1];
+            int j = firstLowerArc[z], jEnd = firstLowerArc[z + 1];
+            while (i < iEnd && j < jEnd) {
+                int xi = lowerTail[i], xj = lowerTail[j];
+                if (xi < xj) {
+                    ++i;
+                } else if (xj < xi) {
+                    ++j;
+                } else {
+                    metric.relax(c, xi, lowerArc[i], lowerArc[j]);
+                    ++i;
+                    ++j;
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges the second sorted array, from the given index, into the first.
+     */
+    private static int[] merge(int[] a, int[] b, int from) {
+        int[] out = new int[a.length + b.length - from];
+        int i = 0, j = from, k = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || (i < a.length && a[i] < b[j])) {
+                out[k++] = a[i++];
+            } else if (i == a.length || b[j] < a[i]) {
+                out[k++] = b[j++];
+            } else {
+                out[k++] = a[i++];
+                ++j;
+            }
+        }
+        return k == out.length ? out : Arrays.copyOf(out, k);
+    }
+
+    private static int[] toArray(HashSet<Integer> set) {
+        int[] out = new int[set.size()];
+        int i = 0;
+        for (int value : set) {
+            out[i++] = value;
+        }
+        return out;
+    }
+
+    private static Edge[] append(Edge[] edges, Edge e) {
+        if (edges == null) {
+            return new Edge[] { e };
+        }
+        Edge[] out = Arrays.copyOf(edges, edges.length + 1);
+        out[edges.length] = e;
+        return out;
+    }
+
+    /**
+     * Orders vertices by recursive bisection: each part is split near the median of its longer
+     * side, and the fewest vertices separating the halves are ordered after both of them.
+     */
+    private static class Dissection {
+        private int[][] neighbors;
+
+        private double[] xs;
+
+        private double[] ys;
+
+        /* the part each vertex is in, or -1 once it is ordered */
+        private int[] part;
+
+        private int nextPart = 0;
+
+        private int[] order;
+
+        private int nOrdered = 0;
+
+        Dissection(int[][] neighbors, double[] xs, double[] ys) {
+            this.neighbors = neighbors;
+            this.xs = xs;
+            this.ys = ys;
+            part = new int[neighbors.length];
+            order = new int[neighbors.length];
+        }
+
+        int[] order() {
+            Integer[] all = new Integer[neighbors.length];
+            for (int i = 0; i < all.length; ++i) {
+                all[i] = i;
+            }
+            dissect(all);
+            return order;
+        }
+
+        private void dissect(Integer[] vertices) {
+            if (vertices.length <= LEAF_SIZE) {
+                for (int v : vertices) {
+                    place(v);
+                }
+                return;
+            }
+            double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+            double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+            for (int v : vertices) {
+                minX = Math.min(minX, xs[v]);
+                maxX = Math.max(maxX, xs[v]);
+                minY = Math.min(minY, ys[v]);
+                maxY = Math.max(maxY, ys[v]);
+            }
+            final double[] coordinates = maxX - minX > maxY - minY ? xs : ys;
+            Arrays.sort(vertices, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return Double.compare(coordinates[a], coordinates[b]);
+                }
+            });
+
+            /* split where the coordinate changes, so that vertices in one place stay together */
+            int half = vertices.length / 2;
+            for (int d = 0; d < vertices.length / 2; ++d) {
+                if (half - d > 0
+                        && coordinates[vertices[half - d - 1]] != coordinates[vertices[half - d]]) {
+                    half -= d;
+                    break;
+                }
+                if (half + d < vertices.length
+                        && coordinates[vertices[half + d - 1]] != coordinates[vertices[half + d]]) {
+                    half += d;
+                    break;
+                }
+            }
+            int labelA = nextPart++, labelB = nextPart++;
+            for (int i = 0; i < vertices.length; ++i) {
+                part[vertices[i]] = i < half ? labelA : labelB;
+            }
+            ArrayList<Integer> boundary = new ArrayList<Integer>();
+            for (int i = 0; i < half; ++i) {
+                for (int w : neighbors[vertices[i]]) {
+                    if (part[w] == labelB) {
+                        boundary.add(vertices[i]);
+                        break;
+                    }
+                }
+            }
+            List<Integer> separator = getSeparator(boundary, labelB);
+            for (int v : separator) {
+                part[v] = -1;
+            }
+            dissect(remaining(vertices, 0, half, labelA));
+            dissect(remaining(vertices, half, vertices.length, labelB));
+            for (int v : separator) {
+                place(v);
+            }
+        }
+
+        /**
+         * Finds the fewest vertices covering every edge between the halves: by Konig's theorem,
+         * those of a maximum matching, each taken from the side the alternating paths from the
+         * unmatched vertices of the first half do not reach.
+         */
+        private List<Integer> getSeparator(List<Integer> boundaryA, int labelB) {
+            int nA = boundaryA.size();
+            HashMap<Integer, Integer> indexB = new HashMap<Integer, Integer>();
+            ArrayList<Integer> boundaryB = new ArrayList<Integer>();
+            int[][] adjacent = new int[nA][];
+            for (int i = 0; i < nA; ++i) {
+                int[] across = new int[neighbors[boundaryA.get(i)].length];
+                int count = 0;
+                for (int w : neighbors[boundaryA.get(i)]) {
+                    if (part[w] != labelB) {
+                        continue;
+                    }
+                    Integer j = indexB.get(w);
+                    if (j == null) {
+                        j = boundaryB.size();
+                        indexB.put(w, j);
+                        boundaryB.add(w);
+                    }
+                    across[count++] = j;
+                }
+                adjacent[i] = Arrays.copyOf(across, count);
+            }
+            int nB = boundaryB.size();
+
+            /* the matching, grown along augmenting paths found breadth first */
+            int[] matchA = new int[nA];
+            int[] matchB = new int[nB];
+            Arrays.fill(matchA, -1);
+            Arrays.fill(matchB, -1);
+            int[] from = new int[nB];
+            int[] seenA = new int[nA];
+            int[] seenB = new int[nB];
+            int[] queue = new int[nA];
+            for (int s = 0; s < nA; ++s) {
+                int mark = s + 1;
+                int head = 0, tail = 0;
+                queue[tail++] = s;
+                seenA[s] = mark;
+                search: while (head < tail) {
+                    int a = queue[head++];
+                    for (int b : adjacent[a]) {
+                        if (seenB[b] == mark) {
+                            continue;
+                        }
+                        seenB[b] = mark;
+                        from[b] = a;
+                        if (matchB[b] == -1) {
+                            while (b != -1) {
+                                int matchedA = from[b];
+                                int next = matchA[matchedA];
+                                matchA[matchedA] = b;
+                                matchB[b] = matchedA;
+                                b = next;
+                            }
+                            break search;
+                        }
+                        if (seenA[matchB[b]] != mark) {
+                            seenA[matchB[b]] = mark;
+                            queue[tail++] = matchB[b];
+                        }
+                    }
+                }
+            }
+
+            /* the alternating paths from the unmatched vertices */
+            int mark = nA + 1;
+            int head = 0, tail = 0;
+            for (int a = 0; a < nA; ++a) {
+                if (matchA[a] == -1) {
+                    seenA[a] = mark;
+                    queue[tail++] = a;
+                }
+            }
+            while (head < tail) {
+                int a = queue[head++];
+                for (int b : adjacent[a]) {
+                    if (seenB[b] == mark) {
+                        continue;
+                    }
+                    seenB[b] = mark;
+                    int next = matchB[b];
+                    if (next != -1 && seenA[next] != mark) {
+                        seenA[next] = mark;
+                        queue[tail++] = next;
+                    }
+                }
+            }
+            ArrayList<Integer> separator = new ArrayList<Integer>();
+            for (int a = 0; a < nA; ++a) {
+                if (seenA[a] != mark) {
+                    separator.add(boundaryA.get(a));
+                }
+            }
+            for (int b = 0; b < nB; ++b) {
+                if (seenB[b] == mark) {
+                    separator.add(boundaryB.get(b));
+                }
+            }
+            return separator;
+        }
+
+        private Integer[] remaining(Integer[] vertices, int from, int to, int label) {
+            ArrayList<Integer> out = new ArrayList<Integer>(to - from);
+            for (int i = from; i < to; ++i) {
+                if (part[vertices[i]] == label) {
+                    out.add(vertices[i]);
+                }
+            }
+            return out.toArray(new Integer[out.size()]);
+        }
+
+        private void place(int v) {
+            part[v] = -1;
+            order[nOrdered++] = v;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.contraction;
+
+import java.io.Serializable;
+
+import org.opentripplanner.routing.core.OptimizeType;
+import org.opentripplanner.routing.core.TraverseMode;
+import org.opentripplanner.routing.core.TraverseModeSet;
+import org.opentripplanner.routing.core.TraverseOptions;
+
+/**
+ * The parts of a {@link TraverseOptions} that decide the weight of a street edge: two options
+ * with the same weighting cost every street, turn and free edge the same, so a hierarchy
+ * customized for one can answer street searches for the other.
+ *
+ * It is also a bean, for configuring the weightings to customize for: by default it is the
+ * standard walking weighting, and the speed follows the mode unless it is set.
+ */
+public class StreetWeighting implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private boolean walk;
+
+    private boolean bicycle;
+
+    private boolean car;
+
+    private OptimizeType optimizeFor;
+
+    private double speed;
+
+    private double walkReluctance;
+
+    private boolean wheelchairAccessible;
+
+    /* only applies to wheelchair users, so it is not compared otherwise */
+    private double maxSlope;
+
+    private transient boolean speedSet;
+
+    /*
+     * The values the free parameters are rounded to by quantize(): speeds relative to the
+     * default for the modes, walk reluctances, and slope limits. Each includes the default.
+     */
+    private static final double[] SPEED_FACTORS = { 0.5, 0.75, 1, 1.25, 1.5, 2 };
+
+    private static final double[] WALK_RELUCTANCES;
+
+    private static final double[] MAX_SLOPES;
+
+    static {
+        TraverseOptions defaults = new TraverseOptions();
+        WALK_RELUCTANCES = new double[] { 1, defaults.walkReluctance, 1.5, 2, 3, 5, 10 };
+        MAX_SLOPES = new double[] { 0, 0.04, 0.06, defaults.maxSlope, 0.12, 0.2, Double.MAX_VALUE };
+    }
+
+    public StreetWeighting() {
+        this(new TraverseOptions(new TraverseModeSet(TraverseMode.WALK)));
+    }
+
+    public StreetWeighting(TraverseOptions options) {
+        walk = options.modes.getWalk();
+        bicycle = options.modes.getBicycle();
+        car = options.modes.getCar();
+        optimizeFor = options.optimizeFor;
+        speed = options.speed;
+        walkReluctance = options.walkReluctance;
+        wheelchairAccessible = options.wheelchairAccessible;
+        maxSlope = options.maxSlope;
+    }
+
+    /**
+     * Sets the only mode; unless the speed is set, it becomes the default for the mode.
+     */
+    public void setMode(TraverseMode mode) {
+        TraverseModeSet modes = new TraverseModeSet(mode);
+        walk = modes.getWalk();
+        bicycle = modes.getBicycle();
+        car = modes.getCar();
+        if (!speedSet) {
+            speed = new TraverseOptions(modes).speed;
+        }
+    }
+
+    public void setOptimizeFor(OptimizeType optimizeFor) {
+        this.optimizeFor = optimizeFor;
+    }
+
+    public void setSpeed(double speed) {
+        this.speed = speed;
+        speedSet = true;
+    }
+
+    public void setWalkReluctance(double walkReluctance) {
+        this.walkReluctance = walkReluctance;
+    }
+
+    public void setWheelchairAccessible(boolean wheelchairAccessible) {
+        this.wheelchairAccessible = wheelchairAccessible;
+    }
+
+    public void setMaxSlope(double maxSlope) {
+        this.maxSlope = maxSlope;
+    }
+
+    /**
+     * @return this weighting with its speed, walk reluctance and slope limit rounded to one of a
+     *         few values each, so that there are only so many weightings for the same modes,
+     *         optimization and wheelchair setting. The slope limit is rounded down, so that the
+     *         rounded weighting allows no street that this one does not.
+     */
+    public StreetWeighting quantize() {
+        TraverseOptions options = getOptions();
+        double defaultSpeed = new TraverseOptions(options.modes).speed;
+        options.speed = defaultSpeed * nearest(SPEED_FACTORS, speed / defaultSpeed);
+        options.walkReluctance = nearest(WALK_RELUCTANCES, walkReluctance);
+        if (wheelchairAccessible) {
+            int i = MAX_SLOPES.length - 1;
+            while (i > 0 && MAX_SLOPES[i] > maxSlope) {
+                --i;
+            }
+            options.maxSlope = MAX_SLOPES[i];
+        }
+        return new StreetWeighting(options);
+    }
+
+    /* the value nearest x by ratio */
+    private static double nearest(double[] values, double x) {
+        double best = values[0];
+        for (double value : values) {
+            if (Math.abs(Math.log(value / x)) < Math.abs(Math.log(best / x))) {
+                best = value;
+            }
+        }
+        return best;
+    }
+
+    private double getEffectiveMaxSlope() {
+        return wheelchairAccessible ? maxSlope : 0;
+    }
+
+    /**
+     * @return street-only options with this weighting
+     */
+    public TraverseOptions getOptions() {
+        TraverseModeSet modes = new TraverseModeSet();
+        modes.setWalk(walk);
+        modes.setBicycle(bicycle);
+        modes.setCar(car);
+        TraverseOptions options = new TraverseOptions(modes);
+        options.optimizeFor = optimizeFor;
+        options.speed = speed;
+        options.walkReluctance = walkReluctance;
+        options.wheelchairAccessible = wheelchairAccessible;
+        options.maxSlope = maxSlope;
+        return options;
+    }
+
+    public boolean equals(Object other) {
+        if (other instanceof StreetWeighting) {
+            StreetWeighting sw = (StreetWeighting) other;
+            return sw.walk == walk && sw.bicycle == bicycle && sw.car == car
+                    && sw.optimizeFor == optimizeFor && sw.speed == speed
+                    && sw.walkReluctance == walkReluctance
+                    && sw.wheelchairAccessible == wheelchairAccessible
+                    && sw.getEffectiveMaxSlope() == getEffectiveMaxSlope();
+        }
+        return false;
+    }
+
+    public int hashCode() {
+        return (walk ? 1 : 0) + (bicycle ? 2 : 0) + (car ? 4 : 0) + optimizeFor.hashCode()
+                + Double.valueOf(speed).hashCode() + Double.valueOf(walkReluctance).hashCode()
+                + (wheelchairAccessible ? 731980 : 0)
+                + Double.valueOf(getEffectiveMaxSlope()).hashCode();
+    }
+
+    public String toString() {
+        return "StreetWeighting(" + (walk ? "walk " : "") + (bicycle ? "bicycle " : "")
+                + (car ? "car " : "") + optimizeFor + " speed " + speed + " reluctance "
+                + walkReluctance + (wheelchairAccessible ? " wheelchair " + maxSlope : "") + ")";
+    }
+}
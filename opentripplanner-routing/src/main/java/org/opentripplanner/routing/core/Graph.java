@@ -152,7 +152,7 @@ public class Graph implements Serializable {
         for (Edge e: gv.getIncoming()) {
             GraphVertex source = vertices.get(e.getFromVertex().getLabel());
             if (source != null) {
-                source.removeIncoming(e);
+                source.removeOutgoing(e);
             }
         }
     }
@@ -22,6 +22,9 @@ public class State {
     private long _time;
     private int trip = -1;
     public AgencyAndId tripId = null;
+
+    /** The code of tripId in the graph's {@link TransitDictionary}, or -1 */
+    public int tripCode = -1;
     public double walkDistance = 0;
 
     public String zone = null;
@@ -75,6 +78,7 @@ public class State {
 
     public State clone() {
         State ret = new State(_time, trip, tripId, walkDistance, route, zone, fareContext, numBoardings);
+        ret.tripCode = tripCode;
         return ret;
     }
 
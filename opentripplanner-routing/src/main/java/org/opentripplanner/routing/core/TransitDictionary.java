@@ -0,0 +1,435 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.core;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Set;
+
+import org.onebusaway.gtfs.model.Agency;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Route;
+import org.onebusaway.gtfs.model.Trip;
+import org.opentripplanner.gtfs.GtfsLibrary;
+import org.opentripplanner.routing.edgetype.TimetableSnapshot;
+
+/**
+ * Numbers the routes and trips of a graph, so that routing can refer to them by small integer
+ * codes -- indexing arrays and bitsets -- rather than by hashing their ids. Codes are given out
+ * while the graph is built; the tables they index are not changed afterwards, so lookups by code
+ * need no locking. Lookups by value, and the slim entities below, use lazily filled indices and
+ * caches, which are guarded by the dictionary's lock; a deserialized dictionary builds its
+ * indices as it is read.
+ * 
+ * The dictionary is also the runtime transit model: it keeps the ids and display fields of each
+ * agency, route and trip in int tables over a shared string table, rather than the GTFS
+ * entities themselves, so that a serialized graph does not carry the entity graph of every trip.
+ * Where an entity is still wanted, as for an itinerary, {@link #getTrip(int)} and
+ * {@link #getRoute(int)} build a slim copy holding those fields.
+ */
+public class TransitDictionary implements Serializable {
+
+    private static final long serialVersionUID = 2L;
+
+    private ArrayList<String> strings = new ArrayList<String>();
+
+    /* the agencies, by id, with the string codes of their name, url and timezone */
+    private ArrayList<String> agencyIds = new ArrayList<String>();
+
+    private int[] agencyNames = new int[4];
+
+    private int[] agencyUrls = new int[4];
+
+    private int[] agencyTimezones = new int[4];
+
+    /* the routes, by id, with their agency code, the string codes of their names, and type */
+    private ArrayList<AgencyAndId> routeIds = new ArrayList<AgencyAndId>();
+
+    private int[] routeAgencies = new int[16];
+
+    private int[] routeShortNames = new int[16];
+
+    private int[] routeLongNames = new int[16];
+
+    private int[] routeTypes = new int[16];
+
+    private ArrayList<AgencyAndId> serviceIds = new ArrayList<AgencyAndId>();
+
+    /*
+     * the trips, by id, with their route and service codes, the string codes of their headsign,
+     * short name and direction, and their accessibility
+     */
+    private ArrayList<AgencyAndId> tripIds = new ArrayList<AgencyAndId>();
+
+    private int[] tripRoutes = new int[16];
+
+    private int[] tripServices = new int[16];
+
+    private int[] tripHeadsigns = new int[16];
+
+    private int[] tripShortNames = new int[16];
+
+    private int[] tripDirections = new int[16];
+
+    private int[] tripWheelchairAccessible = new int[16];
+
+    /* indices by value, rebuilt when read or when first needed; guarded by this */
+    private transient HashMap<String, Integer> stringCodes;
+
+    private transient HashMap<String, Integer> agencyCodes;
+
+    private transient HashMap<AgencyAndId, Integer> routeCodes;
+
+    private transient HashMap<AgencyAndId, Integer> serviceCodes;
+
+    private transient HashMap<AgencyAndId, Integer> tripCodes;
+
+    /* the real-time timetables, replaced whole on each batch of updates */
+    private transient volatile TimetableSnapshot timetableSnapshot;
+
+    /* slim entities built from the tables on demand; guarded by this */
+    private transient Agency[] agencies;
+
+    private transient Route[] routes;
+
+    private transient Trip[] trips;
+
+    private void index() {
+        if (stringCodes != null) {
+            return;
+        }
+        stringCodes = new HashMap<String, Integer>();
+        for (int code = 0; code < strings.size(); ++code) {
+            stringCodes.put(strings.get(code), code);
+        }
+        agencyCodes = new HashMap<String, Integer>();
+        for (int code = 0; code < agencyIds.size(); ++code) {
+            agencyCodes.put(agencyIds.get(code), code);
+        }
+        routeCodes = new HashMap<AgencyAndId, Integer>();
+        for (int code = 0; code < routeIds.size(); ++code) {
+            routeCodes.put(routeIds.get(code), code);
+        }
+        serviceCodes = new HashMap<AgencyAndId, Integer>();
+        for (int code = 0; code < serviceIds.size(); ++code) {
+            serviceCodes.put(serviceIds.get(code), code);
+        }
+        tripCodes = new HashMap<AgencyAndId, Integer>();
+        for (int code = 0; code < tripIds.size(); ++code) {
+            tripCodes.put(tripIds.get(code), code);
+        }
+    }
+
+    /**
+     * @return the code of the given string in the string table, adding it if absent, or -1 for
+     *         null
+     */
+    public synchronized int getStringCode(String string) {
+        if (string == null) {
+            return -1;
+        }
+        index();
+        Integer code = stringCodes.get(string);
+        if (code == null) {
+            code = strings.size();
+            strings.add(string);
+            stringCodes.put(string, code);
+        }
+        return code;
+    }
+
+    /**
+     * @return the string with the given code, or null for -1
+     */
+    public String getString(int code) {
+        return code == -1 ? null : strings.get(code);
+    }
+
+    /**
+     * @return the copy of the given string held in the string table, so that equal strings
+     *         throughout the graph are serialized once
+     */
+    public synchronized String intern(String string) {
+        return getString(getStringCode(string));
+    }
+
+    /* an id whose agency part is the table's copy */
+    private AgencyAndId intern(AgencyAndId id) {
+        if (id == null) {
+            return null;
+        }
+        return new AgencyAndId(intern(id.getAgencyId()), id.getId());
+    }
+
+    private static int[] set(int[] table, int code, int value) {
+        if (code >= table.length) {
+            table = Arrays.copyOf(table, Math.max(table.length * 2, code + 1));
+        }
+        table[code] = value;
+        return table;
+    }
+
+    private int getAgencyCode(Agency agency, String agencyId) {
+        index();
+        Integer code = agencyCodes.get(agencyId);
+        if (code == null) {
+            code = agencyIds.size();
+            agencyIds.add(intern(agencyId));
+            agencyCodes.put(agencyId, code);
+            agencyNames = set(agencyNames, code, agency == null ? -1 : getStringCode(agency
+                    .getName()));
+            agencyUrls = set(agencyUrls, code, agency == null ? -1 : getStringCode(agency.getUrl()));
+            agencyTimezones = set(agencyTimezones, code, agency == null ? -1
+                    : getStringCode(agency.getTimezone()));
+        }
+        return code;
+    }
+
+    /**
+     * @return the code of the given route, giving it one if it has none
+     */
+    public synchronized int getRouteCode(Route route) {
+        index();
+        Integer code = routeCodes.get(route.getId());
+        if (code == null) {
+            code = routeIds.size();
+            routeIds.add(intern(route.getId()));
+            routeCodes.put(route.getId(), code);
+            routeAgencies = set(routeAgencies, code, getAgencyCode(route.getAgency(), route
+                    .getId().getAgencyId()));
+            routeShortNames = set(routeShortNames, code, getStringCode(route.getShortName()));
+            routeLongNames = set(routeLongNames, code, getStringCode(route.getLongName()));
+            routeTypes = set(routeTypes, code, route.getType());
+        }
+        return code;
+    }
+
+    private int getServiceCode(AgencyAndId serviceId) {
+        if (serviceId == null) {
+            return -1;
+        }
+        Integer code = serviceCodes.get(serviceId);
+        if (code == null) {
+            code = serviceIds.size();
+            serviceIds.add(intern(serviceId));
+            serviceCodes.put(serviceId, code);
+        }
+        return code;
+    }
+
+    /**
+     * @return the code of the given trip, giving it and its route codes if they have none
+     */
+    public synchronized int getTripCode(Trip trip) {
+        index();
+        Integer code = tripCodes.get(trip.getId());
+        if (code == null) {
+            code = tripIds.size();
+            tripIds.add(intern(trip.getId()));
+            tripCodes.put(trip.getId(), code);
+            tripRoutes = set(tripRoutes, code, getRouteCode(trip.getRoute()));
+            tripServices = set(tripServices, code, getServiceCode(trip.getServiceId()));
+            tripHeadsigns = set(tripHeadsigns, code, getStringCode(trip.getTripHeadsign()));
+            tripShortNames = set(tripShortNames, code, getStringCode(trip.getTripShortName()));
+            tripDirections = set(tripDirections, code, getStringCode(trip.getDirectionId()));
+            tripWheelchairAccessible = set(tripWheelchairAccessible, code, trip
+                    .getWheelchairAccessible());
+        }
+        return code;
+    }
+
+    /**
+     * @return the code of the trip with the given id, or -1 if it has none
+     */
+    public synchronized int getTripCode(AgencyAndId tripId) {
+        index();
+        Integer code = tripCodes.get(tripId);
+        return code == null ? -1 : code;
+    }
+
+    public AgencyAndId getRouteId(int routeCode) {
+        return routeIds.get(routeCode);
+    }
+
+    /**
+     * @return the name shown for the route: its short name or, failing that, its long name
+     */
+    public String getRouteName(int routeCode) {
+        int name = routeShortNames[routeCode];
+        return getString(name != -1 ? name : routeLongNames[routeCode]);
+    }
+
+    public TraverseMode getRouteMode(int routeCode) {
+        return GtfsLibrary.getTraverseMode(routeTypes[routeCode]);
+    }
+
+    public AgencyAndId getTripId(int tripCode) {
+        return tripIds.get(tripCode);
+    }
+
+    public int getTripRouteCode(int tripCode) {
+        return tripRoutes[tripCode];
+    }
+
+    public AgencyAndId getTripServiceId(int tripCode) {
+        int service = tripServices[tripCode];
+        return service == -1 ? null : serviceIds.get(service);
+    }
+
+    public String getTripHeadsign(int tripCode) {
+        return getString(tripHeadsigns[tripCode]);
+    }
+
+    /**
+     * @return a route holding the route's id, agency, names and type
+     */
+    public synchronized Route getRoute(int routeCode) {
+        Route[] cache = routes;
+        if (cache == null || cache.length < routeIds.size()) {
+            cache = routes = cache == null ? new Route[routeIds.size()] : Arrays.copyOf(cache,
+                    routeIds.size());
+        }
+        Route route = cache[routeCode];
+        if (route == null) {
+            route = new Route();
+            route.setId(routeIds.get(routeCode));
+            route.setAgency(getAgency(routeAgencies[routeCode]));
+            route.setShortName(getString(routeShortNames[routeCode]));
+            route.setLongName(getString(routeLongNames[routeCode]));
+            route.setType(routeTypes[routeCode]);
+            cache[routeCode] = route;
+        }
+        return route;
+    }
+
+    private synchronized Agency getAgency(int agencyCode) {
+        Agency[] cache = agencies;
+        if (cache == null || cache.length < agencyIds.size()) {
+            cache = agencies = cache == null ? new Agency[agencyIds.size()] : Arrays.copyOf(
+                    cache, agencyIds.size());
+        }
+        Agency agency = cache[agencyCode];
+        if (agency == null) {
+            agency = new Agency();
+            agency.setId(agencyIds.get(agencyCode));
+            agency.setName(getString(agencyNames[agencyCode]));
+            agency.setUrl(getString(agencyUrls[agencyCode]));
+            agency.setTimezone(getString(agencyTimezones[agencyCode]));
+            cache[agencyCode] = agency;
+        }
+        return agency;
+    }
+
+    /**
+     * @return a trip holding the trip's id, route, service, headsign, short name, direction and
+     *         accessibility; equal, but not identical, to the GTFS trip it was coded from
+     */
+    public synchronized Trip getTrip(int tripCode) {
+        Trip[] cache = trips;
+        if (cache == null || cache.length < tripIds.size()) {
+            cache = trips = cache == null ? new Trip[tripIds.size()] : Arrays.copyOf(cache,
+                    tripIds.size());
+        }
+        Trip trip = cache[tripCode];
+        if (trip == null) {
+            trip = new Trip();
+            trip.setId(tripIds.get(tripCode));
+            trip.setRoute(getRoute(tripRoutes[tripCode]));
+            trip.setServiceId(getTripServiceId(tripCode));
+            trip.setTripHeadsign(getString(tripHeadsigns[tripCode]));
+            trip.setTripShortName(getString(tripShortNames[tripCode]));
+            trip.setDirectionId(getString(tripDirections[tripCode]));
+            trip.setWheelchairAccessible(tripWheelchairAccessible[tripCode]);
+            cache[tripCode] = trip;
+        }
+        return trip;
+    }
+
+    /**
+     * @return the current real-time timetables, or null if no trip has been updated
+     */
+    public TimetableSnapshot getTimetableSnapshot() {
+        return timetableSnapshot;
+    }
+
+    /**
+     * Publishes new real-time timetables; searches already running keep the snapshot they
+     * started with.
+     */
+    public void setTimetableSnapshot(TimetableSnapshot snapshot) {
+        if (snapshot != null && snapshot.isEmpty()) {
+            snapshot = null;
+        }
+        timetableSnapshot = snapshot;
+    }
+
+    public int getNumRoutes() {
+        return routeIds.size();
+    }
+
+    public int getNumTrips() {
+        return tripIds.size();
+    }
+
+    /**
+     * @return the codes of the routes matching any of the given specs
+     */
+    public BitSet getRouteCodes(Set<RouteSpec> specs) {
+        BitSet codes = new BitSet(routeIds.size());
+        for (int code = 0; code < routeIds.size(); ++code) {
+            String name = getRouteName(code);
+            if (name != null
+                    && specs.contains(new RouteSpec(routeIds.get(code).getAgencyId(), name))) {
+                codes.set(code);
+            }
+        }
+        return codes;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        index();
+    }
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        strings.trimToSize();
+        agencyIds.trimToSize();
+        routeIds.trimToSize();
+        serviceIds.trimToSize();
+        tripIds.trimToSize();
+        int nAgencies = agencyIds.size();
+        agencyNames = Arrays.copyOf(agencyNames, nAgencies);
+        agencyUrls = Arrays.copyOf(agencyUrls, nAgencies);
+        agencyTimezones = Arrays.copyOf(agencyTimezones, nAgencies);
+        int nRoutes = routeIds.size();
+        routeAgencies = Arrays.copyOf(routeAgencies, nRoutes);
+        routeShortNames = Arrays.copyOf(routeShortNames, nRoutes);
+        routeLongNames = Arrays.copyOf(routeLongNames, nRoutes);
+        routeTypes = Arrays.copyOf(routeTypes, nRoutes);
+        int nTrips = tripIds.size();
+        tripRoutes = Arrays.copyOf(tripRoutes, nTrips);
+        tripServices = Arrays.copyOf(tripServices, nTrips);
+        tripHeadsigns = Arrays.copyOf(tripHeadsigns, nTrips);
+        tripShortNames = Arrays.copyOf(tripShortNames, nTrips);
+        tripDirections = Arrays.copyOf(tripDirections, nTrips);
+        tripWheelchairAccessible = Arrays.copyOf(tripWheelchairAccessible, nTrips);
+        out.defaultWriteObject();
+    }
+}
@@ -14,6 +14,7 @@
 package org.opentripplanner.routing.core;
 
 import java.io.Serializable;
+import java.util.BitSet;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -26,6 +27,8 @@ import org.onebusaway.gtfs.model.calendar.ServiceDate;
 import org.onebusaway.gtfs.services.calendar.CalendarService;
 import org.opentripplanner.routing.core.OptimizeType;
 import org.opentripplanner.gtfs.GtfsContext;
+import org.opentripplanner.routing.edgetype.StreetClosures;
+import org.opentripplanner.routing.edgetype.TimetableSnapshot;
 
 public class TraverseOptions implements Serializable, Cloneable {
 
@@ -80,6 +83,18 @@ public class TraverseOptions implements Serializable, Cloneable {
      */
     public HashSet<RouteSpec> bannedRoutes = new HashSet<RouteSpec>();
 
+    /* bannedRoutes as route codes, resolved on first use against bannedRouteDictionary */
+    private transient BitSet bannedRouteCodes;
+
+    private transient TransitDictionary bannedRouteDictionary;
+
+    /* the real-time timetables this search sees, pinned on first use */
+    private transient TimetableSnapshot timetableSnapshot;
+
+    private transient boolean timetableSnapshotPinned;
+
+    private transient StreetClosures streetClosures;
+
     /**
      * The worst possible time (latest for depart-by and earliest for arrive-by) that 
      * we will accept when planning a trip.
@@ -141,6 +156,54 @@ public class TraverseOptions implements Serializable, Cloneable {
         return dates.contains(serviceDate);
     }
 
+    /**
+     * Checks a route against bannedRoutes. The banned routes are resolved to codes on the first
+     * call, so they must not be changed afterwards -- change a clone instead.
+     */
+    public boolean isRouteBanned(TransitDictionary dictionary, int routeCode) {
+        if (bannedRoutes == null || bannedRoutes.isEmpty()) {
+            return false;
+        }
+        if (bannedRouteDictionary != dictionary) {
+            bannedRouteCodes = dictionary.getRouteCodes(bannedRoutes);
+            bannedRouteDictionary = dictionary;
+        }
+        return bannedRouteCodes.get(routeCode);
+    }
+
+    /**
+     * Gets the real-time timetables of the given dictionary as they were when this search first
+     * asked, so that updates published while it runs do not change its view. Clones ask afresh.
+     * 
+     * @return the snapshot, or null if no trip had been updated
+     */
+    public TimetableSnapshot getTimetableSnapshot(TransitDictionary dictionary) {
+        if (!timetableSnapshotPinned) {
+            timetableSnapshot = dictionary.getTimetableSnapshot();
+            timetableSnapshotPinned = true;
+        }
+        return timetableSnapshot;
+    }
+
+    public void setStreetClosures(StreetClosures streetClosures) {
+        this.streetClosures = streetClosures;
+    }
+
+    public StreetClosures getStreetClosures() {
+        return streetClosures;
+    }
+
+    /**
+     * @return the factor the street closures put on the cost of a street, or
+     *         {@link StreetClosures#CLOSED} if it is closed
+     */
+    public double getStreetCostMultiplier(int streetId) {
+        if (streetClosures == null) {
+            return 1;
+        }
+        return streetClosures.getCostMultiplier(streetId);
+    }
+
     public boolean transitAllowed() {
         return modes.getTransit();
     }
@@ -158,6 +221,11 @@ public class TraverseOptions implements Serializable, Cloneable {
         try {
             TraverseOptions clone = (TraverseOptions) super.clone();
             clone.bannedRoutes = (HashSet<RouteSpec>) bannedRoutes.clone();
+            /* so that routes banned in the clone are seen */
+            clone.bannedRouteCodes = null;
+            clone.bannedRouteDictionary = null;
+            clone.timetableSnapshot = null;
+            clone.timetableSnapshotPinned = false;
             return clone;
         } catch (CloneNotSupportedException e) {
             /* this will never happen since our super is the cloneable object */
@@ -15,74 +15,65 @@ package org.opentripplanner.routing.edgetype;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Iterator;
 
+import org.onebusaway.gtfs.model.AgencyAndId;
 import org.onebusaway.gtfs.model.Trip;
 import org.opentripplanner.routing.core.FareContext;
+import org.opentripplanner.routing.core.TransitDictionary;
 
 /**
- * Consider the following code: 
- * int myArray[] = new int[5]; 
- * something = Arrays.asList(myArray); 
- * You  would think that something would have type List<Integer>, but in fact 
- * it has type List<int[]>. This is because Java autoboxing is completely broken. 
- * So, this class.
+ * A memory-efficient implementation of TripPattern. Each trip is stored as its first departure
+ * time and the id of a time profile in a {@link TripTimeProfiles}, which holds its times relative
+ * to that departure and which is shared with every other trip, in this pattern or another, that
+ * runs to the same times.
  */
-class IntArrayIterator implements Iterator<Integer> {
-
-    int nextPosition = 0;
+public class ArrayTripPattern implements TripPattern, Serializable {
 
-    private int[] array;
+    private static final long serialVersionUID = 2L;
 
-    public IntArrayIterator(int[] array) {
-        this.array = array;
-    }
-
-    @Override
-    public boolean hasNext() {
-        return nextPosition == array.length;
-    }
+    /* the dictionary code of the exemplar trip, and its route and service */
+    private int exemplarCode;
 
-    @Override
-    public Integer next() {
-        return array[nextPosition++];
-    }
+    private int routeCode;
 
-    @Override
-    public void remove() {
-        throw new UnsupportedOperationException();
-    }
+    private AgencyAndId serviceId;
 
-}
+    /* the first departure of each trip, and the id of its profile */
+    private int[] startTimes;
 
-/**
- * A memory-efficient implementation of TripPattern
- */
-public class ArrayTripPattern implements TripPattern, Serializable {
+    private int[] tripProfiles;
 
-    private static final long serialVersionUID = -1283975534796913802L;
+    private TripTimeProfiles profiles;
 
     /*
-     * All of these 2d arrays are [stop][trip].
+     * A profile holds a departure time (relative to the first departure) for each stop with
+     * departures then, unless the pattern has been simplified so that arrivals are the next
+     * stop's departures, an arrival time (also relative) for each stop, the first included.
+     * Running and dwell times are the differences between them.
      */
-    private Trip exemplar;
-
-    private int[][] departureTimes;
+    private int nDepartures;
 
-    private int[][] runningTimes;
+    private int nHops;
 
-    private int[][] arrivalTimes;
-
-    private int[][] dwellTimes;
+    private boolean hasArrivals;
 
     private String[] zones;
 
     private int[] perTripFlags;
 
+    /*
+     * For each trip flag, by bit, the trips having it, in order, so that the next trip with a
+     * flag is found by binary search rather than a scan; null where every trip has the flag.
+     */
+    private int[][] tripsWithFlag;
+
     private int[] perStopFlags;
 
-    private Trip[] trips;
+    /* the code of each trip in the dictionary, which holds its id and display fields */
+    private int[] tripCodes;
+
+    private TransitDictionary dictionary;
 
     private FareContext fareContext;
 
@@ -93,156 +84,225 @@ public class ArrayTripPattern implements TripPattern, Serializable {
     public ArrayTripPattern(Trip exemplar, ArrayList<Integer>[] departureTimes,
             ArrayList<Integer>[] runningTimes, ArrayList<Integer>[] arrivalTimes,
             ArrayList<Integer>[] dwellTimes, String[] zones, ArrayList<Integer> perTripFlags,
-            int[] perStopFlags, ArrayList<Trip> trips, FareContext fareContext) {
-        this.exemplar = exemplar;
-        this.departureTimes = new int[departureTimes.length][departureTimes[0].size()];
-        this.runningTimes = new int[runningTimes.length][runningTimes[0].size()];
-        if (arrivalTimes == null) {
-            this.arrivalTimes = null;
-            this.dwellTimes = null;
-            this.bestDwellTimes = null;
-        } else {
-            this.arrivalTimes = new int[arrivalTimes.length][arrivalTimes[0].size()];
-            this.dwellTimes = new int[dwellTimes.length][dwellTimes[0].size()];
-            this.bestDwellTimes = new int[perStopFlags.length];
+            int[] perStopFlags, ArrayList<Trip> trips, FareContext fareContext,
+            TripTimeProfiles profiles, TransitDictionary dictionary) {
+        this.profiles = profiles;
+        this.dictionary = dictionary;
+        this.nDepartures = departureTimes.length;
+        this.nHops = runningTimes.length;
+        this.hasArrivals = arrivalTimes != null;
+        this.zones = new String[zones.length];
+        for (int i = 0; i < zones.length; ++i) {
+            this.zones[i] = dictionary.intern(zones[i]);
         }
-        this.zones = zones;
         this.perTripFlags = new int[perTripFlags.size()];
         this.perStopFlags = perStopFlags;
-        this.bestRunningTimes = new int[perStopFlags.length];
-        this.trips = new Trip[trips.size()];
         this.fareContext = fareContext;
 
-        for (int i = 0; i < departureTimes.length; ++i) {
-            for (int j = 0; j < departureTimes[i].size(); ++j) {
-                this.departureTimes[i][j] = departureTimes[i].get(j);
+        int nTrips = departureTimes[0].size();
+        startTimes = new int[nTrips];
+        tripProfiles = new int[nTrips];
+        int profileSize = nDepartures + (hasArrivals ? nHops + 1 : 0);
+        for (int trip = 0; trip < nTrips; ++trip) {
+            int start = departureTimes[0].get(trip);
+            int[] profile = new int[profileSize];
+            for (int i = 0; i < nDepartures; ++i) {
+                profile[i] = departureTimes[i].get(trip) - start;
             }
-        }
-        for (int i = 0; i < runningTimes.length; ++i) {
-            bestRunningTimes[i] = Integer.MAX_VALUE;
-            for (int j = 0; j < runningTimes[i].size(); ++j) {
-                this.runningTimes[i][j] = runningTimes[i].get(j);
-                if (bestRunningTimes[i] > this.runningTimes[i][j]) {
-                    bestRunningTimes[i] = this.runningTimes[i][j];
+            if (hasArrivals) {
+                profile[nDepartures] = -dwellTimes[0].get(trip);
+                for (int i = 0; i < nHops; ++i) {
+                    profile[nDepartures + 1 + i] = arrivalTimes[i].get(trip) - start;
                 }
             }
+            startTimes[trip] = start;
+            tripProfiles[trip] = profiles.intern(profile);
         }
-        if (this.arrivalTimes != null) {
-            for (int i = 0; i < arrivalTimes.length; ++i) {
-                for (int j = 0; j < arrivalTimes[i].size(); ++j) {
-                    this.arrivalTimes[i][j] = arrivalTimes[i].get(j);
-                }
+
+        this.bestRunningTimes = new int[perStopFlags.length];
+        for (int i = 0; i < nHops; ++i) {
+            bestRunningTimes[i] = Integer.MAX_VALUE;
+            for (int trip = 0; trip < nTrips; ++trip) {
+                bestRunningTimes[i] = Math.min(bestRunningTimes[i], getRunningTime(i, trip));
             }
-            for (int i = 0; i < dwellTimes.length; ++i) {
+        }
+        if (hasArrivals) {
+            this.bestDwellTimes = new int[perStopFlags.length];
+            for (int i = 0; i < nHops; ++i) {
                 bestDwellTimes[i] = Integer.MAX_VALUE;
-                for (int j = 0; j < dwellTimes[i].size(); ++j) {
-                    this.dwellTimes[i][j] = dwellTimes[i].get(j);
-                    if (bestDwellTimes[i] > this.dwellTimes[i][j]) {
-                        bestDwellTimes[i] = this.dwellTimes[i][j];
-                    }
+                for (int trip = 0; trip < nTrips; ++trip) {
+                    bestDwellTimes[i] = Math.min(bestDwellTimes[i], getDwellTime(i, trip));
                 }
             }
         }
+        int allFlags = 0;
         for (int i = 0; i < perTripFlags.size(); ++i) {
             this.perTripFlags[i] = perTripFlags.get(i);
+            allFlags |= this.perTripFlags[i];
         }
+        tripsWithFlag = new int[32 - Integer.numberOfLeadingZeros(allFlags)][];
+        for (int bit = 0; bit < tripsWithFlag.length; ++bit) {
+            tripsWithFlag[bit] = indexTripsWithFlag(1 << bit);
+        }
+        tripCodes = new int[trips.size()];
         for (int i = 0; i < trips.size(); ++i) {
-            this.trips[i] = trips.get(i);
+            tripCodes[i] = dictionary.getTripCode(trips.get(i));
         }
+        exemplarCode = dictionary.getTripCode(exemplar);
+        routeCode = dictionary.getTripRouteCode(exemplarCode);
+        serviceId = dictionary.getTripServiceId(exemplarCode);
     }
 
     public int getNextTrip(int stopIndex, int afterTime, boolean wheelchairAccessible,
             boolean pickup) {
+        if (wheelchairAccessible && (perStopFlags[stopIndex] & FLAG_WHEELCHAIR_ACCESSIBLE) == 0) {
+            return -1;
+        }
+        return getNextTrip(stopIndex, afterTime, wheelchairAccessible ? FLAG_WHEELCHAIR_ACCESSIBLE
+                : 0, pickup);
+    }
+
+    /**
+     * Gets the index of the next trip with all the given trip flags that has a stop after
+     * afterTime at the stop at stopIndex.
+     */
+    public int getNextTrip(int stopIndex, int afterTime, int tripFlags, boolean pickup) {
         int flag = pickup ? FLAG_PICKUP : FLAG_DROPOFF;
         if ((perStopFlags[stopIndex] & flag) == 0) {
             return -1;
         }
-        if (wheelchairAccessible && (perStopFlags[stopIndex] & FLAG_WHEELCHAIR_ACCESSIBLE) == 0) {
-            return -1;
+        // trips don't overtake, so departures at each stop are in trip order
+        int[] candidates = getTripsWithFlags(tripFlags);
+        int nCandidates = candidates == null ? startTimes.length : candidates.length;
+        int low = 0, high = nCandidates;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int trip = candidates == null ? mid : candidates[mid];
+            if (getDepartureTime(stopIndex, trip) < afterTime) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
         }
-        int[] stopDepartureTimes = departureTimes[stopIndex];
-        int index = Arrays.binarySearch(stopDepartureTimes, afterTime);
-        if (index == -stopDepartureTimes.length - 1)
-            return -1;
-
-        if (index < 0) {
-            index = -index - 1;
+        for (int i = low; i < nCandidates; ++i) {
+            int trip = candidates == null ? i : candidates[i];
+            if ((perTripFlags[trip] & tripFlags) == tripFlags) {
+                return trip;
+            }
         }
+        return -1;
+    }
 
-        if (wheelchairAccessible) {
-            while ((perTripFlags[index] & FLAG_WHEELCHAIR_ACCESSIBLE) == 0) {
-                index++;
-                if (index == perTripFlags.length) {
-                    return -1;
-                }
+    private int[] indexTripsWithFlag(int flag) {
+        int count = 0;
+        for (int flags : perTripFlags) {
+            if ((flags & flag) != 0) {
+                ++count;
+            }
+        }
+        if (count == perTripFlags.length) {
+            return null;
+        }
+        int[] index = new int[count];
+        count = 0;
+        for (int trip = 0; trip < perTripFlags.length; ++trip) {
+            if ((perTripFlags[trip] & flag) != 0) {
+                index[count++] = trip;
             }
         }
         return index;
     }
 
     public int getRunningTime(int stopIndex, int trip) {
-        int[] stopRunningTimes = runningTimes[stopIndex];
-        return stopRunningTimes[trip];
+        int[] profile = profiles.getProfile(tripProfiles[trip]);
+        if (!hasArrivals) {
+            return profile[stopIndex + 1] - profile[stopIndex];
+        }
+        return profile[nDepartures + 1 + stopIndex] - profile[stopIndex];
     }
 
     public int getDepartureTime(int stopIndex, int trip) {
-        int[] stopDepartureTimes = departureTimes[stopIndex];
-        return stopDepartureTimes[trip];
+        return startTimes[trip] + profiles.getProfile(tripProfiles[trip])[stopIndex];
     }
 
     public int getPreviousTrip(int stopIndex, int beforeTime, boolean wheelchairAccessible,
             boolean pickup) {
+        if (wheelchairAccessible && (perStopFlags[stopIndex + 1] & FLAG_WHEELCHAIR_ACCESSIBLE) == 0) {
+            return -1;
+        }
+        return getPreviousTrip(stopIndex, beforeTime, wheelchairAccessible ? FLAG_WHEELCHAIR_ACCESSIBLE
+                : 0, pickup);
+    }
+
+    /**
+     * Gets the index of the previous trip with all the given trip flags that has a stop before
+     * beforeTime at the stop at stopIndex.
+     */
+    public int getPreviousTrip(int stopIndex, int beforeTime, int tripFlags, boolean pickup) {
         int flag = pickup ? FLAG_PICKUP : FLAG_DROPOFF;
         if ((perStopFlags[stopIndex + 1] & flag) == 0) {
             return -1;
         }
-        if (wheelchairAccessible && (perStopFlags[stopIndex + 1] & FLAG_WHEELCHAIR_ACCESSIBLE) == 0) {
-            return -1;
+        // the last trip arriving at or before beforeTime
+        int[] candidates = getTripsWithFlags(tripFlags);
+        int nCandidates = candidates == null ? startTimes.length : candidates.length;
+        int low = 0, high = nCandidates;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int trip = candidates == null ? mid : candidates[mid];
+            if (getArrivalTime(stopIndex, trip) <= beforeTime) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
         }
-        int[][] arrivals = arrivalTimes;
-        if (arrivals == null) {
-            arrivals = departureTimes;
-            stopIndex += 1;
+        for (int i = low - 1; i >= 0; --i) {
+            int trip = candidates == null ? i : candidates[i];
+            if ((perTripFlags[trip] & tripFlags) == tripFlags) {
+                return trip;
+            }
         }
-        int[] stopArrivalTimes = arrivals[stopIndex];
-        int index = Arrays.binarySearch(stopArrivalTimes, beforeTime);
-        if (index == -1)
-            return -1;
+        return -1;
+    }
 
-        if (index < 0) {
-            index = -index - 2;
+    /**
+     * @return the trips having one of the given flags, in order, among which to look for trips
+     *         having all of them; null if that is every trip
+     */
+    private int[] getTripsWithFlags(int tripFlags) {
+        if (tripFlags == 0) {
+            return null;
         }
-
-        if (wheelchairAccessible) {
-            while ((perTripFlags[index] & FLAG_WHEELCHAIR_ACCESSIBLE) == 0) {
-                index--;
-                if (index == -1) {
-                    return -1;
-                }
-            }
+        int bit = Integer.numberOfTrailingZeros(tripFlags);
+        if (bit >= tripsWithFlag.length) {
+            return new int[0];
         }
-        return index;
+        return tripsWithFlag[bit];
     }
 
     public int getArrivalTime(int stopIndex, int trip) {
-        int[][] arrivals = arrivalTimes;
-        if (arrivals == null) {
-            arrivals = departureTimes;
-            stopIndex += 1;
+        int[] profile = profiles.getProfile(tripProfiles[trip]);
+        if (!hasArrivals) {
+            return startTimes[trip] + profile[stopIndex + 1];
         }
-        int[] stopArrivalTimes = arrivals[stopIndex];
-        return stopArrivalTimes[trip];
+        return startTimes[trip] + profile[nDepartures + 1 + stopIndex];
     }
 
     public int getDwellTime(int stopIndex, int trip) {
-        int[] stopDwellTimes = dwellTimes[stopIndex];
-        return stopDwellTimes[trip];
+        if (!hasArrivals) {
+            return 0;
+        }
+        int[] profile = profiles.getProfile(tripProfiles[trip]);
+        return profile[stopIndex] - profile[nDepartures + stopIndex];
     }
 
     public Iterator<Integer> getDepartureTimes(int stopIndex) {
-        return new IntArrayIterator(departureTimes[stopIndex]);
+        int[] stopDepartureTimes = new int[startTimes.length];
+        for (int trip = 0; trip < startTimes.length; ++trip) {
+            stopDepartureTimes[trip] = getDepartureTime(stopIndex, trip);
+        }
+        return new IntArrayIterator(stopDepartureTimes);
     }
-
     public boolean getWheelchairAccessible(int stopIndex, int trip) {
         if ((perStopFlags[stopIndex] & FLAG_WHEELCHAIR_ACCESSIBLE) == 0) {
             return false;
@@ -254,7 +314,19 @@ public class ArrayTripPattern implements TripPattern, Serializable {
     }
 
     public Trip getTrip(int tripIndex) {
-        return trips[tripIndex];
+        return dictionary.getTrip(tripCodes[tripIndex]);
+    }
+
+    public int getNumTrips() {
+        return tripCodes.length;
+    }
+
+    public int getTripCode(int trip) {
+        return tripCodes[trip];
+    }
+
+    public TransitDictionary getDictionary() {
+        return dictionary;
     }
 
     public boolean canAlight(int stopIndex) {
@@ -275,7 +347,15 @@ public class ArrayTripPattern implements TripPattern, Serializable {
 
     @Override
     public Trip getExemplar() {
-        return exemplar;
+        return dictionary.getTrip(exemplarCode);
+    }
+
+    public int getRouteCode() {
+        return routeCode;
+    }
+
+    public AgencyAndId getServiceId() {
+        return serviceId;
     }
 
     @Override
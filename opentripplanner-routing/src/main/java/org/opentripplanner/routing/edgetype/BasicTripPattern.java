@@ -23,9 +23,11 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.ArrayList;
 
+import org.onebusaway.gtfs.model.AgencyAndId;
 import org.onebusaway.gtfs.model.StopTime;
 import org.onebusaway.gtfs.model.Trip;
 import org.opentripplanner.routing.core.FareContext;
+import org.opentripplanner.routing.core.TransitDictionary;
 import org.opentripplanner.routing.edgetype.factory.TripOvertakingException;
 
 /**
@@ -56,12 +58,21 @@ public final class BasicTripPattern implements Serializable, TripPattern {
 
     public FareContext fareContext;
 
-    public ArrayTripPattern arrayPattern = null;
+    private TransitDictionary dictionary;
+
+    /* only needed while the graph is built, to convert the pattern once */
+    public transient ArrayTripPattern arrayPattern = null;
     
-    @SuppressWarnings("unchecked")
     public BasicTripPattern(Trip exemplar, List<StopTime> stopTimes, FareContext fareContext) {
+        this(exemplar, stopTimes, fareContext, new TransitDictionary());
+    }
+
+    @SuppressWarnings("unchecked")
+    public BasicTripPattern(Trip exemplar, List<StopTime> stopTimes, FareContext fareContext,
+            TransitDictionary dictionary) {
         this.exemplar = exemplar;
         this.fareContext = fareContext;
+        this.dictionary = dictionary;
         int hops = stopTimes.size() - 1;
         departureTimes = (ArrayList<Integer>[]) Array.newInstance(ArrayList.class, hops);
         runningTimes = (ArrayList<Integer>[]) Array.newInstance(ArrayList.class, hops);
@@ -267,6 +278,18 @@ public final class BasicTripPattern implements Serializable, TripPattern {
         return trips.get(trip);
     }
 
+    public int getNumTrips() {
+        return trips.size();
+    }
+
+    public int getTripCode(int trip) {
+        return dictionary.getTripCode(trips.get(trip));
+    }
+
+    public TransitDictionary getDictionary() {
+        return dictionary;
+    }
+
     public int getNumDwells() {
         return dwellTimes[0].size();
     }
@@ -315,8 +338,16 @@ public final class BasicTripPattern implements Serializable, TripPattern {
      * @return
      */
     public ArrayTripPattern convertToArrayTripPattern() {
+        return convertToArrayTripPattern(new TripTimeProfiles());
+    }
+
+    /**
+     * Replace arraylists with arrays to save memory, sharing trip time profiles with other
+     * patterns.
+     */
+    public ArrayTripPattern convertToArrayTripPattern(TripTimeProfiles profiles) {
         if (arrayPattern == null) {
-            arrayPattern = new ArrayTripPattern(exemplar, departureTimes, runningTimes, arrivalTimes, dwellTimes, zones, perTripFlags, perStopFlags, trips, fareContext);
+            arrayPattern = new ArrayTripPattern(exemplar, departureTimes, runningTimes, arrivalTimes, dwellTimes, zones, perTripFlags, perStopFlags, trips, fareContext, profiles, dictionary);
             departureTimes = runningTimes = arrivalTimes = dwellTimes = null;
             zones = null;
             perTripFlags = null;
@@ -335,6 +366,14 @@ public final class BasicTripPattern implements Serializable, TripPattern {
     public Trip getExemplar() {
         return exemplar;
     }
+
+    public int getRouteCode() {
+        return dictionary.getRouteCode(exemplar.getRoute());
+    }
+
+    public AgencyAndId getServiceId() {
+        return exemplar.getServiceId();
+    }
     
     /*
      * This is a slow implementation because this class should not be used in production. 
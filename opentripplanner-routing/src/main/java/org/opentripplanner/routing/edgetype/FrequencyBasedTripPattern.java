@@ -0,0 +1,353 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.edgetype;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Frequency;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.Trip;
+import org.opentripplanner.routing.core.FareContext;
+import org.opentripplanner.routing.core.TransitDictionary;
+
+/**
+ * A TripPattern for frequency-based trips (those in GTFS frequencies.txt). Rather than storing
+ * each departure, it stores the headway windows and a single profile of times relative to the
+ * start of each run, and computes the times of its trips from those.
+ * 
+ * Trips are numbered in order through the windows, which never overlap, so as with other
+ * patterns an earlier trip never leaves or arrives after a later one.
+ */
+public class FrequencyBasedTripPattern implements TripPattern, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /* the dictionary code of the exemplar trip, and its route and service */
+    private int exemplarCode;
+
+    private int routeCode;
+
+    private AgencyAndId serviceId;
+
+    /*
+     * Relative to the arrival at the first stop, as frequencies.txt's start times are. Each is
+     * indexed by hop: the departure and dwell at the stop before it, and the arrival at the stop
+     * after.
+     */
+    private int[] departureOffsets;
+
+    private int[] arrivalOffsets;
+
+    private int[] dwellTimes;
+
+    private String[] zones;
+
+    private int[] perStopFlags;
+
+    private FareContext fareContext;
+
+    private TransitDictionary dictionary;
+
+    /*
+     * The windows, in order of start time: the start of the first run, the headway, the trip
+     * flags, the code of the GTFS trip, and the index of the first run; firstTrips has an extra
+     * element holding the number of trips.
+     */
+    private int[] startTimes = new int[0];
+
+    private int[] headways = new int[0];
+
+    private int[] windowFlags = new int[0];
+
+    private int[] windowTripCodes = new int[0];
+
+    private int[] firstTrips = new int[] { 0 };
+
+    public FrequencyBasedTripPattern(Trip exemplar, List<StopTime> stopTimes,
+            FareContext fareContext, TransitDictionary dictionary) {
+        this.fareContext = fareContext;
+        this.dictionary = dictionary;
+        exemplarCode = dictionary.getTripCode(exemplar);
+        routeCode = dictionary.getTripRouteCode(exemplarCode);
+        serviceId = dictionary.getTripServiceId(exemplarCode);
+        int hops = stopTimes.size() - 1;
+        departureOffsets = new int[hops];
+        arrivalOffsets = new int[hops];
+        dwellTimes = new int[hops];
+        computeProfile(stopTimes, departureOffsets, arrivalOffsets, dwellTimes);
+
+        perStopFlags = new int[hops + 1];
+        zones = new String[hops + 1];
+        int i = 0;
+        for (StopTime stopTime : stopTimes) {
+            zones[i] = dictionary.intern(stopTime.getStop().getZoneId());
+            if (stopTime.getStop().getWheelchairBoarding() != 0) {
+                perStopFlags[i] |= FLAG_WHEELCHAIR_ACCESSIBLE;
+            }
+            if (stopTime.getPickupType() != 1) {
+                perStopFlags[i] |= FLAG_PICKUP;
+            }
+            if (stopTime.getDropOffType() != 1) {
+                perStopFlags[i] |= FLAG_DROPOFF;
+            }
+            ++i;
+        }
+    }
+
+    private static void computeProfile(List<StopTime> stopTimes, int[] departures,
+            int[] arrivals, int[] dwells) {
+        int start = stopTimes.get(0).getArrivalTime();
+        for (int i = 0; i < departures.length; ++i) {
+            StopTime st0 = stopTimes.get(i);
+            departures[i] = st0.getDepartureTime() - start;
+            dwells[i] = st0.getDepartureTime() - st0.getArrivalTime();
+            arrivals[i] = stopTimes.get(i + 1).getArrivalTime() - start;
+        }
+    }
+
+    /**
+     * Adds the runs of a frequency-based trip.
+     * 
+     * @return false, leaving the pattern unchanged, if the trip's times relative to the start of
+     *         a run differ from this pattern's or if its windows overlap this pattern's; it must
+     *         then be represented by individual trips
+     */
+    public boolean addWindows(Trip trip, List<StopTime> stopTimes, List<Frequency> frequencies) {
+        int hops = departureOffsets.length;
+        if (stopTimes.size() != hops + 1) {
+            return false;
+        }
+        int[] departures = new int[hops];
+        int[] arrivals = new int[hops];
+        int[] dwells = new int[hops];
+        computeProfile(stopTimes, departures, arrivals, dwells);
+        if (!Arrays.equals(departures, departureOffsets) || !Arrays.equals(arrivals, arrivalOffsets)
+                || !Arrays.equals(dwells, dwellTimes)) {
+            return false;
+        }
+
+        int nWindows = startTimes.length;
+        int n = nWindows + frequencies.size();
+        int[] newStarts = Arrays.copyOf(startTimes, n);
+        int[] newHeadways = Arrays.copyOf(headways, n);
+        int[] newCounts = new int[n];
+        int[] newFlags = Arrays.copyOf(windowFlags, n);
+        int[] newTripCodes = Arrays.copyOf(windowTripCodes, n);
+        for (int w = 0; w < nWindows; ++w) {
+            newCounts[w] = firstTrips[w + 1] - firstTrips[w];
+        }
+        int flags = trip.getWheelchairAccessible() != 0 ? FLAG_WHEELCHAIR_ACCESSIBLE : 0;
+        int tripCode = dictionary.getTripCode(trip);
+        int w = nWindows;
+        for (Frequency frequency : frequencies) {
+            int headway = frequency.getHeadwaySecs();
+            int duration = frequency.getEndTime() - frequency.getStartTime();
+            if (headway <= 0 || duration <= 0) {
+                continue;
+            }
+            newStarts[w] = frequency.getStartTime();
+            newHeadways[w] = headway;
+            newCounts[w] = (duration + headway - 1) / headway;
+            newFlags[w] = flags;
+            newTripCodes[w] = tripCode;
+            ++w;
+        }
+        n = w;
+
+        /* sort the windows by start, then check that each ends before the next begins */
+        Integer[] order = new Integer[n];
+        for (w = 0; w < n; ++w) {
+            order[w] = w;
+        }
+        final int[] starts = newStarts;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return starts[a] - starts[b];
+            }
+        });
+        for (w = 1; w < n; ++w) {
+            int prev = order[w - 1];
+            if (newStarts[prev] + (newCounts[prev] - 1) * newHeadways[prev] >= newStarts[order[w]]) {
+                return false;
+            }
+        }
+
+        startTimes = new int[n];
+        headways = new int[n];
+        windowFlags = new int[n];
+        windowTripCodes = new int[n];
+        firstTrips = new int[n + 1];
+        for (w = 0; w < n; ++w) {
+            int o = order[w];
+            startTimes[w] = newStarts[o];
+            headways[w] = newHeadways[o];
+            windowFlags[w] = newFlags[o];
+            windowTripCodes[w] = newTripCodes[o];
+            firstTrips[w + 1] = firstTrips[w] + newCounts[o];
+        }
+        return true;
+    }
+
+    /* the window holding the given trip */
+    private int getWindow(int trip) {
+        /* windows are never empty, so the first trips are distinct */
+        int w = Arrays.binarySearch(firstTrips, 0, startTimes.length, trip);
+        return w < 0 ? -w - 2 : w;
+    }
+
+    /* the start of the given trip's run */
+    private int getStartTime(int trip) {
+        int w = getWindow(trip);
+        return startTimes[w] + (trip - firstTrips[w]) * headways[w];
+    }
+
+    public int getNextTrip(int stopIndex, int afterTime, boolean wheelchairAccessible,
+            boolean pickup) {
+        int flag = pickup ? FLAG_PICKUP : FLAG_DROPOFF;
+        if ((perStopFlags[stopIndex] & flag) == 0) {
+            return -1;
+        }
+        if (wheelchairAccessible && (perStopFlags[stopIndex] & FLAG_WHEELCHAIR_ACCESSIBLE) == 0) {
+            return -1;
+        }
+        for (int w = 0; w < startTimes.length; ++w) {
+            if (wheelchairAccessible && (windowFlags[w] & FLAG_WHEELCHAIR_ACCESSIBLE) == 0) {
+                continue;
+            }
+            int first = startTimes[w] + departureOffsets[stopIndex];
+            int last = first + (firstTrips[w + 1] - firstTrips[w] - 1) * headways[w];
+            if (afterTime > last) {
+                continue;
+            }
+            int run = 0;
+            if (afterTime > first) {
+                run = (afterTime - first + headways[w] - 1) / headways[w];
+            }
+            return firstTrips[w] + run;
+        }
+        return -1;
+    }
+
+    public int getPreviousTrip(int stopIndex, int beforeTime, boolean wheelchairAccessible,
+            boolean pickup) {
+        int flag = pickup ? FLAG_PICKUP : FLAG_DROPOFF;
+        if ((perStopFlags[stopIndex + 1] & flag) == 0) {
+            return -1;
+        }
+        if (wheelchairAccessible && (perStopFlags[stopIndex + 1] & FLAG_WHEELCHAIR_ACCESSIBLE) == 0) {
+            return -1;
+        }
+        for (int w = startTimes.length - 1; w >= 0; --w) {
+            if (wheelchairAccessible && (windowFlags[w] & FLAG_WHEELCHAIR_ACCESSIBLE) == 0) {
+                continue;
+            }
+            int runs = firstTrips[w + 1] - firstTrips[w];
+            int first = startTimes[w] + arrivalOffsets[stopIndex];
+            if (beforeTime < first) {
+                continue;
+            }
+            int run = Math.min(runs - 1, (beforeTime - first) / headways[w]);
+            return firstTrips[w] + run;
+        }
+        return -1;
+    }
+
+    public int getRunningTime(int stopIndex, int trip) {
+        return arrivalOffsets[stopIndex] - departureOffsets[stopIndex];
+    }
+
+    public int getDepartureTime(int stopIndex, int trip) {
+        return getStartTime(trip) + departureOffsets[stopIndex];
+    }
+
+    public int getArrivalTime(int stopIndex, int trip) {
+        return getStartTime(trip) + arrivalOffsets[stopIndex];
+    }
+
+    public int getDwellTime(int stopIndex, int trip) {
+        return dwellTimes[stopIndex];
+    }
+
+    public Iterator<Integer> getDepartureTimes(int stopIndex) {
+        int[] departures = new int[getNumTrips()];
+        for (int trip = 0; trip < departures.length; ++trip) {
+            departures[trip] = getDepartureTime(stopIndex, trip);
+        }
+        return new IntArrayIterator(departures);
+    }
+
+    public boolean getWheelchairAccessible(int stopIndex, int trip) {
+        if ((perStopFlags[stopIndex] & FLAG_WHEELCHAIR_ACCESSIBLE) == 0) {
+            return false;
+        }
+        return (windowFlags[getWindow(trip)] & FLAG_WHEELCHAIR_ACCESSIBLE) != 0;
+    }
+
+    public Trip getTrip(int trip) {
+        return dictionary.getTrip(windowTripCodes[getWindow(trip)]);
+    }
+
+    public int getNumTrips() {
+        return firstTrips[startTimes.length];
+    }
+
+    public int getTripCode(int trip) {
+        return windowTripCodes[getWindow(trip)];
+    }
+
+    public TransitDictionary getDictionary() {
+        return dictionary;
+    }
+
+    public boolean canAlight(int stopIndex) {
+        return (perStopFlags[stopIndex] & FLAG_DROPOFF) != 0;
+    }
+
+    public boolean canBoard(int stopIndex) {
+        return (perStopFlags[stopIndex] & FLAG_PICKUP) != 0;
+    }
+
+    public String getZone(int stopIndex) {
+        return zones[stopIndex];
+    }
+
+    public FareContext getFareContext() {
+        return fareContext;
+    }
+
+    public Trip getExemplar() {
+        return dictionary.getTrip(exemplarCode);
+    }
+
+    public int getRouteCode() {
+        return routeCode;
+    }
+
+    public AgencyAndId getServiceId() {
+        return serviceId;
+    }
+
+    public int getBestRunningTime(int stopIndex) {
+        return arrivalOffsets[stopIndex] - departureOffsets[stopIndex];
+    }
+
+    public int getBestDwellTime(int stopIndex) {
+        return dwellTimes[stopIndex];
+    }
+}
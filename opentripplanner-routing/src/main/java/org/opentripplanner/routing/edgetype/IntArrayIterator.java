@@ -0,0 +1,51 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.edgetype;
+
+import java.util.Iterator;
+
+/**
+ * Consider the following code: 
+ * int myArray[] = new int[5]; 
+ * something = Arrays.asList(myArray); 
+ * You  would think that something would have type List<Integer>, but in fact 
+ * it has type List<int[]>. This is because Java autoboxing is completely broken. 
+ * So, this class.
+ */
+class IntArrayIterator implements Iterator<Integer> {
+
+    int nextPosition = 0;
+
+    private int[] array;
+
+    public IntArrayIterator(int[] array) {
+        this.array = array;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return nextPosition < array.length;
+    }
+
+    @Override
+    public Integer next() {
+        return array[nextPosition++];
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+}
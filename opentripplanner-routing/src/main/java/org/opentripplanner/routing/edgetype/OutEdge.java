@@ -15,6 +15,7 @@ package org.opentripplanner.routing.edgetype;
 
 import org.onebusaway.gtfs.model.Trip;
 import org.opentripplanner.common.geometry.PackedCoordinateSequence;
+import org.opentripplanner.common.geometry.PackedLengthIndexedLine;
 import org.opentripplanner.routing.core.AbstractEdge;
 import org.opentripplanner.routing.core.State;
 import org.opentripplanner.routing.core.TraverseMode;
@@ -134,4 +135,9 @@ public class OutEdge extends AbstractEdge implements EdgeWithElevation, StreetEd
     public StreetTraversalPermission getPermission() {
         return ((StreetVertex) fromv).getPermission();
     }
+
+    @Override
+    public PackedLengthIndexedLine getLengthIndexedLine() {
+        return ((StreetVertex) fromv).getLengthIndexedLine();
+    }
 }
@@ -16,13 +16,10 @@ package org.opentripplanner.routing.edgetype;
 import java.util.Calendar;
 
 import org.onebusaway.gtfs.model.AgencyAndId;
-import org.onebusaway.gtfs.model.Route;
-import org.onebusaway.gtfs.model.Trip;
 import org.onebusaway.gtfs.model.calendar.ServiceDate;
-import org.opentripplanner.gtfs.GtfsLibrary;
 import org.opentripplanner.routing.core.OptimizeType;
-import org.opentripplanner.routing.core.RouteSpec;
 import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.TransitDictionary;
 import org.opentripplanner.routing.core.TraverseMode;
 import org.opentripplanner.routing.core.TraverseModeSet;
 import org.opentripplanner.routing.core.TraverseOptions;
@@ -90,7 +87,8 @@ public class PatternAlight extends PatternEdge {
 
         int wait = 1;
         int patternIndex = -1;
-        AgencyAndId service = pattern.getExemplar().getServiceId();
+        TripPattern pattern = getPattern(options);
+        AgencyAndId service = pattern.getServiceId();
         if (options.serviceOn(service, serviceDate)) {
             // try to get the departure time on today's schedule
             patternIndex = pattern.getPreviousTrip(stopIndex, secondsSinceMidnight, options.wheelchairAccessible, false);
@@ -122,19 +120,17 @@ public class PatternAlight extends PatternEdge {
         state1.setPattern(patternIndex);
         state1.incrementTimeInSeconds(wait);
         state1.numBoardings += 1;
-        Trip trip = getPattern().getTrip(patternIndex);
+        int tripCode = pattern.getTripCode(patternIndex);
         
         /* check if route banned for this plan */
-        if (options.bannedRoutes != null) {
-            Route route = trip.getRoute();
-            RouteSpec spec = new RouteSpec(route.getId().getAgencyId(), GtfsLibrary.getRouteName(route));
-            if (options.bannedRoutes.contains(spec)) {
-                return null;
-            }
+        TransitDictionary dictionary = pattern.getDictionary();
+        if (options.isRouteBanned(dictionary, dictionary.getTripRouteCode(tripCode))) {
+            return null;
         }
         
-        state1.tripId = trip.getId();
-        state1.setZoneAndRoute(pattern.getZone(stopIndex), pattern.getExemplar().getRoute().getId(), pattern.getFareContext());
+        state1.tripId = dictionary.getTripId(tripCode);
+        state1.tripCode = tripCode;
+        state1.setZoneAndRoute(pattern.getZone(stopIndex), dictionary.getRouteId(pattern.getRouteCode()), pattern.getFareContext());
         long transfer_penalty = 0;
         if (options.optimizeFor == OptimizeType.TRANSFERS && state0.getTrip() != -1) {
             //this is not the first boarding, therefore we must have "transferred" -- whether
@@ -155,6 +151,7 @@ public class PatternAlight extends PatternEdge {
 	}
         State s1 = state0.clone();
         s1.tripId = null;
+        s1.tripCode = -1;
         return new TraverseResult(1, s1);
     }
 
@@ -16,13 +16,10 @@ package org.opentripplanner.routing.edgetype;
 import java.util.Calendar;
 
 import org.onebusaway.gtfs.model.AgencyAndId;
-import org.onebusaway.gtfs.model.Route;
-import org.onebusaway.gtfs.model.Trip;
 import org.onebusaway.gtfs.model.calendar.ServiceDate;
-import org.opentripplanner.gtfs.GtfsLibrary;
 import org.opentripplanner.routing.core.OptimizeType;
-import org.opentripplanner.routing.core.RouteSpec;
 import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.TransitDictionary;
 import org.opentripplanner.routing.core.TraverseMode;
 import org.opentripplanner.routing.core.TraverseModeSet;
 import org.opentripplanner.routing.core.TraverseOptions;
@@ -94,22 +91,23 @@ public class PatternBoard extends PatternEdge {
 
         int wait = -1;
         int patternIndex = -1;
-        AgencyAndId service = getPattern().getExemplar().getServiceId();
+        TripPattern pattern = getPattern(options);
+        AgencyAndId service = pattern.getServiceId();
         if (options.serviceOn(service, serviceDate)) {
             // try to get the departure time on today's schedule
-            patternIndex = getPattern().getNextTrip(stopIndex, secondsSinceMidnight, options.wheelchairAccessible, true);
+            patternIndex = pattern.getNextTrip(stopIndex, secondsSinceMidnight, options.wheelchairAccessible, true);
             if (patternIndex >= 0) {
-                wait = getPattern().getDepartureTime(stopIndex, patternIndex) - secondsSinceMidnight;
+                wait = pattern.getDepartureTime(stopIndex, patternIndex) - secondsSinceMidnight;
             }
         }
         if (options.serviceOn(service, serviceDateYesterday)) {
             // now, try to get the departure time on yesterday's schedule -- assuming that
             // yesterday's is on the same schedule as today. If it's not, then we'll worry about it
             // when we get to the pattern(s) which do contain yesterday.
-            int yesterdayPatternIndex = getPattern().getNextTrip(stopIndex, secondsSinceMidnight
+            int yesterdayPatternIndex = pattern.getNextTrip(stopIndex, secondsSinceMidnight
                     + SEC_IN_DAY, options.wheelchairAccessible, true);
             if (yesterdayPatternIndex >= 0) {
-                int waitYesterday = getPattern().getDepartureTime(stopIndex, yesterdayPatternIndex)
+                int waitYesterday = pattern.getDepartureTime(stopIndex, yesterdayPatternIndex)
                         - secondsSinceMidnight - SEC_IN_DAY;
                 if (wait < 0 || waitYesterday < wait) {
                     // choose the better time
@@ -126,19 +124,17 @@ public class PatternBoard extends PatternEdge {
         state1.setPattern(patternIndex);
         state1.incrementTimeInSeconds(wait);
         state1.numBoardings += 1;
-        Trip trip = getPattern().getTrip(patternIndex);
+        int tripCode = pattern.getTripCode(patternIndex);
               
         /* check if route banned for this plan */
-        if (options.bannedRoutes != null) {
-            Route route = trip.getRoute();
-            RouteSpec spec = new RouteSpec(route.getId().getAgencyId(), GtfsLibrary.getRouteName(route));
-            if (options.bannedRoutes.contains(spec)) {
-                return null;
-            }
+        TransitDictionary dictionary = pattern.getDictionary();
+        if (options.isRouteBanned(dictionary, dictionary.getTripRouteCode(tripCode))) {
+            return null;
         }
         
-        state1.tripId = trip.getId();
-        state1.setZoneAndRoute(getPattern().getZone(stopIndex), getPattern().getExemplar().getRoute().getId(), getPattern().getFareContext());
+        state1.tripId = dictionary.getTripId(tripCode);
+        state1.tripCode = tripCode;
+        state1.setZoneAndRoute(pattern.getZone(stopIndex), dictionary.getRouteId(pattern.getRouteCode()), pattern.getFareContext());
         long transfer_penalty = 0;
         if (options.optimizeFor == OptimizeType.TRANSFERS && state0.getTrip() != -1) {
             //this is not the first boarding, therefore we must have "transferred" -- whether
@@ -158,6 +154,7 @@ public class PatternBoard extends PatternEdge {
         }
         State s1 = state0.clone();
         s1.tripId = null;
+        s1.tripCode = -1;
         return new TraverseResult(1, s1);
     }
 
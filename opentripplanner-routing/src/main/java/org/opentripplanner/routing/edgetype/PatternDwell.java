@@ -13,7 +13,6 @@
 
 package org.opentripplanner.routing.edgetype;
 
-import org.opentripplanner.gtfs.GtfsLibrary;
 import org.opentripplanner.routing.core.State;
 import org.opentripplanner.routing.core.TraverseMode;
 import org.opentripplanner.routing.core.TraverseOptions;
@@ -48,23 +47,23 @@ public class PatternDwell extends PatternEdge {
     }
 
     public TraverseMode getMode() {
-        return GtfsLibrary.getTraverseMode(pattern.getExemplar().getRoute());
+        return pattern.getDictionary().getRouteMode(pattern.getRouteCode());
     }
 
     public String getName() {
-        return GtfsLibrary.getRouteName(pattern.getExemplar().getRoute());
+        return pattern.getDictionary().getRouteName(pattern.getRouteCode());
     }
 
     public TraverseResult traverse(State state0, TraverseOptions wo) {
         State state1 = state0.clone();
-        int dwellTime = pattern.getDwellTime(stopIndex, state0.getTrip());
+        int dwellTime = getPattern(wo).getDwellTime(stopIndex, state0.getTrip());
         state1.incrementTimeInSeconds(dwellTime);
         return new TraverseResult(dwellTime, state1);
     }
 
     public TraverseResult traverseBack(State state0, TraverseOptions wo) {
         State state1 = state0.clone();
-        int dwellTime = pattern.getDwellTime(stopIndex, state0.getTrip());
+        int dwellTime = getPattern(wo).getDwellTime(stopIndex, state0.getTrip());
         state1.incrementTimeInSeconds(-dwellTime);
         return new TraverseResult(dwellTime, state1);
     }
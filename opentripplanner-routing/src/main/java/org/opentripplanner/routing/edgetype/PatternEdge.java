@@ -12,10 +12,10 @@
  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package org.opentripplanner.routing.edgetype;
 
-import org.onebusaway.gtfs.model.Trip;
-import org.opentripplanner.gtfs.GtfsLibrary;
 import org.opentripplanner.routing.core.AbstractEdge;
 import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.TransitDictionary;
+import org.opentripplanner.routing.core.TraverseOptions;
 import org.opentripplanner.routing.core.Vertex;
 
 /**
@@ -38,13 +38,23 @@ public abstract class PatternEdge extends AbstractEdge {
         return pattern;
     }
 
+    /**
+     * @return the pattern as the search sees it: with the real-time times of its updated trips,
+     *         if it has any
+     */
+    public TripPattern getPattern(TraverseOptions options) {
+        TimetableSnapshot snapshot = options.getTimetableSnapshot(pattern.getDictionary());
+        return snapshot == null ? pattern : snapshot.getPattern(pattern);
+    }
+
     public void setPattern(TripPattern pattern) {
         this.pattern = pattern;
     }
 
     @Override
     public String getName(State state) {
-        Trip trip = pattern.getTrip(state.getTrip());
-        return GtfsLibrary.getRouteName(trip.getRoute());
+        TransitDictionary dictionary = pattern.getDictionary();
+        return dictionary.getRouteName(dictionary.getTripRouteCode(pattern.getTripCode(state
+                .getTrip())));
     }
 }
@@ -14,7 +14,6 @@
 package org.opentripplanner.routing.edgetype;
 
 import org.onebusaway.gtfs.model.Stop;
-import org.opentripplanner.gtfs.GtfsLibrary;
 import org.opentripplanner.routing.core.FareContext;
 import org.opentripplanner.routing.core.State;
 import org.opentripplanner.routing.core.TraverseMode;
@@ -61,35 +60,35 @@ public class PatternHop extends PatternEdge {
     }
 
     public TraverseMode getMode() {
-        return GtfsLibrary.getTraverseMode(pattern.getExemplar().getRoute());
+        return pattern.getDictionary().getRouteMode(pattern.getRouteCode());
     }
 
     public String getName() {
-        return GtfsLibrary.getRouteName(pattern.getExemplar().getRoute());
+        return pattern.getDictionary().getRouteName(pattern.getRouteCode());
     }
 
     public TraverseResult optimisticTraverseBack(State state0, TraverseOptions wo) {
         State state1 = state0.clone();
-        int runningTime = pattern.getBestRunningTime(stopIndex);
+        int runningTime = getPattern(wo).getBestRunningTime(stopIndex);
         state1.incrementTimeInSeconds(-runningTime);
         return new TraverseResult(runningTime, state1);
     }
     
     public TraverseResult traverse(State state0, TraverseOptions wo) {
         State state1 = state0.clone();
-        int runningTime = pattern.getRunningTime(stopIndex, state0.getTrip());
+        int runningTime = getPattern(wo).getRunningTime(stopIndex, state0.getTrip());
         state1.incrementTimeInSeconds(runningTime);
-        state1.setZoneAndRoute(getEndStop().getZoneId(), pattern.getExemplar().getRoute().getId(),
-                context);
+        state1.setZoneAndRoute(getEndStop().getZoneId(), pattern.getDictionary().getRouteId(
+                pattern.getRouteCode()), context);
         return new TraverseResult(runningTime, state1);
     }
 
     public TraverseResult traverseBack(State state0, TraverseOptions wo) {
         State state1 = state0.clone();
-        int runningTime = pattern.getRunningTime(stopIndex, state0.getTrip());
+        int runningTime = getPattern(wo).getRunningTime(stopIndex, state0.getTrip());
         state1.incrementTimeInSeconds(-runningTime);
-        state1.setZoneAndRoute(getStartStop().getZoneId(), pattern.getExemplar().getRoute().getId(),
-                context);
+        state1.setZoneAndRoute(getStartStop().getZoneId(), pattern.getDictionary().getRouteId(
+                pattern.getRouteCode()), context);
         return new TraverseResult(runningTime, state1);
     }
 
@@ -118,6 +117,10 @@ public class PatternHop extends PatternEdge {
         return start;
     }
 
+    public int getStopIndex() {
+        return stopIndex;
+    }
+
     public String toString() {
         return "PatternHop(" + super.toString() + ")";
     }
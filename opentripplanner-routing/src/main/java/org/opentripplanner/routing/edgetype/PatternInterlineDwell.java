@@ -13,15 +13,11 @@
 
 package org.opentripplanner.routing.edgetype;
 
-import java.io.Serializable;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
-import org.onebusaway.gtfs.model.AgencyAndId;
-import org.onebusaway.gtfs.model.Trip;
-import org.opentripplanner.gtfs.GtfsLibrary;
 import org.opentripplanner.routing.core.AbstractEdge;
 import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.TransitDictionary;
 import org.opentripplanner.routing.core.TraverseMode;
 import org.opentripplanner.routing.core.TraverseOptions;
 import org.opentripplanner.routing.core.TraverseResult;
@@ -32,49 +28,74 @@ import com.vividsolutions.jts.geom.Geometry;
 /** 
  * A vehicle's wait between the end of one run and the beginning of another run on the same block 
  * */
-class InterlineDwellData implements Serializable {
+public class PatternInterlineDwell extends AbstractEdge {
 
     private static final long serialVersionUID = 1L;
 
-    public int dwellTime;
+    /*
+     * The dwell time and the index of the next run in its pattern, by the code of the trip whose
+     * run ends (or, for traversing back, of the trip whose run begins). The trip codes are
+     * sorted, for binary search.
+     */
+    private int[] tripCodes = new int[0];
 
-    public int patternIndex;
+    private int[] dwellTimes = new int[0];
 
-    public InterlineDwellData(int dwellTime, int patternIndex) {
-        this.dwellTime = dwellTime;
-        this.patternIndex = patternIndex;
-    }
-}
+    private int[] patternIndices = new int[0];
 
-public class PatternInterlineDwell extends AbstractEdge {
+    private int[] reverseTripCodes = new int[0];
 
-    private static final long serialVersionUID = 1L;
+    private int[] reverseDwellTimes = new int[0];
 
-    private Map<AgencyAndId, InterlineDwellData> tripIdToInterlineDwellData;
+    private int[] reversePatternIndices = new int[0];
 
-    private Map<AgencyAndId, InterlineDwellData> reverseTripIdToInterlineDwellData;
+    private int targetTripCode;
 
-    private Trip targetTrip;
+    private TransitDictionary dictionary;
 
-    public PatternInterlineDwell(Vertex startJourney, Vertex endJourney, Trip targetTrip) {
+    public PatternInterlineDwell(Vertex startJourney, Vertex endJourney, int targetTripCode,
+            TransitDictionary dictionary) {
         super(startJourney, endJourney);
-        this.tripIdToInterlineDwellData = new HashMap<AgencyAndId, InterlineDwellData>();
-        this.reverseTripIdToInterlineDwellData = new HashMap<AgencyAndId, InterlineDwellData>();
-        this.targetTrip = targetTrip;
+        this.targetTripCode = targetTripCode;
+        this.dictionary = dictionary;
     }
 
-    public void addTrip(AgencyAndId trip, AgencyAndId reverseTrip, int dwellTime,
+    public void addTrip(int tripCode, int reverseTripCode, int dwellTime,
             int oldPatternIndex, int newPatternIndex) {
         if (dwellTime < 0) {
             throw new RuntimeException("Negative dwell time");
         }
-        tripIdToInterlineDwellData.put(trip, new InterlineDwellData(dwellTime, newPatternIndex));
-        reverseTripIdToInterlineDwellData.put(reverseTrip, new InterlineDwellData(dwellTime,
-                newPatternIndex));
+        int i = Arrays.binarySearch(tripCodes, tripCode);
+        if (i < 0) {
+            i = -i - 1;
+            tripCodes = insert(tripCodes, i, tripCode);
+            dwellTimes = insert(dwellTimes, i, 0);
+            patternIndices = insert(patternIndices, i, 0);
+        }
+        dwellTimes[i] = dwellTime;
+        patternIndices[i] = newPatternIndex;
+
+        i = Arrays.binarySearch(reverseTripCodes, reverseTripCode);
+        if (i < 0) {
+            i = -i - 1;
+            reverseTripCodes = insert(reverseTripCodes, i, reverseTripCode);
+            reverseDwellTimes = insert(reverseDwellTimes, i, 0);
+            reversePatternIndices = insert(reversePatternIndices, i, 0);
+        }
+        reverseDwellTimes[i] = dwellTime;
+        reversePatternIndices[i] = newPatternIndex;
+    }
+
+    private static int[] insert(int[] array, int i, int value) {
+        int[] grown = new int[array.length + 1];
+        System.arraycopy(array, 0, grown, 0, i);
+        grown[i] = value;
+        System.arraycopy(array, i, grown, i + 1, array.length - i);
+        return grown;
     }
 
     public String getDirection() {
-        return targetTrip.getTripHeadsign();
+        return dictionary.getTripHeadsign(targetTripCode);
     }
 
     public double getDistance() {
@@ -82,40 +103,42 @@ public class PatternInterlineDwell extends AbstractEdge {
     }
 
     public TraverseMode getMode() {
-        return GtfsLibrary.getTraverseMode(targetTrip.getRoute());
+        return dictionary.getRouteMode(dictionary.getTripRouteCode(targetTripCode));
     }
 
     public String getName() {
-        return GtfsLibrary.getRouteName(targetTrip.getRoute());
+        return dictionary.getRouteName(dictionary.getTripRouteCode(targetTripCode));
     }
 
     public TraverseResult traverse(State state0, TraverseOptions wo) {
         State state1 = state0.clone();
 
-        AgencyAndId tripId = state0.tripId;
-        InterlineDwellData dwellData = tripIdToInterlineDwellData.get(tripId);
-        if (dwellData == null) {
+        int i = Arrays.binarySearch(tripCodes, state0.tripCode);
+        if (i < 0) {
             return null;
         }
-        state1.incrementTimeInSeconds(dwellData.dwellTime);
-        state1.tripId = targetTrip.getId();
-        state1.setPattern(dwellData.patternIndex);
+        int dwellTime = dwellTimes[i];
+        state1.incrementTimeInSeconds(dwellTime);
+        state1.tripId = dictionary.getTripId(targetTripCode);
+        state1.tripCode = targetTripCode;
+        state1.setPattern(patternIndices[i]);
 
-        return new TraverseResult(dwellData.dwellTime, state1);
+        return new TraverseResult(dwellTime, state1);
     }
 
     public TraverseResult traverseBack(State state0, TraverseOptions wo) {
         State state1 = state0.clone();
 
-        AgencyAndId tripId = state0.tripId;
-        InterlineDwellData dwellData = reverseTripIdToInterlineDwellData.get(tripId);
-        if (dwellData == null) {
+        int i = Arrays.binarySearch(reverseTripCodes, state0.tripCode);
+        if (i < 0) {
             return null;
         }
-        state1.incrementTimeInSeconds(-dwellData.dwellTime);
-        state1.tripId = targetTrip.getId();
-        state1.setPattern(dwellData.patternIndex);
-        return new TraverseResult(dwellData.dwellTime, state1);
+        int dwellTime = reverseDwellTimes[i];
+        state1.incrementTimeInSeconds(-dwellTime);
+        state1.tripId = dictionary.getTripId(targetTripCode);
+        state1.tripCode = targetTripCode;
+        state1.setPattern(reversePatternIndices[i]);
+        return new TraverseResult(dwellTime, state1);
     }
 
     public Geometry getGeometry() {
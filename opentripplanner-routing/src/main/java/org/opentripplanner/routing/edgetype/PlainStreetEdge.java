@@ -2,10 +2,9 @@ package org.opentripplanner.routing.edgetype;
 
 import java.io.IOException;
 import java.io.ObjectOutputStream;
-import java.util.LinkedList;
-import java.util.List;
 
 import org.opentripplanner.common.geometry.PackedCoordinateSequence;
+import org.opentripplanner.common.geometry.PackedLengthIndexedLine;
 import org.opentripplanner.routing.algorithm.NegativeWeightException;
 import org.opentripplanner.routing.core.AbstractEdge;
 import org.opentripplanner.routing.core.State;
@@ -13,8 +12,8 @@ import org.opentripplanner.routing.core.TraverseMode;
 import org.opentripplanner.routing.core.TraverseOptions;
 import org.opentripplanner.routing.core.TraverseResult;
 import org.opentripplanner.routing.core.Vertex;
+import org.opentripplanner.routing.util.ElevationUtils;
 
-import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.LineString;
 
 /**
@@ -34,6 +33,8 @@ public class PlainStreetEdge extends AbstractEdge implements StreetEdge, EdgeWit
 
     private LineString geometry;
 
+    private PackedLengthIndexedLine lengthIndexedLine;
+
     private String name;
 
     private double slopeSpeedEffectiveLength;
@@ -50,6 +51,9 @@ public class PlainStreetEdge extends AbstractEdge implements StreetEdge, EdgeWit
 
     private String id;
 
+    /* the number of this street in the graph's StreetClosures */
+    private int streetId = -1;
+
     private boolean crossable = true;
 
     private boolean slopeOverride = false;
@@ -60,6 +64,9 @@ public class PlainStreetEdge extends AbstractEdge implements StreetEdge, EdgeWit
             StreetTraversalPermission permission, boolean back) {
         super(v1, v2);
         this.geometry = geometry;
+        if (geometry != null) {
+            this.lengthIndexedLine = new PackedLengthIndexedLine(geometry);
+        }
         this.length = length;
         this.name = name;
         this.permission = permission;
@@ -68,6 +75,9 @@ public class PlainStreetEdge extends AbstractEdge implements StreetEdge, EdgeWit
 
     @Override
     public boolean canTraverse(TraverseOptions options) {
+        if (options.getStreetCostMultiplier(streetId) == StreetClosures.CLOSED) {
+            return false;
+        }
         if (options.wheelchairAccessible) {
             if (!wheelchairAccessible) {
                 return false;
@@ -112,6 +122,14 @@ public class PlainStreetEdge extends AbstractEdge implements StreetEdge, EdgeWit
         return geometry;
     }
 
+    @Override
+    public PackedLengthIndexedLine getLengthIndexedLine() {
+        if (lengthIndexedLine == null && geometry != null) {
+            lengthIndexedLine = new PackedLengthIndexedLine(geometry);
+        }
+        return lengthIndexedLine;
+    }
+
     @Override
     public TraverseMode getMode() {
         return TraverseMode.WALK;
@@ -155,6 +173,7 @@ public class PlainStreetEdge extends AbstractEdge implements StreetEdge, EdgeWit
         }
         weight *= options.distanceWalkFactor(s0.walkDistance + length / 2);
         weight *= options.walkReluctance;
+        weight *= options.getStreetCostMultiplier(streetId);
         s1.walkDistance += length;
         s1.incrementTimeInSeconds((int) time);
         s1.lastEdgeWasStreet = true;
@@ -197,6 +216,7 @@ public class PlainStreetEdge extends AbstractEdge implements StreetEdge, EdgeWit
             weight *= weightFactor > 1 ? 1 : weightFactor;
         }
         weight *= options.walkReluctance;
+        weight *= options.getStreetCostMultiplier(streetId);
         s1.walkDistance += length;
         s1.incrementTimeInSeconds(-(int) time);
         s1.lastEdgeWasStreet = true;
@@ -256,26 +276,26 @@ public class PlainStreetEdge extends AbstractEdge implements StreetEdge, EdgeWit
         this.id = id;
     }
 
+    public int getStreetId() {
+        return streetId;
+    }
+
+    public void setStreetId(int streetId) {
+        this.streetId = streetId;
+    }
+
     @Override
     public PackedCoordinateSequence getElevationProfile(double start, double end) {
         if (elevationProfile == null) {
             return null;
         }
-        List<Coordinate> coordList = new LinkedList<Coordinate>();
 
         if (start < 0)
             start = 0;
         if (end > length)
             end = length;
 
-        for (Coordinate coord : elevationProfile.toCoordinateArray()) {
-            if (coord.x >= start && coord.x <= end) {
-                coordList.add(new Coordinate(coord.x - start, coord.y));
-            }
-        }
-
-        Coordinate coordArr[] = new Coordinate[coordList.size()];
-        return new PackedCoordinateSequence.Double(coordList.toArray(coordArr));
+        return ElevationUtils.getPartialElevationProfile(elevationProfile, start, end);
     }
 
     public void setSlopeOverride(boolean slopeOverride) {
@@ -0,0 +1,345 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.routing.edgetype;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.opentripplanner.routing.core.Edge;
+import org.opentripplanner.routing.core.Graph;
+import org.opentripplanner.routing.core.GraphVertex;
+import org.opentripplanner.routing.core.Vertex;
+import org.opentripplanner.routing.spt.GraphPath;
+import org.opentripplanner.routing.spt.SPTEdge;
+
+/**
+ * Streets closed, or made more costly, while a graph is in use -- for road works or a detour --
+ * without rebuilding it or its contraction hierarchies.
+ * 
+ * Every street of the graph is numbered: each direction of a street (a {@link StreetVertex},
+ * whose {@link TurnEdge}s and {@link OutEdge}s all traverse it) and each
+ * {@link PlainStreetEdge}. Closed streets and streets with a cost multiplier are kept in bitsets
+ * over those numbers, so the check on every street traversal is a single read. Changes are made
+ * one at a time and take effect at once, including for searches already running; searches never
+ * wait for them.
+ * 
+ * Searches see the closures through {@link org.opentripplanner.routing.core.TraverseOptions}.
+ */
+public class StreetClosures implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The cost multiplier of a closed street */
+    public static final double CLOSED = Double.POSITIVE_INFINITY;
+
+    private int nStreets;
+
+    private AtomicLongArray closed;
+
+    private AtomicLongArray weighted;
+
+    private ConcurrentHashMap<Integer, Double> multipliers = new ConcurrentHashMap<Integer, Double>();
+
+    /* the numbers of the streets with each id, in both directions */
+    private HashMap<String, int[]> streetsById = new HashMap<String, int[]>();
+
+    private volatile int nAffected = 0;
+
+    private volatile int version = 0;
+
+    /**
+     * Numbers the streets of the graph. Graphs get a single set of closures, since numbering
+     * the streets again would renumber those of any other.
+     */
+    public StreetClosures(Graph graph) {
+        HashMap<String, List<Integer>> byId = new HashMap<String, List<Integer>>();
+        int streetId = 0;
+        for (GraphVertex gv : graph.getVertices()) {
+            Vertex v = gv.vertex;
+            if (v instanceof StreetVertex) {
+                StreetVertex street = (StreetVertex) v;
+                street.setStreetId(streetId);
+                index(byId, street.getEdgeId(), streetId++);
+            }
+            for (Edge e : gv.getOutgoing()) {
+                if (e instanceof PlainStreetEdge) {
+                    PlainStreetEdge street = (PlainStreetEdge) e;
+                    street.setStreetId(streetId);
+                    index(byId, street.getId(), streetId++);
+                }
+            }
+        }
+        nStreets = streetId;
+        closed = new AtomicLongArray((nStreets + 63) >> 6);
+        weighted = new AtomicLongArray((nStreets + 63) >> 6);
+        for (Map.Entry<String, List<Integer>> entry : byId.entrySet()) {
+            List<Integer> ids = entry.getValue();
+            int[] streets = new int[ids.size()];
+            for (int i = 0; i < streets.length; ++i) {
+                streets[i] = ids.get(i);
+            }
+            streetsById.put(entry.getKey(), streets);
+        }
+    }
+
+    private static void index(HashMap<String, List<Integer>> byId, String id, int streetId) {
+        if (id == null) {
+            return;
+        }
+        List<Integer> ids = byId.get(id);
+        if (ids == null) {
+            ids = new ArrayList<Integer>(2);
+            byId.put(id, ids);
+        }
+        ids.add(streetId);
+    }
+
+    /**
+     * @return the number of the street an edge traverses, or -1 if it is not a street or was
+     *         made after the streets were numbered
+     */
+    public static int getStreetId(Edge edge) {
+        if (edge instanceof PlainStreetEdge) {
+            return ((PlainStreetEdge) edge).getStreetId();
+        }
+        if (edge instanceof TurnEdge || edge instanceof OutEdge) {
+            Vertex fromv = edge.getFromVertex();
+            if (fromv instanceof StreetVertex) {
+                return ((StreetVertex) fromv).getStreetId();
+            }
+        }
+        return -1;
+    }
+
+    public int getNumStreets() {
+        return nStreets;
+    }
+
+    /**
+     * @return the numbers of the streets, in both directions, with the given street id, or null
+     */
+    public int[] getStreets(String id) {
+        return streetsById.get(id);
+    }
+
+    /**
+     * @return true if no street is closed or has a cost multiplier
+     */
+    public boolean isEmpty() {
+        return nAffected == 0;
+    }
+
+    /**
+     * @return a number which changes whenever a street is closed, opened or reweighted
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    public boolean isClosed(int streetId) {
+        return get(closed, streetId);
+    }
+
+    /**
+     * @return true if the street is closed or has a cost multiplier
+     */
+    public boolean isAffected(int streetId) {
+        return get(closed, streetId) || get(weighted, streetId);
+    }
+
+    /**
+     * @return the factor on the cost of the street: 1 if it is unaffected, and {@link #CLOSED}
+     *         if it is closed
+     */
+    public double getCostMultiplier(int streetId) {
+        if (get(closed, streetId)) {
+            return CLOSED;
+        }
+        if (get(weighted, streetId)) {
+            Double multiplier = multipliers.get(streetId);
+            if (multiplier != null) {
+                return multiplier;
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * @return true if any edge of the path traverses a closed or reweighted street
+     */
+    public boolean affects(GraphPath path) {
+        if (isEmpty()) {
+            return false;
+        }
+        for (SPTEdge edge : path.edges) {
+            int streetId = getStreetId(edge.payload);
+            if (streetId != -1 && isAffected(streetId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the numbers of the closed and reweighted streets
+     */
+    public synchronized int[] getAffectedStreets() {
+        int[] streets = new int[nAffected];
+        int n = 0;
+        for (int word = 0; word < closed.length(); ++word) {
+            long bits = closed.get(word) | weighted.get(word);
+            while (bits != 0) {
+                int bit = Long.numberOfTrailingZeros(bits);
+                streets[n++] = (word << 6) + bit;
+                bits &= bits - 1;
+            }
+        }
+        return streets;
+    }
+
+    public synchronized void close(int streetId) {
+        checkStreet(streetId);
+        boolean wasAffected = isAffected(streetId);
+        set(closed, streetId, true);
+        changed(wasAffected, true);
+    }
+
+    /**
+     * Opens a closed street; any cost multiplier it has is kept.
+     */
+    public synchronized void open(int streetId) {
+        checkStreet(streetId);
+        boolean wasAffected = isAffected(streetId);
+        set(closed, streetId, false);
+        changed(wasAffected, isAffected(streetId));
+    }
+
+    /**
+     * Makes a street more costly to traverse; a multiplier of 1 removes it. Multipliers below 1
+     * are not allowed, since routing around closures relies on their only ever making streets
+     * dearer.
+     */
+    public synchronized void setCostMultiplier(int streetId, double multiplier) {
+        checkStreet(streetId);
+        if (!(multiplier >= 1) || multiplier == CLOSED) {
+            throw new IllegalArgumentException("cost multiplier must be finite and at least 1: "
+                    + multiplier);
+        }
+        boolean wasAffected = isAffected(streetId);
+        if (multiplier == 1) {
+            set(weighted, streetId, false);
+            multipliers.remove(streetId);
+        } else {
+            multipliers.put(streetId, multiplier);
+            set(weighted, streetId, true);
+        }
+        changed(wasAffected, isAffected(streetId));
+    }
+
+    /**
+     * Closes both directions of the streets with the given id.
+     * 
+     * @return the number of streets closed
+     */
+    public synchronized int close(String id) {
+        int[] streets = getStreets(id);
+        if (streets == null) {
+            return 0;
+        }
+        for (int streetId : streets) {
+            close(streetId);
+        }
+        return streets.length;
+    }
+
+    /**
+     * Opens both directions of the streets with the given id.
+     * 
+     * @return the number of streets opened
+     */
+    public synchronized int open(String id) {
+        int[] streets = getStreets(id);
+        if (streets == null) {
+            return 0;
+        }
+        for (int streetId : streets) {
+            open(streetId);
+        }
+        return streets.length;
+    }
+
+    /**
+     * Sets the cost multiplier of both directions of the streets with the given id.
+     * 
+     * @return the number of streets reweighted
+     */
+    public synchronized int setCostMultiplier(String id, double multiplier) {
+        int[] streets = getStreets(id);
+        if (streets == null) {
+            return 0;
+        }
+        for (int streetId : streets) {
+            setCostMultiplier(streetId, multiplier);
+        }
+        return streets.length;
+    }
+
+    /**
+     * Opens every street and removes every cost multiplier.
+     */
+    public synchronized void clear() {
+        for (int word = 0; word < closed.length(); ++word) {
+            closed.set(word, 0);
+            weighted.set(word, 0);
+        }
+        multipliers.clear();
+        nAffected = 0;
+        ++version;
+    }
+
+    private void checkStreet(int streetId) {
+        if (streetId < 0 || streetId >= nStreets) {
+            throw new IllegalArgumentException("no street " + streetId);
+        }
+    }
+
+    /* called with the lock held */
+    private void changed(boolean wasAffected, boolean isAffected) {
+        if (wasAffected != isAffected) {
+            nAffected += isAffected ? 1 : -1;
+        }
+        ++version;
+    }
+
+    private boolean get(AtomicLongArray bits, int streetId) {
+        if (streetId < 0 || streetId >= nStreets) {
+            return false;
+        }
+        return (bits.get(streetId >> 6) & (1L << streetId)) != 0;
+    }
+
+    /* writers hold the lock, so a plain read and write of the word is enough */
+    private void set(AtomicLongArray bits, int streetId, boolean value) {
+        int word = streetId >> 6;
+        long mask = 1L << streetId;
+        long old = bits.get(word);
+        bits.set(word, value ? old | mask : old & ~mask);
+    }
+}
@@ -1,5 +1,6 @@
 package org.opentripplanner.routing.edgetype;
 
+import org.opentripplanner.common.geometry.PackedLengthIndexedLine;
 import org.opentripplanner.routing.core.TraverseOptions;
 
 /** Interface for edges representing streets */
@@ -7,4 +8,5 @@ public interface StreetEdge extends EdgeWithElevation {
     public boolean canTraverse(TraverseOptions options);
     public double getLength();
     public StreetTraversalPermission getPermission();
+    public PackedLengthIndexedLine getLengthIndexedLine();
 }
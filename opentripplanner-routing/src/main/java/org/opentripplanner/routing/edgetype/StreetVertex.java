@@ -13,15 +13,15 @@
 
 package org.opentripplanner.routing.edgetype;
 
-import java.util.LinkedList;
-import java.util.List;
-
 import org.opentripplanner.common.geometry.DirectionUtils;
 import org.opentripplanner.common.geometry.PackedCoordinateSequence;
+import org.opentripplanner.common.geometry.PackedLengthIndexedLine;
 import org.opentripplanner.routing.core.GenericVertex;
 import org.opentripplanner.routing.core.State;
 import org.opentripplanner.routing.core.TraverseMode;
 import org.opentripplanner.routing.core.TraverseOptions;
+import org.opentripplanner.routing.util.CompactElevationProfile;
+import org.opentripplanner.routing.util.ElevationUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -41,6 +41,8 @@ public class StreetVertex extends GenericVertex {
 
     public LineString geometry;
 
+    protected PackedLengthIndexedLine lengthIndexedLine;
+
     protected boolean wheelchairAccessible = true;
 
     protected double maxSlope;
@@ -67,6 +69,9 @@ public class StreetVertex extends GenericVertex {
 
     protected String edgeId;
 
+    /* the number of this street in the graph's StreetClosures */
+    protected int streetId = -1;
+
     protected static Coordinate getCoord(LineString geometry) {
         return geometry.getCoordinateN(0);
     }
@@ -83,6 +88,7 @@ public class StreetVertex extends GenericVertex {
         this.permission = StreetTraversalPermission.ALL;
 
         if (geometry != null) {
+            lengthIndexedLine = new PackedLengthIndexedLine(geometry);
             double angleR = DirectionUtils.getLastAngle(geometry);
             outAngle = ((int) (180 * angleR / Math.PI) + 180 + 360) % 360;
             angleR = DirectionUtils.getFirstAngle(geometry);
@@ -92,6 +98,7 @@ public class StreetVertex extends GenericVertex {
 
     public void setGeometry(LineString g) {
         geometry = g;
+        lengthIndexedLine = g == null ? null : new PackedLengthIndexedLine(g);
     }
 
     public PackedCoordinateSequence getElevationProfile() {
@@ -109,23 +116,19 @@ public class StreetVertex extends GenericVertex {
     public PackedCoordinateSequence getElevationProfile(double start, double end) {
         if (elevationProfile == null)
             return null;
-        List<Coordinate> coordList = new LinkedList<Coordinate>();
 
         if (start < 0)
             start = 0;
         if (end > length)
             end = length;
 
-        for (Coordinate coord : elevationProfile.toCoordinateArray()) {
-            if (coord.x >= start && coord.x <= end) {
-                coordList.add(new Coordinate(coord.x - start, coord.y));
-            }
-        }
-
-        Coordinate coordArr[] = new Coordinate[coordList.size()];
-        return new PackedCoordinateSequence.Double(coordList.toArray(coordArr));
+        return ElevationUtils.getPartialElevationProfile(elevationProfile, start, end);
     }
 
+    /**
+     * Sets the elevation profile, storing it as a {@link CompactElevationProfile} if it is sampled
+     * at a fixed step. The slope costs are computed from the profile as given.
+     */
     public void setElevationProfile(PackedCoordinateSequence elev) {
         if (elev == null) {
             return;
@@ -134,9 +137,9 @@ public class StreetVertex extends GenericVertex {
             elev = new PackedCoordinateSequence.Float(new Coordinate[] { new Coordinate(0f, 0f) },
                     2);
         }
-        elevationProfile = elev;
+        elevationProfile = CompactElevationProfile.compact(elev);
         // compute the cost of the elevation changes
-        Coordinate[] coordinates = elevationProfile.toCoordinateArray();
+        Coordinate[] coordinates = elev.toCoordinateArray();
         slopeSpeedEffectiveLength = 0;
         slopeCostEffectiveLength = 0;
         for (int i = 0; i < coordinates.length - 1; ++i) {
@@ -287,6 +290,9 @@ public class StreetVertex extends GenericVertex {
     }
 
     public boolean canTraverse(TraverseOptions wo) {
+        if (wo.getStreetCostMultiplier(streetId) == StreetClosures.CLOSED) {
+            return false;
+        }
         if (wo.wheelchairAccessible) {
             if (!wheelchairAccessible) {
                 return false;
@@ -339,6 +345,7 @@ public class StreetVertex extends GenericVertex {
         }
         weight *= options.distanceWalkFactor(s0.walkDistance + length / 2);
         weight *= options.walkReluctance;
+        weight *= options.getStreetCostMultiplier(streetId);
         return weight;
     }
 
@@ -358,10 +365,30 @@ public class StreetVertex extends GenericVertex {
         return edgeId;
     }
 
+    public int getStreetId() {
+        return streetId;
+    }
+
+    public void setStreetId(int streetId) {
+        this.streetId = streetId;
+    }
+
     public LineString getGeometry() {
         return geometry;
     }
 
+    /**
+     * @return the geometry of this street with precomputed segment lengths, for fast projection
+     *         and splitting
+     */
+    public PackedLengthIndexedLine getLengthIndexedLine() {
+        if (lengthIndexedLine == null && geometry != null) {
+            // graphs serialized before this index existed
+            lengthIndexedLine = new PackedLengthIndexedLine(geometry);
+        }
+        return lengthIndexedLine;
+    }
+
     public double getLength() {
         return length;
     }
@@ -0,0 +1,76 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.edgetype;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The real-time state of a graph's timetables at one moment: a {@link TripTimesOverlay} for each
+ * pattern with updated trips. Snapshots are immutable; updates make a new one, which is
+ * published through {@link org.opentripplanner.routing.core.TransitDictionary} in a single
+ * write, so that a search sees either all of a batch of updates or none of it.
+ */
+public class TimetableSnapshot {
+
+    private final IdentityHashMap<TripPattern, TripTimesOverlay> overlays;
+
+    public TimetableSnapshot() {
+        this(new IdentityHashMap<TripPattern, TripTimesOverlay>());
+    }
+
+    private TimetableSnapshot(IdentityHashMap<TripPattern, TripTimesOverlay> overlays) {
+        this.overlays = overlays;
+    }
+
+    /**
+     * @return the pattern with its real-time times, or the pattern itself if it has no updates
+     */
+    public TripPattern getPattern(TripPattern pattern) {
+        TripTimesOverlay overlay = overlays.get(pattern);
+        return overlay == null ? pattern : overlay;
+    }
+
+    /**
+     * @return the overlay of the given scheduled pattern, or null if it has no updates
+     */
+    public TripTimesOverlay getOverlay(TripPattern pattern) {
+        return overlays.get(pattern);
+    }
+
+    public int getNumPatterns() {
+        return overlays.size();
+    }
+
+    public boolean isEmpty() {
+        return overlays.isEmpty();
+    }
+
+    /**
+     * @return a snapshot with the given overlays in place of this one's for their patterns;
+     *         overlays with no updated trips are dropped
+     */
+    public TimetableSnapshot update(Map<TripPattern, TripTimesOverlay> changes) {
+        IdentityHashMap<TripPattern, TripTimesOverlay> updated = new IdentityHashMap<TripPattern, TripTimesOverlay>(
+                overlays);
+        for (Map.Entry<TripPattern, TripTimesOverlay> change : changes.entrySet()) {
+            if (change.getValue().getNumUpdatedTrips() == 0) {
+                updated.remove(change.getKey());
+            } else {
+                updated.put(change.getKey(), change.getValue());
+            }
+        }
+        return new TimetableSnapshot(updated);
+    }
+}
@@ -77,6 +77,11 @@ public class TransferEdge extends AbstractEdge {
         return distance;
     }
 
+    /** The time in seconds it takes to complete this transfer */
+    public int getTime() {
+        return time;
+    }
+
     public Geometry getGeometry() {
         return geometry;
     }
@@ -15,8 +15,10 @@ package org.opentripplanner.routing.edgetype;
 
 import java.util.Iterator;
 
+import org.onebusaway.gtfs.model.AgencyAndId;
 import org.onebusaway.gtfs.model.Trip;
 import org.opentripplanner.routing.core.FareContext;
+import org.opentripplanner.routing.core.TransitDictionary;
 
 /**
  * Represents a class of trips distinguished by service id and list of stops. For each stop, there
@@ -66,9 +68,21 @@ public interface TripPattern {
     /** Gets the accessibility of a given stop on a given trip */ 
     public boolean getWheelchairAccessible(int stopIndex, int trip);
 
-    /** Gets the Trip object for a given trip index */
+    /**
+     * Gets the Trip object for a given trip index; patterns in a built graph give a copy from
+     * their dictionary holding only its display fields
+     */
     public Trip getTrip(int trip);
 
+    /** Gets the code of a given trip in the pattern's dictionary */
+    public int getTripCode(int trip);
+
+    /** Gets the dictionary of the pattern's trip codes, shared graph-wide */
+    public TransitDictionary getDictionary();
+
+    /** Gets the number of trips on this pattern */
+    public int getNumTrips();
+
     /** Returns whether passengers can alight at a given stop */
     public boolean canAlight(int stopIndex);
 
@@ -84,6 +98,12 @@ public interface TripPattern {
     /** Returns an arbitrary trip that uses this pattern */
     public Trip getExemplar();
 
+    /** Returns the code, in the pattern's dictionary, of the route of this pattern's trips */
+    public int getRouteCode();
+
+    /** Returns the service id of this pattern's trips */
+    public AgencyAndId getServiceId();
+
     /** Returns the shortest possible running time for this stop */
     public int getBestRunningTime(int stopIndex);
 
@@ -0,0 +1,98 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.edgetype;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The time profiles of the trips of a graph: for each trip, its times relative to its first
+ * departure. Many trips -- and often trips of different patterns -- run to the same profile, so
+ * each distinct profile is stored once, and {@link ArrayTripPattern}s keep only an id and a start
+ * time for each trip.
+ */
+public class TripTimeProfiles implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private int[][] profiles = new int[16][];
+
+    private int nProfiles = 0;
+
+    /* rebuilt from the profiles when needed after deserialization */
+    private transient HashMap<ProfileKey, Integer> ids;
+
+    /**
+     * @return the id of the given profile, adding it if no equal profile is already present; the
+     *         array must not be modified afterwards
+     */
+    public synchronized int intern(int[] profile) {
+        if (ids == null) {
+            ids = new HashMap<ProfileKey, Integer>();
+            for (int i = 0; i < nProfiles; ++i) {
+                ids.put(new ProfileKey(profiles[i]), i);
+            }
+        }
+        ProfileKey key = new ProfileKey(profile);
+        Integer id = ids.get(key);
+        if (id != null) {
+            return id;
+        }
+        if (nProfiles == profiles.length) {
+            profiles = Arrays.copyOf(profiles, profiles.length * 2);
+        }
+        profiles[nProfiles] = profile;
+        ids.put(key, nProfiles);
+        return nProfiles++;
+    }
+
+    /**
+     * @return the profile with the given id; must not be modified
+     */
+    public int[] getProfile(int id) {
+        return profiles[id];
+    }
+
+    public int getNumProfiles() {
+        return nProfiles;
+    }
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        profiles = Arrays.copyOf(profiles, Math.max(nProfiles, 1));
+        out.defaultWriteObject();
+    }
+
+    private static class ProfileKey {
+
+        private int[] profile;
+
+        private int hashCode;
+
+        public ProfileKey(int[] profile) {
+            this.profile = profile;
+            this.hashCode = Arrays.hashCode(profile);
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof ProfileKey && Arrays.equals(profile, ((ProfileKey) o).profile);
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
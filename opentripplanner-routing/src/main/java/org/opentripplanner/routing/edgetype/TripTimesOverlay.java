@@ -0,0 +1,347 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.edgetype;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Trip;
+import org.opentripplanner.routing.core.FareContext;
+import org.opentripplanner.routing.core.TransitDictionary;
+
+/**
+ * A TripPattern with real-time times for some of its trips, over the scheduled pattern. Updated
+ * trips get their own departure and arrival columns; cancelled trips are never found as the next
+ * or previous trip. Everything else is the scheduled pattern's.
+ * 
+ * Overlays are immutable: an update gives a new overlay sharing the unchanged columns, so that a
+ * search holding one sees the same times throughout.
+ * 
+ * Updated trips may overtake others, so the next and previous trips are found by skipping the
+ * updated trips in the scheduled pattern's answer and then comparing the updated trips' own
+ * times; this costs time in the number of updated trips of the pattern.
+ */
+public class TripTimesOverlay implements TripPattern {
+
+    private final TripPattern pattern;
+
+    private final int nHops;
+
+    /*
+     * The updated trips, sorted, with the departure from each stop but the last and the arrival
+     * at each stop but the first; both columns are null for a cancelled trip.
+     */
+    private final int[] trips;
+
+    private final int[][] departures;
+
+    private final int[][] arrivals;
+
+    private final int[] bestRunningTimes;
+
+    private final int[] bestDwellTimes;
+
+    public TripTimesOverlay(TripPattern pattern, int nHops) {
+        this(pattern, nHops, new int[0], new int[0][], new int[0][]);
+    }
+
+    private TripTimesOverlay(TripPattern pattern, int nHops, int[] trips, int[][] departures,
+            int[][] arrivals) {
+        this.pattern = pattern;
+        this.nHops = nHops;
+        this.trips = trips;
+        this.departures = departures;
+        this.arrivals = arrivals;
+
+        /* updated trips may run faster than any scheduled one */
+        bestRunningTimes = new int[nHops];
+        bestDwellTimes = new int[nHops];
+        for (int i = 0; i < nHops; ++i) {
+            bestRunningTimes[i] = pattern.getBestRunningTime(i);
+            bestDwellTimes[i] = pattern.getBestDwellTime(i);
+            for (int k = 0; k < trips.length; ++k) {
+                if (departures[k] != null) {
+                    bestRunningTimes[i] = Math.min(bestRunningTimes[i], arrivals[k][i]
+                            - departures[k][i]);
+                    if (i > 0) {
+                        bestDwellTimes[i] = Math.min(bestDwellTimes[i], departures[k][i]
+                                - arrivals[k][i - 1]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return an overlay in which the given trip departs each stop but the last and arrives at
+     *         each stop but the first at the given times
+     */
+    public TripTimesOverlay update(int trip, int[] tripDepartures, int[] tripArrivals) {
+        if (tripDepartures.length != nHops || tripArrivals.length != nHops) {
+            throw new IllegalArgumentException("expected " + nHops + " times, got "
+                    + tripDepartures.length + " departures and " + tripArrivals.length
+                    + " arrivals");
+        }
+        return with(trip, tripDepartures.clone(), tripArrivals.clone());
+    }
+
+    /**
+     * @return an overlay in which the given trip does not run
+     */
+    public TripTimesOverlay cancel(int trip) {
+        return with(trip, null, null);
+    }
+
+    /**
+     * @return an overlay in which the given trip runs to its scheduled times
+     */
+    public TripTimesOverlay restore(int trip) {
+        int k = Arrays.binarySearch(trips, trip);
+        if (k < 0) {
+            return this;
+        }
+        int n = trips.length - 1;
+        int[] newTrips = new int[n];
+        int[][] newDepartures = new int[n][];
+        int[][] newArrivals = new int[n][];
+        System.arraycopy(trips, 0, newTrips, 0, k);
+        System.arraycopy(trips, k + 1, newTrips, k, n - k);
+        System.arraycopy(departures, 0, newDepartures, 0, k);
+        System.arraycopy(departures, k + 1, newDepartures, k, n - k);
+        System.arraycopy(arrivals, 0, newArrivals, 0, k);
+        System.arraycopy(arrivals, k + 1, newArrivals, k, n - k);
+        return new TripTimesOverlay(pattern, nHops, newTrips, newDepartures, newArrivals);
+    }
+
+    private TripTimesOverlay with(int trip, int[] tripDepartures, int[] tripArrivals) {
+        int k = Arrays.binarySearch(trips, trip);
+        int[] newTrips;
+        int[][] newDepartures;
+        int[][] newArrivals;
+        if (k >= 0) {
+            newTrips = trips;
+            newDepartures = departures.clone();
+            newArrivals = arrivals.clone();
+        } else {
+            k = -k - 1;
+            int n = trips.length + 1;
+            newTrips = new int[n];
+            newDepartures = new int[n][];
+            newArrivals = new int[n][];
+            System.arraycopy(trips, 0, newTrips, 0, k);
+            System.arraycopy(trips, k, newTrips, k + 1, n - k - 1);
+            System.arraycopy(departures, 0, newDepartures, 0, k);
+            System.arraycopy(departures, k, newDepartures, k + 1, n - k - 1);
+            System.arraycopy(arrivals, 0, newArrivals, 0, k);
+            System.arraycopy(arrivals, k, newArrivals, k + 1, n - k - 1);
+            newTrips[k] = trip;
+        }
+        newDepartures[k] = tripDepartures;
+        newArrivals[k] = tripArrivals;
+        return new TripTimesOverlay(pattern, nHops, newTrips, newDepartures, newArrivals);
+    }
+
+    /**
+     * @return the scheduled pattern under this overlay
+     */
+    public TripPattern getScheduledPattern() {
+        return pattern;
+    }
+
+    public int getNumHops() {
+        return nHops;
+    }
+
+    /**
+     * @return the number of updated or cancelled trips
+     */
+    public int getNumUpdatedTrips() {
+        return trips.length;
+    }
+
+    public boolean isUpdated(int trip) {
+        return Arrays.binarySearch(trips, trip) >= 0;
+    }
+
+    public boolean isCancelled(int trip) {
+        int k = Arrays.binarySearch(trips, trip);
+        return k >= 0 && departures[k] == null;
+    }
+
+    public int getNextTrip(int stopIndex, int afterTime, boolean wheelchairAccessible,
+            boolean pickup) {
+        if (pickup ? !pattern.canBoard(stopIndex) : !pattern.canAlight(stopIndex)) {
+            return -1;
+        }
+        /* the first scheduled trip that has not been updated */
+        int best = pattern.getNextTrip(stopIndex, afterTime, wheelchairAccessible, pickup);
+        if (best >= 0) {
+            int n = pattern.getNumTrips();
+            while (best < n
+                    && (isUpdated(best) || wheelchairAccessible
+                            && !pattern.getWheelchairAccessible(stopIndex, best))) {
+                ++best;
+            }
+            if (best == n) {
+                best = -1;
+            }
+        }
+        int bestTime = best < 0 ? Integer.MAX_VALUE : pattern.getDepartureTime(stopIndex, best);
+        /* unless an updated trip departs earlier */
+        for (int k = 0; k < trips.length; ++k) {
+            if (departures[k] == null) {
+                continue;
+            }
+            int time = getDeparture(k, stopIndex);
+            if (time >= afterTime && time < bestTime
+                    && (!wheelchairAccessible || pattern.getWheelchairAccessible(stopIndex,
+                            trips[k]))) {
+                best = trips[k];
+                bestTime = time;
+            }
+        }
+        return best;
+    }
+
+    public int getPreviousTrip(int stopIndex, int beforeTime, boolean wheelchairAccessible,
+            boolean pickup) {
+        if (pickup ? !pattern.canBoard(stopIndex + 1) : !pattern.canAlight(stopIndex + 1)) {
+            return -1;
+        }
+        /* the last scheduled trip that has not been updated */
+        int best = pattern.getPreviousTrip(stopIndex, beforeTime, wheelchairAccessible, pickup);
+        while (best >= 0
+                && (isUpdated(best) || wheelchairAccessible
+                        && !pattern.getWheelchairAccessible(stopIndex + 1, best))) {
+            --best;
+        }
+        int bestTime = best < 0 ? Integer.MIN_VALUE : pattern.getArrivalTime(stopIndex, best);
+        /* unless an updated trip arrives later */
+        for (int k = 0; k < trips.length; ++k) {
+            if (arrivals[k] == null) {
+                continue;
+            }
+            int time = arrivals[k][stopIndex];
+            if (time <= beforeTime && time > bestTime
+                    && (!wheelchairAccessible || pattern.getWheelchairAccessible(stopIndex + 1,
+                            trips[k]))) {
+                best = trips[k];
+                bestTime = time;
+            }
+        }
+        return best;
+    }
+
+    /* the departure from a stop, the last stop's being its arrival */
+    private int getDeparture(int k, int stopIndex) {
+        return stopIndex < nHops ? departures[k][stopIndex] : arrivals[k][nHops - 1];
+    }
+
+    public int getDepartureTime(int stopIndex, int trip) {
+        int k = Arrays.binarySearch(trips, trip);
+        if (k < 0 || departures[k] == null) {
+            return pattern.getDepartureTime(stopIndex, trip);
+        }
+        return getDeparture(k, stopIndex);
+    }
+
+    public int getArrivalTime(int stopIndex, int trip) {
+        int k = Arrays.binarySearch(trips, trip);
+        if (k < 0 || arrivals[k] == null) {
+            return pattern.getArrivalTime(stopIndex, trip);
+        }
+        return arrivals[k][stopIndex];
+    }
+
+    public int getRunningTime(int stopIndex, int trip) {
+        int k = Arrays.binarySearch(trips, trip);
+        if (k < 0 || departures[k] == null) {
+            return pattern.getRunningTime(stopIndex, trip);
+        }
+        return arrivals[k][stopIndex] - departures[k][stopIndex];
+    }
+
+    public int getDwellTime(int stopIndex, int trip) {
+        int k = Arrays.binarySearch(trips, trip);
+        if (k < 0 || departures[k] == null || stopIndex == 0) {
+            return pattern.getDwellTime(stopIndex, trip);
+        }
+        return departures[k][stopIndex] - arrivals[k][stopIndex - 1];
+    }
+
+    public Iterator<Integer> getDepartureTimes(int stopIndex) {
+        int[] times = new int[pattern.getNumTrips()];
+        for (int trip = 0; trip < times.length; ++trip) {
+            times[trip] = getDepartureTime(stopIndex, trip);
+        }
+        return new IntArrayIterator(times);
+    }
+
+    public int getBestRunningTime(int stopIndex) {
+        return stopIndex < nHops ? bestRunningTimes[stopIndex] : pattern.getBestRunningTime(stopIndex);
+    }
+
+    public int getBestDwellTime(int stopIndex) {
+        return stopIndex < nHops ? bestDwellTimes[stopIndex] : pattern.getBestDwellTime(stopIndex);
+    }
+
+    public boolean getWheelchairAccessible(int stopIndex, int trip) {
+        return pattern.getWheelchairAccessible(stopIndex, trip);
+    }
+
+    public Trip getTrip(int trip) {
+        return pattern.getTrip(trip);
+    }
+
+    public int getTripCode(int trip) {
+        return pattern.getTripCode(trip);
+    }
+
+    public TransitDictionary getDictionary() {
+        return pattern.getDictionary();
+    }
+
+    public int getNumTrips() {
+        return pattern.getNumTrips();
+    }
+
+    public boolean canAlight(int stopIndex) {
+        return pattern.canAlight(stopIndex);
+    }
+
+    public boolean canBoard(int stopIndex) {
+        return pattern.canBoard(stopIndex);
+    }
+
+    public String getZone(int stopIndex) {
+        return pattern.getZone(stopIndex);
+    }
+
+    public FareContext getFareContext() {
+        return pattern.getFareContext();
+    }
+
+    public Trip getExemplar() {
+        return pattern.getExemplar();
+    }
+
+    public int getRouteCode() {
+        return pattern.getRouteCode();
+    }
+
+    public AgencyAndId getServiceId() {
+        return pattern.getServiceId();
+    }
+}
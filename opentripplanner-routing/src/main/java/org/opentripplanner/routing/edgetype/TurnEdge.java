@@ -17,6 +17,7 @@ import java.io.Serializable;
 
 import org.onebusaway.gtfs.model.Trip;
 import org.opentripplanner.common.geometry.PackedCoordinateSequence;
+import org.opentripplanner.common.geometry.PackedLengthIndexedLine;
 import org.opentripplanner.routing.core.State;
 import org.opentripplanner.routing.core.TraverseMode;
 import org.opentripplanner.routing.core.TraverseOptions;
@@ -184,4 +185,9 @@ public class TurnEdge implements EdgeWithElevation, StreetEdge, Serializable {
     public StreetTraversalPermission getPermission() {
         return fromv.getPermission();
     }
+
+    @Override
+    public PackedLengthIndexedLine getLengthIndexedLine() {
+        return fromv.getLengthIndexedLine();
+    }
 }
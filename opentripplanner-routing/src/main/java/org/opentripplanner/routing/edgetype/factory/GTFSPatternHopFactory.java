@@ -16,6 +16,7 @@ package org.opentripplanner.routing.edgetype.factory;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -23,6 +24,13 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.onebusaway.gtfs.model.AgencyAndId;
 import org.onebusaway.gtfs.model.FareAttribute;
@@ -44,6 +52,7 @@ import org.opentripplanner.routing.core.GenericVertex;
 import org.opentripplanner.routing.core.Graph;
 import org.opentripplanner.routing.core.GraphVertex;
 import org.opentripplanner.routing.core.TransitStop;
+import org.opentripplanner.routing.core.TransitDictionary;
 import org.opentripplanner.routing.core.TraverseMode;
 import org.opentripplanner.routing.core.Vertex;
 import org.opentripplanner.routing.edgetype.Alight;
@@ -51,6 +60,7 @@ import org.opentripplanner.routing.edgetype.BasicTripPattern;
 import org.opentripplanner.routing.edgetype.Board;
 import org.opentripplanner.routing.edgetype.Dwell;
 import org.opentripplanner.routing.edgetype.FreeEdge;
+import org.opentripplanner.routing.edgetype.FrequencyBasedTripPattern;
 import org.opentripplanner.routing.edgetype.Hop;
 import org.opentripplanner.routing.edgetype.PathwayEdge;
 import org.opentripplanner.routing.edgetype.PatternAlight;
@@ -61,6 +71,7 @@ import org.opentripplanner.routing.edgetype.PatternHop;
 import org.opentripplanner.routing.edgetype.PatternInterlineDwell;
 import org.opentripplanner.routing.edgetype.TransferEdge;
 import org.opentripplanner.routing.edgetype.TripPattern;
+import org.opentripplanner.routing.edgetype.TripTimeProfiles;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -137,6 +148,10 @@ class EncodedTrip implements Comparable<EncodedTrip> {
                 && pattern.equals(eto.pattern);
     }
 
+    public int hashCode() {
+        return trip.hashCode() ^ patternIndex + pattern.hashCode();
+    }
+
     public String toString() {
         return "EncodedTrip(" + this.trip + ", " + this.patternIndex + ", " + this.pattern + ")";
     }
@@ -151,9 +166,37 @@ class EncodedTrip implements Comparable<EncodedTrip> {
         return stops.get(stops.size() - 1);
     }
 
+    /* cached, since the DAO may create new stop times on each call */
+    private StopTime firstStop;
+
     public StopTime getFirstStop(GtfsRelationalDao dao) {
-        List<StopTime> stops = dao.getStopTimesForTrip(pattern.getExemplar());
-        return stops.get(0);
+        if (firstStop == null) {
+            firstStop = dao.getStopTimesForTrip(pattern.getExemplar()).get(0);
+        }
+        return firstStop;
+    }
+}
+
+/**
+ * A TripStopTimes is an intermediate object used during GTFS processing. It holds a trip's stop
+ * times, read and interpolated ahead of adding the trip to its pattern, along with the geometries
+ * of its hops if it is the first trip of a pattern.
+ */
+class TripStopTimes {
+    Trip trip;
+
+    /* null if the trip has fewer than two stops */
+    StopPattern stopPattern;
+
+    List<StopTime> stopTimes;
+
+    /* null unless the trip is frequency-based */
+    List<Frequency> frequencies;
+
+    Geometry[] hopGeometries;
+
+    public TripStopTimes(Trip trip) {
+        this.trip = trip;
     }
 }
 
@@ -164,20 +207,32 @@ public class GTFSPatternHopFactory {
 
     private final Logger _log = LoggerFactory.getLogger(GTFSPatternHopFactory.class);
 
+    /* the number of trips read by each task */
+    private static final int TRIPS_PER_TASK = 50;
+
     private static GeometryFactory _factory = new GeometryFactory();
 
     private GtfsRelationalDao _dao;
 
-    private Map<ShapeSegmentKey, LineString> _geometriesByShapeSegmentKey = new HashMap<ShapeSegmentKey, LineString>();
+    /* shapes are cut up on several threads at once */
+    private ConcurrentMap<ShapeSegmentKey, LineString> _geometriesByShapeSegmentKey = new ConcurrentHashMap<ShapeSegmentKey, LineString>();
+
+    private ConcurrentMap<AgencyAndId, LineString> _geometriesByShapeId = new ConcurrentHashMap<AgencyAndId, LineString>();
 
-    private Map<AgencyAndId, LineString> _geometriesByShapeId = new HashMap<AgencyAndId, LineString>();
+    /* NO_DISTANCES for shapes without distances, since the map can't hold nulls */
+    private ConcurrentMap<AgencyAndId, double[]> _distancesByShapeId = new ConcurrentHashMap<AgencyAndId, double[]>();
 
-    private Map<AgencyAndId, double[]> _distancesByShapeId = new HashMap<AgencyAndId, double[]>();
+    private static final double[] NO_DISTANCES = new double[0];
 
     private ArrayList<PatternDwell> potentiallyUselessDwells = new ArrayList<PatternDwell> ();
 
     private FareContext fareContext = null;
 
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /* the graph's, shared by the patterns */
+    private TransitDictionary dictionary;
+
     public GTFSPatternHopFactory(GtfsContext context) {
         _dao = context.getDao();
        
@@ -193,10 +248,14 @@ public class GTFSPatternHopFactory {
     }
 
     public static StopPattern stopPatternfromTrip(Trip trip, GtfsRelationalDao dao) {
+        return stopPatternfromTrip(trip, dao.getStopTimesForTrip(trip));
+    }
+
+    private static StopPattern stopPatternfromTrip(Trip trip, List<StopTime> stopTimes) {
         Vector<Stop> stops = new Vector<Stop>();
         Vector<Boolean> pickups = new Vector<Boolean>();
         Vector<Boolean> dropoffs = new Vector<Boolean>();
-        for (StopTime stoptime : dao.getStopTimesForTrip(trip)) {
+        for (StopTime stoptime : stopTimes) {
             stops.add(stoptime.getStop());
             pickups.add(stoptime.getPickupType() != 1);
             dropoffs.add(stoptime.getDropOffType() != 1);
@@ -209,11 +268,25 @@ public class GTFSPatternHopFactory {
         return GtfsLibrary.convertIdToString(id);
     }
 
+    /**
+     * Sets the number of threads reading trips; defaults to the number of processors. The graph
+     * built is the same whatever the number.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
     /**
      * Generate the edges. Assumes that there are already vertices in the graph for the stops.
      */
     public void run(Graph graph) {
 
+        dictionary = graph.getService(TransitDictionary.class);
+        if (dictionary == null) {
+            dictionary = new TransitDictionary();
+            graph.putService(TransitDictionary.class, dictionary);
+        }
+
         // Load stops
         loadStops(graph);
         loadPathways(graph);
@@ -232,6 +305,7 @@ public class GTFSPatternHopFactory {
         Collection<Trip> trips = _dao.getAllTrips();
 
         HashMap<StopPattern, BasicTripPattern> patterns = new HashMap<StopPattern, BasicTripPattern>();
+        HashMap<StopPattern, FrequencyBasedTripPattern> frequencyPatterns = new HashMap<StopPattern, FrequencyBasedTripPattern>();
 
         int index = 0;
 
@@ -262,122 +336,32 @@ public class GTFSPatternHopFactory {
             freqs.add(freq);
         }
 
-        for (Trip trip : trips) {
-
-            if (index % 100 == 0)
-                _log.debug("trips=" + index + "/" + trips.size());
-            index++;
-
-            List<StopTime> originalStopTimes = _dao.getStopTimesForTrip(trip);
-            interpolateStopTimes(originalStopTimes);
-            if (originalStopTimes.size() < 2) {
-                _log
-                        .warn("Trip "
-                                + trip
-                                + " has fewer than two stops.  We will not use it for routing.  This is probably an error in your data");
-                continue;
-            }
-
-            List<List<StopTime>> allStopTimes = new ArrayList<List<StopTime>>();
-            List<Frequency>      frequencies  = tripFrequencies.get(trip);
-
-            StopPattern stopPattern = stopPatternfromTrip(trip, _dao);
-            BasicTripPattern tripPattern = patterns.get(stopPattern);
-            String blockId = trip.getBlockId();
-
-            /*
-             * Trip frequencies are handled by creating new StopTimes for each departure in
-             * a frequency. Since only the departure/arrival times change, the tripPattern
-             * may be reused.
-             *
-             * FIXME: Instead of duplicating StopTimes, create a new set of edgetypes
-             * FIXME: to represent frequency-based trips.
-             */
-            if(frequencies == null) {
-                allStopTimes.add(originalStopTimes);
-            } else {
-                for(Frequency freq : frequencies) {
-                    for(int i = freq.getStartTime(); i < freq.getEndTime(); i += freq.getHeadwaySecs()) {
-                        int diff = i - originalStopTimes.get(0).getArrivalTime();
-                        List<StopTime> newStopTimes = new ArrayList<StopTime>();
-
-                        for(StopTime st : originalStopTimes) {
-                            StopTime modified = cloneStopTime(st);
-                            if(st.isArrivalTimeSet())
-                                modified.setArrivalTime(st.getArrivalTime() + diff);
-                            if(st.isDepartureTimeSet())
-                                modified.setDepartureTime(st.getDepartureTime() + diff);
-                            newStopTimes.add(modified);
-                        }
-                        allStopTimes.add(newStopTimes);
-                    }
-                }
-            }
-
-            for(List<StopTime> stopTimes : allStopTimes) {
-                boolean simple = false;
-
-                if (tripPattern == null) {
-                    tripPattern = makeTripPattern(graph, trip, stopTimes, fareContext);
-
-                    patterns.put(stopPattern, tripPattern);
-                    if (blockId != null && !blockId.equals("")) {
-                        addTripToInterliningMap(tripsByBlockAndStart, trip, stopTimes, tripPattern,
-                                blockId);
-                    }
-                } else {
-                    int insertionPoint = tripPattern.getDepartureTimeInsertionPoint(stopTimes.get(0)
-                            .getDepartureTime());
-                    if (insertionPoint < 0) {
-                        // There's already a departure at this time on this trip pattern. This means
-                        // that either (a) this will have all the same stop times as that one, and thus
-                        // will be a duplicate of it, or (b) it will have different stops, and thus
-                        // break the assumption that trips are non-overlapping.
-                        _log.warn("duplicate first departure time for trip " + trip.getId()
-                                + ".  This will be handled correctly but inefficiently.");
-
-                        simple = true;
-                        createSimpleHops(graph, trip, stopTimes);
-
-                    } else {
-
-                        // try to insert this trip at this location
-
-                        StopTime st1 = null;
-                        int i;
-                        for (i = 0; i < stopTimes.size() - 1; i++) {
-                            StopTime st0 = stopTimes.get(i);
-                            st1 = stopTimes.get(i + 1);
-                            int dwellTime = st0.getDepartureTime() - st0.getArrivalTime();
-                            int runningTime = st1.getArrivalTime() - st0.getDepartureTime();
-                            try {
-                                tripPattern.addHop(i, insertionPoint, st0.getDepartureTime(),
-                                        runningTime, st1.getArrivalTime(), dwellTime,
-                                        trip);
-                            } catch (TripOvertakingException e) {
-                                _log
-                                        .warn("trip "
-                                                + trip.getId()
-                                                + " overtakes another trip with the same stops.  This will be handled correctly but inefficiently.");
-                                // back out trips and revert to the simple method
-                                for (i = i - 1; i >= 0; --i) {
-                                    tripPattern.removeHop(i, insertionPoint);
-                                }
-                                createSimpleHops(graph, trip, stopTimes);
-                                simple = true;
-                                break;
-                            }
-                        }
-                    }
-                    if (!simple) {
-                        if (blockId != null && !blockId.equals("")) {
-                            addTripToInterliningMap(tripsByBlockAndStart, trip, stopTimes, tripPattern,
-                                    blockId);
-                        }
-                        tripPattern.setTripFlags(insertionPoint, (trip.getWheelchairAccessible() != 0) ? TripPattern.FLAG_WHEELCHAIR_ACCESSIBLE : 0);
-                    }
+        /*
+         * Each trip's stop times are read, interpolated and grouped into a stop pattern, and the
+         * hops of trips starting new patterns are cut out of their shapes, on several threads
+         * for a batch of trips at a time. The trips are then added to their patterns one by one,
+         * in the same order as ever, so that the graph doesn't depend on the number of threads.
+         */
+        List<Trip> tripList = new ArrayList<Trip>(trips);
+        primeDao(tripList);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+        try {
+            int batchSize = Math.max(threads, 1) * TRIPS_PER_TASK * 4;
+            for (int start = 0; start < tripList.size(); start += batchSize) {
+                List<TripStopTimes> batch = readTrips(executor, tripList.subList(start, Math
+                        .min(start + batchSize, tripList.size())), tripFrequencies);
+                extractHopGeometries(executor, batch, patterns);
+
+                for (TripStopTimes read : batch) {
+                    if (index % 100 == 0)
+                        _log.debug("trips=" + index + "/" + trips.size());
+                    index++;
+
+                    addTrip(graph, read, patterns, frequencyPatterns, tripsByBlockAndStart);
                 }
             }
+        } finally {
+            executor.shutdown();
         }
 
         HashMap<TripPattern, HashMap<TripPattern, PatternInterlineDwell>> dwellEdges = new HashMap<TripPattern, HashMap<TripPattern, PatternInterlineDwell>>();
@@ -441,7 +425,8 @@ public class GTFSPatternHopFactory {
                                 + id(post.pattern.getExemplar().getId()) + "_" + post.getFirstStop(_dao).getStopSequence() + "_D";
                         Vertex depart = graph.getVertex(departId);
 
-                        dwell = new PatternInterlineDwell(arrive, depart, trip);
+                        dwell = new PatternInterlineDwell(arrive, depart, dictionary
+                                .getTripCode(trip), dictionary);
                         graph.addEdge(dwell);
 
                         if (edges == null) {
@@ -452,7 +437,8 @@ public class GTFSPatternHopFactory {
                     }
                     int departureTime = post.getFirstStop(_dao).getArrivalTime();
                     int dwellTime = departureTime - arrivalTime;
-                    dwell.addTrip(trip.getId(), post.trip.getId(), dwellTime, eTrip.patternIndex, post.patternIndex);
+                    dwell.addTrip(dictionary.getTripCode(trip), dictionary.getTripCode(post.trip),
+                            dwellTime, eTrip.patternIndex, post.patternIndex);
                 }
             }
         }
@@ -463,6 +449,269 @@ public class GTFSPatternHopFactory {
         clearCachedData();
       }
 
+    /**
+     * Builds the DAO's lazily made indices of stop times and shape points, so that they are not
+     * built by several threads at once.
+     */
+    private void primeDao(List<Trip> trips) {
+        if (trips.isEmpty()) {
+            return;
+        }
+        _dao.getStopTimesForTrip(trips.get(0));
+        for (Trip trip : trips) {
+            if (trip.getShapeId() != null) {
+                _dao.getShapePointsForShapeId(trip.getShapeId());
+                break;
+            }
+        }
+    }
+
+    /**
+     * Reads the stop times of a batch of trips in parallel.
+     * 
+     * @return the trips' stop times, in the order of the trips
+     */
+    private List<TripStopTimes> readTrips(ExecutorService executor, List<Trip> trips,
+            final Map<Trip, List<Frequency>> tripFrequencies) {
+        List<Future<List<TripStopTimes>>> futures = new ArrayList<Future<List<TripStopTimes>>>();
+        for (int start = 0; start < trips.size(); start += TRIPS_PER_TASK) {
+            final List<Trip> task = trips.subList(start, Math.min(start + TRIPS_PER_TASK, trips
+                    .size()));
+            futures.add(executor.submit(new Callable<List<TripStopTimes>>() {
+                public List<TripStopTimes> call() {
+                    List<TripStopTimes> read = new ArrayList<TripStopTimes>(task.size());
+                    for (Trip trip : task) {
+                        read.add(readTrip(trip, tripFrequencies.get(trip)));
+                    }
+                    return read;
+                }
+            }));
+        }
+        List<TripStopTimes> read = new ArrayList<TripStopTimes>(trips.size());
+        for (Future<List<TripStopTimes>> future : futures) {
+            read.addAll(getResult(future));
+        }
+        return read;
+    }
+
+    private TripStopTimes readTrip(Trip trip, List<Frequency> frequencies) {
+        TripStopTimes read = new TripStopTimes(trip);
+        List<StopTime> originalStopTimes = _dao.getStopTimesForTrip(trip);
+        interpolateStopTimes(originalStopTimes);
+        if (originalStopTimes.size() < 2) {
+            return read;
+        }
+        read.stopPattern = stopPatternfromTrip(trip, originalStopTimes);
+        read.stopTimes = originalStopTimes;
+        read.frequencies = frequencies;
+        return read;
+    }
+
+    /**
+     * Cuts out the hop geometries of the trips in a batch which will make new patterns, in
+     * parallel. Other trips' hops either join an existing pattern, and need no geometry, or are
+     * rare simple hops, whose geometry is found when they are made.
+     */
+    private void extractHopGeometries(ExecutorService executor, List<TripStopTimes> batch,
+            Map<StopPattern, BasicTripPattern> patterns) {
+        Set<StopPattern> newPatterns = new HashSet<StopPattern>();
+        List<Future<Geometry[]>> futures = new ArrayList<Future<Geometry[]>>();
+        List<TripStopTimes> exemplars = new ArrayList<TripStopTimes>();
+        for (final TripStopTimes read : batch) {
+            if (read.stopPattern == null || patterns.containsKey(read.stopPattern)
+                    || !newPatterns.add(read.stopPattern)) {
+                continue;
+            }
+            exemplars.add(read);
+            futures.add(executor.submit(new Callable<Geometry[]>() {
+                public Geometry[] call() {
+                    return getHopGeometries(read.trip, read.stopTimes);
+                }
+            }));
+        }
+        for (int i = 0; i < exemplars.size(); ++i) {
+            exemplars.get(i).hopGeometries = getResult(futures.get(i));
+        }
+    }
+
+    private Geometry[] getHopGeometries(Trip trip, List<StopTime> stopTimes) {
+        Geometry[] geometries = new Geometry[stopTimes.size() - 1];
+        for (int i = 0; i < geometries.length; ++i) {
+            StopTime st0 = stopTimes.get(i);
+            StopTime st1 = stopTimes.get(i + 1);
+            geometries[i] = getHopGeometry(trip.getShapeId(), st0, st1, getCoordinate(st0
+                    .getStop()), getCoordinate(st1.getStop()));
+        }
+        return geometries;
+    }
+
+    private static Coordinate getCoordinate(Stop stop) {
+        return new Coordinate(stop.getLon(), stop.getLat());
+    }
+
+    private <T> T getResult(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException("interrupted while reading trips", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("error reading trips", e.getCause());
+        }
+    }
+
+    /**
+     * Adds a frequency-based trip's windows to the frequency-based pattern for its stops, making
+     * the pattern if need be.
+     * 
+     * @return false if the trip must instead be expanded into individual trips: when it is
+     *         interlined, or when its windows or times don't fit the pattern
+     */
+    private boolean addFrequencyTrip(Graph graph, TripStopTimes read,
+            HashMap<StopPattern, FrequencyBasedTripPattern> frequencyPatterns) {
+        Trip trip = read.trip;
+        String blockId = trip.getBlockId();
+        if (blockId != null && !blockId.equals("")) {
+            return false;
+        }
+        FrequencyBasedTripPattern tripPattern = frequencyPatterns.get(read.stopPattern);
+        if (tripPattern != null) {
+            return tripPattern.addWindows(trip, read.stopTimes, read.frequencies);
+        }
+        tripPattern = new FrequencyBasedTripPattern(trip, read.stopTimes, fareContext,
+                dictionary);
+        if (!tripPattern.addWindows(trip, read.stopTimes, read.frequencies)) {
+            return false;
+        }
+        makePatternEdges(graph, trip, read.stopTimes, read.hopGeometries, tripPattern);
+        frequencyPatterns.put(read.stopPattern, tripPattern);
+        return true;
+    }
+
+    /**
+     * Makes new StopTimes for each departure of a frequency-based trip. Since only the
+     * departure/arrival times change, the tripPattern may be reused.
+     */
+    private List<List<StopTime>> expandFrequencies(List<StopTime> originalStopTimes,
+            List<Frequency> frequencies) {
+        List<List<StopTime>> allStopTimes = new ArrayList<List<StopTime>>();
+        for(Frequency freq : frequencies) {
+            for(int i = freq.getStartTime(); i < freq.getEndTime(); i += freq.getHeadwaySecs()) {
+                int diff = i - originalStopTimes.get(0).getArrivalTime();
+                List<StopTime> newStopTimes = new ArrayList<StopTime>();
+
+                for(StopTime st : originalStopTimes) {
+                    StopTime modified = cloneStopTime(st);
+                    if(st.isArrivalTimeSet())
+                        modified.setArrivalTime(st.getArrivalTime() + diff);
+                    if(st.isDepartureTimeSet())
+                        modified.setDepartureTime(st.getDepartureTime() + diff);
+                    newStopTimes.add(modified);
+                }
+                allStopTimes.add(newStopTimes);
+            }
+        }
+        return allStopTimes;
+    }
+
+    /**
+     * Adds a trip to its pattern, making the pattern if it's the first trip with its stops, or
+     * makes simple hops for it if it doesn't fit in the pattern.
+     */
+    private void addTrip(Graph graph, TripStopTimes read,
+            HashMap<StopPattern, BasicTripPattern> patterns,
+            HashMap<StopPattern, FrequencyBasedTripPattern> frequencyPatterns,
+            HashMap<String, HashMap<Stop, TreeSet<EncodedTrip>>> tripsByBlockAndStart) {
+        Trip trip = read.trip;
+
+        if (read.stopPattern == null) {
+            _log
+                    .warn("Trip "
+                            + trip
+                            + " has fewer than two stops.  We will not use it for routing.  This is probably an error in your data");
+            return;
+        }
+
+        StopPattern stopPattern = read.stopPattern;
+        String blockId = trip.getBlockId();
+
+        List<List<StopTime>> allStopTimes;
+        if (read.frequencies == null) {
+            allStopTimes = Collections.singletonList(read.stopTimes);
+        } else if (addFrequencyTrip(graph, read, frequencyPatterns)) {
+            return;
+        } else {
+            allStopTimes = expandFrequencies(read.stopTimes, read.frequencies);
+        }
+
+        BasicTripPattern tripPattern = patterns.get(stopPattern);
+
+        for(List<StopTime> stopTimes : allStopTimes) {
+            boolean simple = false;
+
+            if (tripPattern == null) {
+                tripPattern = makeTripPattern(graph, trip, stopTimes, read.hopGeometries,
+                        fareContext);
+
+                patterns.put(stopPattern, tripPattern);
+                if (blockId != null && !blockId.equals("")) {
+                    addTripToInterliningMap(tripsByBlockAndStart, trip, stopTimes, tripPattern,
+                            blockId);
+                }
+            } else {
+                int insertionPoint = tripPattern.getDepartureTimeInsertionPoint(stopTimes.get(0)
+                        .getDepartureTime());
+                if (insertionPoint < 0) {
+                    // There's already a departure at this time on this trip pattern. This means
+                    // that either (a) this will have all the same stop times as that one, and thus
+                    // will be a duplicate of it, or (b) it will have different stops, and thus
+                    // break the assumption that trips are non-overlapping.
+                    _log.warn("duplicate first departure time for trip " + trip.getId()
+                            + ".  This will be handled correctly but inefficiently.");
+
+                    simple = true;
+                    createSimpleHops(graph, trip, stopTimes);
+
+                } else {
+
+                    // try to insert this trip at this location
+
+                    StopTime st1 = null;
+                    int i;
+                    for (i = 0; i < stopTimes.size() - 1; i++) {
+                        StopTime st0 = stopTimes.get(i);
+                        st1 = stopTimes.get(i + 1);
+                        int dwellTime = st0.getDepartureTime() - st0.getArrivalTime();
+                        int runningTime = st1.getArrivalTime() - st0.getDepartureTime();
+                        try {
+                            tripPattern.addHop(i, insertionPoint, st0.getDepartureTime(),
+                                    runningTime, st1.getArrivalTime(), dwellTime,
+                                    trip);
+                        } catch (TripOvertakingException e) {
+                            _log
+                                    .warn("trip "
+                                            + trip.getId()
+                                            + " overtakes another trip with the same stops.  This will be handled correctly but inefficiently.");
+                            // back out trips and revert to the simple method
+                            for (i = i - 1; i >= 0; --i) {
+                                tripPattern.removeHop(i, insertionPoint);
+                            }
+                            createSimpleHops(graph, trip, stopTimes);
+                            simple = true;
+                            break;
+                        }
+                    }
+                }
+                if (!simple) {
+                    if (blockId != null && !blockId.equals("")) {
+                        addTripToInterliningMap(tripsByBlockAndStart, trip, stopTimes, tripPattern,
+                                blockId);
+                    }
+                    tripPattern.setTripFlags(insertionPoint, (trip.getWheelchairAccessible() != 0) ? TripPattern.FLAG_WHEELCHAIR_ACCESSIBLE : 0);
+                }
+            }
+        }
+    }
+
     private void loadPathways(Graph graph) {
         for (Pathway pathway : _dao.getAllPathways()) {
             Vertex fromVertex = graph.getVertex(id(pathway.getFromStop().getId()));
@@ -500,16 +749,21 @@ public class GTFSPatternHopFactory {
         }
     }
     /**
-     * Replace BasicTripPatterns with ArrayTripPatterns.
+     * Replace BasicTripPatterns with ArrayTripPatterns, sharing trip time profiles graph-wide.
      */
     private void shrinkPatterns(Graph graph) {
+        TripTimeProfiles profiles = graph.getService(TripTimeProfiles.class);
+        if (profiles == null) {
+            profiles = new TripTimeProfiles();
+            graph.putService(TripTimeProfiles.class, profiles);
+        }
         for (GraphVertex gv : graph.getVertices()) {
             for (Edge e: gv.getOutgoing()) {
                 if (e instanceof PatternEdge) {
                     PatternEdge pe = (PatternEdge) e;
                     TripPattern pattern = pe.getPattern();
                     if (pattern instanceof BasicTripPattern) {
-                        pe.setPattern(((BasicTripPattern) pattern).convertToArrayTripPattern());
+                        pe.setPattern(((BasicTripPattern) pattern).convertToArrayTripPattern(profiles));
                     }
                 }
             }
@@ -638,8 +892,47 @@ public class GTFSPatternHopFactory {
         }
     }
 
-    private BasicTripPattern makeTripPattern(Graph graph, Trip trip, List<StopTime> stopTimes, FareContext fareContext) {
-        BasicTripPattern tripPattern = new BasicTripPattern(trip, stopTimes, fareContext);
+    /**
+     * @param hopGeometries the geometries of the hops, or null to find them here
+     */
+    private BasicTripPattern makeTripPattern(Graph graph, Trip trip, List<StopTime> stopTimes,
+            Geometry[] hopGeometries, FareContext fareContext) {
+        BasicTripPattern tripPattern = new BasicTripPattern(trip, stopTimes, fareContext,
+                dictionary);
+        makePatternEdges(graph, trip, stopTimes, hopGeometries, tripPattern);
+
+        for (int i = 0; i < stopTimes.size() - 1; i++) {
+            StopTime st0 = stopTimes.get(i);
+            StopTime st1 = stopTimes.get(i + 1);
+            int dwellTime = st0.getDepartureTime() - st0.getArrivalTime();
+
+            int arrivalTime = st1.getArrivalTime();
+
+            int departureTime = st0.getDepartureTime();
+
+            int runningTime = arrivalTime - departureTime ;
+
+            tripPattern.addHop(i, 0, departureTime, runningTime, arrivalTime, dwellTime,
+                    trip);
+        }
+
+        tripPattern.setTripFlags(0, (trip.getWheelchairAccessible() != 0) ? TripPattern.FLAG_WHEELCHAIR_ACCESSIBLE : 0);
+
+        return tripPattern;
+    }
+
+    /**
+     * Makes the journey vertices of a trip's pattern, and its hops, dwells, boardings and
+     * alightings.
+     * 
+     * @param hopGeometries the geometries of the hops, or null to find them here
+     */
+    private void makePatternEdges(Graph graph, Trip trip, List<StopTime> stopTimes,
+            Geometry[] hopGeometries, TripPattern tripPattern) {
+        if (hopGeometries == null) {
+            hopGeometries = getHopGeometries(trip, stopTimes);
+        }
+        FareContext fareContext = tripPattern.getFareContext();
 
         TraverseMode mode = GtfsLibrary.getTraverseMode(trip.getRoute());
         int lastStop = stopTimes.size() - 1;
@@ -669,7 +962,8 @@ public class GTFSPatternHopFactory {
 
                 PatternDwell dwell = new PatternDwell(startJourneyArrive, startJourneyDepart, i,
                         tripPattern);
-                if (dwellTime == 0) {
+                // only basic patterns can have their dwells removed
+                if (dwellTime == 0 && tripPattern instanceof BasicTripPattern) {
                     potentiallyUselessDwells.add(dwell);
                 }
                 graph.addEdge(dwell);
@@ -678,17 +972,7 @@ public class GTFSPatternHopFactory {
             PatternHop hop = new PatternHop(startJourneyDepart, endJourneyArrive, s0, s1, i,
                     tripPattern);
             hop.setFareContext(fareContext);
-            hop.setGeometry(getHopGeometry(trip.getShapeId(), st0, st1, startJourneyDepart,
-                    endJourneyArrive));
-
-            int arrivalTime = st1.getArrivalTime();
-
-            int departureTime = st0.getDepartureTime();
-
-            int runningTime = arrivalTime - departureTime ;
-
-            tripPattern.addHop(i, 0, departureTime, runningTime, arrivalTime, dwellTime,
-                    trip);
+            hop.setGeometry(hopGeometries[i]);
             graph.addEdge(hop);
 
             Vertex startStation = graph.getVertex(departureVertexId(id(s0.getId())));
@@ -699,10 +983,6 @@ public class GTFSPatternHopFactory {
             graph.addEdge(boarding);
             graph.addEdge(new PatternAlight(endJourneyArrive, endStation, tripPattern, i, mode));
         }
-
-        tripPattern.setTripFlags(0, (trip.getWheelchairAccessible() != 0) ? TripPattern.FLAG_WHEELCHAIR_ACCESSIBLE : 0);
-
-        return tripPattern;
     }
 
     private String arrivalVertexId(String id) {
@@ -784,8 +1064,8 @@ public class GTFSPatternHopFactory {
             graph.addEdge(dwell);
             Hop hop = new Hop(startJourneyDepart, endJourneyArrive, st0, st1);
             hop.setFareContext(fareContext);
-            hop.setGeometry(getHopGeometry(trip.getShapeId(), st0, st1, startJourneyDepart,
-                    endJourneyArrive));
+            hop.setGeometry(getHopGeometry(trip.getShapeId(), st0, st1, startJourneyDepart
+                    .getCoordinate(), endJourneyArrive.getCoordinate()));
             hops.add(hop);
 
             if (st0.getPickupType() != 1) {
@@ -801,7 +1081,7 @@ public class GTFSPatternHopFactory {
     }
 
     private Geometry getHopGeometry(AgencyAndId shapeId, StopTime st0, StopTime st1,
-            Vertex startJourney, Vertex endJourney) {
+            Coordinate startJourney, Coordinate endJourney) {
 
         if (shapeId == null || shapeId.getId() == null || shapeId.getId().equals(""))
             return null;
@@ -836,8 +1116,8 @@ public class GTFSPatternHopFactory {
         LineString line = getLineStringForShapeId(shapeId);
         LocationIndexedLine lol = new LocationIndexedLine(line);
 
-        LinearLocation startCoord = lol.indexOf(startJourney.getCoordinate());
-        LinearLocation endCoord = lol.indexOf(endJourney.getCoordinate());
+        LinearLocation startCoord = lol.indexOf(startJourney);
+        LinearLocation endCoord = lol.indexOf(endJourney);
 
         double distanceFrom = startCoord.getSegmentLength(line);
         double distanceTo = endCoord.getSegmentLength(line);
@@ -861,7 +1141,12 @@ public class GTFSPatternHopFactory {
                     .getCoordinates(), 2);
             geometry = _factory.createLineString(sequence);
 
-            _geometriesByShapeSegmentKey.put(key, (LineString) geometry);
+            // another thread may have got here first; use its geometry, so hops share it
+            Geometry existing = _geometriesByShapeSegmentKey.putIfAbsent(key,
+                    (LineString) geometry);
+            if (existing != null) {
+                geometry = existing;
+            }
         }
 
         return geometry;
@@ -900,15 +1185,17 @@ public class GTFSPatternHopFactory {
 
         CoordinateSequence sequence = new PackedCoordinateSequence.Float(coordinates, 2);
         geometry = _factory.createLineString(sequence);
-        _geometriesByShapeId.put(shapeId, geometry);
-        _distancesByShapeId.put(shapeId, distances);
+        // the distances go first, so that a thread seeing the geometry sees them too
+        _distancesByShapeId.putIfAbsent(shapeId, distances == null ? NO_DISTANCES : distances);
+        LineString existing = _geometriesByShapeId.putIfAbsent(shapeId, geometry);
 
-        return geometry;
+        return existing == null ? geometry : existing;
     }
 
     private double[] getDistanceForShapeId(AgencyAndId shapeId) {
         getLineStringForShapeId(shapeId);
-        return _distancesByShapeId.get(shapeId);
+        double[] distances = _distancesByShapeId.get(shapeId);
+        return distances == NO_DISTANCES ? null : distances;
     }
 
     private LinearLocation getSegmentFraction(double[] distances, double distance) {
@@ -15,14 +15,23 @@ package org.opentripplanner.routing.edgetype.loader;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.opentripplanner.common.geometry.PackedLengthIndexedLine;
 import org.opentripplanner.common.model.P2;
 import org.opentripplanner.routing.core.Edge;
 import org.opentripplanner.routing.core.GenericVertex;
@@ -37,131 +46,182 @@ import org.opentripplanner.routing.edgetype.PlainStreetEdge;
 import org.opentripplanner.routing.edgetype.StreetTransitLink;
 import org.opentripplanner.routing.edgetype.StreetVertex;
 import org.opentripplanner.routing.impl.StreetVertexIndexServiceImpl;
-import org.opentripplanner.routing.location.StreetLocation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.vividsolutions.jts.geom.Coordinate;
-import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.LineString;
-import com.vividsolutions.jts.geom.Point;
 
+/**
+ * Links transit stops to the street network.
+ *
+ * Linking runs in two phases. First, every stop is looked up in the (immutable) street index in
+ * parallel, to find the intersection it is at or the bundle of street edges it is nearest to.
+ * Then, in one thread and in stop label order, the streets are split and the links are added to
+ * the graph, so that the graph built is the same however many threads are used.
+ */
 public class NetworkLinker {
 
     private static Logger _log = LoggerFactory.getLogger(NetworkLinker.class);
 
     private Graph graph;
 
-    HashMap<HashSet<Edge>, LinkedList<P2<PlainStreetEdge>>> replacements;
-
-    private GeometryFactory geometryFactory;
+    /* replacements for each bundle of parallel street edges, in the order they were made */
+    LinkedHashMap<EdgeSet, LinkedList<P2<PlainStreetEdge>>> replacements;
 
     private StreetVertexIndexServiceImpl index;
 
     /* by default traverse options support walking only, which is what we want */
     private TraverseOptions options = new TraverseOptions();
 
+    private int threads = Runtime.getRuntime().availableProcessors();
+
     public NetworkLinker(Graph graph) {
-        replacements = new HashMap<HashSet<Edge>, LinkedList<P2<PlainStreetEdge>>>();
-        this.geometryFactory = new GeometryFactory();
+        replacements = new LinkedHashMap<EdgeSet, LinkedList<P2<PlainStreetEdge>>>();
         this.graph = graph;
     }
 
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
     /**
      * Link the transit network to the street network. Connect each transit vertex to the nearest
      * Street edge with a StreetTransitLink.
-     * @param index 
      */
     public void createLinkage() {
 
         _log.debug("constructing index...");
         index = new StreetVertexIndexServiceImpl(graph);
-        index.setup_modifiable();
+        index.setup();
+
+        List<TransitStop> stops = new ArrayList<TransitStop>();
+        for (GraphVertex gv : graph.getVertices()) {
+            if (gv.vertex instanceof TransitStop && isLinked(gv)) {
+                stops.add((TransitStop) gv.vertex);
+            }
+        }
+        Collections.sort(stops, new Comparator<TransitStop>() {
+            public int compare(TransitStop a, TransitStop b) {
+                return a.getLabel().compareTo(b.getLabel());
+            }
+        });
+
+        _log.debug("finding streets near " + stops.size() + " stops...");
+        List<Candidate> candidates = findCandidates(stops);
 
         _log.debug("creating linkages...");
-        int i = 0;
-        ArrayList<GraphVertex> vertices = new ArrayList<GraphVertex>(graph.getVertices());
-
-        for (GraphVertex gv : vertices) {
-            Vertex v = gv.vertex;
-            if (i % 500 == 0)
-                _log.debug("vertices=" + i + "/" + vertices.size());
-            i++;
-
-            if (v instanceof TransitStop) {
-                // only connect transit stops that (a) are entrances, or (b) have no associated
-                // entrances
-                TransitStop ts = (TransitStop) v;
-                if (!ts.isEntrance()) {
-                    boolean hasEntrance = false;
-
-                    for (Edge e : gv.getOutgoing()) {
-                        if (e instanceof PathwayEdge) {
-                            hasEntrance = true;
-                            break;
-                        }
-                    }
-                    if (hasEntrance) {
-                        // transit stop has entrances
-                        continue;
-                    }
-                }
-
-                Vertex location = getLocation(v, index);
-                if (location == null) {
-                    _log.warn("Stop " + ts + " not near any streets; it will not be usable");
-                    getLocation(v, index);
-                } else {
-                    boolean wheelchairAccessible = ts.hasWheelchairEntrance();
-                    graph.addEdge(new StreetTransitLink(location, v, wheelchairAccessible));
-                    graph.addEdge(new StreetTransitLink(v, location, wheelchairAccessible));
-                }
+        for (Candidate candidate : candidates) {
+            TransitStop ts = candidate.stop;
+            Vertex location = getLocation(candidate);
+            if (location == null) {
+                _log.warn("Stop " + ts + " not near any streets; it will not be usable");
+            } else {
+                boolean wheelchairAccessible = ts.hasWheelchairEntrance();
+                graph.addEdge(new StreetTransitLink(location, ts, wheelchairAccessible));
+                graph.addEdge(new StreetTransitLink(ts, location, wheelchairAccessible));
             }
         }
         /* insert newly created edges into the graph */
-        for (Entry<HashSet<Edge>, LinkedList<P2<PlainStreetEdge>>> entry : replacements.entrySet()) {
-            LinkedList<P2<PlainStreetEdge>> edges = entry.getValue();
+        for (LinkedList<P2<PlainStreetEdge>> edges : replacements.values()) {
             for (P2<PlainStreetEdge> edge : edges) {
                 PlainStreetEdge e1 = edge.getFirst();
                 graph.addEdge(e1);
                 graph.addEdge(edge.getSecond());
             }
         }
+        replacements.clear();
     }
 
-    private Vertex getLocation(Vertex v, StreetVertexIndexServiceImpl index) {
-        Coordinate coordinate = v.getCoordinate();
+    /**
+     * Only connect transit stops that (a) are entrances, or (b) have no associated entrances
+     */
+    private static boolean isLinked(GraphVertex gv) {
+        TransitStop ts = (TransitStop) gv.vertex;
+        if (ts.isEntrance()) {
+            return true;
+        }
+        for (Edge e : gv.getOutgoing()) {
+            if (e instanceof PathwayEdge) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Looks up every stop in the street index, in parallel. Nothing is changed here, so the
+     * lookups can share the index and the graph.
+     *
+     * @return the candidates, in the same order as the stops
+     */
+    private List<Candidate> findCandidates(List<TransitStop> stops) {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+        List<Future<Candidate>> results = new ArrayList<Future<Candidate>>(stops.size());
+        try {
+            for (final TransitStop stop : stops) {
+                results.add(executor.submit(new Callable<Candidate>() {
+                    public Candidate call() {
+                        return findCandidate(stop);
+                    }
+                }));
+            }
+            List<Candidate> candidates = new ArrayList<Candidate>(stops.size());
+            for (Future<Candidate> result : results) {
+                candidates.add(result.get());
+            }
+            return candidates;
+        } catch (InterruptedException e) {
+            throw new RuntimeException("interrupted while linking stops", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("error linking stops", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private Candidate findCandidate(TransitStop stop) {
+        Candidate candidate = new Candidate(stop);
+        Coordinate coordinate = stop.getCoordinate();
         /* right at an intersection? */
-        List<Vertex> atIntersection = index.getIntersectionAt(coordinate);
-        if (atIntersection != null) {
+        candidate.intersection = index.getIntersectionAt(coordinate);
+        if (candidate.intersection == null) {
+            /* split an edge bundle? */
+            Collection<Edge> edges = index.getClosestEdges(coordinate, options);
+            if (edges != null && edges.size() >= 2) {
+                candidate.edges = edges;
+                candidate.edgeSet = new EdgeSet(edges);
+            }
+        }
+        return candidate;
+    }
+
+    private Vertex getLocation(Candidate candidate) {
+        Vertex v = candidate.stop;
+        Coordinate coordinate = v.getCoordinate();
+        if (candidate.intersection != null) {
             /* create a vertex linked to all vertices at intersection */
             Vertex linked = new GenericVertex("link for " + v.getStopId(), coordinate.x,
                     coordinate.y);
             graph.addVertex(linked);
-            for (Vertex i : atIntersection) {
+            for (Vertex i : candidate.intersection) {
                 graph.addEdge(new FreeEdge(linked, i));
             }
             return linked;
         }
-
-        /* split an edge bundle? */
-        Collection<Edge> edges = index.getClosestEdges(coordinate, options );
-        if (edges == null || edges.size() < 2) {
+        if (candidate.edges == null) {
             return null;
         }
-        return createVertex("link for " + v.getStopId(), edges, coordinate);
+        return createVertex("link for " + v.getStopId(), candidate.edges, candidate.edgeSet,
+                coordinate);
     }
 
     /** Create a vertex splitting the set of edges. If necessary, create new edges. */
 
-    private Vertex createVertex(String label, Collection<Edge> edges, Coordinate coordinate) {
+    private Vertex createVertex(String label, Collection<Edge> edges, EdgeSet edgeSet,
+            Coordinate coordinate) {
 
-        if (edges.size() < 2) {
-            // can't replace too few edges
-            return null;
-        }
         // Is this set of edges already replaced?
-        HashSet<Edge> edgeSet = new HashSet<Edge>(edges);
         LinkedList<P2<PlainStreetEdge>> replacement = replacements.get(edgeSet);
         if (replacement == null) {
             // create replacement
@@ -179,10 +239,9 @@ public class NetworkLinker {
         double bestDist = Double.MAX_VALUE;
         P2<PlainStreetEdge> bestPair = null;
 
-        Point p = geometryFactory.createPoint(coordinate);
         for (P2<PlainStreetEdge> pair : replacement) {
-            Edge e1 = pair.getFirst();
-            double dist = e1.getGeometry().distance(p);
+            PlainStreetEdge e1 = pair.getFirst();
+            double dist = e1.getLengthIndexedLine().distance(coordinate);
             if (dist < bestDist) {
                 bestDist = dist;
                 bestPair = pair;
@@ -204,19 +263,18 @@ public class NetworkLinker {
         Vertex v1 = e1.getFromVertex();
         Vertex v2 = e1.getToVertex();
 
-        LineString forwardGeometry = e1.getGeometry();
-        LineString backGeometry = e2.getGeometry();
+        PackedLengthIndexedLine forwardLine = e1.getLengthIndexedLine();
+        PackedLengthIndexedLine backLine = e2.getLengthIndexedLine();
 
-        P2<LineString> forwardGeometryPair = StreetLocation.splitGeometryAtPoint(forwardGeometry,
-                coordinate);
-        P2<LineString> backGeometryPair = StreetLocation.splitGeometryAtPoint(backGeometry,
-                coordinate);
+        double forwardPosition = forwardLine.project(coordinate);
+        P2<LineString> forwardGeometryPair = forwardLine.split(forwardPosition);
+        P2<LineString> backGeometryPair = backLine.split(backLine.project(coordinate));
 
         LineString toMidpoint = forwardGeometryPair.getFirst();
-        Coordinate midCoord = toMidpoint.getEndPoint().getCoordinate();
+        Coordinate midCoord = forwardLine.getCoordinate(forwardPosition);
 
-        double totalGeomLength = forwardGeometry.getLength();
-        double lengthRatioIn = toMidpoint.getLength() / totalGeomLength;
+        double totalGeomLength = forwardLine.getLength();
+        double lengthRatioIn = forwardPosition / totalGeomLength;
         if (lengthRatioIn < 0.00001) {
             return v1;
         } else if (lengthRatioIn > 0.99999) {
@@ -316,7 +374,8 @@ public class NetworkLinker {
 
     private P2<Entry<StreetVertex, Set<Edge>>> findEndVertices(Collection<Edge> edges) {
         // find most common start and end points, which will be ends of this street
-        HashMap<StreetVertex, Set<Edge>> numEdgesStartingAt = new HashMap<StreetVertex, Set<Edge>>();
+        /* in edge order, so that ties are broken the same way every time */
+        Map<StreetVertex, Set<Edge>> numEdgesStartingAt = new LinkedHashMap<StreetVertex, Set<Edge>>();
         for (Edge edge : edges) {
             Set<Edge> starting = numEdgesStartingAt.get(edge.getFromVertex());
             if (starting == null) {
@@ -346,4 +405,45 @@ public class NetworkLinker {
         return new P2<Entry<StreetVertex, Set<Edge>>>(startingVertex, endingVertex);
     }
 
+    /** A stop, and the intersection or street edges the index found for it */
+    private static class Candidate {
+        TransitStop stop;
+
+        List<Vertex> intersection;
+
+        Collection<Edge> edges;
+
+        EdgeSet edgeSet;
+
+        Candidate(TransitStop stop) {
+            this.stop = stop;
+        }
+    }
+
+    /**
+     * An unmodifiable set of edges, for looking up the replacements of a bundle of parallel
+     * edges.
+     */
+    static final class EdgeSet {
+        private final Set<Edge> edges;
+
+        private final int hashCode;
+
+        EdgeSet(Collection<Edge> edges) {
+            this.edges = Collections.unmodifiableSet(new HashSet<Edge>(edges));
+            this.hashCode = this.edges.hashCode();
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof EdgeSet)) {
+                return false;
+            }
+            EdgeSet other = (EdgeSet) o;
+            return hashCode == other.hashCode && edges.equals(other.edges);
+        }
+    }
 }
@@ -0,0 +1,254 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.edgetype.loader;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.opentripplanner.common.geometry.GeometryUtils;
+import org.opentripplanner.routing.core.Edge;
+import org.opentripplanner.routing.core.Graph;
+import org.opentripplanner.routing.core.GraphVertex;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.TransitStop;
+import org.opentripplanner.routing.core.TraverseOptions;
+import org.opentripplanner.routing.core.TraverseResult;
+import org.opentripplanner.routing.core.Vertex;
+import org.opentripplanner.routing.edgetype.FreeEdge;
+import org.opentripplanner.routing.edgetype.PathwayEdge;
+import org.opentripplanner.routing.edgetype.StreetEdge;
+import org.opentripplanner.routing.edgetype.StreetTransitLink;
+import org.opentripplanner.routing.edgetype.TransferEdge;
+import org.opentripplanner.routing.transit.WalkingTransfers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Creates a TransferEdge between every pair of transit stops within walking distance of each
+ * other on the street network, so that transit searches can transfer without exploring the
+ * streets between stops. Must be run after the stops are linked to the streets (see
+ * {@link NetworkLinker}).
+ *
+ * The transfers are stored in a {@link WalkingTransfers} graph service, replacing any from an
+ * earlier run, rather than added to the graph: they only cost time, so graph searches would use
+ * them to walk between stops for free.
+ *
+ * Each stop's transfers are found with a search over the street network bounded by
+ * {@link #setMaxDistance(double)}. The searches only read the graph, so they are run in parallel;
+ * the transfers are stored afterwards, in stop order, so the result does not depend on the number
+ * of threads.
+ */
+public class TransferGenerator {
+
+    private static Logger _log = LoggerFactory.getLogger(TransferGenerator.class);
+
+    private Graph graph;
+
+    /* by default traverse options support walking only, which is what we want */
+    private TraverseOptions options = new TraverseOptions();
+
+    private double maxDistance = 1000;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    public TransferGenerator(Graph graph) {
+        this.graph = graph;
+    }
+
+    /**
+     * The longest transfer to create, in meters of walking.
+     */
+    public void setMaxDistance(double maxDistance) {
+        this.maxDistance = maxDistance;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public void createTransfers() {
+        List<Vertex> stops = new ArrayList<Vertex>();
+        for (GraphVertex gv : graph.getVertices()) {
+            if (gv.vertex instanceof TransitStop && !((TransitStop) gv.vertex).isEntrance()) {
+                stops.add(gv.vertex);
+            }
+        }
+
+        _log.debug("finding transfers from " + stops.size() + " stops...");
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+        List<Future<List<TransferEdge>>> results = new ArrayList<Future<List<TransferEdge>>>(
+                stops.size());
+        try {
+            for (final Vertex stop : stops) {
+                results.add(executor.submit(new Callable<List<TransferEdge>>() {
+                    public List<TransferEdge> call() {
+                        return findTransfers(stop);
+                    }
+                }));
+            }
+
+            WalkingTransfers transfers = new WalkingTransfers();
+            for (Future<List<TransferEdge>> result : results) {
+                for (TransferEdge transfer : result.get()) {
+                    transfers.addTransfer(transfer);
+                }
+            }
+            graph.putService(WalkingTransfers.class, transfers);
+            _log.info("created " + transfers.getCount() + " transfers between " + stops.size()
+                    + " stops");
+        } catch (InterruptedException e) {
+            throw new RuntimeException("interrupted while creating transfers", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("error creating transfers", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Searches the streets around a stop for the stops within walking distance of it.
+     *
+     * @return transfers from the stop to each of the stops found, except those which already have
+     *         transfers (from GTFS transfers.txt, say)
+     */
+    List<TransferEdge> findTransfers(Vertex origin) {
+        HashSet<Vertex> existing = new HashSet<Vertex>();
+        for (Edge e : graph.getOutgoing(origin)) {
+            if (e instanceof TransferEdge) {
+                existing.add(e.getToVertex());
+            }
+        }
+
+        HashMap<Vertex, Double> distances = new HashMap<Vertex, Double>();
+        HashMap<Vertex, Edge> parents = new HashMap<Vertex, Edge>();
+        HashSet<Vertex> closed = new HashSet<Vertex>();
+        PriorityQueue<QueueEntry> queue = new PriorityQueue<QueueEntry>();
+        distances.put(origin, 0.0);
+        queue.add(new QueueEntry(origin, 0));
+
+        List<TransferEdge> transfers = new ArrayList<TransferEdge>();
+        while (!queue.isEmpty()) {
+            QueueEntry entry = queue.poll();
+            Vertex u = entry.vertex;
+            if (!closed.add(u)) {
+                continue;
+            }
+            if (u != origin && u instanceof TransitStop && !((TransitStop) u).isEntrance()) {
+                /* a transfer; don't walk through one stop to get to another */
+                if (!existing.contains(u)) {
+                    TransferEdge transfer = new TransferEdge(origin, u, entry.distance,
+                            (int) Math.ceil(entry.distance / options.speed));
+                    transfer.setGeometry(getGeometry(origin, u, parents));
+                    transfers.add(transfer);
+                }
+                continue;
+            }
+            for (Edge e : graph.getOutgoing(u)) {
+                double length = getWalkDistance(e);
+                if (length < 0) {
+                    continue;
+                }
+                Vertex v = e.getToVertex();
+                double distance = entry.distance + length;
+                if (distance > maxDistance || closed.contains(v)) {
+                    continue;
+                }
+                Double best = distances.get(v);
+                if (best == null || distance < best) {
+                    distances.put(v, distance);
+                    parents.put(v, e);
+                    queue.add(new QueueEntry(v, distance));
+                }
+            }
+        }
+        return transfers;
+    }
+
+    /**
+     * @return how far one walks along an edge, in meters, or -1 if one can't walk along it
+     */
+    private double getWalkDistance(Edge e) {
+        if (e instanceof StreetEdge) {
+            if (!((StreetEdge) e).canTraverse(options)) {
+                return -1;
+            }
+            return e.getDistance();
+        } else if (e instanceof StreetTransitLink || e instanceof FreeEdge) {
+            return 0;
+        } else if (e instanceof PathwayEdge) {
+            /* pathways have times rather than lengths */
+            TraverseResult result = e.traverse(new State(), options);
+            if (result == null) {
+                return -1;
+            }
+            return result.weight * options.speed;
+        }
+        return -1;
+    }
+
+    private Geometry getGeometry(Vertex origin, Vertex destination, HashMap<Vertex, Edge> parents) {
+        LinkedList<Edge> path = new LinkedList<Edge>();
+        for (Vertex v = destination; v != origin; v = parents.get(v).getFromVertex()) {
+            path.addFirst(parents.get(v));
+        }
+        List<Coordinate> coordinates = new ArrayList<Coordinate>();
+        coordinates.add(origin.getCoordinate());
+        for (Edge e : path) {
+            Geometry geometry = e instanceof StreetEdge ? e.getGeometry() : null;
+            Coordinate[] edgeCoordinates = geometry != null ? geometry.getCoordinates()
+                    : new Coordinate[] { e.getToVertex().getCoordinate() };
+            for (Coordinate c : edgeCoordinates) {
+                if (!c.equals2D(coordinates.get(coordinates.size() - 1))) {
+                    coordinates.add(c);
+                }
+            }
+        }
+        if (coordinates.size() == 1) {
+            coordinates.add(destination.getCoordinate());
+        }
+        double[] packed = new double[coordinates.size() * 2];
+        for (int i = 0; i < coordinates.size(); ++i) {
+            packed[i * 2] = coordinates.get(i).x;
+            packed[i * 2 + 1] = coordinates.get(i).y;
+        }
+        return GeometryUtils.makeLineString(packed);
+    }
+
+    private static class QueueEntry implements Comparable<QueueEntry> {
+        Vertex vertex;
+
+        double distance;
+
+        QueueEntry(Vertex vertex, double distance) {
+            this.vertex = vertex;
+            this.distance = distance;
+        }
+
+        public int compareTo(QueueEntry other) {
+            return Double.compare(distance, other.distance);
+        }
+    }
+}
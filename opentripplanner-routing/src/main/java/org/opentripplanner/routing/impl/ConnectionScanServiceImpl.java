@@ -0,0 +1,235 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.impl;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+import org.opentripplanner.common.model.T2;
+import org.opentripplanner.routing.core.Graph;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.TransitDictionary;
+import org.opentripplanner.routing.core.TraverseOptions;
+import org.opentripplanner.routing.core.Vertex;
+import org.opentripplanner.routing.edgetype.TimetableSnapshot;
+import org.opentripplanner.routing.edgetype.TripPattern;
+import org.opentripplanner.routing.services.ConnectionScanService;
+import org.opentripplanner.routing.transit.ConnectionScan;
+import org.opentripplanner.routing.transit.ConnectionTable;
+import org.opentripplanner.routing.transit.TransitTimetable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Answers transit-only queries with the Connection Scan Algorithm (see {@link ConnectionScan})
+ * over a {@link ConnectionTable} derived from the graph's trip patterns.
+ *
+ * The table is built by the first query rather than when the graph is loaded, and built again
+ * by the first query after the real-time timetables (see
+ * {@link TransitDictionary#getTimetableSnapshot()}) change, so that searches see the current
+ * times. Queries running meanwhile use the table they started with.
+ *
+ * Searches cover the trips of the previous, current and next service days. If the options have
+ * no calendar service, every service is assumed to run every day.
+ */
+@Component
+public class ConnectionScanServiceImpl implements ConnectionScanService {
+
+    private static Logger _log = LoggerFactory.getLogger(ConnectionScanServiceImpl.class);
+
+    private static final int[] DAY_OFFSETS = { -TransitTimetable.SEC_IN_DAY, 0,
+            TransitTimetable.SEC_IN_DAY };
+
+    private Graph graph;
+
+    private TransitTimetable scheduledTimetable;
+
+    private volatile ConnectionTable currentTable;
+
+    public ConnectionScanServiceImpl() {
+    }
+
+    public ConnectionScanServiceImpl(Graph graph) {
+        this.graph = graph;
+    }
+
+    @Autowired
+    public void setGraph(Graph graph) {
+        this.graph = graph;
+    }
+
+    public Graph getGraph() {
+        return graph;
+    }
+
+    /**
+     * @return the connection table for the current real-time timetables, built if need be
+     */
+    public ConnectionTable getConnectionTable() {
+        TransitDictionary dictionary = graph.getService(TransitDictionary.class);
+        TimetableSnapshot snapshot = dictionary == null ? null : dictionary.getTimetableSnapshot();
+        ConnectionTable current = currentTable;
+        if (current != null && current.getSnapshot() == snapshot) {
+            return current;
+        }
+        synchronized (this) {
+            current = currentTable;
+            if (current == null || current.getSnapshot() != snapshot) {
+                if (scheduledTimetable == null) {
+                    scheduledTimetable = new TransitTimetable(graph);
+                }
+                current = new ConnectionTable(scheduledTimetable, snapshot);
+                currentTable = current;
+                _log.info("built connection table with " + current.getNumConnections()
+                        + " connections on " + current.getNumTrips() + " trips"
+                        + (snapshot == null ? "" : ", " + snapshot.getNumPatterns()
+                                + " patterns with real-time updates"));
+            }
+        }
+        return current;
+    }
+
+    public long getEarliestArrival(Vertex origin, Vertex target, State state,
+            TraverseOptions options) {
+        ConnectionTable table = getConnectionTable();
+        TransitTimetable timetable = table.getTimetable();
+        int from = timetable.getStopIndex(origin);
+        int to = timetable.getStopIndex(target);
+        if (from < 0 || to < 0) {
+            return -1;
+        }
+        long midnight = getMidnight(state.getTime(), options.calendar);
+        int[] arrivals = createScan(table, midnight, options).getEarliestArrivals(from,
+                toSeconds(state.getTime(), midnight), to);
+        if (arrivals[to] == ConnectionScan.UNREACHED) {
+            return -1;
+        }
+        return toMillis(arrivals[to], midnight);
+    }
+
+    public Map<Vertex, Long> getEarliestArrivals(Vertex origin, State state,
+            TraverseOptions options) {
+        ConnectionTable table = getConnectionTable();
+        TransitTimetable timetable = table.getTimetable();
+        Map<Vertex, Long> results = new HashMap<Vertex, Long>();
+        int from = timetable.getStopIndex(origin);
+        if (from < 0) {
+            return results;
+        }
+        long midnight = getMidnight(state.getTime(), options.calendar);
+        int[] arrivals = createScan(table, midnight, options).getEarliestArrivals(from,
+                toSeconds(state.getTime(), midnight), -1);
+        for (int s = 0; s < arrivals.length; ++s) {
+            if (arrivals[s] != ConnectionScan.UNREACHED) {
+                results.put(timetable.getStop(s), toMillis(arrivals[s], midnight));
+            }
+        }
+        return results;
+    }
+
+    public Map<Vertex, List<T2<Long, Long>>> getProfiles(Vertex origin, State state,
+            long latestDeparture, long latestArrival, TraverseOptions options) {
+        ConnectionTable table = getConnectionTable();
+        TransitTimetable timetable = table.getTimetable();
+        Map<Vertex, List<T2<Long, Long>>> results = new HashMap<Vertex, List<T2<Long, Long>>>();
+        int from = timetable.getStopIndex(origin);
+        if (from < 0) {
+            return results;
+        }
+        long midnight = getMidnight(state.getTime(), options.calendar);
+        int[][] profiles = createScan(table, midnight, options).getProfiles(from,
+                toSeconds(state.getTime(), midnight), toSeconds(latestDeparture, midnight),
+                toSeconds(latestArrival, midnight));
+        for (int s = 0; s < profiles.length; ++s) {
+            int[] profile = profiles[s];
+            if (profile == null) {
+                continue;
+            }
+            List<T2<Long, Long>> journeys = new ArrayList<T2<Long, Long>>(profile.length / 2);
+            for (int i = 0; i < profile.length; i += 2) {
+                journeys.add(new T2<Long, Long>(toMillis(profile[i], midnight), toMillis(
+                        profile[i + 1], midnight)));
+            }
+            results.put(timetable.getStop(s), journeys);
+        }
+        return results;
+    }
+
+    private ConnectionScan createScan(ConnectionTable table, long midnight,
+            TraverseOptions options) {
+        TransitTimetable timetable = table.getTimetable();
+        int nServices = timetable.getNumServices();
+        boolean[][] servicesRunning = new boolean[DAY_OFFSETS.length][nServices];
+        for (int day = 0; day < DAY_OFFSETS.length; ++day) {
+            ServiceDate date = new ServiceDate(new java.util.Date(toMillis(DAY_OFFSETS[day]
+                    + TransitTimetable.SEC_IN_DAY / 2, midnight)));
+            for (int service = 0; service < nServices; ++service) {
+                servicesRunning[day][service] = options.getCalendarService() == null
+                        || options.serviceOn(timetable.getService(service), date);
+            }
+        }
+        return new ConnectionScan(table, DAY_OFFSETS, servicesRunning, getTripsAllowed(table,
+                options), options);
+    }
+
+    /**
+     * @return which trips are allowed by the options' modes and banned routes, or null for all
+     */
+    private boolean[] getTripsAllowed(ConnectionTable table, TraverseOptions options) {
+        TransitTimetable timetable = table.getTimetable();
+        boolean banned = options.bannedRoutes != null && !options.bannedRoutes.isEmpty();
+        boolean[] patternsAllowed = new boolean[timetable.getNumPatterns()];
+        boolean all = true;
+        for (int p = 0; p < patternsAllowed.length; ++p) {
+            boolean allowed = timetable.isModeAllowed(p, options);
+            if (allowed && banned) {
+                TripPattern pattern = timetable.getPattern(p);
+                allowed = !options.isRouteBanned(pattern.getDictionary(), pattern.getRouteCode());
+            }
+            patternsAllowed[p] = allowed;
+            all &= allowed;
+        }
+        if (all) {
+            return null;
+        }
+        boolean[] tripsAllowed = new boolean[table.getNumTrips()];
+        for (int trip = 0; trip < tripsAllowed.length; ++trip) {
+            tripsAllowed[trip] = patternsAllowed[table.getTripPattern(trip)];
+        }
+        return tripsAllowed;
+    }
+
+    private static long getMidnight(long time, Calendar c) {
+        c.setTimeInMillis(time);
+        c.set(Calendar.HOUR_OF_DAY, 0);
+        c.set(Calendar.MINUTE, 0);
+        c.set(Calendar.SECOND, 0);
+        c.set(Calendar.MILLISECOND, 0);
+        return c.getTimeInMillis();
+    }
+
+    private static int toSeconds(long time, long midnight) {
+        return (int) ((time - midnight) / 1000);
+    }
+
+    private static long toMillis(int seconds, long midnight) {
+        return midnight + seconds * 1000L;
+    }
+}
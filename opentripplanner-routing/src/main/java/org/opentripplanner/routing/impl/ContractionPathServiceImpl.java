@@ -39,6 +39,7 @@ import org.opentripplanner.routing.core.TraverseOptions;
 import org.opentripplanner.routing.core.Vertex;
 import org.opentripplanner.routing.edgetype.OutEdge;
 import org.opentripplanner.routing.edgetype.PatternBoard;
+import org.opentripplanner.routing.edgetype.StreetClosures;
 import org.opentripplanner.routing.edgetype.TurnEdge;
 import org.opentripplanner.routing.error.VertexNotFoundException;
 import org.opentripplanner.routing.location.StreetLocation;
@@ -68,6 +69,8 @@ public class ContractionPathServiceImpl implements PathService {
 
     private CalendarServiceImpl _calendarService = null;
 
+    private StreetClosures _streetClosures = null;
+
     @Autowired
     public void setHierarchies(ContractionHierarchySet hierarchies) {
         this.hierarchies = hierarchies;
@@ -78,6 +81,22 @@ public class ContractionPathServiceImpl implements PathService {
             calendarService.setData(data);
             _calendarService = calendarService;
         }
+
+        Graph graph = hierarchies.getGraph();
+        if (graph != null) {
+            _streetClosures = graph.getService(StreetClosures.class);
+            if (_streetClosures == null) {
+                _streetClosures = new StreetClosures(graph);
+                graph.putService(StreetClosures.class, _streetClosures);
+            }
+        }
+    }
+
+    /**
+     * @return the closed and reweighted streets, which plans made from now on route around
+     */
+    public StreetClosures getStreetClosures() {
+        return _streetClosures;
     }
 
     @Autowired
@@ -112,6 +131,8 @@ public class ContractionPathServiceImpl implements PathService {
 
         if (_calendarService != null)
             options.setCalendarService(_calendarService);
+        if (_streetClosures != null)
+            options.setStreetClosures(_streetClosures);
 
         HashSet<GraphPath> paths = new HashSet<GraphPath>();
 
@@ -213,6 +234,8 @@ public class ContractionPathServiceImpl implements PathService {
 
         if (_calendarService != null)
             options.setCalendarService(_calendarService);
+        if (_streetClosures != null)
+            options.setStreetClosures(_streetClosures);
 
         GraphPath path = _routingService.route(fromVertex, toVertex, intermediateVertices, state,
                 options);
@@ -19,12 +19,16 @@ import java.util.List;
 import java.util.Map;
 
 import org.opentripplanner.routing.algorithm.AStar;
+import org.opentripplanner.routing.algorithm.BidirectionalDijkstra;
 import org.opentripplanner.routing.contraction.ContractionHierarchy;
 import org.opentripplanner.routing.contraction.ContractionHierarchySet;
+import org.opentripplanner.routing.contraction.ContractionMetric;
+import org.opentripplanner.routing.contraction.StreetWeighting;
 import org.opentripplanner.routing.core.Graph;
 import org.opentripplanner.routing.core.State;
 import org.opentripplanner.routing.core.TraverseOptions;
 import org.opentripplanner.routing.core.Vertex;
+import org.opentripplanner.routing.edgetype.StreetClosures;
 import org.opentripplanner.routing.services.RoutingService;
 import org.opentripplanner.routing.spt.GraphPath;
 import org.opentripplanner.routing.spt.ShortestPathTree;
@@ -47,30 +51,109 @@ public class ContractionRoutingServiceImpl implements RoutingService {
         ContractionHierarchy hierarchy = null;
         hierarchy = hierarchies.getHierarchy(options);
 
-        if (hierarchy == null) {
-            Graph _graph = hierarchies.getGraph();
-            if (options.isArriveBy()) {
-            
-                ShortestPathTree spt = AStar.getShortestPathTreeBack(_graph, fromVertex, toVertex, state,
-                        options);
-                if (spt == null) {
-                    return null;
-                }
-                GraphPath path = spt.getPath(fromVertex);
-                path.reverse();
-                return path;
-            } else {
-                ShortestPathTree spt = AStar.getShortestPathTree(_graph, fromVertex, toVertex, state,
-                        options);
-                if (spt == null) {
-                    return null;
-                }
-                return spt.getPath(toVertex);
+        StreetClosures closures = options.getStreetClosures();
+        boolean closed = closures != null && !closures.isEmpty();
+        if (!closed && (hierarchy == null || !weighsStreetsFor(hierarchy, options))) {
+            /*
+             * street searches the hierarchies were not built for; until a metric is customized
+             * for them in the background, they go to the hierarchy or A*
+             */
+            ContractionMetric metric = hierarchies.getMetric(options);
+            if (metric != null && metric.canRoute(fromVertex, toVertex)) {
+                return metric.getShortestPath(fromVertex, toVertex, state, options);
             }
         }
+        if (hierarchy == null) {
+            return routeAStar(fromVertex, toVertex, state, options);
+        }
+        if (closed) {
+            return routeAroundClosures(hierarchy, closures, fromVertex, toVertex, state, options);
+        }
         return hierarchy.getShortestPath(fromVertex, toVertex, state, options);
     }
 
+    private static boolean weighsStreetsFor(ContractionHierarchy hierarchy,
+            TraverseOptions options) {
+        StreetWeighting weighting = hierarchy.getWeighting();
+        return weighting == null || weighting.equals(new StreetWeighting(options));
+    }
+
+    private GraphPath routeAStar(Vertex fromVertex, Vertex toVertex, State state,
+            TraverseOptions options) {
+        Graph _graph = hierarchies.getGraph();
+        if (options.isArriveBy()) {
+        
+            ShortestPathTree spt = AStar.getShortestPathTreeBack(_graph, fromVertex, toVertex, state,
+                    options);
+            if (spt == null) {
+                return null;
+            }
+            GraphPath path = spt.getPath(fromVertex);
+            if (path == null) {
+                return null;
+            }
+            path.reverse();
+            return path;
+        } else {
+            ShortestPathTree spt = AStar.getShortestPathTree(_graph, fromVertex, toVertex, state,
+                    options);
+            if (spt == null) {
+                return null;
+            }
+            return spt.getPath(toVertex);
+        }
+    }
+
+    /**
+     * Closures and cost multipliers only ever make streets dearer, so the path over the
+     * hierarchy as it was built costs no more than the best path around them; if it does not use
+     * an affected street it is that path. Otherwise the hierarchy is searched again, unpacking
+     * the shortcuts over affected streets. That path is not always the best one, since a
+     * shortcut left out while contracting -- because a path over a now-closed street was as good
+     * -- is missing; unless it costs no more than the first path, a bidirectional Dijkstra search
+     * looks for a better one, no more costly than it. A* would not do, as its heuristic can
+     * overestimate.
+     */
+    private GraphPath routeAroundClosures(ContractionHierarchy hierarchy,
+            StreetClosures closures, Vertex fromVertex, Vertex toVertex, State state,
+            TraverseOptions options) {
+
+        TraverseOptions unclosed = options.clone();
+        unclosed.setStreetClosures(null);
+        GraphPath path = hierarchy.getShortestPath(fromVertex, toVertex, state, unclosed);
+        if (path == null) {
+            return null;
+        }
+        if (!closures.affects(path)) {
+            return path;
+        }
+        double lowerBound = getWeight(path);
+
+        path = hierarchy.getShortestPath(fromVertex, toVertex, state, options);
+        if (path != null && getWeight(path) <= lowerBound + 0.01) {
+            return path;
+        }
+        TraverseOptions bounded = options.clone();
+        if (path != null) {
+            bounded.maxWeight = Math.min(options.maxWeight, getWeight(path) + 0.01);
+        }
+        GraphPath exactPath = BidirectionalDijkstra.getShortestPath(hierarchies.getGraph(),
+                fromVertex, toVertex, state, bounded);
+        if (exactPath == null) {
+            return path;
+        }
+        if (path != null && getWeight(exactPath) >= getWeight(path)) {
+            return path;
+        }
+        return exactPath;
+    }
+
+    /* arrive-by paths are accumulated from the end, so the total is on the first vertex */
+    private static double getWeight(GraphPath path) {
+        return Math.max(path.vertices.firstElement().weightSum,
+                path.vertices.lastElement().weightSum);
+    }
+
     @Override
     public GraphPath route(Vertex fromVertex, Vertex toVertex, List<Vertex> intermediates, State state, TraverseOptions options) {
 
@@ -0,0 +1,123 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.impl;
+
+import java.io.Serializable;
+
+import org.opentripplanner.common.geometry.SegmentGridIndex;
+import org.opentripplanner.routing.core.Edge;
+import org.opentripplanner.routing.core.Graph;
+import org.opentripplanner.routing.core.GraphVertex;
+import org.opentripplanner.routing.core.TransitStop;
+import org.opentripplanner.routing.core.Vertex;
+import org.opentripplanner.routing.edgetype.EndpointVertex;
+import org.opentripplanner.routing.edgetype.PathwayEdge;
+import org.opentripplanner.routing.edgetype.PlainStreetEdge;
+import org.opentripplanner.routing.edgetype.StreetVertex;
+import org.opentripplanner.routing.edgetype.TurnEdge;
+
+/**
+ * The spatial indexes used by {@link StreetVertexIndexServiceImpl}: street edges, transit stops
+ * and intersections. The graph builder computes these once and stores them as a graph service,
+ * so they are written and read with the graph instead of being rebuilt every time the graph is
+ * loaded.
+ *
+ * Since the indexes refer to the graph's edges and vertices, they are only valid for the graph
+ * they were built from; {@link #matches(Graph)} checks that the graph hasn't changed since.
+ */
+public class StreetVertexIndexData implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private SegmentGridIndex<Edge> edgeIndex;
+
+    private SegmentGridIndex<Vertex> transitStopIndex;
+
+    private SegmentGridIndex<Vertex> intersectionIndex;
+
+    private int vertexCount;
+
+    private int edgeCount;
+
+    public StreetVertexIndexData(Graph graph) {
+        edgeIndex = new SegmentGridIndex<Edge>();
+        transitStopIndex = new SegmentGridIndex<Vertex>();
+        intersectionIndex = new SegmentGridIndex<Vertex>();
+        for (GraphVertex gv : graph.getVertices()) {
+            Vertex v = gv.vertex;
+            for (Edge e : gv.getOutgoing()) {
+                if (e instanceof TurnEdge || e instanceof PlainStreetEdge) {
+                    if (e.getGeometry() == null) {
+                        continue;
+                    }
+                    edgeIndex.insert(e.getGeometry(), e);
+                }
+            }
+            if (v instanceof TransitStop && isIndexedStop(gv)) {
+                transitStopIndex.insert(v.getCoordinate(), v);
+            }
+            if (v instanceof StreetVertex || v instanceof EndpointVertex) {
+                intersectionIndex.insert(v.getCoordinate(), v);
+            }
+        }
+        edgeIndex.build();
+        transitStopIndex.build();
+        intersectionIndex.build();
+        vertexCount = graph.getVertices().size();
+        edgeCount = countEdges(graph);
+    }
+
+    /**
+     * Only transit stops that (a) are entrances, or (b) have no associated entrances are indexed
+     */
+    private static boolean isIndexedStop(GraphVertex gv) {
+        TransitStop ts = (TransitStop) gv.vertex;
+        if (ts.isEntrance()) {
+            return true;
+        }
+        for (Edge e : gv.getOutgoing()) {
+            if (e instanceof PathwayEdge) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int countEdges(Graph graph) {
+        int edges = 0;
+        for (GraphVertex gv : graph.getVertices()) {
+            edges += gv.getDegreeOut();
+        }
+        return edges;
+    }
+
+    /**
+     * @return true if the graph has the same vertices and edges as when these indexes were built
+     */
+    public boolean matches(Graph graph) {
+        return graph.getVertices().size() == vertexCount && countEdges(graph) == edgeCount;
+    }
+
+    public SegmentGridIndex<Edge> getEdgeIndex() {
+        return edgeIndex;
+    }
+
+    public SegmentGridIndex<Vertex> getTransitStopIndex() {
+        return transitStopIndex;
+    }
+
+    public SegmentGridIndex<Vertex> getIntersectionIndex() {
+        return intersectionIndex;
+    }
+}
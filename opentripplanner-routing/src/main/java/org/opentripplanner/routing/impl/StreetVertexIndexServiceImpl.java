@@ -15,41 +15,30 @@ package org.opentripplanner.routing.impl;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.annotation.PostConstruct;
 
+import org.opentripplanner.common.geometry.PackedLengthIndexedLine;
 import org.opentripplanner.routing.core.Edge;
 import org.opentripplanner.routing.core.Graph;
-import org.opentripplanner.routing.core.GraphVertex;
 import org.opentripplanner.routing.core.TraverseOptions;
 import org.opentripplanner.routing.core.Vertex;
-import org.opentripplanner.routing.edgetype.EndpointVertex;
 import org.opentripplanner.routing.edgetype.FreeEdge;
 import org.opentripplanner.routing.edgetype.OutEdge;
-import org.opentripplanner.routing.edgetype.PathwayEdge;
-import org.opentripplanner.routing.edgetype.PlainStreetEdge;
 import org.opentripplanner.routing.edgetype.StreetEdge;
-import org.opentripplanner.routing.edgetype.StreetVertex;
 import org.opentripplanner.routing.edgetype.TurnEdge;
 import org.opentripplanner.routing.location.StreetLocation;
 import org.opentripplanner.routing.services.StreetVertexIndexService;
-import org.opentripplanner.routing.core.TransitStop;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import com.vividsolutions.jts.geom.Coordinate;
-import com.vividsolutions.jts.geom.Envelope;
-import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.GeometryFactory;
-import com.vividsolutions.jts.geom.Point;
-import com.vividsolutions.jts.index.SpatialIndex;
-import com.vividsolutions.jts.index.strtree.STRtree;
-import com.vividsolutions.jts.index.quadtree.Quadtree;
-import com.vividsolutions.jts.linearref.LinearLocation;
-import com.vividsolutions.jts.linearref.LocationIndexedLine;
 
 /**
  * Indexes all edges and transit vertices of the graph spatially.  Has a variety of query methods used
@@ -62,13 +51,14 @@ import com.vividsolutions.jts.linearref.LocationIndexedLine;
 @Component
 public class StreetVertexIndexServiceImpl implements StreetVertexIndexService {
 
-    private Graph graph;
+    private static Logger _log = LoggerFactory.getLogger(StreetVertexIndexServiceImpl.class);
 
-    private SpatialIndex edgeTree;
+    private Graph graph;
 
-    private STRtree transitStopTree;
+    private StreetVertexIndexData indexData;
 
-    private STRtree intersectionTree;
+    /* edges added to the graph after the index was built */
+    private List<Edge> reifiedEdges = new CopyOnWriteArrayList<Edge>();
     
     public static final double MAX_DISTANCE_FROM_STREET = 0.05;
 
@@ -83,58 +73,42 @@ public class StreetVertexIndexServiceImpl implements StreetVertexIndexService {
         this.graph = graph;
     }
 
+    /**
+     * The street edge index is static, so this is the same as {@link #setup()}; edges added later
+     * through {@link #reified(StreetLocation)} are kept on the side.
+     */
     public void setup_modifiable() {
-        edgeTree = new Quadtree();
-        postSetup();
+        setup();
     }
 
+    /**
+     * Sets up the indexes. If the graph was saved with indexes (see {@link StreetVertexIndexData})
+     * and they still match it, those are used; otherwise they are built here.
+     */
     @PostConstruct
     public void setup() {
-        edgeTree = new STRtree();
-        postSetup();
-        ((STRtree) edgeTree).build();
+        if (indexData != null && indexData.matches(graph)) {
+            return;
+        }
+        StreetVertexIndexData data = graph.getService(StreetVertexIndexData.class);
+        if (data != null && data.matches(graph)) {
+            _log.debug("using spatial indexes saved with the graph");
+        } else {
+            _log.info("building spatial indexes");
+            data = new StreetVertexIndexData(graph);
+        }
+        indexData = data;
     }
 
-    private void postSetup() {
-        transitStopTree = new STRtree();
-        intersectionTree = new STRtree();
-        for (GraphVertex gv : graph.getVertices()) {
-            Vertex v = gv.vertex;
-            for (Edge e : gv.getOutgoing()) {
-                if (e instanceof TurnEdge || e instanceof OutEdge || e instanceof PlainStreetEdge) {
-                    if (e.getGeometry() == null) {
-                        continue;
-                    }
-                    Envelope env = e.getGeometry().getEnvelopeInternal();
-                    edgeTree.insert(env, e);
-                }
-            }
-            if (v instanceof TransitStop) {
-                // only index transit stops that (a) are entrances, or (b) have no associated
-                // entrances
-                TransitStop ts = (TransitStop) v;
-                if (!ts.isEntrance()) {
-                    boolean hasEntrance = false;
-
-                    for (Edge e : gv.getOutgoing()) {
-                        if (e instanceof PathwayEdge) {
-                            hasEntrance = true;
-                            break;
-                        }
-                    }
-                    if (hasEntrance) {
-                        continue;
-                    }
-                }
-                Envelope env = new Envelope(v.getCoordinate());
-                transitStopTree.insert(env, v);
-            }
-            if (v instanceof StreetVertex || v instanceof EndpointVertex) {
-                Envelope env = new Envelope(v.getCoordinate());
-                intersectionTree.insert(env, v);
-            }
-        }
-        transitStopTree.build();
+    public StreetVertexIndexData getIndexData() {
+        return indexData;
+    }
+
+    /**
+     * Supply prebuilt indexes, so that {@link #setup()} need not rebuild them.
+     */
+    public void setIndexData(StreetVertexIndexData indexData) {
+        this.indexData = indexData;
     }
     
     /** 
@@ -142,11 +116,11 @@ public class StreetVertexIndexServiceImpl implements StreetVertexIndexService {
      * 
      *  @param distance in meters
      */
-    @SuppressWarnings("unchecked")
     public List<Vertex> getLocalTransitStops(Coordinate c, double distance) {
-        Envelope env = new Envelope(c);
-        env.expandBy(DistanceLibrary.metersToDegrees(distance));
-        List<Vertex> nearby = transitStopTree.query(env);
+        /* degrees of longitude are shorter than degrees of latitude away from the equator */
+        double radius = DistanceLibrary.metersToDegrees(distance)
+                / Math.max(Math.cos(Math.toRadians(c.y)), 0.01);
+        List<Vertex> nearby = indexData.getTransitStopIndex().query(c, radius);
         List<Vertex> results = new ArrayList<Vertex>();
         for (Vertex v : nearby) {
             if (v.distance(c) <= distance) {
@@ -176,11 +150,8 @@ public class StreetVertexIndexServiceImpl implements StreetVertexIndexService {
         Collection<Edge> edges = getClosestEdges(coordinate, options);
         if (edges != null) {
             Edge bestStreet = edges.iterator().next();
-            Geometry g = bestStreet.getGeometry();
-            LocationIndexedLine l = new LocationIndexedLine(g);
-            LinearLocation location = l.project(coordinate);
-
-            Coordinate nearestPoint = location.getCoordinate(g);
+            PackedLengthIndexedLine line = ((StreetEdge) bestStreet).getLengthIndexedLine();
+            Coordinate nearestPoint = line.getCoordinate(line.project(coordinate));
             return StreetLocation.createStreetLocation(graph, bestStreet.getName() + "_"
                     + coordinate.toString(), bestStreet.getName(), edges, nearestPoint);
         }
@@ -198,126 +169,125 @@ public class StreetVertexIndexServiceImpl implements StreetVertexIndexService {
 
     public void reified(StreetLocation vertex) {
         for (Edge e : graph.getIncoming(vertex)) {
-            if ((e instanceof TurnEdge || e instanceof OutEdge) && e.getGeometry() != null)
-                edgeTree.insert(e.getGeometry().getEnvelopeInternal(), e);
+            if (e instanceof TurnEdge && e.getGeometry() != null)
+                reifiedEdges.add(e);
         }
         for (Edge e : graph.getOutgoing(vertex)) {
-            if ((e instanceof TurnEdge || e instanceof OutEdge) && e.getGeometry() != null)
-                edgeTree.insert(e.getGeometry().getEnvelopeInternal(), e);
+            if (e instanceof TurnEdge && e.getGeometry() != null)
+                reifiedEdges.add(e);
         }
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Finds the street nearest to a coordinate, along with any streets parallel (coincident) to
+     * it. The result is ordered by ascending distance from the coordinate.
+     */
     public Collection<Edge> getClosestEdges(Coordinate coordinate, TraverseOptions options) {
-        Envelope envelope = new Envelope(coordinate);
-        List<Edge> nearby = new LinkedList<Edge>();
-        int i = 0;
-        double envelopeGrowthRate = 0.0002;
-        GeometryFactory factory = new GeometryFactory();
-        Point p = factory.createPoint(coordinate);
-        while (nearby.size() < 1 && i < 10) {
-            ++i;
-            envelope.expandBy(envelopeGrowthRate);
-            envelopeGrowthRate *= 2;
-
-            /*
-             * It is presumed, that edges which are roughly the same distance from the examined
-             * coordinate in the same direction are parallel (coincident) edges. 
-             * 
-             * Parallel edges are needed to account for (oneway) streets with varying permissions,
-             * as well as the edge-based nature of the graph.
-             * i.e. using a C point on a oneway street a cyclist may go in one direction only, while
-             * a pedestrian should be able to go in any direction.
-             */
-
-            double bestDistance = Double.MAX_VALUE;
-            Edge bestEdge = null;
-            nearby = edgeTree.query(envelope);
-            if (nearby != null) {
-                for (Edge e : nearby) {
-                    if (e == null || e instanceof OutEdge)
-                        continue;
-                    Geometry g = e.getGeometry();
-                    if (g != null) {
-                        if (options != null && e instanceof StreetEdge) {
-                            if (!((StreetEdge) e).canTraverse(options)) {
-                                continue;
-                            }
-                        }
-                        double distance = g.distance(p);
-                        if (distance < bestDistance) {
-                            bestDistance = distance;
-                            bestEdge = e;
-                        }
-                    }
+        double radius = 0.0002;
+        List<Edge> nearby = null;
+        while (true) {
+            nearby = getUsableEdges(coordinate, radius, options);
+            if (!nearby.isEmpty() || radius >= MAX_DISTANCE_FROM_STREET) {
+                break;
+            }
+            radius = Math.min(radius * 2, MAX_DISTANCE_FROM_STREET);
+        }
+        if (nearby.isEmpty()) {
+            return null;
+        }
+
+        /*
+         * It is presumed, that edges which are roughly the same distance from the examined
+         * coordinate in the same direction are parallel (coincident) edges. 
+         * 
+         * Parallel edges are needed to account for (oneway) streets with varying permissions,
+         * as well as the edge-based nature of the graph.
+         * i.e. using a C point on a oneway street a cyclist may go in one direction only, while
+         * a pedestrian should be able to go in any direction.
+         */
+        Edge bestEdge = nearby.get(0);
+        double bestDistance = distance(bestEdge, coordinate);
+        PackedLengthIndexedLine line = ((StreetEdge) bestEdge).getLengthIndexedLine();
+        Coordinate nearestPointOnEdge = line.getCoordinate(line.project(coordinate));
+        double xd = nearestPointOnEdge.x - coordinate.x;
+        double yd = nearestPointOnEdge.y - coordinate.y;
+        double edgeDirection = Math.atan2(yd, xd);
+
+        if (bestDistance + DISTANCE_ERROR > radius) {
+            nearby = getUsableEdges(coordinate, bestDistance + DISTANCE_ERROR, options);
+        }
+
+        List<Edge> parallel = new ArrayList<Edge>();
+        for (Edge e : nearby) {
+            double distance = distance(e, coordinate);
+            if (distance > bestDistance + DISTANCE_ERROR) {
+                // edges are sorted by distance
+                break;
+            }
+
+            line = ((StreetEdge) e).getLengthIndexedLine();
+            double position = line.project(coordinate);
+            nearestPointOnEdge = line.getCoordinate(position);
+
+            if (distance > bestDistance) {
+                /* ignore edges caught end-on unless they're the only choice */
+                if (position <= 0 || position >= line.getLength()) {
+                    continue;
                 }
+            }
+
+            /* compute direction from coordinate to edge */
+            xd = nearestPointOnEdge.x - coordinate.x;
+            yd = nearestPointOnEdge.y - coordinate.y;
+            double direction = Math.atan2(yd, xd);
 
-                // find coincidence edges  
-                if (bestDistance <= MAX_DISTANCE_FROM_STREET) {
-                    LocationIndexedLine lil = new LocationIndexedLine(bestEdge.getGeometry());
-                    LinearLocation location = lil.project(coordinate);
-                    Coordinate nearestPointOnEdge = lil.extractPoint(location);
-                    double xd = nearestPointOnEdge.x - coordinate.x;
-                    double yd = nearestPointOnEdge.y - coordinate.y;
-                    double edgeDirection = Math.atan2(yd, xd);
-                        
-                    TreeMap<Double, Edge> parallel = new TreeMap<Double, Edge>();
-                    for (Edge e : nearby) {
-                        /* only include edges that this user can actually use */
-                        if (e == null || e instanceof OutEdge) {
-                            continue;
-                        }
-                        if (options != null && e instanceof StreetEdge) {
-                            if (!((StreetEdge) e).canTraverse(options)) {
-                                continue;
-                            }
-                        }
-                        Geometry eg = e.getGeometry();
-                        if (eg != null) {
-                            double distance = eg.distance(p);
-                            
-                            if (distance <= bestDistance + DISTANCE_ERROR) {
-
-                                lil = new LocationIndexedLine(eg);
-                                location = lil.project(coordinate);
-                                nearestPointOnEdge = lil.extractPoint(location);
-
-                                if (distance > bestDistance) {
-                                    /* ignore edges caught end-on unless they're the 
-                                     * only choice */
-                                    Coordinate[] coordinates = eg.getCoordinates();
-                                    if (nearestPointOnEdge.equals(coordinates[0]) ||
-                                        nearestPointOnEdge.equals(coordinates[coordinates.length - 1])) {
-                                        continue;
-                                    }
-                                }
-                                    
-                                /* compute direction from coordinate to edge */
-                                xd = nearestPointOnEdge.x - coordinate.x;
-                                yd = nearestPointOnEdge.y - coordinate.y;
-                                double direction = Math.atan2(yd, xd);
-                                                             
-                                if (Math.abs(direction - edgeDirection) < DIRECTION_ERROR) {
-                                    while (parallel.containsKey(distance)) {
-                                        distance += 0.00000001; 
-                                    }
-                                    parallel.put(distance, e);
-                                }
-                            }
-                        }
-                    }
-                    return parallel.values();
+            if (Math.abs(direction - edgeDirection) < DIRECTION_ERROR) {
+                parallel.add(e);
+            }
+        }
+        return parallel;
+    }
+
+    /**
+     * @return the street edges within radius of the coordinate which the user can actually use,
+     *         nearest first
+     */
+    private List<Edge> getUsableEdges(final Coordinate coordinate, double radius,
+            TraverseOptions options) {
+        List<Edge> nearby = indexData.getEdgeIndex().query(coordinate, radius);
+        boolean extra = false;
+        for (Edge e : reifiedEdges) {
+            if (distance(e, coordinate) <= radius) {
+                nearby.add(e);
+                extra = true;
+            }
+        }
+        if (extra) {
+            Collections.sort(nearby, new Comparator<Edge>() {
+                public int compare(Edge a, Edge b) {
+                    return Double.compare(distance(a, coordinate), distance(b, coordinate));
                 }
+            });
+        }
+        List<Edge> usable = new ArrayList<Edge>(nearby.size());
+        for (Edge e : nearby) {
+            if (options != null && !((StreetEdge) e).canTraverse(options)) {
+                continue;
             }
+            usable.add(e);
         }
-        return null;
+        return usable;
+    }
+
+    /**
+     * Distance from a coordinate to a street, in degrees
+     */
+    private static double distance(Edge e, Coordinate c) {
+        return ((StreetEdge) e).getLengthIndexedLine().distance(c);
     }
 
-    @SuppressWarnings("unchecked")
     public List<Vertex> getIntersectionAt(Coordinate coordinate) {
-        Envelope envelope = new Envelope(coordinate);
-        envelope.expandBy(DISTANCE_ERROR * 2);
-        List<Vertex> nearby = intersectionTree.query(envelope);
+        List<Vertex> nearby = indexData.getIntersectionIndex().query(coordinate, DISTANCE_ERROR * 2);
         List<Vertex> atIntersection = new ArrayList<Vertex>(nearby.size());
         for (Vertex v: nearby) {
             if (coordinate.distance(v.getCoordinate()) < DISTANCE_ERROR) {
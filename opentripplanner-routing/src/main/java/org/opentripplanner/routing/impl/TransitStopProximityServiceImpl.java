@@ -0,0 +1,316 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+
+import org.opentripplanner.common.geometry.SegmentGridIndex;
+import org.opentripplanner.common.model.T2;
+import org.opentripplanner.routing.core.Graph;
+import org.opentripplanner.routing.core.GraphVertex;
+import org.opentripplanner.routing.core.TransitStop;
+import org.opentripplanner.routing.core.Vertex;
+import org.opentripplanner.routing.services.TransitStopProximityService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Indexes every transit stop in the graph in a grid, in an equirectangular projection in meters
+ * centered on the stops, so that nearest-neighbour and radius queries can be answered without
+ * scanning all stops. The projection distorts east-west distances away from its center latitude;
+ * queries widen their search radius by the worst-case distortion and then measure the
+ * candidates with the great circle distance, so results are exact.
+ *
+ * The stops within {@link #setNeighbourRadius(double)} of each stop are computed for all stops
+ * the first time any are asked for, and stored in flat arrays.
+ */
+@Component
+public class TransitStopProximityServiceImpl implements TransitStopProximityService {
+
+    private static Logger _log = LoggerFactory.getLogger(TransitStopProximityServiceImpl.class);
+
+    private static final double METERS_PER_DEGREE = DistanceLibrary.RADIUS_OF_EARTH_IN_KM * 1000
+            * Math.PI / 180;
+
+    /* allowance for the difference between the projected and great circle distances */
+    private static final double PROJECTION_ERROR = 1.01;
+
+    private Graph graph;
+
+    private double neighbourRadius = 1000;
+
+    private SegmentGridIndex<Vertex> stopIndex;
+
+    private Vertex[] stops;
+
+    private HashMap<Vertex, Integer> stopNumbers;
+
+    /* cosine of the center latitude, used to project longitudes */
+    private double cosCenter;
+
+    /* smallest cosine of any stop's latitude */
+    private double minCos;
+
+    /* the neighbours of stop i are neighbours[neighbourStart[i]] ... neighbours[neighbourStart[i + 1] - 1] */
+    private volatile int[] neighbourStart;
+
+    private int[] neighbours;
+
+    private double[] neighbourDistances;
+
+    public TransitStopProximityServiceImpl() {
+    }
+
+    public TransitStopProximityServiceImpl(Graph graph) {
+        this.graph = graph;
+    }
+
+    @Autowired
+    public void setGraph(Graph graph) {
+        this.graph = graph;
+    }
+
+    public Graph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Set how far apart (in meters) stops may be to be included in each other's neighbour lists.
+     * Must be called before {@link #setup()}.
+     */
+    public void setNeighbourRadius(double neighbourRadius) {
+        this.neighbourRadius = neighbourRadius;
+    }
+
+    public double getNeighbourRadius() {
+        return neighbourRadius;
+    }
+
+    @PostConstruct
+    public void setup() {
+        List<Vertex> stopList = new ArrayList<Vertex>();
+        double minLat = Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+        for (GraphVertex gv : graph.getVertices()) {
+            if (gv.vertex instanceof TransitStop) {
+                stopList.add(gv.vertex);
+                minLat = Math.min(minLat, gv.vertex.getY());
+                maxLat = Math.max(maxLat, gv.vertex.getY());
+            }
+        }
+        if (stopList.isEmpty()) {
+            minLat = maxLat = 0;
+        }
+        cosCenter = Math.cos(Math.toRadians((minLat + maxLat) / 2));
+        minCos = Math.min(Math.cos(Math.toRadians(minLat)), Math.cos(Math.toRadians(maxLat)));
+
+        stops = stopList.toArray(new Vertex[stopList.size()]);
+        stopNumbers = new HashMap<Vertex, Integer>();
+        stopIndex = new SegmentGridIndex<Vertex>(Math.max(neighbourRadius, 100));
+        for (int i = 0; i < stops.length; ++i) {
+            stopNumbers.put(stops[i], i);
+            stopIndex.insert(project(stops[i].getCoordinate()), stops[i]);
+        }
+        stopIndex.build();
+        _log.info("indexed " + stops.length + " transit stops");
+    }
+
+    /**
+     * Finds the neighbours of every stop, if that hasn't been done yet.
+     */
+    private synchronized void findNeighbours() {
+        if (neighbourStart != null) {
+            return;
+        }
+        List<Coordinate> coordinates = new ArrayList<Coordinate>(stops.length);
+        for (Vertex stop : stops) {
+            coordinates.add(stop.getCoordinate());
+        }
+        List<List<Vertex>> nearby = getTransitStopsWithin(coordinates, neighbourRadius);
+        int total = 0;
+        for (int i = 0; i < stops.length; ++i) {
+            for (Vertex v : nearby.get(i)) {
+                if (v != stops[i]) {
+                    ++total;
+                }
+            }
+        }
+        int[] neighbourStart = new int[stops.length + 1];
+        neighbours = new int[total];
+        neighbourDistances = new double[total];
+        int n = 0;
+        for (int i = 0; i < stops.length; ++i) {
+            neighbourStart[i] = n;
+            for (Vertex v : nearby.get(i)) {
+                if (v == stops[i]) {
+                    continue;
+                }
+                neighbours[n] = stopNumbers.get(v);
+                neighbourDistances[n] = v.distance(stops[i].getCoordinate());
+                ++n;
+            }
+        }
+        neighbourStart[stops.length] = n;
+        /* published last, as the sign that the neighbours are ready */
+        this.neighbourStart = neighbourStart;
+        _log.info("found " + n + " neighbours within " + neighbourRadius + "m of "
+                + stops.length + " transit stops");
+    }
+
+    private Coordinate project(Coordinate c) {
+        return new Coordinate(c.x * cosCenter * METERS_PER_DEGREE, c.y * METERS_PER_DEGREE);
+    }
+
+    /**
+     * @return how much shorter than the true distance a projected distance to or from c can be
+     */
+    private double getDistortion(Coordinate c) {
+        double cos = Math.min(minCos, Math.cos(Math.toRadians(c.y)));
+        return PROJECTION_ERROR * Math.max(cosCenter / Math.max(cos, 0.01), 1);
+    }
+
+    public List<Vertex> getNearestTransitStops(Coordinate c, int k, double maxDistance) {
+        if (k <= 0) {
+            return new ArrayList<Vertex>();
+        }
+        double distortion = getDistortion(c);
+        Coordinate projected = project(c);
+        List<Vertex> candidates = stopIndex.nearest(projected, k, maxDistance * distortion);
+        if (candidates.size() == k) {
+            /*
+             * the k nearest stops in the projection are not necessarily the k nearest, but there
+             * are at least k stops within the furthest of them
+             */
+            double furthest = 0;
+            for (Vertex v : candidates) {
+                furthest = Math.max(furthest, v.distance(c));
+            }
+            candidates = stopIndex.query(projected, Math.min(furthest, maxDistance) * distortion);
+        }
+        List<Vertex> results = sortByDistance(candidates, c, maxDistance);
+        if (results.size() > k) {
+            results = new ArrayList<Vertex>(results.subList(0, k));
+        }
+        return results;
+    }
+
+    public List<Vertex> getTransitStopsWithin(Coordinate c, double distance) {
+        List<Vertex> candidates = stopIndex.query(project(c), distance * getDistortion(c));
+        return sortByDistance(candidates, c, distance);
+    }
+
+    public List<List<Vertex>> getTransitStopsWithin(List<Coordinate> coordinates,
+            final double distance) {
+        /*
+         * Group the coordinates into square blocks of the query distance on a side, and scan the
+         * grid once per block, for a circle around the block's center that covers the query circle
+         * of every coordinate in it. Each coordinate's stops are then picked out of the block's
+         * candidates.
+         */
+        int n = coordinates.size();
+        double blockSize = Math.max(distance, 1);
+        final long[] keys = new long[n];
+        long[] rows = new long[n];
+        long[] columns = new long[n];
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; ++i) {
+            Coordinate projected = project(coordinates.get(i));
+            rows[i] = (long) Math.floor(projected.y / blockSize);
+            columns[i] = (long) Math.floor(projected.x / blockSize);
+            keys[i] = (rows[i] << 32) + columns[i];
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return keys[a] < keys[b] ? -1 : (keys[a] == keys[b] ? 0 : 1);
+            }
+        });
+
+        List<List<Vertex>> results = new ArrayList<List<Vertex>>(n);
+        for (int i = 0; i < n; ++i) {
+            results.add(null);
+        }
+        int start = 0;
+        while (start < n) {
+            int end = start;
+            double distortion = 1;
+            while (end < n && keys[order[end]] == keys[order[start]]) {
+                distortion = Math.max(distortion, getDistortion(coordinates.get(order[end])));
+                ++end;
+            }
+            int first = order[start];
+            Coordinate center = new Coordinate((columns[first] + 0.5) * blockSize,
+                    (rows[first] + 0.5) * blockSize);
+            double radius = blockSize * Math.sqrt(0.5) + distance * distortion;
+            List<Vertex> candidates = stopIndex.query(center, radius);
+            for (int j = start; j < end; ++j) {
+                int i = order[j];
+                results.set(i, sortByDistance(candidates, coordinates.get(i), distance));
+            }
+            start = end;
+        }
+        return results;
+    }
+
+    public List<T2<Vertex, Double>> getNeighbours(Vertex stop) {
+        Integer i = stopNumbers.get(stop);
+        if (i == null) {
+            return Collections.emptyList();
+        }
+        findNeighbours();
+        int[] neighbourStart = this.neighbourStart;
+        List<T2<Vertex, Double>> results = new ArrayList<T2<Vertex, Double>>(neighbourStart[i + 1]
+                - neighbourStart[i]);
+        for (int j = neighbourStart[i]; j < neighbourStart[i + 1]; ++j) {
+            results.add(new T2<Vertex, Double>(stops[neighbours[j]], neighbourDistances[j]));
+        }
+        return results;
+    }
+
+    /**
+     * @return the vertices no further than maxDistance from c, sorted by distance
+     */
+    private static List<Vertex> sortByDistance(List<Vertex> vertices, Coordinate c,
+            double maxDistance) {
+        int n = vertices.size();
+        final double[] distances = new double[n];
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; ++i) {
+            distances[i] = vertices.get(i).distance(c);
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(distances[a], distances[b]);
+            }
+        });
+        List<Vertex> results = new ArrayList<Vertex>(n);
+        for (int i : order) {
+            if (distances[i] <= maxDistance) {
+                results.add(vertices.get(i));
+            }
+        }
+        return results;
+    }
+}
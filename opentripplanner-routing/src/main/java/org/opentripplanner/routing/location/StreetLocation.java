@@ -18,6 +18,7 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 
+import org.opentripplanner.common.geometry.PackedLengthIndexedLine;
 import org.opentripplanner.common.model.P2;
 import org.opentripplanner.routing.core.Edge;
 import org.opentripplanner.routing.core.GenericVertex;
@@ -26,6 +27,7 @@ import org.opentripplanner.routing.core.Vertex;
 import org.opentripplanner.routing.edgetype.FreeEdge;
 import org.opentripplanner.routing.edgetype.OutEdge;
 import org.opentripplanner.routing.edgetype.PlainStreetEdge;
+import org.opentripplanner.routing.edgetype.StreetClosures;
 import org.opentripplanner.routing.edgetype.StreetEdge;
 import org.opentripplanner.routing.edgetype.StreetVertex;
 import org.opentripplanner.routing.edgetype.TurnEdge;
@@ -33,8 +35,6 @@ import org.opentripplanner.routing.edgetype.TurnEdge;
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.LineString;
-import com.vividsolutions.jts.linearref.LinearLocation;
-import com.vividsolutions.jts.linearref.LocationIndexedLine;
 
 /**
  * Represents a location on a street, somewhere between the two corners. This is used when computing
@@ -127,10 +127,12 @@ public class StreetLocation extends GenericVertex {
             newFrom = cached.getFirst();
             location = cached.getSecond();
         } else {
-            P2<LineString> geometries = getGeometry(street, nearestPoint);
+            PackedLengthIndexedLine line = street.getLengthIndexedLine();
+            double splitPosition = line.project(nearestPoint);
+            P2<LineString> geometries = line.split(splitPosition);
 
-            double totalGeomLength = geometry.getLength();
-            double lengthRatioIn = geometries.getFirst().getLength() / totalGeomLength;
+            double totalGeomLength = line.getLength();
+            double lengthRatioIn = totalGeomLength > 0 ? splitPosition / totalGeomLength : 0;
 
             double lengthIn = street.getLength() * lengthRatioIn;
             double lengthOut = street.getLength() * (1 - lengthRatioIn);
@@ -142,8 +144,13 @@ public class StreetLocation extends GenericVertex {
 
             location = new StreetVertex(label + " (vertex at splitter)", geometries.getSecond(), name, lengthOut,
                     false);
-            location.setElevationProfile(street.getElevationProfile(lengthIn, totalGeomLength));
+            location.setElevationProfile(street.getElevationProfile(lengthIn, street.getLength()));
             location.setPermission(street.getPermission());
+
+            /* the halves are closed along with the street */
+            int streetId = StreetClosures.getStreetId(edge);
+            newFrom.setStreetId(streetId);
+            location.setStreetId(streetId);
             
             cache.put(geometry, new P2<StreetVertex>(newFrom, location));
 
@@ -165,19 +172,9 @@ public class StreetLocation extends GenericVertex {
         return location;
     }
 
-    private static P2<LineString> getGeometry(Edge e, Coordinate nearestPoint) {
-        Geometry geometry = e.getGeometry();
-        return splitGeometryAtPoint(geometry, nearestPoint);
-    }
-    
     public static P2<LineString> splitGeometryAtPoint(Geometry geometry, Coordinate nearestPoint) {
-        LocationIndexedLine line = new LocationIndexedLine(geometry);
-        LinearLocation l = line.indexOf(nearestPoint);
-
-        LineString beginning = (LineString) line.extractLine(line.getStartIndex(), l);
-        LineString ending = (LineString) line.extractLine(l, line.getEndIndex());
-        
-        return new P2<LineString>(beginning, ending);
+        PackedLengthIndexedLine line = new PackedLengthIndexedLine(geometry);
+        return line.split(line.project(nearestPoint));
     }
     
     public void reify(Graph graph) {
@@ -0,0 +1,227 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.realtime;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import org.opentripplanner.routing.core.Edge;
+import org.opentripplanner.routing.core.Graph;
+import org.opentripplanner.routing.core.GraphVertex;
+import org.opentripplanner.routing.core.TransitDictionary;
+import org.opentripplanner.routing.edgetype.FrequencyBasedTripPattern;
+import org.opentripplanner.routing.edgetype.PatternHop;
+import org.opentripplanner.routing.edgetype.TimetableSnapshot;
+import org.opentripplanner.routing.edgetype.TripPattern;
+import org.opentripplanner.routing.edgetype.TripTimesOverlay;
+import org.opentripplanner.routing.realtime.TripUpdate.StopTimeUpdate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Applies real-time trip updates to a graph's timetables without rebuilding it. Each batch of
+ * updates makes a new {@link TimetableSnapshot}, copying only the overlays of the patterns it
+ * touches, and publishes it through the graph's {@link TransitDictionary}; searches never wait
+ * for an update, and batches are applied one at a time.
+ * 
+ * Trips of frequency-based patterns are not updated, since their runs share one trip id; nor are
+ * frequency-based trips that were expanded into several runs of an ordinary pattern, for the same
+ * reason.
+ */
+public class TimetableUpdater {
+
+    private static Logger _log = LoggerFactory.getLogger(TimetableUpdater.class);
+
+    private TransitDictionary dictionary;
+
+    /* the pattern and index of each trip, by code */
+    private TripPattern[] tripPatterns;
+
+    private int[] tripIndices;
+
+    /* trips with several runs, which an update can't tell apart */
+    private BitSet repeatedTrips = new BitSet();
+
+    /* the GTFS ids, without agency, of the stops of each pattern */
+    private IdentityHashMap<TripPattern, String[]> patternStops = new IdentityHashMap<TripPattern, String[]>();
+
+    public TimetableUpdater(Graph graph) {
+        dictionary = graph.getService(TransitDictionary.class);
+        if (dictionary == null) {
+            throw new IllegalStateException("graph has no transit dictionary");
+        }
+        IdentityHashMap<TripPattern, List<String>> stops = new IdentityHashMap<TripPattern, List<String>>();
+        for (GraphVertex gv : graph.getVertices()) {
+            for (Edge e : gv.getOutgoing()) {
+                if (!(e instanceof PatternHop)) {
+                    continue;
+                }
+                PatternHop hop = (PatternHop) e;
+                TripPattern pattern = hop.getPattern();
+                if (pattern instanceof FrequencyBasedTripPattern) {
+                    continue;
+                }
+                List<String> patternStopIds = stops.get(pattern);
+                if (patternStopIds == null) {
+                    patternStopIds = new ArrayList<String>();
+                    stops.put(pattern, patternStopIds);
+                }
+                int i = hop.getStopIndex();
+                while (patternStopIds.size() < i + 2) {
+                    patternStopIds.add(null);
+                }
+                patternStopIds.set(i, hop.getStartStop().getId().getId());
+                patternStopIds.set(i + 1, hop.getEndStop().getId().getId());
+            }
+        }
+
+        tripPatterns = new TripPattern[dictionary.getNumTrips()];
+        tripIndices = new int[dictionary.getNumTrips()];
+        for (TripPattern pattern : stops.keySet()) {
+            List<String> patternStopIds = stops.get(pattern);
+            patternStops.put(pattern, patternStopIds.toArray(new String[patternStopIds.size()]));
+            for (int trip = 0; trip < pattern.getNumTrips(); ++trip) {
+                int code = pattern.getTripCode(trip);
+                if (tripPatterns[code] != null) {
+                    repeatedTrips.set(code);
+                }
+                tripPatterns[code] = pattern;
+                tripIndices[code] = trip;
+            }
+        }
+    }
+
+    /**
+     * Applies a batch of updates, which searches then see all at once.
+     * 
+     * @return the number of updates applied; updates to unknown trips, to trips with several
+     *         runs, or naming stops not on their trip, are skipped
+     */
+    public synchronized int applyUpdates(Collection<TripUpdate> updates) {
+        TimetableSnapshot snapshot = dictionary.getTimetableSnapshot();
+        if (snapshot == null) {
+            snapshot = new TimetableSnapshot();
+        }
+        IdentityHashMap<TripPattern, TripTimesOverlay> changes = new IdentityHashMap<TripPattern, TripTimesOverlay>();
+        int applied = 0;
+        for (TripUpdate update : updates) {
+            int code = dictionary.getTripCode(update.getTripId());
+            if (code == -1 || code >= tripPatterns.length || tripPatterns[code] == null) {
+                _log.debug("no scheduled trip for " + update);
+                continue;
+            }
+            if (repeatedTrips.get(code)) {
+                _log.warn("trip has several runs, so its update is ambiguous: " + update);
+                continue;
+            }
+            TripPattern pattern = tripPatterns[code];
+            int trip = tripIndices[code];
+            String[] stops = patternStops.get(pattern);
+            TripTimesOverlay overlay = changes.get(pattern);
+            if (overlay == null) {
+                overlay = snapshot.getOverlay(pattern);
+            }
+            if (overlay == null) {
+                overlay = new TripTimesOverlay(pattern, stops.length - 1);
+            }
+
+            if (update.isCancelled()) {
+                overlay = overlay.cancel(trip);
+            } else if (update.getStopTimeUpdates().isEmpty()) {
+                overlay = overlay.restore(trip);
+            } else {
+                int[] departures = new int[stops.length - 1];
+                int[] arrivals = new int[stops.length - 1];
+                if (!applyDelays(pattern, trip, stops, update.getStopTimeUpdates(), departures,
+                        arrivals)) {
+                    _log.debug("stops not on trip for " + update);
+                    continue;
+                }
+                overlay = overlay.update(trip, departures, arrivals);
+            }
+            changes.put(pattern, overlay);
+            ++applied;
+        }
+        if (!changes.isEmpty()) {
+            dictionary.setTimetableSnapshot(snapshot.update(changes));
+        }
+        return applied;
+    }
+
+    /**
+     * Applies updates as they are read, a batch at a time, until the reader is exhausted.
+     * 
+     * @return the number of updates applied
+     */
+    public int applyUpdates(TripUpdateReader reader, int batchSize) throws IOException {
+        int applied = 0;
+        List<TripUpdate> batch;
+        while (!(batch = reader.readUpdates(batchSize)).isEmpty()) {
+            applied += applyUpdates(batch);
+        }
+        return applied;
+    }
+
+    /**
+     * Restores every trip's scheduled times.
+     */
+    public synchronized void clear() {
+        dictionary.setTimetableSnapshot(null);
+    }
+
+    /*
+     * Computes a trip's times with the delays of its updates, each holding until the next stop
+     * with an update. Arrivals are kept from preceding departures, and departures from preceding
+     * arrivals; a stop with no scheduled dwell keeps none, since its dwell edge may have been
+     * removed.
+     */
+    private static boolean applyDelays(TripPattern pattern, int trip, String[] stops,
+            List<StopTimeUpdate> updates, int[] departures, int[] arrivals) {
+        int nHops = stops.length - 1;
+        int next = 0;
+        int delay = 0;
+        for (int i = 0; i <= nHops; ++i) {
+            int arrivalDelay = delay;
+            int departureDelay = delay;
+            if (next < updates.size() && updates.get(next).getStopId().equals(stops[i])) {
+                StopTimeUpdate update = updates.get(next++);
+                if (update.getArrivalDelay() != TripUpdate.NO_DELAY) {
+                    arrivalDelay = update.getArrivalDelay();
+                }
+                departureDelay = update.getDepartureDelay() != TripUpdate.NO_DELAY ? update
+                        .getDepartureDelay() : arrivalDelay;
+            }
+            if (i > 0) {
+                arrivals[i - 1] = Math.max(pattern.getArrivalTime(i - 1, trip) + arrivalDelay,
+                        departures[i - 1]);
+            }
+            if (i < nHops) {
+                int departure = pattern.getDepartureTime(i, trip) + departureDelay;
+                if (i > 0) {
+                    departure = Math.max(departure, arrivals[i - 1]);
+                    if (pattern.getDwellTime(i, trip) == 0) {
+                        arrivals[i - 1] = departure;
+                    }
+                }
+                departures[i] = departure;
+            }
+            delay = departureDelay;
+        }
+        return next == updates.size();
+    }
+}
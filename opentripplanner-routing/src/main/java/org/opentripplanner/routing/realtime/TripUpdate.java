@@ -0,0 +1,104 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.realtime;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+
+/**
+ * A real-time update to one trip, shaped like a GTFS-realtime TripUpdate: the trip is either
+ * cancelled or has delays at some of its stops, in stop order. A stop's delay holds for the
+ * following stops until the next stop with an update. An update with neither restores the
+ * trip's scheduled times.
+ */
+public class TripUpdate {
+
+    /** Marks a delay that the update does not give */
+    public static final int NO_DELAY = Integer.MIN_VALUE;
+
+    private AgencyAndId tripId;
+
+    private boolean cancelled;
+
+    private List<StopTimeUpdate> stopTimeUpdates = new ArrayList<StopTimeUpdate>();
+
+    public TripUpdate(AgencyAndId tripId) {
+        this.tripId = tripId;
+    }
+
+    public AgencyAndId getTripId() {
+        return tripId;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void setCancelled(boolean cancelled) {
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * Adds the delays, in seconds, at the next stop with an update; either may be
+     * {@link #NO_DELAY}, in which case the arrival keeps the delay from before the stop and the
+     * departure takes the arrival's.
+     */
+    public void addStopTimeUpdate(String stopId, int arrivalDelay, int departureDelay) {
+        stopTimeUpdates.add(new StopTimeUpdate(stopId, arrivalDelay, departureDelay));
+    }
+
+    public List<StopTimeUpdate> getStopTimeUpdates() {
+        return Collections.unmodifiableList(stopTimeUpdates);
+    }
+
+    public String toString() {
+        return "TripUpdate(" + tripId + (cancelled ? ", cancelled" : ", " + stopTimeUpdates)
+                + ")";
+    }
+
+    public static class StopTimeUpdate {
+
+        private String stopId;
+
+        private int arrivalDelay;
+
+        private int departureDelay;
+
+        public StopTimeUpdate(String stopId, int arrivalDelay, int departureDelay) {
+            this.stopId = stopId;
+            this.arrivalDelay = arrivalDelay;
+            this.departureDelay = departureDelay;
+        }
+
+        /** The stop's GTFS id, without its agency */
+        public String getStopId() {
+            return stopId;
+        }
+
+        public int getArrivalDelay() {
+            return arrivalDelay;
+        }
+
+        public int getDepartureDelay() {
+            return departureDelay;
+        }
+
+        public String toString() {
+            return stopId + ":" + arrivalDelay + "/" + departureDelay;
+        }
+    }
+}
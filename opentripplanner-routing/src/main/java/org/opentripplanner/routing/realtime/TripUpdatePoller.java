@@ -0,0 +1,153 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.realtime;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.opentripplanner.routing.core.Graph;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads a file of trip updates (see {@link TripUpdateReader}) into the graph's timetables with a
+ * {@link TimetableUpdater} whenever the file changes, checking it every
+ * {@link #setPeriod(int)} seconds on a background thread. The updates in each version of the
+ * file are applied on top of those already applied.
+ *
+ * It is not set up by default; to take updates, add it to the webapp's data-sources.xml:
+ *
+ * <pre>
+ * &lt;bean class="org.opentripplanner.routing.realtime.TripUpdatePoller"&gt;
+ *     &lt;property name="graph" ref="graph" /&gt;
+ *     &lt;property name="path" value="/home/otp/trip-updates.txt" /&gt;
+ *     &lt;property name="agencyId" value="TriMet" /&gt;
+ * &lt;/bean&gt;
+ * </pre>
+ */
+public class TripUpdatePoller {
+
+    private static Logger _log = LoggerFactory.getLogger(TripUpdatePoller.class);
+
+    private Graph graph;
+
+    private File path;
+
+    private String agencyId;
+
+    private int period = 60;
+
+    private int batchSize = 100;
+
+    private TimetableUpdater updater;
+
+    private long lastModified = 0;
+
+    private ScheduledExecutorService executor;
+
+    public void setGraph(Graph graph) {
+        this.graph = graph;
+    }
+
+    /**
+     * The file of trip updates to read.
+     */
+    public void setPath(File path) {
+        this.path = path;
+    }
+
+    /**
+     * The agency of the trip ids in the file.
+     */
+    public void setAgencyId(String agencyId) {
+        this.agencyId = agencyId;
+    }
+
+    /**
+     * How often to check the file for changes, in seconds.
+     */
+    public void setPeriod(int period) {
+        this.period = period;
+    }
+
+    /**
+     * How many trips' updates searches may see applied at once.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    @PostConstruct
+    public void start() {
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "trip updates");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                poll();
+            }
+        }, 0, period, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Applies the file's updates if it has changed since it was last read.
+     *
+     * @return the number of updates applied
+     */
+    public synchronized int poll() {
+        long modified = path.lastModified();
+        if (modified == 0 || modified == lastModified) {
+            return 0;
+        }
+        if (updater == null) {
+            updater = new TimetableUpdater(graph);
+        }
+        try {
+            TripUpdateReader reader = new TripUpdateReader(path, agencyId);
+            try {
+                int applied = updater.applyUpdates(reader, batchSize);
+                lastModified = modified;
+                _log.info("applied " + applied + " trip updates from " + path);
+                return applied;
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            _log.warn("error reading trip updates from " + path, e);
+            return 0;
+        } catch (RuntimeException e) {
+            /* an exception would stop the polling */
+            _log.warn("error applying trip updates from " + path, e);
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.realtime;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.onebusaway.gtfs.csv.CSVLibrary;
+import org.onebusaway.gtfs.model.AgencyAndId;
+
+/**
+ * Reads trip updates from a file or stream of comma-separated values laid out like a GTFS file,
+ * with a header naming its columns:
+ * 
+ * <pre>
+ * trip_id,stop_id,arrival_delay,departure_delay,schedule_relationship
+ * </pre>
+ * 
+ * Each row gives the delays, in seconds, at one stop of a trip, and a trip's rows are
+ * consecutive and in stop order. A row with schedule_relationship CANCELED cancels its trip; a
+ * row with no stop_id restores its trip's scheduled times. Empty delays are left unset. Trip ids
+ * are in the given agency, as GTFS-realtime's are in its feed's.
+ */
+public class TripUpdateReader {
+
+    private BufferedReader in;
+
+    private String agencyId;
+
+    private int tripIdColumn = -1, stopIdColumn = -1, arrivalDelayColumn = -1,
+            departureDelayColumn = -1, scheduleRelationshipColumn = -1;
+
+    /* the first row of the next trip, read at the end of the last batch */
+    private List<String> pending;
+
+    public TripUpdateReader(File path, String agencyId) throws IOException {
+        this(new FileReader(path), agencyId);
+    }
+
+    public TripUpdateReader(Reader in, String agencyId) throws IOException {
+        this.in = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in);
+        this.agencyId = agencyId;
+        String header = this.in.readLine();
+        if (header == null) {
+            throw new IOException("no header in trip updates");
+        }
+        List<String> columns = CSVLibrary.parse(header);
+        for (int i = 0; i < columns.size(); ++i) {
+            String column = columns.get(i).trim();
+            if (column.equals("trip_id")) {
+                tripIdColumn = i;
+            } else if (column.equals("stop_id")) {
+                stopIdColumn = i;
+            } else if (column.equals("arrival_delay")) {
+                arrivalDelayColumn = i;
+            } else if (column.equals("departure_delay")) {
+                departureDelayColumn = i;
+            } else if (column.equals("schedule_relationship")) {
+                scheduleRelationshipColumn = i;
+            }
+        }
+        if (tripIdColumn == -1) {
+            throw new IOException("no trip_id column in trip updates");
+        }
+    }
+
+    /**
+     * Reads the updates of up to max trips, waiting for input as a stream requires.
+     * 
+     * @return the updates, empty once the input is exhausted
+     */
+    public List<TripUpdate> readUpdates(int max) throws IOException {
+        List<TripUpdate> updates = new ArrayList<TripUpdate>();
+        TripUpdate update = null;
+        while (true) {
+            List<String> row = pending;
+            pending = null;
+            if (row == null) {
+                String line = in.readLine();
+                if (line == null) {
+                    break;
+                }
+                if (line.trim().length() == 0) {
+                    continue;
+                }
+                row = CSVLibrary.parse(line);
+            }
+            String tripId = get(row, tripIdColumn);
+            if (tripId == null) {
+                throw new IOException("no trip_id in trip update row " + row);
+            }
+            if (update == null || !update.getTripId().getId().equals(tripId)) {
+                if (updates.size() == max) {
+                    pending = row;
+                    break;
+                }
+                update = new TripUpdate(new AgencyAndId(agencyId, tripId));
+                updates.add(update);
+            }
+            if ("CANCELED".equals(get(row, scheduleRelationshipColumn))) {
+                update.setCancelled(true);
+                continue;
+            }
+            String stopId = get(row, stopIdColumn);
+            if (stopId != null) {
+                update.addStopTimeUpdate(stopId, getDelay(row, arrivalDelayColumn), getDelay(row,
+                        departureDelayColumn));
+            }
+        }
+        return updates;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private static String get(List<String> row, int column) {
+        if (column == -1 || column >= row.size()) {
+            return null;
+        }
+        String value = row.get(column).trim();
+        return value.length() == 0 ? null : value;
+    }
+
+    private static int getDelay(List<String> row, int column) throws IOException {
+        String value = get(row, column);
+        if (value == null) {
+            return TripUpdate.NO_DELAY;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("bad delay in trip updates: " + value);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.services;
+
+import java.util.List;
+import java.util.Map;
+
+import org.opentripplanner.common.model.T2;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.TraverseOptions;
+import org.opentripplanner.routing.core.Vertex;
+
+/**
+ * Transit-only searches between transit stops, for when only arrival times are needed rather
+ * than paths. Times are in milliseconds since the epoch, like State times.
+ */
+public interface ConnectionScanService {
+
+    /**
+     * @return the earliest arrival at the target stop when leaving the origin stop at the state's
+     *         time, or -1 if it can't be reached
+     */
+    public long getEarliestArrival(Vertex origin, Vertex target, State state,
+            TraverseOptions options);
+
+    /**
+     * @return the earliest arrival at every stop which can be reached from the origin stop when
+     *         leaving at the state's time
+     */
+    public Map<Vertex, Long> getEarliestArrivals(Vertex origin, State state,
+            TraverseOptions options);
+
+    /**
+     * Finds the best journeys from the origin stop to every other stop for departures between the
+     * state's time and latestDeparture.
+     * 
+     * @return for each stop which can be reached by latestArrival, the departure and arrival times
+     *         of the journeys to it which no other journey departs later than and arrives earlier
+     *         than, in increasing order
+     */
+    public Map<Vertex, List<T2<Long, Long>>> getProfiles(Vertex origin, State state,
+            long latestDeparture, long latestArrival, TraverseOptions options);
+}
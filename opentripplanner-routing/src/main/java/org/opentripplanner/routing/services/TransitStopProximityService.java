@@ -0,0 +1,55 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.services;
+
+import java.util.List;
+
+import org.opentripplanner.common.model.T2;
+import org.opentripplanner.routing.core.Vertex;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Finds transit stops near a location. All distances are in meters.
+ */
+public interface TransitStopProximityService {
+
+    /**
+     * @return the (at most) k transit stops nearest to the coordinate that are no further away
+     *         than maxDistance, nearest first
+     */
+    public List<Vertex> getNearestTransitStops(Coordinate c, int k, double maxDistance);
+
+    /**
+     * @return all transit stops within distance of the coordinate, nearest first
+     */
+    public List<Vertex> getTransitStopsWithin(Coordinate c, double distance);
+
+    /**
+     * Finds the transit stops within distance of each of a number of coordinates. Nearby
+     * coordinates share their scans of the stop index, so this is faster than querying the
+     * coordinates one by one when many of them are close together.
+     * 
+     * @return for each coordinate, in the same order, the stops within distance of it, nearest
+     *         first
+     */
+    public List<List<Vertex>> getTransitStopsWithin(List<Coordinate> coordinates, double distance);
+
+    /**
+     * @return the other transit stops within the neighbour radius of a stop, with their distances,
+     *         nearest first. The neighbours of all stops are computed together, the first
+     *         time any are asked for.
+     */
+    public List<T2<Vertex, Double>> getNeighbours(Vertex stop);
+}
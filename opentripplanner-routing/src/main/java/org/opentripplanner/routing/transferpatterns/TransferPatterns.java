@@ -0,0 +1,128 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.transferpatterns;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import org.opentripplanner.routing.transit.TransitTimetable;
+
+/**
+ * The transfer patterns of every stop in a {@link TransitTimetable}: for each origin stop, the
+ * sequences of stops at which an optimal journey from it boards, alights or walks, for any
+ * departure time and destination. Stored as a graph service by {@link TransferPatternsBuilder}
+ * and used by {@link TransferPatternsRoutingServiceImpl}.
+ *
+ * The patterns of each origin are stored as a tree of stops, rooted at the origin, in which each
+ * node is reached from its parent either by a single ride or by a single transfer. Every path from
+ * the root to a node which ends some optimal journey is a transfer pattern; those nodes are listed
+ * by destination stop.
+ */
+public class TransferPatterns implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private TransitTimetable timetable;
+
+    private OriginPatterns[] origins;
+
+    public TransferPatterns(TransitTimetable timetable) {
+        this.timetable = timetable;
+        this.origins = new OriginPatterns[timetable.getNumStops()];
+    }
+
+    public TransitTimetable getTimetable() {
+        return timetable;
+    }
+
+    void setOriginPatterns(int origin, OriginPatterns patterns) {
+        origins[origin] = patterns;
+    }
+
+    /**
+     * @return the transfer patterns from a stop, or null if they have not been computed
+     */
+    public OriginPatterns getOriginPatterns(int origin) {
+        return origins[origin];
+    }
+
+    /**
+     * The transfer patterns from a single stop. Node 0 is the origin itself.
+     */
+    public static class OriginPatterns implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private int[] nodeStops;
+
+        private int[] nodeParents;
+
+        private boolean[] nodeWalks;
+
+        /* sorted destination stops; the patterns to targets[i] end at the nodes terminals[terminalStart[i]] ... */
+        private int[] targets;
+
+        private int[] terminalStart;
+
+        private int[] terminals;
+
+        OriginPatterns(int[] nodeStops, int[] nodeParents, boolean[] nodeWalks, int[] targets,
+                int[] terminalStart, int[] terminals) {
+            this.nodeStops = nodeStops;
+            this.nodeParents = nodeParents;
+            this.nodeWalks = nodeWalks;
+            this.targets = targets;
+            this.terminalStart = terminalStart;
+            this.terminals = terminals;
+        }
+
+        public int getNumNodes() {
+            return nodeStops.length;
+        }
+
+        public int getNodeStop(int node) {
+            return nodeStops[node];
+        }
+
+        /**
+         * @return the node this node is reached from, or -1 for the origin
+         */
+        public int getNodeParent(int node) {
+            return nodeParents[node];
+        }
+
+        /**
+         * @return true if this node is reached from its parent by a transfer, false if by a ride
+         */
+        public boolean isWalk(int node) {
+            return nodeWalks[node];
+        }
+
+        /**
+         * @return the nodes at which the transfer patterns to a stop end; empty if it can't be
+         *         reached
+         */
+        public int[] getTerminals(int target) {
+            int i = Arrays.binarySearch(targets, target);
+            if (i < 0) {
+                return new int[0];
+            }
+            return Arrays.copyOfRange(terminals, terminalStart[i], terminalStart[i + 1]);
+        }
+
+        public int getNumPatterns() {
+            return terminals.length;
+        }
+    }
+}
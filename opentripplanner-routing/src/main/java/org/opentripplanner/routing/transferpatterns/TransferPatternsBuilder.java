@@ -0,0 +1,513 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.transferpatterns;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+import org.opentripplanner.routing.core.Graph;
+import org.opentripplanner.routing.edgetype.TripPattern;
+import org.opentripplanner.routing.transferpatterns.TransferPatterns.OriginPatterns;
+import org.opentripplanner.routing.transit.TransitTimetable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Computes the {@link TransferPatterns} of every stop in a graph.
+ *
+ * The patterns of each stop are found by a profile search from it: a round-based search over the
+ * trip patterns' timetables (rRAPTOR), run once for each distinct departure time from the stop,
+ * latest first, keeping the arrival times found for later departures. Round k finds the earliest
+ * arrival at each stop with at most k rides, so every time a label improves, the journey that
+ * improved it is optimal for that departure time and number of rides, and its sequence of stops is
+ * recorded as a transfer pattern.
+ *
+ * Which trips run depends on the day, so the search is repeated for each distinct set of services
+ * that run together on some day in the calendar. The origins are independent, so they are searched
+ * in parallel; the results are stored in stop order, so they don't depend on the number of threads.
+ *
+ * Journeys are searched for without wheelchair or mode restrictions, and trips are only considered
+ * on their own service day, not after midnight on the next day.
+ */
+public class TransferPatternsBuilder {
+
+    private static Logger _log = LoggerFactory.getLogger(TransferPatternsBuilder.class);
+
+    private static final int INFINITY = Integer.MAX_VALUE;
+
+    private static final byte NONE = 0;
+
+    private static final byte ORIGIN = 1;
+
+    private static final byte RIDE = 2;
+
+    private static final byte WALK = 3;
+
+    /* the label is the same as with one ride less */
+    private static final byte COPY = 4;
+
+    private Graph graph;
+
+    private int maxRides = 5;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    public TransferPatternsBuilder(Graph graph) {
+        this.graph = graph;
+    }
+
+    /**
+     * The most rides in any transfer pattern; journeys with more rides will not be found.
+     */
+    public void setMaxRides(int maxRides) {
+        this.maxRides = maxRides;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public TransferPatterns build() {
+        final TransitTimetable timetable = new TransitTimetable(graph);
+        final List<boolean[]> dayTypes = getDayTypes(timetable);
+        int nStops = timetable.getNumStops();
+        _log.debug("computing transfer patterns for " + nStops + " stops, "
+                + timetable.getNumPatterns() + " patterns and " + dayTypes.size() + " day types");
+
+        TransferPatterns transferPatterns = new TransferPatterns(timetable);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+        List<Future<OriginPatterns>> results = new ArrayList<Future<OriginPatterns>>(nStops);
+        try {
+            for (int s = 0; s < nStops; ++s) {
+                final int origin = s;
+                results.add(executor.submit(new Callable<OriginPatterns>() {
+                    public OriginPatterns call() {
+                        return new ProfileSearch(timetable, maxRides).run(origin, dayTypes);
+                    }
+                }));
+            }
+
+            long count = 0;
+            for (int s = 0; s < nStops; ++s) {
+                OriginPatterns patterns = results.get(s).get();
+                transferPatterns.setOriginPatterns(s, patterns);
+                count += patterns.getNumPatterns();
+            }
+            _log.info("computed " + count + " transfer patterns from " + nStops + " stops");
+        } catch (InterruptedException e) {
+            throw new RuntimeException("interrupted while computing transfer patterns", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("error computing transfer patterns", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+        return transferPatterns;
+    }
+
+    /**
+     * @return for each distinct set of services running together on some day, whether each of the
+     *         timetable's services runs; a single set of all services if the graph has no calendar
+     */
+    private List<boolean[]> getDayTypes(TransitTimetable timetable) {
+        int nServices = timetable.getNumServices();
+        List<boolean[]> dayTypes = new ArrayList<boolean[]>();
+        CalendarServiceData data = graph.getService(CalendarServiceData.class);
+        if (data == null) {
+            boolean[] all = new boolean[nServices];
+            Arrays.fill(all, true);
+            dayTypes.add(all);
+            return dayTypes;
+        }
+
+        TreeMap<ServiceDate, boolean[]> servicesByDate = new TreeMap<ServiceDate, boolean[]>();
+        for (int i = 0; i < nServices; ++i) {
+            List<ServiceDate> dates = data.getServiceDatesForServiceId(timetable.getService(i));
+            if (dates == null) {
+                continue;
+            }
+            for (ServiceDate date : dates) {
+                boolean[] services = servicesByDate.get(date);
+                if (services == null) {
+                    services = new boolean[nServices];
+                    servicesByDate.put(date, services);
+                }
+                services[i] = true;
+            }
+        }
+        for (boolean[] services : servicesByDate.values()) {
+            boolean seen = false;
+            for (boolean[] dayType : dayTypes) {
+                if (Arrays.equals(dayType, services)) {
+                    seen = true;
+                    break;
+                }
+            }
+            if (!seen) {
+                dayTypes.add(services);
+            }
+        }
+        return dayTypes;
+    }
+
+    /**
+     * The profile search from a single origin, and the tree of patterns it finds.
+     */
+    private static class ProfileSearch {
+
+        private TransitTimetable timetable;
+
+        private int maxRides;
+
+        private int nStops;
+
+        /* labels by round and stop */
+        private int[][] arrivals;
+
+        private byte[][] parentTypes;
+
+        /* the stop boarded at, for rides; the stop walked from, for transfers */
+        private int[][] parentStops;
+
+        /* for transfers after a ride, the stop at which that ride boarded */
+        private int[][] parentBoards;
+
+        /* the iteration in which each label was last improved */
+        private int[][] improved;
+
+        private int iteration = 0;
+
+        private List<Integer> improvedLabels = new ArrayList<Integer>();
+
+        private boolean[] marked;
+
+        private int[] firstPositions;
+
+        private Map<Long, Integer> nodeIndices = new HashMap<Long, Integer>();
+
+        private List<Integer> nodeStops = new ArrayList<Integer>();
+
+        private List<Integer> nodeParents = new ArrayList<Integer>();
+
+        private List<Boolean> nodeWalks = new ArrayList<Boolean>();
+
+        /* (target, node) pairs */
+        private TreeSet<Long> terminals = new TreeSet<Long>();
+
+        ProfileSearch(TransitTimetable timetable, int maxRides) {
+            this.timetable = timetable;
+            this.maxRides = maxRides;
+            this.nStops = timetable.getNumStops();
+            arrivals = new int[maxRides + 1][nStops];
+            parentTypes = new byte[maxRides + 1][nStops];
+            parentStops = new int[maxRides + 1][nStops];
+            parentBoards = new int[maxRides + 1][nStops];
+            improved = new int[maxRides + 1][nStops];
+            marked = new boolean[nStops];
+            firstPositions = new int[timetable.getNumPatterns()];
+            Arrays.fill(firstPositions, INFINITY);
+        }
+
+        OriginPatterns run(int origin, List<boolean[]> dayTypes) {
+            nodeStops.add(origin);
+            nodeParents.add(-1);
+            nodeWalks.add(false);
+
+            for (boolean[] services : dayTypes) {
+                for (int k = 0; k <= maxRides; ++k) {
+                    Arrays.fill(arrivals[k], INFINITY);
+                    Arrays.fill(parentTypes[k], NONE);
+                    Arrays.fill(improved[k], -1);
+                }
+                int[] departures = getDepartures(origin, services);
+                for (int i = departures.length - 1; i >= 0; --i) {
+                    ++iteration;
+                    search(origin, departures[i], services);
+                    record();
+                }
+            }
+            return toOriginPatterns();
+        }
+
+        /**
+         * @return the distinct times at which one can leave the origin to board a trip, either
+         *         there or after a transfer, in increasing order
+         */
+        private int[] getDepartures(int origin, boolean[] services) {
+            TreeSet<Integer> times = new TreeSet<Integer>();
+            addDepartures(origin, 0, services, times);
+            for (int t = timetable.getTransferStart(origin); t < timetable.getTransferEnd(origin); ++t) {
+                if (timetable.isTransferFromStop(t)) {
+                    addDepartures(timetable.getTransferTarget(t), timetable.getTransferTime(t),
+                            services, times);
+                }
+            }
+            int[] departures = new int[times.size()];
+            int i = 0;
+            for (int time : times) {
+                departures[i++] = time;
+            }
+            return departures;
+        }
+
+        private void addDepartures(int stop, int walkTime, boolean[] services,
+                TreeSet<Integer> times) {
+            for (int e = timetable.getStopPatternStart(stop); e < timetable.getStopPatternEnd(stop); ++e) {
+                int p = timetable.getStopPattern(e);
+                int position = timetable.getStopPatternPosition(e);
+                TripPattern pattern = timetable.getPattern(p);
+                if (!services[timetable.getPatternService(p)]
+                        || position == timetable.getPatternStops(p).length - 1
+                        || !pattern.canBoard(position)) {
+                    continue;
+                }
+                for (int trip = 0; trip < pattern.getNumTrips(); ++trip) {
+                    times.add(pattern.getDepartureTime(position, trip) - walkTime);
+                }
+            }
+        }
+
+        private void search(int origin, int departure, boolean[] services) {
+            List<Integer> markedStops = new ArrayList<Integer>();
+            if (departure < arrivals[0][origin]) {
+                arrivals[0][origin] = departure;
+                parentTypes[0][origin] = ORIGIN;
+                markedStops.add(origin);
+                marked[origin] = true;
+            }
+            for (int t = timetable.getTransferStart(origin); t < timetable.getTransferEnd(origin); ++t) {
+                if (!timetable.isTransferFromStop(t)) {
+                    continue;
+                }
+                int target = timetable.getTransferTarget(t);
+                int time = departure + timetable.getTransferTime(t);
+                if (time < arrivals[0][target]) {
+                    arrivals[0][target] = time;
+                    parentTypes[0][target] = WALK;
+                    parentStops[0][target] = origin;
+                    improve(0, target);
+                    if (!marked[target]) {
+                        markedStops.add(target);
+                        marked[target] = true;
+                    }
+                }
+            }
+
+            for (int k = 1; k <= maxRides && !markedStops.isEmpty(); ++k) {
+                /* the patterns serving the stops improved in the last round */
+                TreeSet<Integer> patterns = new TreeSet<Integer>();
+                for (int stop : markedStops) {
+                    if (arrivals[k - 1][stop] < arrivals[k][stop]) {
+                        arrivals[k][stop] = arrivals[k - 1][stop];
+                        parentTypes[k][stop] = COPY;
+                    }
+                    for (int e = timetable.getStopPatternStart(stop); e < timetable
+                            .getStopPatternEnd(stop); ++e) {
+                        int p = timetable.getStopPattern(e);
+                        if (services[timetable.getPatternService(p)]) {
+                            patterns.add(p);
+                            firstPositions[p] = Math.min(firstPositions[p], timetable
+                                    .getStopPatternPosition(e));
+                        }
+                    }
+                }
+
+                List<Integer> rideStops = new ArrayList<Integer>();
+                for (int p : patterns) {
+                    scanPattern(k, p, rideStops);
+                    firstPositions[p] = INFINITY;
+                }
+                for (int stop : markedStops) {
+                    marked[stop] = false;
+                }
+
+                markedStops = new ArrayList<Integer>(rideStops);
+                for (int stop : markedStops) {
+                    marked[stop] = true;
+                }
+                /*
+                 * transfers from the stops reached by a ride in this round; the rides are copied
+                 * first since a transfer may improve on a ride another transfer starts from
+                 */
+                int[] rideArrivals = new int[rideStops.size()];
+                int[] rideBoards = new int[rideStops.size()];
+                for (int i = 0; i < rideArrivals.length; ++i) {
+                    rideArrivals[i] = arrivals[k][rideStops.get(i)];
+                    rideBoards[i] = parentStops[k][rideStops.get(i)];
+                }
+                for (int i = 0; i < rideArrivals.length; ++i) {
+                    int stop = rideStops.get(i);
+                    int arrival = rideArrivals[i];
+                    int board = rideBoards[i];
+                    for (int t = timetable.getTransferStart(stop); t < timetable
+                            .getTransferEnd(stop); ++t) {
+                        int target = timetable.getTransferTarget(t);
+                        int time = arrival + timetable.getTransferTime(t);
+                        if (time < arrivals[k][target]) {
+                            arrivals[k][target] = time;
+                            parentTypes[k][target] = WALK;
+                            parentStops[k][target] = stop;
+                            parentBoards[k][target] = board;
+                            improve(k, target);
+                            if (!marked[target]) {
+                                markedStops.add(target);
+                                marked[target] = true;
+                            }
+                        }
+                    }
+                }
+            }
+            for (int stop : markedStops) {
+                marked[stop] = false;
+            }
+        }
+
+        private void scanPattern(int k, int p, List<Integer> rideStops) {
+            int[] stops = timetable.getPatternStops(p);
+            TripPattern pattern = timetable.getPattern(p);
+            int trip = -1;
+            int boardStop = -1;
+            for (int i = firstPositions[p]; i < stops.length; ++i) {
+                int stop = stops[i];
+                if (trip >= 0 && pattern.canAlight(i)) {
+                    int arrival = pattern.getArrivalTime(i - 1, trip);
+                    if (arrival < arrivals[k][stop]) {
+                        arrivals[k][stop] = arrival;
+                        parentTypes[k][stop] = RIDE;
+                        parentStops[k][stop] = boardStop;
+                        if (improved[k][stop] != iteration) {
+                            rideStops.add(stop);
+                        }
+                        improve(k, stop);
+                    }
+                }
+                if (i < stops.length - 1 && marked[stop] && arrivals[k - 1][stop] < INFINITY
+                        && pattern.canBoard(i)) {
+                    int next = pattern.getNextTrip(i, arrivals[k - 1][stop], false, true);
+                    if (next >= 0
+                            && (trip < 0 || pattern.getDepartureTime(i, next) < pattern
+                                    .getDepartureTime(i, trip))) {
+                        trip = next;
+                        boardStop = stop;
+                    }
+                }
+            }
+        }
+
+        private void improve(int k, int stop) {
+            if (improved[k][stop] != iteration) {
+                improved[k][stop] = iteration;
+                improvedLabels.add(k * nStops + stop);
+            }
+        }
+
+        /**
+         * Adds the journeys to every label improved in the last iteration to the tree.
+         */
+        private void record() {
+            for (int label : improvedLabels) {
+                int k = label / nStops;
+                int stop = label % nStops;
+                terminals.add(((long) stop << 32) | getNode(k, stop));
+            }
+            improvedLabels.clear();
+        }
+
+        /**
+         * @return the node at the end of the path in the tree which reaches the given label
+         */
+        private int getNode(int k, int stop) {
+            switch (parentTypes[k][stop]) {
+            case ORIGIN:
+                return 0;
+            case COPY:
+                return getNode(k - 1, stop);
+            case RIDE:
+                return addNode(getNode(k - 1, parentStops[k][stop]), stop, false);
+            case WALK:
+                int parent;
+                if (k == 0) {
+                    parent = 0;
+                } else {
+                    parent = addNode(getNode(k - 1, parentBoards[k][stop]), parentStops[k][stop],
+                            false);
+                }
+                return addNode(parent, stop, true);
+            default:
+                throw new IllegalStateException("no journey to stop " + stop + " in round " + k);
+            }
+        }
+
+        private int addNode(int parent, int stop, boolean walk) {
+            long key = ((long) parent << 33) | ((long) stop << 1) | (walk ? 1 : 0);
+            Integer node = nodeIndices.get(key);
+            if (node == null) {
+                node = nodeStops.size();
+                nodeIndices.put(key, node);
+                nodeStops.add(stop);
+                nodeParents.add(parent);
+                nodeWalks.add(walk);
+            }
+            return node;
+        }
+
+        private OriginPatterns toOriginPatterns() {
+            int nNodes = nodeStops.size();
+            int[] stops = new int[nNodes];
+            int[] parents = new int[nNodes];
+            boolean[] walks = new boolean[nNodes];
+            for (int i = 0; i < nNodes; ++i) {
+                stops[i] = nodeStops.get(i);
+                parents[i] = nodeParents.get(i);
+                walks[i] = nodeWalks.get(i);
+            }
+
+            List<Integer> targets = new ArrayList<Integer>();
+            List<Integer> terminalStart = new ArrayList<Integer>();
+            int[] terminalNodes = new int[terminals.size()];
+            int i = 0;
+            for (long terminal : terminals) {
+                int target = (int) (terminal >>> 32);
+                if (targets.isEmpty() || targets.get(targets.size() - 1) != target) {
+                    targets.add(target);
+                    terminalStart.add(i);
+                }
+                terminalNodes[i++] = (int) terminal;
+            }
+            terminalStart.add(i);
+
+            int[] targetArray = new int[targets.size()];
+            for (int j = 0; j < targetArray.length; ++j) {
+                targetArray[j] = targets.get(j);
+            }
+            int[] startArray = new int[terminalStart.size()];
+            for (int j = 0; j < startArray.length; ++j) {
+                startArray[j] = terminalStart.get(j);
+            }
+            return new OriginPatterns(stops, parents, walks, targetArray, startArray,
+                    terminalNodes);
+        }
+    }
+}
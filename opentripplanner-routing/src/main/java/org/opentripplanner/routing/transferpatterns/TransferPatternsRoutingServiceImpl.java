@@ -0,0 +1,501 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.transferpatterns;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+import org.opentripplanner.routing.core.Edge;
+import org.opentripplanner.routing.core.Graph;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.TransitStop;
+import org.opentripplanner.routing.core.TraverseOptions;
+import org.opentripplanner.routing.core.TraverseResult;
+import org.opentripplanner.routing.core.Vertex;
+import org.opentripplanner.routing.edgetype.FreeEdge;
+import org.opentripplanner.routing.edgetype.PatternAlight;
+import org.opentripplanner.routing.edgetype.PatternBoard;
+import org.opentripplanner.routing.edgetype.PatternDwell;
+import org.opentripplanner.routing.edgetype.PatternHop;
+import org.opentripplanner.routing.edgetype.TripPattern;
+import org.opentripplanner.routing.services.RoutingService;
+import org.opentripplanner.routing.spt.GraphPath;
+import org.opentripplanner.routing.spt.SPTEdge;
+import org.opentripplanner.routing.spt.SPTVertex;
+import org.opentripplanner.routing.transferpatterns.TransferPatterns.OriginPatterns;
+import org.opentripplanner.routing.transit.TransitTimetable;
+
+/**
+ * A RoutingService which answers stop-to-stop transit queries from the {@link TransferPatterns}
+ * stored in the graph. The transfer patterns from the origin to the destination form a small
+ * tree of stops; each ride in it is evaluated by looking up the next trip between its two stops
+ * in the timetable, and each transfer by its walking time, so a query touches only the stops in
+ * the patterns rather than searching the graph.
+ *
+ * Only stop-to-stop queries are answered from the patterns: there is no walking to the first stop
+ * or from the last. Every other query -- from or to places which aren't transit stops (which
+ * includes every street address), arrive by, wheelchair accessible or with banned routes, or
+ * which find no journey -- is passed to the fallback service, and gets no path if there is none.
+ * So this is not a RoutingService in its own right; it must be configured with a fallback, in
+ * place of the usual RoutingService, to serve real requests:
+ *
+ * <pre>
+ * &lt;bean class="org.opentripplanner.routing.transferpatterns.TransferPatternsRoutingServiceImpl"&gt;
+ *     &lt;property name="graph" ref="graph" /&gt;
+ *     &lt;property name="fallback"&gt;
+ *         &lt;bean class="org.opentripplanner.routing.impl.ContractionRoutingServiceImpl"&gt; ... &lt;/bean&gt;
+ *     &lt;/property&gt;
+ * &lt;/bean&gt;
+ * </pre>
+ */
+public class TransferPatternsRoutingServiceImpl implements RoutingService {
+
+    private static final int INFINITY = Integer.MAX_VALUE;
+
+    private static final long MILLI_IN_DAY = 24 * 60 * 60 * 1000;
+
+    private Graph graph;
+
+    private RoutingService fallback;
+
+    public TransferPatternsRoutingServiceImpl() {
+    }
+
+    public TransferPatternsRoutingServiceImpl(Graph graph, RoutingService fallback) {
+        this.graph = graph;
+        this.fallback = fallback;
+    }
+
+    public void setGraph(Graph graph) {
+        this.graph = graph;
+    }
+
+    /**
+     * Set the service which answers the queries that the transfer patterns can't, which include
+     * all those which don't go from one stop to another.
+     */
+    public void setFallback(RoutingService fallback) {
+        this.fallback = fallback;
+    }
+
+    @Override
+    public GraphPath route(Vertex fromVertex, Vertex toVertex, State state, TraverseOptions options) {
+        GraphPath path = null;
+        TransferPatterns transferPatterns = graph.getService(TransferPatterns.class);
+        boolean stopToStop = fromVertex instanceof TransitStop && toVertex instanceof TransitStop;
+        if (stopToStop && transferPatterns != null && !options.isArriveBy()
+                && !options.wheelchairAccessible
+                && (options.bannedRoutes == null || options.bannedRoutes.isEmpty())
+                && options.transitAllowed()) {
+            path = new Query(transferPatterns, state, options).route(fromVertex, toVertex);
+        }
+        if (path == null && fallback != null) {
+            path = fallback.route(fromVertex, toVertex, state, options);
+        }
+        return path;
+    }
+
+    @Override
+    public GraphPath route(Vertex fromVertex, Vertex toVertex, List<Vertex> intermediateVertices,
+            State state, TraverseOptions options) {
+        if (fallback == null) {
+            return null;
+        }
+        return fallback.route(fromVertex, toVertex, intermediateVertices, state, options);
+    }
+
+    /**
+     * The best way found so far to reach a node of the transfer pattern tree.
+     */
+    private static class Label {
+        /* when one can board at, or transfer from, the node's stop */
+        int arrival = INFINITY;
+
+        /* when one can be at the node's stop itself */
+        int end = INFINITY;
+
+        int rides;
+
+        /* for rides */
+        int pattern, boardPosition, alightPosition;
+
+        /* for transfers: the transfers which give arrival and end */
+        int transfer = -1, endTransfer = -1;
+    }
+
+    private class Query {
+
+        private TransferPatterns transferPatterns;
+
+        private TransitTimetable timetable;
+
+        private State state;
+
+        private TraverseOptions options;
+
+        private int startTime;
+
+        /* yesterday, today and tomorrow */
+        private ServiceDate[] serviceDates = new ServiceDate[3];
+
+        /* 1 if the service runs, 0 if not, -1 if not yet known; by day and service */
+        private int[][] servicesRunning;
+
+        Query(TransferPatterns transferPatterns, State state, TraverseOptions options) {
+            this.transferPatterns = transferPatterns;
+            this.timetable = transferPatterns.getTimetable();
+            this.state = state;
+            this.options = options;
+
+            long time = state.getTime();
+            ServiceDate today = getServiceDate(time, options.calendar);
+            startTime = (int) ((time - today.getAsDate().getTime()) / 1000);
+            servicesRunning = new int[serviceDates.length][timetable.getNumServices()];
+            for (int day = 0; day < serviceDates.length; ++day) {
+                serviceDates[day] = getServiceDate(time + (day - 1) * MILLI_IN_DAY, options.calendar);
+                Arrays.fill(servicesRunning[day], -1);
+            }
+        }
+
+        GraphPath route(Vertex fromVertex, Vertex toVertex) {
+            int origin = timetable.getStopIndex(fromVertex);
+            int target = timetable.getStopIndex(toVertex);
+            if (origin < 0 || target < 0 || origin == target) {
+                return null;
+            }
+            OriginPatterns patterns = transferPatterns.getOriginPatterns(origin);
+            if (patterns == null) {
+                return null;
+            }
+            int[] terminals = patterns.getTerminals(target);
+            if (terminals.length == 0) {
+                return null;
+            }
+
+            /* the nodes on the patterns; parents always come before their children */
+            TreeSet<Integer> nodes = new TreeSet<Integer>();
+            for (int node : terminals) {
+                int n = node;
+                while (n >= 0 && nodes.add(n)) {
+                    n = patterns.getNodeParent(n);
+                }
+            }
+            HashMap<Integer, Label> labels = new HashMap<Integer, Label>();
+            for (int node : nodes) {
+                Label label = new Label();
+                int parent = patterns.getNodeParent(node);
+                if (parent < 0) {
+                    label.arrival = label.end = startTime;
+                } else if (patterns.isWalk(node)) {
+                    evaluateTransfer(patterns, parent, labels.get(parent), node, label);
+                } else {
+                    evaluateRide(patterns.getNodeStop(parent), labels.get(parent),
+                            patterns.getNodeStop(node), label);
+                }
+                labels.put(node, label);
+            }
+
+            int best = -1;
+            int maxRides = options.maxTransfers + 1;
+            for (int node : terminals) {
+                Label label = labels.get(node);
+                if (label.end == INFINITY || label.rides > maxRides) {
+                    continue;
+                }
+                if (best < 0 || label.end < labels.get(best).end
+                        || (label.end == labels.get(best).end && label.rides < labels.get(best).rides)) {
+                    best = node;
+                }
+            }
+            if (best < 0) {
+                return null;
+            }
+            return toGraphPath(patterns, labels, best);
+        }
+
+        private void evaluateRide(int from, Label parent, int to, Label label) {
+            label.rides = parent.rides + 1;
+            if (parent.arrival == INFINITY) {
+                return;
+            }
+            /* the patterns serving both stops, in the right order */
+            int fromEnd = timetable.getStopPatternEnd(from);
+            int toEnd = timetable.getStopPatternEnd(to);
+            int i = timetable.getStopPatternStart(from);
+            int j = timetable.getStopPatternStart(to);
+            while (i < fromEnd && j < toEnd) {
+                int p = timetable.getStopPattern(i);
+                int q = timetable.getStopPattern(j);
+                if (p < q) {
+                    ++i;
+                } else if (q < p) {
+                    ++j;
+                } else {
+                    int jStart = j;
+                    for (; i < fromEnd && timetable.getStopPattern(i) == p; ++i) {
+                        for (j = jStart; j < toEnd && timetable.getStopPattern(j) == p; ++j) {
+                            evaluateRide(p, timetable.getStopPatternPosition(i), timetable
+                                    .getStopPatternPosition(j), parent.arrival, label);
+                        }
+                    }
+                }
+            }
+        }
+
+        private void evaluateRide(int p, int board, int alight, int time, Label label) {
+            TripPattern pattern = timetable.getPattern(p);
+            if (alight <= board || !pattern.canAlight(alight)
+                    || !timetable.isModeAllowed(p, options)) {
+                return;
+            }
+            /*
+             * As with PatternBoard, trips can be boarded on the schedules of the day of the
+             * boarding and of the day before, but not of the next day
+             */
+            int days = time / TransitTimetable.SEC_IN_DAY;
+            if (time < 0 || days > 1) {
+                return;
+            }
+            int service = timetable.getPatternService(p);
+            for (int before = 0; before < 2; ++before) {
+                int day = 1 + days - before;
+                if (!isServiceRunning(day, service)) {
+                    continue;
+                }
+                /* the time on that day's schedule */
+                int offset = (before - days) * TransitTimetable.SEC_IN_DAY;
+                int trip = pattern.getNextTrip(board, time + offset, false, true);
+                if (trip < 0) {
+                    continue;
+                }
+                int arrival = pattern.getArrivalTime(alight - 1, trip) - offset;
+                if (arrival < label.arrival) {
+                    label.arrival = label.end = arrival;
+                    label.pattern = p;
+                    label.boardPosition = board;
+                    label.alightPosition = alight;
+                }
+            }
+        }
+
+        private boolean isServiceRunning(int day, int service) {
+            if (servicesRunning[day][service] < 0) {
+                servicesRunning[day][service] = options.serviceOn(timetable.getService(service),
+                        serviceDates[day]) ? 1 : 0;
+            }
+            return servicesRunning[day][service] == 1;
+        }
+
+        private void evaluateTransfer(OriginPatterns patterns, int parentNode, Label parent,
+                int node, Label label) {
+            label.rides = parent.rides;
+            /* after a ride one can transfer from the vehicle; otherwise, only from the stop */
+            boolean afterRide = patterns.getNodeParent(parentNode) >= 0
+                    && !patterns.isWalk(parentNode);
+            int from = patterns.getNodeStop(parentNode);
+            int to = patterns.getNodeStop(node);
+            int time = afterRide ? parent.arrival : parent.end;
+            if (time == INFINITY) {
+                return;
+            }
+            for (int t = timetable.getTransferStart(from); t < timetable.getTransferEnd(from); ++t) {
+                if (timetable.getTransferTarget(t) != to
+                        || (!afterRide && !timetable.isTransferFromStop(t))) {
+                    continue;
+                }
+                int arrival = time + timetable.getTransferTime(t);
+                if (arrival < label.arrival) {
+                    label.arrival = arrival;
+                    label.transfer = t;
+                }
+                if (timetable.isTransferToStop(t) && arrival < label.end) {
+                    label.end = arrival;
+                    label.endTransfer = t;
+                }
+            }
+        }
+
+        /**
+         * Finds the edges of the journey to a node, and traverses them to make a path.
+         */
+        private GraphPath toGraphPath(OriginPatterns patterns, HashMap<Integer, Label> labels,
+                int terminal) {
+            ArrayList<Integer> legs = new ArrayList<Integer>();
+            for (int n = terminal; patterns.getNodeParent(n) >= 0; n = patterns.getNodeParent(n)) {
+                legs.add(n);
+            }
+            Collections.reverse(legs);
+
+            List<Edge> edges = new ArrayList<Edge>();
+            Vertex at = timetable.getStop(patterns.getNodeStop(0));
+            for (int i = 0; i < legs.size(); ++i) {
+                int n = legs.get(i);
+                Label label = labels.get(n);
+                int stop = patterns.getNodeStop(patterns.getNodeParent(n));
+                if (patterns.isWalk(n)) {
+                    /* a ride can be boarded after any transfer; anything else must start at a stop */
+                    boolean beforeRide = i + 1 < legs.size() && !patterns.isWalk(legs.get(i + 1));
+                    int transfer = beforeRide ? label.transfer : label.endTransfer;
+                    if (transfer < 0) {
+                        return null;
+                    }
+                    Edge edge = timetable.getTransferEdge(transfer);
+                    at = moveTo(at, edge.getFromVertex(), stop, edges);
+                    edges.add(edge);
+                    at = edge.getToVertex();
+                } else {
+                    at = moveTo(at, timetable.getDepartVertex(stop), stop, edges);
+                    at = addRide(at, label, edges);
+                }
+                if (at == null) {
+                    return null;
+                }
+            }
+            int target = patterns.getNodeStop(terminal);
+            if (moveTo(at, timetable.getStop(target), target, edges) == null) {
+                return null;
+            }
+            return traverse(edges);
+        }
+
+        /**
+         * Adds the edges needed to get from one of the vertices of a stop to another.
+         */
+        private Vertex moveTo(Vertex at, Vertex to, int stop, List<Edge> edges) {
+            if (at == null || to == null) {
+                return null;
+            }
+            Vertex stopVertex = timetable.getStop(stop);
+            if (at != stopVertex && at != to) {
+                if (at != timetable.getArriveVertex(stop)) {
+                    return null;
+                }
+                at = addFreeEdge(at, stopVertex, edges);
+            }
+            if (at != to) {
+                if (at != stopVertex || to != timetable.getDepartVertex(stop)) {
+                    return null;
+                }
+                at = addFreeEdge(at, to, edges);
+            }
+            return at;
+        }
+
+        private Vertex addFreeEdge(Vertex from, Vertex to, List<Edge> edges) {
+            for (Edge e : graph.getOutgoing(from)) {
+                if (e instanceof FreeEdge && e.getToVertex() == to) {
+                    edges.add(e);
+                    return to;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Adds the edges of a ride from the departure vertex of one stop to the arrival vertex of
+         * another.
+         */
+        private Vertex addRide(Vertex at, Label label, List<Edge> edges) {
+            if (at == null) {
+                return null;
+            }
+            TripPattern pattern = timetable.getPattern(label.pattern);
+            Edge board = null;
+            for (Edge e : graph.getOutgoing(at)) {
+                if (e instanceof PatternBoard && ((PatternBoard) e).getPattern() == pattern
+                        && ((PatternBoard) e).getStopIndex() == label.boardPosition) {
+                    board = e;
+                }
+            }
+            if (board == null) {
+                return null;
+            }
+            edges.add(board);
+            Vertex v = board.getToVertex();
+            for (int position = label.boardPosition; position < label.alightPosition; ++position) {
+                Edge hop = null;
+                Edge next = null;
+                for (Edge e : graph.getOutgoing(v)) {
+                    if (e instanceof PatternHop && ((PatternHop) e).getPattern() == pattern
+                            && ((PatternHop) e).getStopIndex() == position) {
+                        hop = e;
+                    }
+                }
+                if (hop == null) {
+                    /* not merged with the hop's start; dwell there first */
+                    for (Edge e : graph.getOutgoing(v)) {
+                        if (e instanceof PatternDwell && ((PatternDwell) e).getPattern() == pattern
+                                && ((PatternDwell) e).getStopIndex() == position) {
+                            next = e;
+                        }
+                    }
+                    if (next == null) {
+                        return null;
+                    }
+                    edges.add(next);
+                    v = next.getToVertex();
+                    position--;
+                    continue;
+                }
+                edges.add(hop);
+                v = hop.getToVertex();
+            }
+            for (Edge e : graph.getOutgoing(v)) {
+                if (e instanceof PatternAlight && ((PatternAlight) e).getPattern() == pattern
+                        && ((PatternAlight) e).getStopIndex() == label.alightPosition - 1) {
+                    edges.add(e);
+                    return e.getToVertex();
+                }
+            }
+            return null;
+        }
+
+        private GraphPath traverse(List<Edge> edges) {
+            GraphPath path = new GraphPath();
+            State s = state;
+            double weight = 0;
+            SPTVertex previous = new SPTVertex(edges.get(0).getFromVertex(), s, 0, options);
+            path.vertices.add(previous);
+            for (Edge e : edges) {
+                TraverseResult result = e.traverse(s, options);
+                if (result == null) {
+                    return null;
+                }
+                s = result.state;
+                weight += result.weight;
+                SPTVertex next = new SPTVertex(e.getToVertex(), s, weight, options);
+                SPTEdge edge = next.setParent(previous, e);
+                path.edges.add(edge);
+                path.vertices.add(next);
+                previous = next;
+            }
+            return path;
+        }
+    }
+
+    private static ServiceDate getServiceDate(long time, Calendar c) {
+        c.setTimeInMillis(time);
+        c.set(Calendar.HOUR_OF_DAY, 0);
+        c.set(Calendar.MINUTE, 0);
+        c.set(Calendar.SECOND, 0);
+        c.set(Calendar.MILLISECOND, 0);
+        return new ServiceDate(c.getTime());
+    }
+}
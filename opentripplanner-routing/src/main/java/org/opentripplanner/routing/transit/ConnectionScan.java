@@ -0,0 +1,434 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.transit;
+
+import static org.opentripplanner.routing.transit.ConnectionTable.ARRIVAL_STOP;
+import static org.opentripplanner.routing.transit.ConnectionTable.ARRIVAL_TIME;
+import static org.opentripplanner.routing.transit.ConnectionTable.CONNECTION_SIZE;
+import static org.opentripplanner.routing.transit.ConnectionTable.DEPARTURE_STOP;
+import static org.opentripplanner.routing.transit.ConnectionTable.DEPARTURE_TIME;
+import static org.opentripplanner.routing.transit.ConnectionTable.FLAGS;
+import static org.opentripplanner.routing.transit.ConnectionTable.FLAG_ALIGHT;
+import static org.opentripplanner.routing.transit.ConnectionTable.FLAG_BOARD;
+import static org.opentripplanner.routing.transit.ConnectionTable.FLAG_WHEELCHAIR_ACCESSIBLE;
+import static org.opentripplanner.routing.transit.ConnectionTable.TRIP;
+
+import java.util.Arrays;
+
+import org.opentripplanner.routing.core.TraverseOptions;
+
+/**
+ * The Connection Scan Algorithm: transit searches done by a single pass over a
+ * {@link ConnectionTable}'s connections in order of departure, rather than by searching the
+ * graph.
+ *
+ * A search runs over several copies of the timetable, one for each service day that may matter
+ * (typically yesterday, today and tomorrow), each shifted by its offset from the query's day and
+ * restricted to the services running that day. All times are in seconds since the midnight that
+ * starts the query's day.
+ *
+ * Instances keep their working arrays between searches, so reuse them for successive searches,
+ * but not from more than one thread at once.
+ */
+public class ConnectionScan {
+
+    public static final int UNREACHED = Integer.MAX_VALUE;
+
+    private ConnectionTable table;
+
+    private TransitTimetable timetable;
+
+    private int[] connections;
+
+    private int[] dayOffsets;
+
+    /* by day and service */
+    private boolean[][] servicesRunning;
+
+    private boolean[] tripsAllowed;
+
+    private boolean wheelchairAccessible;
+
+    /* whether each transfer may be used, or null for all */
+    private boolean[] transfersAllowed;
+
+    /* the search in which each trip on each day was last reached */
+    private int[] tripSearches;
+
+    /* for profiles: the latest departure from the origin with which each trip was reached */
+    private int[] tripDepartures;
+
+    private int search = 0;
+
+    /* the next connection on each day */
+    private int[] positions;
+
+    /**
+     * @param dayOffsets the time, in seconds, from the query's day to each service day to search
+     * @param servicesRunning for each of those days, whether each of the timetable's services runs
+     * @param tripsAllowed which trips may be used, or null for all
+     * @param options the options transfers are checked against
+     */
+    public ConnectionScan(ConnectionTable table, int[] dayOffsets, boolean[][] servicesRunning,
+            boolean[] tripsAllowed, TraverseOptions options) {
+        this.table = table;
+        this.timetable = table.getTimetable();
+        this.connections = table.getConnections();
+        this.dayOffsets = dayOffsets;
+        this.servicesRunning = servicesRunning;
+        this.tripsAllowed = tripsAllowed;
+        this.wheelchairAccessible = options.wheelchairAccessible;
+        if (wheelchairAccessible) {
+            int nTransfers = timetable.getNumTransfers();
+            transfersAllowed = new boolean[nTransfers];
+            for (int t = 0; t < nTransfers; ++t) {
+                transfersAllowed[t] = timetable.isTransferAllowed(t, options);
+            }
+        }
+        tripSearches = new int[dayOffsets.length * table.getNumTrips()];
+        positions = new int[dayOffsets.length];
+    }
+
+    /**
+     * Finds the earliest arrival at every stop.
+     *
+     * @param target if not -1, the search stops once the arrival at this stop is known
+     * @return the earliest arrival time at each stop, or {@link #UNREACHED}
+     */
+    public int[] getEarliestArrivals(int origin, int departure, int target) {
+        int nStops = timetable.getNumStops();
+        int[] arrivals = new int[nStops];
+        /* when one can board at each stop, which transfers to departure vertices can make earlier */
+        int[] boardTimes = new int[nStops];
+        Arrays.fill(arrivals, UNREACHED);
+        Arrays.fill(boardTimes, UNREACHED);
+        arrivals[origin] = boardTimes[origin] = departure;
+        for (int t = timetable.getTransferStart(origin); t < timetable.getTransferEnd(origin); ++t) {
+            if (timetable.isTransferFromStop(t)) {
+                transfer(t, departure, arrivals, boardTimes);
+            }
+        }
+
+        ++search;
+        int nTrips = table.getNumTrips();
+        start(departure);
+        int day;
+        while ((day = next()) >= 0) {
+            int c = positions[day]++ * CONNECTION_SIZE;
+            int offset = dayOffsets[day];
+            int connectionDeparture = connections[c + DEPARTURE_TIME] + offset;
+            if (target >= 0 && connectionDeparture >= arrivals[target]) {
+                break;
+            }
+            int trip = connections[c + TRIP];
+            int key = day * nTrips + trip;
+            if (tripSearches[key] != search) {
+                if (boardTimes[connections[c + DEPARTURE_STOP]] > connectionDeparture
+                        || !canBoard(day, trip, connections[c + FLAGS])) {
+                    continue;
+                }
+                tripSearches[key] = search;
+            }
+            if ((connections[c + FLAGS] & FLAG_ALIGHT) == 0) {
+                continue;
+            }
+            int stop = connections[c + ARRIVAL_STOP];
+            int arrival = connections[c + ARRIVAL_TIME] + offset;
+            if (arrival < arrivals[stop]) {
+                arrivals[stop] = arrival;
+                boardTimes[stop] = Math.min(boardTimes[stop], arrival);
+                for (int t = timetable.getTransferStart(stop); t < timetable.getTransferEnd(stop); ++t) {
+                    transfer(t, arrival, arrivals, boardTimes);
+                }
+            }
+        }
+        return arrivals;
+    }
+
+    private void transfer(int t, int time, int[] arrivals, int[] boardTimes) {
+        if (transfersAllowed != null && !transfersAllowed[t]) {
+            return;
+        }
+        int target = timetable.getTransferTarget(t);
+        int arrival = time + timetable.getTransferTime(t);
+        if (arrival < boardTimes[target]) {
+            boardTimes[target] = arrival;
+        }
+        if (timetable.isTransferToStop(t) && arrival < arrivals[target]) {
+            arrivals[target] = arrival;
+        }
+    }
+
+    /**
+     * Finds, for every stop, the earliest arrival there for every departure from the origin in a
+     * window of time.
+     *
+     * @return for each stop, the departure and arrival times of each journey to it that no other
+     *         journey departs later than and arrives earlier than, interleaved and in increasing
+     *         order, or null if it can't be reached
+     */
+    public int[][] getProfiles(int origin, int earliestDeparture, int latestDeparture,
+            int latestArrival) {
+        int nStops = timetable.getNumStops();
+        int nTrips = table.getNumTrips();
+        if (tripDepartures == null) {
+            tripDepartures = new int[tripSearches.length];
+        }
+
+        /*
+         * The latest departure from the origin with which one can board at each stop, given the
+         * arrivals so far; arrivals are kept in a queue until their time comes.
+         */
+        int[] boardDepartures = new int[nStops];
+        int[] endDepartures = new int[nStops];
+        Arrays.fill(boardDepartures, Integer.MIN_VALUE);
+        Arrays.fill(endDepartures, Integer.MIN_VALUE);
+        int[][] profiles = new int[nStops][];
+        int[] profileSizes = new int[nStops];
+        ArrivalQueue queue = new ArrivalQueue();
+
+        /* walking time from the origin to the stops one can board at after walking */
+        int[] originWalks = new int[nStops];
+        Arrays.fill(originWalks, -1);
+        originWalks[origin] = 0;
+        for (int t = timetable.getTransferStart(origin); t < timetable.getTransferEnd(origin); ++t) {
+            int target = timetable.getTransferTarget(t);
+            if (!timetable.isTransferFromStop(t)
+                    || (transfersAllowed != null && !transfersAllowed[t])) {
+                continue;
+            }
+            if (originWalks[target] < 0 || timetable.getTransferTime(t) < originWalks[target]) {
+                originWalks[target] = timetable.getTransferTime(t);
+            }
+        }
+
+        ++search;
+        start(earliestDeparture);
+        int day;
+        while ((day = next()) >= 0) {
+            int c = positions[day]++ * CONNECTION_SIZE;
+            int offset = dayOffsets[day];
+            int connectionDeparture = connections[c + DEPARTURE_TIME] + offset;
+            if (connectionDeparture > latestArrival) {
+                break;
+            }
+            while (!queue.isEmpty() && queue.peekTime() <= connectionDeparture) {
+                arrive(queue, boardDepartures, endDepartures, profiles, profileSizes);
+            }
+
+            int trip = connections[c + TRIP];
+            int key = day * nTrips + trip;
+            int stop = connections[c + DEPARTURE_STOP];
+            int departure = boardDepartures[stop];
+            if (originWalks[stop] >= 0) {
+                int fromOrigin = connectionDeparture - originWalks[stop];
+                if (fromOrigin >= earliestDeparture) {
+                    departure = Math.max(departure, Math.min(fromOrigin, latestDeparture));
+                }
+            }
+            if (departure != Integer.MIN_VALUE && canBoard(day, trip, connections[c + FLAGS])) {
+                if (tripSearches[key] != search) {
+                    tripSearches[key] = search;
+                    tripDepartures[key] = departure;
+                } else {
+                    tripDepartures[key] = Math.max(tripDepartures[key], departure);
+                }
+            }
+            if (tripSearches[key] != search || (connections[c + FLAGS] & FLAG_ALIGHT) == 0) {
+                continue;
+            }
+            departure = tripDepartures[key];
+            int arrivalStop = connections[c + ARRIVAL_STOP];
+            int arrival = connections[c + ARRIVAL_TIME] + offset;
+            queue.add(arrival, arrivalStop, departure, true);
+            for (int t = timetable.getTransferStart(arrivalStop); t < timetable
+                    .getTransferEnd(arrivalStop); ++t) {
+                if (transfersAllowed != null && !transfersAllowed[t]) {
+                    continue;
+                }
+                queue.add(arrival + timetable.getTransferTime(t), timetable.getTransferTarget(t),
+                        departure, timetable.isTransferToStop(t));
+            }
+        }
+        while (!queue.isEmpty() && queue.peekTime() <= latestArrival) {
+            arrive(queue, boardDepartures, endDepartures, profiles, profileSizes);
+        }
+
+        for (int s = 0; s < nStops; ++s) {
+            if (s == origin || profiles[s] == null) {
+                profiles[s] = null;
+            } else {
+                profiles[s] = Arrays.copyOf(profiles[s], profileSizes[s]);
+            }
+        }
+        return profiles;
+    }
+
+    private void arrive(ArrivalQueue queue, int[] boardDepartures, int[] endDepartures,
+            int[][] profiles, int[] profileSizes) {
+        int time = queue.peekTime();
+        int stop = queue.peekStop();
+        int departure = queue.peekDeparture();
+        boolean end = queue.peekEnd();
+        queue.remove();
+        boardDepartures[stop] = Math.max(boardDepartures[stop], departure);
+        if (!end || departure <= endDepartures[stop]) {
+            return;
+        }
+        endDepartures[stop] = departure;
+        int[] profile = profiles[stop];
+        int size = profileSizes[stop];
+        if (profile == null) {
+            profile = profiles[stop] = new int[8];
+        } else if (size > 0 && profile[size - 1] == time) {
+            /* replaces a journey arriving at the same time but leaving earlier */
+            profile[size - 2] = departure;
+            return;
+        } else if (size == profile.length) {
+            profile = profiles[stop] = Arrays.copyOf(profile, size * 2);
+        }
+        profile[size] = departure;
+        profile[size + 1] = time;
+        profileSizes[stop] = size + 2;
+    }
+
+    private boolean canBoard(int day, int trip, int flags) {
+        if ((flags & FLAG_BOARD) == 0) {
+            return false;
+        }
+        if (wheelchairAccessible && (flags & FLAG_WHEELCHAIR_ACCESSIBLE) == 0) {
+            return false;
+        }
+        if (tripsAllowed != null && !tripsAllowed[trip]) {
+            return false;
+        }
+        return servicesRunning[day][table.getTripService(trip)];
+    }
+
+    private void start(int time) {
+        for (int day = 0; day < dayOffsets.length; ++day) {
+            positions[day] = table.getFirstConnection(time - dayOffsets[day]);
+        }
+    }
+
+    /**
+     * @return the day whose next connection departs first, or -1 if there are no more
+     */
+    private int next() {
+        int best = -1;
+        int bestTime = Integer.MAX_VALUE;
+        int n = table.getNumConnections();
+        for (int day = 0; day < positions.length; ++day) {
+            if (positions[day] < n) {
+                int time = connections[positions[day] * CONNECTION_SIZE + DEPARTURE_TIME]
+                        + dayOffsets[day];
+                if (time < bestTime) {
+                    best = day;
+                    bestTime = time;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * A binary heap of arrivals, ordered by time, in parallel int arrays.
+     */
+    private static class ArrivalQueue {
+
+        private int[] times = new int[64];
+
+        private int[] stops = new int[64];
+
+        private int[] departures = new int[64];
+
+        /* 1 if one can end a journey at the stop, 0 if one can only board there */
+        private int[] ends = new int[64];
+
+        private int size = 0;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        int peekTime() {
+            return times[0];
+        }
+
+        int peekStop() {
+            return stops[0];
+        }
+
+        int peekDeparture() {
+            return departures[0];
+        }
+
+        boolean peekEnd() {
+            return ends[0] != 0;
+        }
+
+        void add(int time, int stop, int departure, boolean end) {
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                stops = Arrays.copyOf(stops, size * 2);
+                departures = Arrays.copyOf(departures, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (times[parent] <= time) {
+                    break;
+                }
+                move(parent, i);
+                i = parent;
+            }
+            set(i, time, stop, departure, end ? 1 : 0);
+        }
+
+        void remove() {
+            --size;
+            int time = times[size], stop = stops[size], departure = departures[size], end = ends[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && times[child + 1] < times[child]) {
+                    ++child;
+                }
+                if (times[child] >= time) {
+                    break;
+                }
+                move(child, i);
+                i = child;
+            }
+            if (size > 0) {
+                set(i, time, stop, departure, end);
+            }
+        }
+
+        private void move(int from, int to) {
+            set(to, times[from], stops[from], departures[from], ends[from]);
+        }
+
+        private void set(int i, int time, int stop, int departure, int end) {
+            times[i] = time;
+            stops[i] = stop;
+            departures[i] = departure;
+            ends[i] = end;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.transit;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import org.opentripplanner.routing.edgetype.TimetableSnapshot;
+import org.opentripplanner.routing.edgetype.TripPattern;
+import org.opentripplanner.routing.edgetype.TripTimesOverlay;
+
+/**
+ * Every elementary connection in a {@link TransitTimetable} -- a single trip's hop from one stop
+ * to the next -- in one array sorted by departure time, for {@link ConnectionScan}.
+ *
+ * Each connection takes {@link #CONNECTION_SIZE} consecutive ints: departure stop, arrival stop,
+ * departure time, arrival time, trip and flags. Times are in seconds since the midnight that
+ * starts the trip's service day. Trips are numbered across all patterns.
+ *
+ * A table may be built with the real-time times of a {@link TimetableSnapshot}, in which case
+ * cancelled trips have no connections. The snapshot's times are copied, so the table must be
+ * built again to see later updates.
+ */
+public class ConnectionTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int CONNECTION_SIZE = 6;
+
+    public static final int DEPARTURE_STOP = 0;
+
+    public static final int ARRIVAL_STOP = 1;
+
+    public static final int DEPARTURE_TIME = 2;
+
+    public static final int ARRIVAL_TIME = 3;
+
+    public static final int TRIP = 4;
+
+    public static final int FLAGS = 5;
+
+    /** Passengers may board at the departure stop */
+    public static final int FLAG_BOARD = 1;
+
+    /** Passengers may alight at the arrival stop */
+    public static final int FLAG_ALIGHT = 2;
+
+    /** The departure stop is wheelchair accessible on this trip */
+    public static final int FLAG_WHEELCHAIR_ACCESSIBLE = 4;
+
+    private TransitTimetable timetable;
+
+    private transient TimetableSnapshot snapshot;
+
+    private int[] connections;
+
+    private int nConnections;
+
+    /* the pattern, index in the pattern, and service of each trip */
+    private int[] tripPatterns;
+
+    private int[] tripIndices;
+
+    private int[] tripServices;
+
+    public ConnectionTable(TransitTimetable timetable) {
+        this(timetable, null);
+    }
+
+    /**
+     * @param snapshot the real-time timetables to use, or null for the scheduled ones
+     */
+    public ConnectionTable(TransitTimetable timetable, TimetableSnapshot snapshot) {
+        this.timetable = timetable;
+        this.snapshot = snapshot;
+
+        TripPattern[] patterns = new TripPattern[timetable.getNumPatterns()];
+        int nTrips = 0;
+        int count = 0;
+        for (int p = 0; p < patterns.length; ++p) {
+            patterns[p] = timetable.getPattern(p);
+            if (snapshot != null) {
+                patterns[p] = snapshot.getPattern(patterns[p]);
+            }
+            int trips = patterns[p].getNumTrips();
+            nTrips += trips;
+            count += trips * (timetable.getPatternStops(p).length - 1);
+            if (patterns[p] instanceof TripTimesOverlay) {
+                TripTimesOverlay overlay = (TripTimesOverlay) patterns[p];
+                for (int t = 0; t < trips; ++t) {
+                    if (overlay.isCancelled(t)) {
+                        count -= timetable.getPatternStops(p).length - 1;
+                    }
+                }
+            }
+        }
+        nConnections = count;
+        tripPatterns = new int[nTrips];
+        tripIndices = new int[nTrips];
+        tripServices = new int[nTrips];
+
+        /* connections in pattern, trip and stop order, then sorted by departure */
+        int[] unsorted = new int[count * CONNECTION_SIZE];
+        long[] keys = new long[count];
+        int trip = 0;
+        int c = 0;
+        for (int p = 0; p < patterns.length; ++p) {
+            TripPattern pattern = patterns[p];
+            TripTimesOverlay overlay = pattern instanceof TripTimesOverlay ? (TripTimesOverlay) pattern
+                    : null;
+            int[] stops = timetable.getPatternStops(p);
+            for (int t = 0; t < pattern.getNumTrips(); ++t, ++trip) {
+                tripPatterns[trip] = p;
+                tripIndices[trip] = t;
+                tripServices[trip] = timetable.getPatternService(p);
+                if (overlay != null && overlay.isCancelled(t)) {
+                    continue;
+                }
+                for (int i = 0; i < stops.length - 1; ++i, ++c) {
+                    int offset = c * CONNECTION_SIZE;
+                    int departure = pattern.getDepartureTime(i, t);
+                    unsorted[offset + DEPARTURE_STOP] = stops[i];
+                    unsorted[offset + ARRIVAL_STOP] = stops[i + 1];
+                    unsorted[offset + DEPARTURE_TIME] = departure;
+                    unsorted[offset + ARRIVAL_TIME] = pattern.getArrivalTime(i, t);
+                    unsorted[offset + TRIP] = trip;
+                    int flags = 0;
+                    if (pattern.canBoard(i)) {
+                        flags |= FLAG_BOARD;
+                    }
+                    if (pattern.canAlight(i + 1)) {
+                        flags |= FLAG_ALIGHT;
+                    }
+                    if (pattern.getWheelchairAccessible(i, t)) {
+                        flags |= FLAG_WHEELCHAIR_ACCESSIBLE;
+                    }
+                    unsorted[offset + FLAGS] = flags;
+                    /* ties keep their order, so a trip's connections stay in sequence */
+                    keys[c] = ((long) departure << 32) | c;
+                }
+            }
+        }
+        Arrays.sort(keys);
+        connections = new int[count * CONNECTION_SIZE];
+        for (int i = 0; i < count; ++i) {
+            int from = (int) keys[i] * CONNECTION_SIZE;
+            System.arraycopy(unsorted, from, connections, i * CONNECTION_SIZE, CONNECTION_SIZE);
+        }
+    }
+
+    public TransitTimetable getTimetable() {
+        return timetable;
+    }
+
+    /**
+     * @return the real-time timetables the table was built with, or null if it has the
+     *         scheduled times
+     */
+    public TimetableSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public int getNumConnections() {
+        return nConnections;
+    }
+
+    /**
+     * @return the connections, {@link #CONNECTION_SIZE} ints each; must not be modified
+     */
+    public int[] getConnections() {
+        return connections;
+    }
+
+    public int getNumTrips() {
+        return tripPatterns.length;
+    }
+
+    public int getTripPattern(int trip) {
+        return tripPatterns[trip];
+    }
+
+    /**
+     * @return the index of the trip among its pattern's trips
+     */
+    public int getTripIndex(int trip) {
+        return tripIndices[trip];
+    }
+
+    public int getTripService(int trip) {
+        return tripServices[trip];
+    }
+
+    /**
+     * @return the first connection departing at or after the given time
+     */
+    public int getFirstConnection(int time) {
+        int low = 0, high = nConnections;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (connections[mid * CONNECTION_SIZE + DEPARTURE_TIME] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
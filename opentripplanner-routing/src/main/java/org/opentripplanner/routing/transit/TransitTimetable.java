@@ -0,0 +1,410 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.transit;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.opentripplanner.routing.core.Edge;
+import org.opentripplanner.routing.core.Graph;
+import org.opentripplanner.routing.core.GraphVertex;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.TransitStop;
+import org.opentripplanner.routing.core.TraverseModeSet;
+import org.opentripplanner.routing.core.TraverseOptions;
+import org.opentripplanner.routing.core.Vertex;
+import org.opentripplanner.routing.edgetype.FreeEdge;
+import org.opentripplanner.routing.edgetype.PatternAlight;
+import org.opentripplanner.routing.edgetype.PatternBoard;
+import org.opentripplanner.routing.edgetype.TransferEdge;
+import org.opentripplanner.routing.edgetype.TripPattern;
+
+/**
+ * A stop-indexed view of the transit part of a graph, for algorithms that work on timetables
+ * rather than on the graph: every transit stop gets an integer index, and every trip pattern is
+ * described by the sequence of stop indices it serves. Times are read from the patterns
+ * themselves, so nothing is copied but the stop sequences.
+ *
+ * Walking transfers between stops are taken from the graph's {@link WalkingTransfers} service
+ * (see {@link org.opentripplanner.routing.edgetype.loader.TransferGenerator}), and GTFS transfers
+ * from its TransferEdges.
+ *
+ * Trips that overtake other trips on their pattern are represented in the graph by individual
+ * Hops rather than by patterns, and are not included.
+ */
+public class TransitTimetable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int SEC_IN_DAY = 24 * 60 * 60;
+
+    private Vertex[] stops;
+
+    /* the vertices representing departing from and arriving at each stop */
+    private Vertex[] departVertices;
+
+    private Vertex[] arriveVertices;
+
+    private transient HashMap<Vertex, Integer> stopIndices;
+
+    private TripPattern[] patterns;
+
+    /* the stop index at each position of each pattern */
+    private int[][] patternStops;
+
+    private int[] patternServices;
+
+    private int[] patternModeMasks;
+
+    private AgencyAndId[] services;
+
+    /*
+     * the patterns serving stop s are stopPatterns[stopPatternStart[s]] ...
+     * stopPatterns[stopPatternStart[s + 1] - 1], sorted by pattern, at the positions in
+     * stopPatternPositions
+     */
+    private int[] stopPatternStart;
+
+    private int[] stopPatterns;
+
+    private int[] stopPatternPositions;
+
+    /* transfers from stop s, likewise */
+    private int[] transferStart;
+
+    private int[] transferTargets;
+
+    private int[] transferTimes;
+
+    private TransferEdge[] transferEdges;
+
+    /*
+     * whether each transfer leaves from (arrives at) the stop itself, rather than from the
+     * arrival (to the departure) vertex, as transfers from transfers.txt do
+     */
+    private boolean[] transferFromStop;
+
+    private boolean[] transferToStop;
+
+    public TransitTimetable(Graph graph) {
+        /* stops, and their departure and arrival vertices */
+        List<Vertex> stopList = new ArrayList<Vertex>();
+        HashMap<Vertex, Integer> byVertex = new HashMap<Vertex, Integer>();
+        for (GraphVertex gv : graph.getVertices()) {
+            if (gv.vertex instanceof TransitStop) {
+                byVertex.put(gv.vertex, stopList.size());
+                stopList.add(gv.vertex);
+            }
+        }
+        int nStops = stopList.size();
+        stops = stopList.toArray(new Vertex[nStops]);
+        departVertices = new Vertex[nStops];
+        arriveVertices = new Vertex[nStops];
+        for (int s = 0; s < nStops; ++s) {
+            for (Edge e : graph.getOutgoing(stops[s])) {
+                if (e instanceof FreeEdge && !(e.getToVertex() instanceof TransitStop)) {
+                    departVertices[s] = e.getToVertex();
+                    byVertex.put(e.getToVertex(), s);
+                }
+            }
+            for (Edge e : graph.getIncoming(stops[s])) {
+                if (e instanceof FreeEdge && !(e.getFromVertex() instanceof TransitStop)) {
+                    arriveVertices[s] = e.getFromVertex();
+                    byVertex.put(e.getFromVertex(), s);
+                }
+            }
+        }
+
+        /* patterns, from their boarding and alighting edges */
+        HashMap<TripPattern, Integer> patternIndices = new HashMap<TripPattern, Integer>();
+        List<TripPattern> patternList = new ArrayList<TripPattern>();
+        List<HashMap<Integer, Integer>> positions = new ArrayList<HashMap<Integer, Integer>>();
+        for (GraphVertex gv : graph.getVertices()) {
+            for (Edge e : gv.getOutgoing()) {
+                TripPattern pattern;
+                Vertex stopVertex;
+                int position;
+                if (e instanceof PatternBoard) {
+                    pattern = ((PatternBoard) e).getPattern();
+                    stopVertex = e.getFromVertex();
+                    position = ((PatternBoard) e).getStopIndex();
+                } else if (e instanceof PatternAlight) {
+                    pattern = ((PatternAlight) e).getPattern();
+                    stopVertex = e.getToVertex();
+                    position = ((PatternAlight) e).getStopIndex() + 1;
+                } else {
+                    continue;
+                }
+                Integer stop = byVertex.get(stopVertex);
+                if (stop == null) {
+                    continue;
+                }
+                Integer p = patternIndices.get(pattern);
+                if (p == null) {
+                    p = patternList.size();
+                    patternIndices.put(pattern, p);
+                    patternList.add(pattern);
+                    positions.add(new HashMap<Integer, Integer>());
+                }
+                positions.get(p).put(position, stop);
+            }
+        }
+
+        HashMap<AgencyAndId, Integer> serviceIndices = new HashMap<AgencyAndId, Integer>();
+        List<AgencyAndId> serviceList = new ArrayList<AgencyAndId>();
+        List<TripPattern> keptPatterns = new ArrayList<TripPattern>();
+        List<int[]> keptStops = new ArrayList<int[]>();
+        for (int p = 0; p < patternList.size(); ++p) {
+            HashMap<Integer, Integer> stopsAt = positions.get(p);
+            int n = stopsAt.size();
+            int[] sequence = new int[n];
+            boolean complete = true;
+            for (int i = 0; i < n; ++i) {
+                Integer stop = stopsAt.get(i);
+                if (stop == null) {
+                    complete = false;
+                    break;
+                }
+                sequence[i] = stop;
+            }
+            if (complete && n > 1) {
+                keptPatterns.add(patternList.get(p));
+                keptStops.add(sequence);
+            }
+        }
+        int nPatterns = keptPatterns.size();
+        patterns = keptPatterns.toArray(new TripPattern[nPatterns]);
+        patternStops = keptStops.toArray(new int[nPatterns][]);
+        patternServices = new int[nPatterns];
+        patternModeMasks = new int[nPatterns];
+        for (int p = 0; p < nPatterns; ++p) {
+            AgencyAndId service = patterns[p].getServiceId();
+            Integer index = serviceIndices.get(service);
+            if (index == null) {
+                index = serviceList.size();
+                serviceIndices.put(service, index);
+                serviceList.add(service);
+            }
+            patternServices[p] = index;
+            patternModeMasks[p] = new TraverseModeSet(patterns[p].getDictionary().getRouteMode(
+                    patterns[p].getRouteCode())).getMask();
+        }
+        services = serviceList.toArray(new AgencyAndId[serviceList.size()]);
+
+        /* the patterns at each stop */
+        stopPatternStart = new int[nStops + 1];
+        for (int p = 0; p < nPatterns; ++p) {
+            for (int stop : patternStops[p]) {
+                stopPatternStart[stop + 1]++;
+            }
+        }
+        for (int s = 0; s < nStops; ++s) {
+            stopPatternStart[s + 1] += stopPatternStart[s];
+        }
+        stopPatterns = new int[stopPatternStart[nStops]];
+        stopPatternPositions = new int[stopPatternStart[nStops]];
+        int[] fill = stopPatternStart.clone();
+        for (int p = 0; p < nPatterns; ++p) {
+            for (int i = 0; i < patternStops[p].length; ++i) {
+                int stop = patternStops[p][i];
+                stopPatterns[fill[stop]] = p;
+                stopPatternPositions[fill[stop]] = i;
+                fill[stop]++;
+            }
+        }
+
+        /* transfers */
+        List<TransferEdge> candidates = new ArrayList<TransferEdge>();
+        for (GraphVertex gv : graph.getVertices()) {
+            for (Edge e : gv.getOutgoing()) {
+                if (e instanceof TransferEdge) {
+                    candidates.add((TransferEdge) e);
+                }
+            }
+        }
+        WalkingTransfers walkingTransfers = graph.getService(WalkingTransfers.class);
+        if (walkingTransfers != null) {
+            for (Vertex stop : stops) {
+                candidates.addAll(walkingTransfers.getTransfers(stop));
+            }
+        }
+        List<TransferEdge> transferList = new ArrayList<TransferEdge>();
+        List<int[]> transferStops = new ArrayList<int[]>();
+        for (TransferEdge e : candidates) {
+            Integer from = byVertex.get(e.getFromVertex());
+            Integer to = byVertex.get(e.getToVertex());
+            if (from == null || to == null || from.equals(to)) {
+                continue;
+            }
+            transferList.add(e);
+            transferStops.add(new int[] { from, to });
+        }
+        transferStart = new int[nStops + 1];
+        for (int[] pair : transferStops) {
+            transferStart[pair[0] + 1]++;
+        }
+        for (int s = 0; s < nStops; ++s) {
+            transferStart[s + 1] += transferStart[s];
+        }
+        int nTransfers = transferList.size();
+        transferTargets = new int[nTransfers];
+        transferTimes = new int[nTransfers];
+        transferEdges = new TransferEdge[nTransfers];
+        transferFromStop = new boolean[nTransfers];
+        transferToStop = new boolean[nTransfers];
+        fill = transferStart.clone();
+        for (int t = 0; t < nTransfers; ++t) {
+            int from = transferStops.get(t)[0];
+            int i = fill[from]++;
+            transferTargets[i] = transferStops.get(t)[1];
+            transferTimes[i] = transferList.get(t).getTime();
+            transferEdges[i] = transferList.get(t);
+            transferFromStop[i] = transferList.get(t).getFromVertex() instanceof TransitStop;
+            transferToStop[i] = transferList.get(t).getToVertex() instanceof TransitStop;
+        }
+    }
+
+    public int getNumStops() {
+        return stops.length;
+    }
+
+    public Vertex getStop(int stop) {
+        return stops[stop];
+    }
+
+    /**
+     * @return the index of the stop, or -1 if the vertex is not a transit stop in this timetable
+     */
+    public int getStopIndex(Vertex stop) {
+        if (stopIndices == null) {
+            HashMap<Vertex, Integer> indices = new HashMap<Vertex, Integer>();
+            for (int s = 0; s < stops.length; ++s) {
+                indices.put(stops[s], s);
+            }
+            stopIndices = indices;
+        }
+        Integer index = stopIndices.get(stop);
+        return index == null ? -1 : index;
+    }
+
+    public Vertex getDepartVertex(int stop) {
+        return departVertices[stop];
+    }
+
+    public Vertex getArriveVertex(int stop) {
+        return arriveVertices[stop];
+    }
+
+    public int getNumPatterns() {
+        return patterns.length;
+    }
+
+    public TripPattern getPattern(int pattern) {
+        return patterns[pattern];
+    }
+
+    public int[] getPatternStops(int pattern) {
+        return patternStops[pattern];
+    }
+
+    public int getNumServices() {
+        return services.length;
+    }
+
+    public AgencyAndId getService(int service) {
+        return services[service];
+    }
+
+    public int getPatternService(int pattern) {
+        return patternServices[pattern];
+    }
+
+    /**
+     * @return whether the options allow travel on the pattern's mode
+     */
+    public boolean isModeAllowed(int pattern, TraverseOptions options) {
+        return options.modes.get(patternModeMasks[pattern]);
+    }
+
+    public int getStopPatternStart(int stop) {
+        return stopPatternStart[stop];
+    }
+
+    public int getStopPatternEnd(int stop) {
+        return stopPatternStart[stop + 1];
+    }
+
+    /** @return the pattern of the i-th (pattern, position) pair in the per-stop lists */
+    public int getStopPattern(int i) {
+        return stopPatterns[i];
+    }
+
+    /** @return the position of the i-th (pattern, position) pair in the per-stop lists */
+    public int getStopPatternPosition(int i) {
+        return stopPatternPositions[i];
+    }
+
+    public int getNumTransfers() {
+        return transferTargets.length;
+    }
+
+    public int getTransferStart(int stop) {
+        return transferStart[stop];
+    }
+
+    public int getTransferEnd(int stop) {
+        return transferStart[stop + 1];
+    }
+
+    public int getTransferTarget(int i) {
+        return transferTargets[i];
+    }
+
+    public int getTransferTime(int i) {
+        return transferTimes[i];
+    }
+
+    public TransferEdge getTransferEdge(int i) {
+        return transferEdges[i];
+    }
+
+    /**
+     * @return whether the i-th transfer can be taken from the stop itself, rather than only after
+     *         alighting there
+     */
+    public boolean isTransferFromStop(int i) {
+        return transferFromStop[i];
+    }
+
+    /**
+     * @return whether the i-th transfer ends at the stop itself, rather than only allowing one to
+     *         board there
+     */
+    public boolean isTransferToStop(int i) {
+        return transferToStop[i];
+    }
+
+    /**
+     * @return whether the i-th transfer may be used with the given options
+     */
+    public boolean isTransferAllowed(int i, TraverseOptions options) {
+        if (!options.wheelchairAccessible) {
+            return true;
+        }
+        return transferEdges[i].traverse(new State(), options) != null;
+    }
+}
@@ -0,0 +1,66 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.transit;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.opentripplanner.routing.core.Vertex;
+import org.opentripplanner.routing.edgetype.TransferEdge;
+
+/**
+ * The walking transfers between nearby stops found by
+ * {@link org.opentripplanner.routing.edgetype.loader.TransferGenerator}, stored as a graph
+ * service.
+ *
+ * The transfers are not edges of the graph: a TransferEdge costs only time, so street searches
+ * would be able to hop from stop to stop without walking. Only engines that work on timetables,
+ * through {@link TransitTimetable}, read them.
+ */
+public class WalkingTransfers implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private HashMap<Vertex, List<TransferEdge>> transfers = new HashMap<Vertex, List<TransferEdge>>();
+
+    private int count = 0;
+
+    public void addTransfer(TransferEdge transfer) {
+        List<TransferEdge> from = transfers.get(transfer.getFromVertex());
+        if (from == null) {
+            from = new ArrayList<TransferEdge>();
+            transfers.put(transfer.getFromVertex(), from);
+        }
+        from.add(transfer);
+        ++count;
+    }
+
+    /**
+     * @return the transfers from a stop, or an empty list if there are none
+     */
+    public List<TransferEdge> getTransfers(Vertex stop) {
+        List<TransferEdge> from = transfers.get(stop);
+        if (from == null) {
+            return Collections.emptyList();
+        }
+        return from;
+    }
+
+    public int getCount() {
+        return count;
+    }
+}
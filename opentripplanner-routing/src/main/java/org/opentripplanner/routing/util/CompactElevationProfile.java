@@ -0,0 +1,209 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.util;
+
+import org.opentripplanner.common.geometry.PackedCoordinateSequence;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * An elevation profile sampled at a fixed step along a street, as produced by the NED graph
+ * builder: samples at 0, step, 2 * step... and a last one at the end of the street. Distances
+ * are computed from the step rather than stored, and elevations are stored in decimeters as
+ * zigzag varint deltas from the previous sample, which takes a byte or two per sample rather
+ * than the sixteen of a {@link PackedCoordinateSequence.Double}.
+ * 
+ * The profile of the other direction of a street is a {@link #reverse()} view of the same data.
+ * 
+ * Elevations are decoded from the start of the profile, so random access to a sample costs time
+ * in proportion to its index; {@link #toCoordinateArray()} and {@link #getElevations()} decode
+ * the whole profile at once. Profiles cannot be modified.
+ */
+public class CompactElevationProfile extends PackedCoordinateSequence {
+
+    private static final long serialVersionUID = 1L;
+
+    /* the furthest a distance may be from the fixed step, in meters */
+    private static final double STEP_TOLERANCE = 0.01;
+
+    private float step;
+
+    private float length;
+
+    private int size;
+
+    private byte[] deltas;
+
+    private boolean reversed;
+
+    private CompactElevationProfile(float step, float length, int size, byte[] deltas,
+            boolean reversed) {
+        this.dimension = 2;
+        this.step = step;
+        this.length = length;
+        this.size = size;
+        this.deltas = deltas;
+        this.reversed = reversed;
+    }
+
+    /**
+     * @return a compact copy of the profile, rounded to the nearest decimeter, or the profile
+     *         itself if it isn't sampled at a fixed step
+     */
+    public static PackedCoordinateSequence compact(PackedCoordinateSequence profile) {
+        if (profile == null || profile instanceof CompactElevationProfile) {
+            return profile;
+        }
+        int size = profile.size();
+        if (size < 2 || profile.getX(0) != 0) {
+            return profile;
+        }
+        double length = profile.getX(size - 1);
+        double step = size > 2 ? profile.getX(1) : length;
+        for (int i = 1; i < size - 1; ++i) {
+            if (Math.abs(profile.getX(i) - i * step) > STEP_TOLERANCE) {
+                return profile;
+            }
+        }
+        if (length < (size - 2) * step) {
+            return profile;
+        }
+
+        byte[] buffer = new byte[size * 5];
+        int position = 0;
+        long last = 0;
+        for (int i = 0; i < size; ++i) {
+            double y = profile.getY(i);
+            if (java.lang.Double.isNaN(y) || Math.abs(y) > Integer.MAX_VALUE / 20) {
+                return profile;
+            }
+            long decimeters = Math.round(y * 10);
+            int delta = (int) (decimeters - last);
+            /* zigzag, then varint */
+            int value = (delta << 1) ^ (delta >> 31);
+            while ((value & ~0x7f) != 0) {
+                buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+            last = decimeters;
+        }
+        byte[] deltas = new byte[position];
+        System.arraycopy(buffer, 0, deltas, 0, position);
+        return new CompactElevationProfile((float) step, (float) length, size, deltas, false);
+    }
+
+    /**
+     * @return the profile of the same street traversed the other way, sharing this one's data
+     */
+    public CompactElevationProfile reverse() {
+        return new CompactElevationProfile(step, length, size, deltas, !reversed);
+    }
+
+    /**
+     * @return the elevation of every sample, in order
+     */
+    public double[] getElevations() {
+        double[] elevations = new double[size];
+        int position = 0;
+        int decimeters = 0;
+        for (int i = 0; i < size; ++i) {
+            int value = 0, shift = 0;
+            byte b;
+            do {
+                b = deltas[position++];
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            decimeters += (value >>> 1) ^ -(value & 1);
+            elevations[reversed ? size - 1 - i : i] = decimeters / 10.0;
+        }
+        return elevations;
+    }
+
+    private double getDistance(int index) {
+        int sample = reversed ? size - 1 - index : index;
+        double x = sample == size - 1 ? length : sample * (double) step;
+        return reversed ? length - x : x;
+    }
+
+    private double getElevation(int index) {
+        int sample = reversed ? size - 1 - index : index;
+        int position = 0;
+        int decimeters = 0;
+        for (int i = 0; i <= sample; ++i) {
+            int value = 0, shift = 0;
+            byte b;
+            do {
+                b = deltas[position++];
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            decimeters += (value >>> 1) ^ -(value & 1);
+        }
+        return decimeters / 10.0;
+    }
+
+    @Override
+    public Coordinate[] toCoordinateArray() {
+        double[] elevations = getElevations();
+        Coordinate[] coords = new Coordinate[size];
+        for (int i = 0; i < size; ++i) {
+            coords[i] = new Coordinate(getDistance(i), elevations[i]);
+        }
+        return coords;
+    }
+
+    @Override
+    protected Coordinate getCoordinateInternal(int index) {
+        return new Coordinate(getDistance(index), getElevation(index));
+    }
+
+    @Override
+    public double getOrdinate(int index, int ordinateIndex) {
+        switch (ordinateIndex) {
+        case 0:
+            return getDistance(index);
+        case 1:
+            return getElevation(index);
+        default:
+            return java.lang.Double.NaN;
+        }
+    }
+
+    @Override
+    public void setOrdinate(int index, int ordinate, double value) {
+        throw new UnsupportedOperationException("elevation profiles cannot be modified");
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Object clone() {
+        return new CompactElevationProfile(step, length, size, deltas, reversed);
+    }
+
+    @Override
+    public Envelope expandEnvelope(Envelope env) {
+        double[] elevations = getElevations();
+        for (int i = 0; i < size; ++i) {
+            env.expandToInclude(getDistance(i), elevations[i]);
+        }
+        return env;
+    }
+}
@@ -0,0 +1,63 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.util;
+
+import org.opentripplanner.common.geometry.PackedCoordinateSequence;
+
+public class ElevationUtils {
+
+    /**
+     * Returns the part of an elevation profile between start and end (inclusive). The x-values of
+     * the returned coordinates are shifted so that the returned profile starts at start.
+     *
+     * Elevation profiles are sorted by distance, so the first sample is found by binary search and
+     * only the samples in the range are read.
+     */
+    public static PackedCoordinateSequence getPartialElevationProfile(
+            PackedCoordinateSequence elevationProfile, double start, double end) {
+        if (elevationProfile == null) {
+            return null;
+        }
+        int size = elevationProfile.size();
+
+        // find the first sample at or after start
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (elevationProfile.getX(mid) < start) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int first = lo;
+        int last = first;
+        while (last < size && elevationProfile.getX(last) <= end) {
+            ++last;
+        }
+
+        // compact profiles are decoded all at once rather than sample by sample
+        double[] elevations = null;
+        if (elevationProfile instanceof CompactElevationProfile) {
+            elevations = ((CompactElevationProfile) elevationProfile).getElevations();
+        }
+        double[] coords = new double[(last - first) * 2];
+        for (int i = first; i < last; ++i) {
+            coords[(i - first) * 2] = elevationProfile.getX(i) - start;
+            coords[(i - first) * 2 + 1] = elevations != null ? elevations[i] : elevationProfile
+                    .getY(i);
+        }
+        return new PackedCoordinateSequence.Double(coords, 2);
+    }
+}
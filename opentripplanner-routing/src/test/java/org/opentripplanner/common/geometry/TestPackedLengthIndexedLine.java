@@ -0,0 +1,73 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.common.geometry;
+
+import org.opentripplanner.common.model.P2;
+import org.opentripplanner.routing.util.ElevationUtils;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.linearref.LinearLocation;
+import com.vividsolutions.jts.linearref.LocationIndexedLine;
+
+import junit.framework.TestCase;
+
+public class TestPackedLengthIndexedLine extends TestCase {
+
+    public void testAgreesWithJTS() {
+        LineString geometry = GeometryUtils.makeLineString(-122.0, 45.0, -121.99, 45.0, -121.99,
+                45.01, -121.98, 45.02);
+        PackedLengthIndexedLine line = new PackedLengthIndexedLine(geometry);
+        assertEquals(geometry.getLength(), line.getLength(), 1e-12);
+
+        GeometryFactory gf = new GeometryFactory();
+        Coordinate[] points = { new Coordinate(-121.995, 45.001), new Coordinate(-121.98, 45.005),
+                new Coordinate(-122.1, 44.9), new Coordinate(-121.97, 45.03) };
+        for (Coordinate c : points) {
+            Point p = gf.createPoint(c);
+            assertEquals(geometry.distance(p), line.distance(c), 1e-12);
+
+            LocationIndexedLine lil = new LocationIndexedLine(geometry);
+            LinearLocation location = lil.project(c);
+            Coordinate expected = lil.extractPoint(location);
+            Coordinate actual = line.getCoordinate(line.project(c));
+            assertEquals(expected.x, actual.x, 1e-12);
+            assertEquals(expected.y, actual.y, 1e-12);
+
+            LineString beginning = (LineString) lil.extractLine(lil.getStartIndex(), location);
+            P2<LineString> split = line.split(line.project(c));
+            assertEquals(beginning.getLength(), split.getFirst().getLength(), 1e-12);
+            assertEquals(geometry.getLength(), split.getFirst().getLength()
+                    + split.getSecond().getLength(), 1e-12);
+            assertTrue(split.getFirst().getEndPoint().equalsExact(split.getSecond().getStartPoint()));
+        }
+    }
+
+    public void testPartialElevationProfile() {
+        PackedCoordinateSequence profile = new PackedCoordinateSequence.Double(new double[] { 0,
+                10, 10, 11, 20, 12, 30, 13 }, 2);
+        PackedCoordinateSequence partial = ElevationUtils.getPartialElevationProfile(profile, 5,
+                20);
+        assertEquals(2, partial.size());
+        assertEquals(5.0, partial.getX(0));
+        assertEquals(11.0, partial.getY(0));
+        assertEquals(15.0, partial.getX(1));
+        assertEquals(12.0, partial.getY(1));
+
+        assertEquals(0, ElevationUtils.getPartialElevationProfile(profile, 31, 40).size());
+        assertEquals(4, ElevationUtils.getPartialElevationProfile(profile, 0, 30).size());
+    }
+}
@@ -0,0 +1,89 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.common.geometry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Point;
+
+import junit.framework.TestCase;
+
+public class TestSegmentGridIndex extends TestCase {
+
+    public void testAgainstLinearScan() {
+        Random random = new Random(42);
+        GeometryFactory gf = new GeometryFactory();
+        List<LineString> lines = new ArrayList<LineString>();
+        SegmentGridIndex<LineString> index = new SegmentGridIndex<LineString>();
+        for (int i = 0; i < 2000; ++i) {
+            double x = -122.7 + random.nextDouble() * 0.2;
+            double y = 45.4 + random.nextDouble() * 0.2;
+            LineString line = GeometryUtils.makeLineString(x, y, x + random.nextDouble() * 0.003,
+                    y + random.nextDouble() * 0.003, x + random.nextDouble() * 0.003, y);
+            lines.add(line);
+            index.insert(line, line);
+        }
+        index.build();
+
+        for (int i = 0; i < 100; ++i) {
+            Coordinate c = new Coordinate(-122.72 + random.nextDouble() * 0.24, 45.38 + random
+                    .nextDouble() * 0.24);
+            Point p = gf.createPoint(c);
+
+            List<LineString> within = index.query(c, 0.005);
+            int expected = 0;
+            for (LineString line : lines) {
+                if (line.distance(p) <= 0.005 - 1e-7) {
+                    ++expected;
+                    assertTrue(within.contains(line));
+                }
+            }
+            assertTrue(within.size() >= expected);
+
+            List<LineString> nearest = index.nearest(c, 5, Double.MAX_VALUE);
+            assertEquals(5, nearest.size());
+            double previous = 0;
+            for (LineString line : nearest) {
+                double d = line.distance(p);
+                assertTrue(d >= previous - 1e-7);
+                previous = d;
+            }
+            int closer = 0;
+            for (LineString line : lines) {
+                if (line.distance(p) < previous - 1e-7) {
+                    ++closer;
+                }
+            }
+            assertTrue(closer <= 4);
+        }
+    }
+
+    public void testPoints() {
+        SegmentGridIndex<String> index = new SegmentGridIndex<String>();
+        index.insert(new Coordinate(0, 0), "a");
+        index.insert(new Coordinate(1, 1), "b");
+        index.insert(new Coordinate(0.001, 0), "c");
+        index.build();
+        List<String> nearest = index.nearest(new Coordinate(0.0004, 0), 2, 1);
+        assertEquals("a", nearest.get(0));
+        assertEquals("c", nearest.get(1));
+        assertEquals(1, index.query(new Coordinate(1, 1.001), 0.01).size());
+        assertTrue(index.nearest(new Coordinate(10, 10), 1, 1).isEmpty());
+    }
+}
@@ -0,0 +1,100 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.gtfs;
+
+import java.io.File;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.onebusaway.gtfs.impl.GtfsRelationalDaoImpl;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.Trip;
+import org.onebusaway.gtfs.serialization.GtfsReader;
+import org.opentripplanner.ConstantsForTests;
+import org.opentripplanner.routing.core.Graph;
+import org.opentripplanner.routing.core.GraphVertex;
+import org.opentripplanner.routing.edgetype.factory.GTFSPatternHopFactory;
+
+public class TestCompactStopTimeDaoImpl extends TestCase {
+
+    public void testSameStopTimes() throws Exception {
+        for (String path : new String[] { ConstantsForTests.FAKE_GTFS,
+                ConstantsForTests.CALTRAIN_GTFS }) {
+            GtfsRelationalDaoImpl dao = read(path, new GtfsRelationalDaoImpl());
+            CompactStopTimeDaoImpl compact = read(path, new CompactStopTimeDaoImpl());
+
+            assertEquals(dao.getAllStopTimes().size(), compact.getNumStopTimes());
+            assertEquals(dao.getAllStopTimes().size(), compact.getAllStopTimes().size());
+            for (Trip trip : dao.getAllTrips()) {
+                List<StopTime> expected = dao.getStopTimesForTrip(trip);
+                List<StopTime> actual = compact.getStopTimesForTrip(compact.getTripForId(trip
+                        .getId()));
+                assertEquals(expected.size(), actual.size());
+                for (int i = 0; i < expected.size(); ++i) {
+                    StopTime e = expected.get(i);
+                    StopTime a = actual.get(i);
+                    assertEquals(e.getStop().getId(), a.getStop().getId());
+                    assertEquals(e.getTrip().getId(), a.getTrip().getId());
+                    assertEquals(e.getStopSequence(), a.getStopSequence());
+                    assertEquals(e.isArrivalTimeSet(), a.isArrivalTimeSet());
+                    assertEquals(e.getArrivalTime(), a.getArrivalTime());
+                    assertEquals(e.isDepartureTimeSet(), a.isDepartureTimeSet());
+                    assertEquals(e.getDepartureTime(), a.getDepartureTime());
+                    assertEquals(e.getPickupType(), a.getPickupType());
+                    assertEquals(e.getDropOffType(), a.getDropOffType());
+                    assertEquals(e.isShapeDistTraveledSet(), a.isShapeDistTraveledSet());
+                    assertEquals(e.getStopHeadsign(), a.getStopHeadsign());
+                    assertEquals(e.getRouteShortName(), a.getRouteShortName());
+                }
+            }
+        }
+    }
+
+    public void testSameGraph() throws Exception {
+        Graph graph = new Graph();
+        GtfsRelationalDaoImpl dao = read(ConstantsForTests.CALTRAIN_GTFS,
+                new GtfsRelationalDaoImpl());
+        new GTFSPatternHopFactory(GtfsLibrary.createContext(dao)).run(graph);
+
+        Graph compactGraph = new Graph();
+        CompactStopTimeDaoImpl compact = read(ConstantsForTests.CALTRAIN_GTFS,
+                new CompactStopTimeDaoImpl());
+        new GTFSPatternHopFactory(GtfsLibrary.createContext(compact)).run(compactGraph);
+
+        assertEquals(graph.getVertices().size(), compactGraph.getVertices().size());
+        assertEquals(countEdges(graph), countEdges(compactGraph));
+        for (GraphVertex gv : graph.getVertices()) {
+            GraphVertex other = compactGraph.getGraphVertex(gv.vertex.getLabel());
+            assertNotNull(other);
+            assertEquals(gv.getOutgoing().size(), other.getOutgoing().size());
+        }
+    }
+
+    private <T extends GtfsRelationalDaoImpl> T read(String path, T dao) throws Exception {
+        GtfsReader reader = new GtfsReader();
+        reader.setInputLocation(new File(path));
+        reader.setEntityStore(dao);
+        reader.run();
+        return dao;
+    }
+
+    private int countEdges(Graph graph) {
+        int edges = 0;
+        for (GraphVertex gv : graph.getVertices()) {
+            edges += gv.getOutgoing().size();
+        }
+        return edges;
+    }
+}
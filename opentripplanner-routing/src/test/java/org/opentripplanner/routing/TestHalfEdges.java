@@ -29,6 +29,7 @@ import org.opentripplanner.routing.core.TraverseMode;
 import org.opentripplanner.routing.core.TraverseModeSet;
 import org.opentripplanner.routing.core.TraverseOptions;
 import org.opentripplanner.routing.core.Vertex;
+import org.opentripplanner.routing.impl.StreetVertexIndexData;
 import org.opentripplanner.routing.impl.StreetVertexIndexServiceImpl;
 import org.opentripplanner.routing.location.StreetLocation;
 import org.opentripplanner.routing.spt.GraphPath;
@@ -40,8 +41,12 @@ import org.opentripplanner.routing.edgetype.FreeEdge;
 import org.opentripplanner.routing.edgetype.OutEdge;
 import org.opentripplanner.routing.edgetype.StreetTraversalPermission;
 import org.opentripplanner.routing.edgetype.StreetVertex;
+import org.opentripplanner.routing.edgetype.TransferEdge;
 import org.opentripplanner.routing.edgetype.TurnEdge;
 import org.opentripplanner.routing.edgetype.loader.NetworkLinker;
+import org.opentripplanner.routing.edgetype.loader.TransferGenerator;
+import org.opentripplanner.routing.transit.TransitTimetable;
+import org.opentripplanner.routing.transit.WalkingTransfers;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.GeometryFactory;
@@ -243,6 +248,23 @@ public class TestHalfEdges extends TestCase {
         
     }
     
+    public void testSavedStreetVertexIndex() {
+        StreetVertexIndexData saved = new StreetVertexIndexData(graph);
+        graph.putService(StreetVertexIndexData.class, saved);
+
+        StreetVertexIndexServiceImpl finder = new StreetVertexIndexServiceImpl(graph);
+        finder.setup();
+        assertSame(saved, finder.getIndexData());
+        assertTrue(finder.getLocalTransitStops(new Coordinate(-74.05000001, 40.1), 100).size() > 0);
+
+        // the saved index no longer matches once the graph is changed
+        graph.addVertex(new EndpointVertex("extra", -74.03, 40.03));
+        finder = new StreetVertexIndexServiceImpl(graph);
+        finder.setup();
+        assertNotSame(saved, finder.getIndexData());
+        assertNotNull(finder.getIntersectionAt(new Coordinate(-74.03, 40.03)));
+    }
+
     public void testNetworkLinker() {
         int numVerticesBefore = graph.getVertices().size();
         NetworkLinker nl = new NetworkLinker(graph);
@@ -264,4 +286,36 @@ public class TestHalfEdges extends TestCase {
         assertTrue(Math.abs(station2point.getCoordinate().x - -74.02) < 0.00000001);
         
     }
+
+    public void testTransferGenerator() {
+        new NetworkLinker(graph).createLinkage();
+        TransferGenerator generator = new TransferGenerator(graph);
+        generator.setThreads(2);
+
+        // too far apart
+        generator.setMaxDistance(400);
+        generator.createTransfers();
+        assertTrue(graph.getService(WalkingTransfers.class).getTransfers(station1).isEmpty());
+
+        generator.setMaxDistance(1000);
+        generator.createTransfers();
+        List<TransferEdge> transfers = graph.getService(WalkingTransfers.class).getTransfers(
+                station1);
+        assertEquals(1, transfers.size());
+        TransferEdge transfer = transfers.get(0);
+        assertSame(station2, transfer.getToVertex());
+        // the stations are 0.03 degrees apart along a 0.1 degree, 1500m street
+        assertEquals(450, transfer.getDistance(), 1);
+        assertEquals(-74.05, transfer.getGeometry().getCoordinates()[0].x, 0.00001);
+
+        // street searches can't use the transfers, but timetable searches can
+        for (Edge e : graph.getOutgoing(station1)) {
+            assertFalse(e instanceof TransferEdge);
+        }
+        TransitTimetable timetable = new TransitTimetable(graph);
+        int from = timetable.getStopIndex(station1);
+        assertEquals(1, timetable.getTransferEnd(from) - timetable.getTransferStart(from));
+        assertSame(station2, timetable.getStop(timetable.getTransferTarget(timetable
+                .getTransferStart(from))));
+    }
 }
@@ -0,0 +1,121 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.opentripplanner.common.model.T2;
+import org.opentripplanner.routing.core.Graph;
+import org.opentripplanner.routing.core.TransitStop;
+import org.opentripplanner.routing.core.Vertex;
+import org.opentripplanner.routing.edgetype.EndpointVertex;
+import org.opentripplanner.routing.impl.TransitStopProximityServiceImpl;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+public class TestTransitStopProximityService extends TestCase {
+
+    private Graph graph;
+
+    private List<Vertex> stops;
+
+    private TransitStopProximityServiceImpl service;
+
+    public void setUp() {
+        Random random = new Random(42);
+        graph = new Graph();
+        stops = new ArrayList<Vertex>();
+        for (int i = 0; i < 500; ++i) {
+            double lon = -122.8 + random.nextDouble() * 0.4;
+            double lat = 45.3 + random.nextDouble() * 0.4;
+            Vertex stop = graph.addVertex(new TransitStop("stop " + i, lon, lat, "stop " + i,
+                    "" + i, null));
+            stops.add(stop);
+            // not a stop, so never returned
+            graph.addVertex(new EndpointVertex("corner " + i, lon, lat));
+        }
+        service = new TransitStopProximityServiceImpl(graph);
+        service.setNeighbourRadius(800);
+        service.setup();
+    }
+
+    private List<Vertex> within(Coordinate c, double distance) {
+        List<Vertex> within = new ArrayList<Vertex>();
+        for (Vertex stop : stops) {
+            if (stop.distance(c) <= distance) {
+                within.add(stop);
+            }
+        }
+        return within;
+    }
+
+    public void testRadius() {
+        Random random = new Random(1);
+        List<Coordinate> points = new ArrayList<Coordinate>();
+        for (int i = 0; i < 50; ++i) {
+            points.add(new Coordinate(-122.85 + random.nextDouble() * 0.5, 45.25 + random
+                    .nextDouble() * 0.5));
+        }
+        List<List<Vertex>> batch = service.getTransitStopsWithin(points, 1500);
+        assertEquals(points.size(), batch.size());
+        for (int i = 0; i < points.size(); ++i) {
+            Coordinate c = points.get(i);
+            List<Vertex> expected = within(c, 1500);
+            List<Vertex> found = service.getTransitStopsWithin(c, 1500);
+            assertEquals(expected.size(), found.size());
+            assertTrue(found.containsAll(expected));
+            assertEquals(found, batch.get(i));
+            for (int j = 1; j < found.size(); ++j) {
+                assertTrue(found.get(j - 1).distance(c) <= found.get(j).distance(c));
+            }
+        }
+    }
+
+    public void testNearest() {
+        Random random = new Random(2);
+        for (int i = 0; i < 50; ++i) {
+            Coordinate c = new Coordinate(-122.85 + random.nextDouble() * 0.5, 45.25 + random
+                    .nextDouble() * 0.5);
+            List<Vertex> nearest = service.getNearestTransitStops(c, 3, Double.MAX_VALUE);
+            assertEquals(3, nearest.size());
+            double third = nearest.get(2).distance(c);
+            assertEquals(3, within(c, third).size());
+
+            nearest = service.getNearestTransitStops(c, 3, 300);
+            for (Vertex v : nearest) {
+                assertTrue(v.distance(c) <= 300);
+            }
+            assertEquals(Math.min(3, within(c, 300).size()), nearest.size());
+        }
+    }
+
+    public void testNeighbours() {
+        for (Vertex stop : stops) {
+            List<T2<Vertex, Double>> neighbours = service.getNeighbours(stop);
+            List<Vertex> expected = within(stop.getCoordinate(), 800);
+            expected.remove(stop);
+            assertEquals(expected.size(), neighbours.size());
+            for (T2<Vertex, Double> neighbour : neighbours) {
+                assertTrue(expected.contains(neighbour.getFirst()));
+                assertEquals(neighbour.getFirst().distance(stop.getCoordinate()), neighbour
+                        .getSecond(), 0.001);
+            }
+        }
+        assertTrue(service.getNeighbours(graph.getVertex("corner 0")).isEmpty());
+    }
+}
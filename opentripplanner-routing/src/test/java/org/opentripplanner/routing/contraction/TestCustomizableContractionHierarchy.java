@@ -0,0 +1,355 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.contraction;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import org.opentripplanner.common.geometry.GeometryUtils;
+import org.opentripplanner.routing.algorithm.Dijkstra;
+import org.opentripplanner.routing.core.Edge;
+import org.opentripplanner.routing.core.Graph;
+import org.opentripplanner.routing.core.OptimizeType;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.TraverseMode;
+import org.opentripplanner.routing.core.TraverseModeSet;
+import org.opentripplanner.routing.core.TraverseOptions;
+import org.opentripplanner.routing.core.Vertex;
+import org.opentripplanner.routing.edgetype.EndpointVertex;
+import org.opentripplanner.routing.edgetype.FreeEdge;
+import org.opentripplanner.routing.edgetype.StreetTraversalPermission;
+import org.opentripplanner.routing.edgetype.StreetVertex;
+import org.opentripplanner.routing.edgetype.TurnEdge;
+import org.opentripplanner.routing.impl.ContractionRoutingServiceImpl;
+import org.opentripplanner.routing.impl.DistanceLibrary;
+import org.opentripplanner.routing.location.StreetLocation;
+import org.opentripplanner.routing.spt.BasicShortestPathTree;
+import org.opentripplanner.routing.spt.GraphPath;
+import org.opentripplanner.routing.spt.SPTEdge;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.LineString;
+
+public class TestCustomizableContractionHierarchy extends TestCase {
+
+    private static final int N = 6;
+
+    private Graph graph;
+
+    private Vertex[][] verticesIn;
+
+    private Vertex[][] verticesOut;
+
+    private List<StreetVertex> streets;
+
+    public void setUp() {
+        graph = new Graph();
+        verticesIn = new Vertex[N][N];
+        verticesOut = new Vertex[N][N];
+        streets = new ArrayList<StreetVertex>();
+        for (int y = 0; y < N; ++y) {
+            for (int x = 0; x < N; ++x) {
+                double xc = x * 0.001 - 71;
+                double yc = y * 0.001 + 40;
+                verticesIn[y][x] = graph.addVertex(new EndpointVertex("(" + x + ", " + y
+                        + ") in", xc, yc));
+                verticesOut[y][x] = graph.addVertex(new EndpointVertex("(" + x + ", " + y
+                        + ") out", xc, yc));
+            }
+        }
+        for (int y = 0; y < N; ++y) {
+            for (int x = 0; x < N - 1; ++x) {
+                addStreet("a(" + x + ", " + y + ")", x, y, x + 1, y);
+                addStreet("d(" + y + ", " + x + ")", y, x, y, x + 1);
+            }
+        }
+        for (int y = 0; y < N; ++y) {
+            for (int x = 0; x < N; ++x) {
+                for (Edge in : graph.getIncoming(verticesIn[y][x])) {
+                    StreetVertex fromv = (StreetVertex) in.getFromVertex();
+                    for (Edge out : graph.getOutgoing(verticesOut[y][x])) {
+                        StreetVertex tov = (StreetVertex) out.getToVertex();
+                        if (!tov.getEdgeId().equals(fromv.getEdgeId())) {
+                            graph.addEdge(new TurnEdge(fromv, tov));
+                        }
+                    }
+                }
+            }
+        }
+
+        /* so that each weighting takes its own paths */
+        for (int i = 0; i < streets.size(); ++i) {
+            StreetVertex street = streets.get(i);
+            if (i % 5 == 0) {
+                street.setPermission(StreetTraversalPermission.PEDESTRIAN);
+            }
+            if (i % 3 == 0) {
+                street.setBicycleSafetyEffectiveLength(street.getLength() * 3);
+            }
+            if (i % 7 == 0) {
+                street.setWheelchairAccessible(false);
+            }
+        }
+    }
+
+    private void addStreet(String id, int x1, int y1, int x2, int y2) {
+        double xc1 = x1 * 0.001 - 71, yc1 = y1 * 0.001 + 40;
+        double xc2 = x2 * 0.001 - 71, yc2 = y2 * 0.001 + 40;
+        LineString geometry = GeometryUtils.makeLineString(xc1, yc1, xc2, yc2);
+        double d = DistanceLibrary.distance(yc1, xc1, yc2, xc2);
+        StreetVertex forward = new StreetVertex(id, geometry, id, d, false);
+        StreetVertex back = new StreetVertex(id, (LineString) geometry.reverse(), id, d, true);
+        graph.addVertex(forward);
+        graph.addVertex(back);
+        graph.addEdge(new FreeEdge(verticesOut[y1][x1], forward));
+        graph.addEdge(new FreeEdge(forward, verticesIn[y2][x2]));
+        graph.addEdge(new FreeEdge(verticesOut[y2][x2], back));
+        graph.addEdge(new FreeEdge(back, verticesIn[y1][x1]));
+        streets.add(forward);
+        streets.add(back);
+    }
+
+    private List<TraverseOptions> getWeightings() {
+        List<TraverseOptions> weightings = new ArrayList<TraverseOptions>();
+        weightings.add(new TraverseOptions(new TraverseModeSet(TraverseMode.WALK)));
+
+        TraverseOptions reluctant = new TraverseOptions(new TraverseModeSet(TraverseMode.WALK));
+        reluctant.walkReluctance = 3;
+        reluctant.speed = 0.9;
+        weightings.add(reluctant);
+
+        TraverseOptions safe = new TraverseOptions(new TraverseModeSet(TraverseMode.BICYCLE));
+        safe.optimizeFor = OptimizeType.SAFE;
+        weightings.add(safe);
+
+        TraverseOptions wheelchair = new TraverseOptions(new TraverseModeSet(TraverseMode.WALK));
+        wheelchair.wheelchairAccessible = true;
+        weightings.add(wheelchair);
+        return weightings;
+    }
+
+    public void testCustomization() {
+        CustomizableContractionHierarchy hierarchy = new CustomizableContractionHierarchy(graph);
+        assertEquals(N * N * 2 + streets.size(), hierarchy.getNumVertices());
+
+        List<Vertex> origins = new ArrayList<Vertex>(streets);
+        List<Vertex> targets = new ArrayList<Vertex>(streets);
+        for (int y = 0; y < N; ++y) {
+            for (int x = 0; x < N; ++x) {
+                origins.add(verticesOut[y][x]);
+                targets.add(verticesIn[y][x]);
+            }
+        }
+
+        State init = new State(1000000000);
+        for (TraverseOptions options : getWeightings()) {
+            ContractionMetric metric = hierarchy.customize(options);
+            assertEquals(new StreetWeighting(options), metric.getWeighting());
+            for (Vertex from : origins) {
+                BasicShortestPathTree spt = new Dijkstra(graph, from, options, null)
+                        .getShortestPathTree(null, Double.POSITIVE_INFINITY);
+                for (Vertex to : targets) {
+                    if (from == to) {
+                        continue;
+                    }
+                    GraphPath expected = spt.getPath(to);
+                    GraphPath path = metric.getShortestPath(from, to, init, options);
+                    if (expected == null) {
+                        assertNull(path);
+                        continue;
+                    }
+                    assertNotNull(path);
+                    assertPath(from, to, path);
+                    assertEquals(expected.vertices.lastElement().weightSum, path.vertices
+                            .lastElement().weightSum, 0.001);
+                }
+            }
+        }
+    }
+
+    private void assertPath(Vertex from, Vertex to, GraphPath path) {
+        Vertex last = from;
+        for (SPTEdge edge : path.edges) {
+            assertSame(last, edge.payload.getFromVertex());
+            last = edge.payload.getToVertex();
+        }
+        assertSame(to, last);
+        assertEquals(path.edges.size() + 1, path.vertices.size());
+    }
+
+    public void testArriveBy() {
+        CustomizableContractionHierarchy hierarchy = new CustomizableContractionHierarchy(graph);
+        TraverseOptions options = new TraverseOptions(new TraverseModeSet(TraverseMode.WALK));
+        ContractionMetric metric = hierarchy.customize(options);
+        Vertex from = verticesOut[0][0];
+        Vertex to = verticesIn[N - 1][N - 1];
+
+        GraphPath forward = metric.getShortestPath(from, to, new State(1000000000), options);
+        long duration = forward.vertices.lastElement().state.getTime() - 1000000000;
+
+        options.setArriveBy(true);
+        GraphPath back = metric.getShortestPath(from, to, new State(1000000000), options);
+        assertPath(from, to, back);
+        assertEquals(forward.vertices.lastElement().weightSum, back.vertices.firstElement().weightSum,
+                0.001);
+        assertEquals(1000000000, back.vertices.lastElement().state.getTime());
+        assertEquals(1000000000 - duration, back.vertices.firstElement().state.getTime());
+    }
+
+    public void testStreetLocation() {
+        CustomizableContractionHierarchy hierarchy = new CustomizableContractionHierarchy(graph);
+        TraverseOptions options = new TraverseOptions(new TraverseModeSet(TraverseMode.WALK));
+        ContractionMetric metric = hierarchy.customize(options);
+
+        StreetVertex street = (StreetVertex) graph.getVertex("a(1, 2)");
+        HashSet<Edge> turns = new HashSet<Edge>();
+        for (Edge e : graph.getOutgoing(street)) {
+            if (e instanceof TurnEdge) {
+                turns.add(e);
+            }
+        }
+        Coordinate middle = new Coordinate(street.getX() + 0.0005, street.getY());
+        StreetLocation location = StreetLocation.createStreetLocation(graph, "location",
+                "location", turns, middle);
+        Vertex to = verticesIn[4][5];
+        assertTrue(metric.canRoute(location, to));
+        GraphPath path = metric.getShortestPath(location, to, new State(1000000000), options);
+        assertNotNull(path);
+        assertPath(location, to, path);
+
+        /* with the location in the graph, the path can be checked */
+        location.reify(graph);
+        GraphPath expected = new Dijkstra(graph, location, options, null).getShortestPathTree(to,
+                Double.POSITIVE_INFINITY).getPath(to);
+        assertEquals(expected.vertices.lastElement().weightSum, path.vertices.lastElement().weightSum,
+                0.001);
+    }
+
+    public void testRoutingService() throws Exception {
+        ArrayList<ModeAndOptimize> modes = new ArrayList<ModeAndOptimize>();
+        modes.add(new ModeAndOptimize(TraverseMode.WALK, OptimizeType.QUICK));
+        ContractionHierarchySet hierarchies = new ContractionHierarchySet(graph, modes);
+        hierarchies.setCustomizedModes(new ArrayList<ModeAndOptimize>());
+        hierarchies.build();
+        assertNotNull(hierarchies.getCustomizableHierarchy());
+        ContractionRoutingServiceImpl routing = new ContractionRoutingServiceImpl();
+        routing.setHierarchies(hierarchies);
+        assertNull(hierarchies.getMetric(new TraverseOptions()));
+
+        /* not what the walking hierarchy was built for, but a standard weighting */
+        TraverseOptions options = new TraverseOptions(new TraverseModeSet(TraverseMode.WALK));
+        options.wheelchairAccessible = true;
+        Vertex from = verticesOut[0][1];
+        Vertex to = verticesIn[5][4];
+        GraphPath expected = new Dijkstra(graph, from, options, null).getShortestPathTree(to,
+                Double.POSITIVE_INFINITY).getPath(to);
+
+        /* it is customized in the background, and searched for some other way meanwhile */
+        Future<ContractionMetric> pending = hierarchies.customizeInBackground(options);
+        Future<ContractionMetric> again = hierarchies.customizeInBackground(options);
+        assertTrue(pending == again || pending.isDone());
+        ContractionMetric metric = pending.get();
+        assertSame(metric, hierarchies.getMetric(options));
+        GraphPath path = routing.route(from, to, new State(1000000000), options);
+        assertEquals(expected.vertices.lastElement().weightSum, path.vertices.lastElement().weightSum,
+                0.001);
+
+        /* customizing again replaces the metric */
+        ContractionMetric customized = hierarchies.customize(options);
+        assertNotSame(metric, customized);
+        assertSame(customized, hierarchies.getMetric(options));
+
+        /* other weightings are customized rounded, in the background */
+        TraverseOptions reluctant = new TraverseOptions(new TraverseModeSet(TraverseMode.WALK));
+        reluctant.walkReluctance = 4.7;
+        assertNull(hierarchies.getMetric(reluctant));
+        metric = awaitMetric(hierarchies, reluctant);
+        assertEquals(5.0, metric.getWeighting().getOptions().walkReluctance);
+        TraverseOptions alsoReluctant = new TraverseOptions(new TraverseModeSet(TraverseMode.WALK));
+        alsoReluctant.walkReluctance = 5.2;
+        assertSame(metric, hierarchies.getMetric(alsoReluctant));
+
+        /* the exact weighting is used when it has been customized */
+        customized = hierarchies.customize(reluctant);
+        assertSame(customized, hierarchies.getMetric(reluctant));
+        assertSame(metric, hierarchies.getMetric(alsoReluctant));
+    }
+
+    private ContractionMetric awaitMetric(ContractionHierarchySet hierarchies,
+            TraverseOptions options) throws InterruptedException {
+        for (int i = 0; i < 1000; ++i) {
+            ContractionMetric metric = hierarchies.getMetric(options);
+            if (metric != null) {
+                return metric;
+            }
+            Thread.sleep(10);
+        }
+        fail("not customized");
+        return null;
+    }
+
+    public void testStreetWeighting() {
+        TraverseOptions walk = new TraverseOptions(new TraverseModeSet(TraverseMode.WALK));
+        assertEquals(new StreetWeighting(walk), new StreetWeighting());
+        assertEquals(new StreetWeighting(walk), new StreetWeighting(walk).quantize());
+
+        /* the slope limit only counts for wheelchair users */
+        TraverseOptions steep = new TraverseOptions(new TraverseModeSet(TraverseMode.WALK));
+        steep.maxSlope = 0.2;
+        assertEquals(new StreetWeighting(walk), new StreetWeighting(steep));
+        steep.wheelchairAccessible = true;
+        TraverseOptions wheelchair = new TraverseOptions(new TraverseModeSet(TraverseMode.WALK));
+        wheelchair.wheelchairAccessible = true;
+        assertFalse(new StreetWeighting(wheelchair).equals(new StreetWeighting(steep)));
+
+        /* and it is rounded down, so that no steeper streets are allowed */
+        steep.maxSlope = 0.19;
+        assertEquals(0.12, new StreetWeighting(steep).quantize().getOptions().maxSlope);
+        steep.maxSlope = 0.01;
+        assertEquals(0.0, new StreetWeighting(steep).quantize().getOptions().maxSlope);
+
+        /* speeds are rounded relative to the mode's */
+        TraverseOptions fast = new TraverseOptions(new TraverseModeSet(TraverseMode.BICYCLE));
+        fast.speed = 7.2;
+        assertEquals(7.5, new StreetWeighting(fast).quantize().getOptions().speed, 0.001);
+
+        /* as a bean, the speed follows the mode unless it is set */
+        StreetWeighting bean = new StreetWeighting();
+        bean.setMode(TraverseMode.BICYCLE);
+        bean.setOptimizeFor(OptimizeType.SAFE);
+        TraverseOptions safe = new TraverseOptions(new TraverseModeSet(TraverseMode.BICYCLE));
+        safe.optimizeFor = OptimizeType.SAFE;
+        assertEquals(new StreetWeighting(safe), bean);
+        bean = new StreetWeighting();
+        bean.setSpeed(7.2);
+        bean.setMode(TraverseMode.BICYCLE);
+        assertEquals(new StreetWeighting(fast), bean);
+    }
+
+    public void testCustomizedWeightings() {
+        ContractionHierarchySet hierarchies = new ContractionHierarchySet(graph,
+                new ArrayList<ModeAndOptimize>());
+        StreetWeighting weighting = new StreetWeighting();
+        weighting.setWalkReluctance(2.5);
+        ArrayList<StreetWeighting> weightings = new ArrayList<StreetWeighting>();
+        weightings.add(weighting);
+        hierarchies.setCustomizedWeightings(weightings);
+        hierarchies.build();
+        assertEquals(weighting, hierarchies.getMetric(weighting.getOptions()).getWeighting());
+    }
+}
@@ -0,0 +1,177 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.edgetype;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Route;
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.Trip;
+
+public class TestArrayTripPattern extends TestCase {
+
+    /* start, then departure, arrival pairs at three stops; trips 0 and 2 share a profile */
+    private static final int[][] TRIPS = { { 0, 0, 300, 360, 600, 600 },
+            { 600, 600, 960, 990, 1300, 1300 }, { 1200, 1200, 1500, 1560, 1800, 1800 } };
+
+    public void testSameTimes() {
+        checkSameTimes(makePattern(TRIPS));
+    }
+
+    public void testSimplified() {
+        int[][] noDwells = { { 0, 0, 300, 300, 600, 600 }, { 600, 600, 960, 960, 1300, 1300 },
+                { 1200, 1200, 1500, 1500, 1800, 1800 } };
+        BasicTripPattern basic = makePattern(noDwells);
+        basic.simplify();
+        checkSameTimes(basic);
+        /* only a departure for each stop */
+        TripTimeProfiles profiles = new TripTimeProfiles();
+        BasicTripPattern simplified = makePattern(noDwells);
+        simplified.simplify();
+        simplified.convertToArrayTripPattern(profiles);
+        assertEquals(3, profiles.getProfile(0).length);
+    }
+
+    public void testSharedProfiles() {
+        TripTimeProfiles profiles = new TripTimeProfiles();
+        ArrayTripPattern pattern = makePattern(TRIPS).convertToArrayTripPattern(profiles);
+        assertEquals(2, profiles.getNumProfiles());
+        assertEquals(3, pattern.getNumTrips());
+        /* a departure and an arrival for each stop, running and dwell times being derived */
+        assertEquals(5, profiles.getProfile(0).length);
+
+        /* another pattern running to the same times shares its profiles */
+        int[][] later = { { 3600, 3600, 3900, 3960, 4200, 4200 } };
+        ArrayTripPattern other = makePattern(later).convertToArrayTripPattern(profiles);
+        assertEquals(2, profiles.getNumProfiles());
+        assertEquals(3900, other.getArrivalTime(0, 0));
+        assertEquals(3960, other.getDepartureTime(1, 0));
+    }
+
+    public void testWheelchairAccessibleTrips() {
+        int[][] times = new int[50][];
+        for (int t = 0; t < times.length; ++t) {
+            int start = t * 600;
+            times[t] = new int[] { start, start, start + 300, start + 360, start + 600,
+                    start + 600 };
+        }
+        BasicTripPattern basic = makePattern(times);
+        for (int i = 0; i < 3; ++i) {
+            basic.setStopFlags(i, TripPattern.FLAG_WHEELCHAIR_ACCESSIBLE | TripPattern.FLAG_PICKUP
+                    | TripPattern.FLAG_DROPOFF);
+        }
+        for (int t = 0; t < times.length; t += 7) {
+            basic.setTripFlags(t, TripPattern.FLAG_WHEELCHAIR_ACCESSIBLE);
+        }
+        ArrayTripPattern array = basic.convertToArrayTripPattern();
+        for (int i = 0; i < 2; ++i) {
+            for (int time = -100; time < 31000; time += 97) {
+                int next = -1;
+                for (int t = times.length - 1; t >= 0; --t) {
+                    if (t % 7 == 0 && array.getDepartureTime(i, t) >= time) {
+                        next = t;
+                    }
+                }
+                assertEquals(next, array.getNextTrip(i, time, true, true));
+                int previous = -1;
+                for (int t = 0; t < times.length; ++t) {
+                    if (t % 7 == 0 && array.getArrivalTime(i, t) <= time) {
+                        previous = t;
+                    }
+                }
+                assertEquals(previous, array.getPreviousTrip(i, time, true, false));
+            }
+        }
+        /* without the flag, every trip is a candidate */
+        assertEquals(1, array.getNextTrip(0, 1, false, true));
+    }
+
+    private void checkSameTimes(BasicTripPattern basic) {
+        int nTrips = basic.getNumTrips();
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < 2; ++i) {
+            for (int trip = 0; trip < nTrips; ++trip) {
+                expected.add(basic.getDepartureTime(i, trip));
+                expected.add(basic.getArrivalTime(i, trip));
+                expected.add(basic.getRunningTime(i, trip));
+                if (i > 0) {
+                    expected.add(basic.getDepartureTime(i, trip)
+                            - basic.getArrivalTime(i - 1, trip));
+                }
+                expected.add(basic.getBestRunningTime(i));
+                expected.add(basic.getBestDwellTime(i));
+            }
+            for (int time = -100; time < 2000; time += 50) {
+                expected.add(basic.getNextTrip(i, time, false, true));
+                expected.add(basic.getPreviousTrip(i, time, false, false));
+            }
+        }
+        ArrayTripPattern array = basic.convertToArrayTripPattern();
+        int k = 0;
+        for (int i = 0; i < 2; ++i) {
+            for (int trip = 0; trip < nTrips; ++trip) {
+                assertEquals(expected.get(k++).intValue(), array.getDepartureTime(i, trip));
+                assertEquals(expected.get(k++).intValue(), array.getArrivalTime(i, trip));
+                assertEquals(expected.get(k++).intValue(), array.getRunningTime(i, trip));
+                if (i > 0) {
+                    assertEquals(expected.get(k++).intValue(), array.getDwellTime(i, trip));
+                }
+                assertEquals(expected.get(k++).intValue(), array.getBestRunningTime(i));
+                assertEquals(expected.get(k++).intValue(), array.getBestDwellTime(i));
+            }
+            for (int time = -100; time < 2000; time += 50) {
+                assertEquals(expected.get(k++).intValue(), array.getNextTrip(i, time, false, true));
+                assertEquals(expected.get(k++).intValue(), array.getPreviousTrip(i, time, false,
+                        false));
+            }
+        }
+    }
+
+    private BasicTripPattern makePattern(int[][] times) {
+        List<StopTime> stopTimes = new ArrayList<StopTime>();
+        for (int i = 0; i < 3; ++i) {
+            Stop stop = new Stop();
+            stop.setId(new AgencyAndId("agency", "stop" + i));
+            StopTime stopTime = new StopTime();
+            stopTime.setStop(stop);
+            stopTimes.add(stopTime);
+        }
+        Trip exemplar = makeTrip(0);
+        BasicTripPattern pattern = new BasicTripPattern(exemplar, stopTimes, null);
+        for (int t = 0; t < times.length; ++t) {
+            int[] trip = times[t];
+            for (int i = 0; i < 2; ++i) {
+                int departure = trip[2 * i + 1];
+                int arrival = trip[2 * i + 2];
+                pattern.addHop(i, t, departure, arrival - departure, arrival, departure
+                        - trip[2 * i], makeTrip(t));
+            }
+        }
+        return pattern;
+    }
+
+    private Trip makeTrip(int i) {
+        Route route = new Route();
+        route.setId(new AgencyAndId("agency", "route"));
+        Trip trip = new Trip();
+        trip.setId(new AgencyAndId("agency", "trip" + i));
+        trip.setRoute(route);
+        return trip;
+    }
+}
@@ -0,0 +1,128 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.edgetype;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Frequency;
+import org.onebusaway.gtfs.model.Route;
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.Trip;
+import org.opentripplanner.routing.core.TransitDictionary;
+
+public class TestFrequencyBasedTripPattern extends TestCase {
+
+    private List<StopTime> stopTimes;
+
+    private Trip trip;
+
+    private FrequencyBasedTripPattern pattern;
+
+    public void setUp() {
+        Route route = new Route();
+        route.setId(new AgencyAndId("agency", "route"));
+        trip = new Trip();
+        trip.setId(new AgencyAndId("agency", "trip"));
+        trip.setRoute(route);
+        /* arrive at 0, leave at 60, arrive at 600, leave at 630, arrive at 900 */
+        stopTimes = new ArrayList<StopTime>();
+        int[] times = { 0, 60, 600, 630, 900, 900 };
+        for (int i = 0; i < 3; ++i) {
+            Stop stop = new Stop();
+            stop.setId(new AgencyAndId("agency", "stop" + i));
+            StopTime stopTime = new StopTime();
+            stopTime.setStop(stop);
+            stopTime.setTrip(trip);
+            stopTime.setArrivalTime(times[2 * i]);
+            stopTime.setDepartureTime(times[2 * i + 1]);
+            stopTimes.add(stopTime);
+        }
+        pattern = new FrequencyBasedTripPattern(trip, stopTimes, null, new TransitDictionary());
+        /* runs at 6:00, 6:10 ... 6:50, then 7:00, 7:30 */
+        assertTrue(pattern.addWindows(trip, stopTimes, Arrays.asList(
+                makeFrequency(7 * 3600, 8 * 3600, 1800), makeFrequency(6 * 3600, 7 * 3600, 600))));
+    }
+
+    public void testTimes() {
+        assertEquals(8, pattern.getNumTrips());
+        assertEquals(6 * 3600 + 60, pattern.getDepartureTime(0, 0));
+        assertEquals(6 * 3600 + 600 + 630, pattern.getDepartureTime(1, 1));
+        assertEquals(7 * 3600 + 1800 + 900, pattern.getArrivalTime(1, 7));
+        assertEquals(540, pattern.getRunningTime(0, 3));
+        assertEquals(30, pattern.getDwellTime(1, 6));
+        assertEquals(trip, pattern.getTrip(7));
+        assertEquals(trip.getRoute(), pattern.getTrip(7).getRoute());
+        assertEquals(trip.getId(), pattern.getDictionary().getTripId(pattern.getTripCode(7)));
+    }
+
+    public void testDepartureTimes() {
+        Iterator<Integer> departures = pattern.getDepartureTimes(1);
+        for (int trip = 0; trip < pattern.getNumTrips(); ++trip) {
+            assertTrue(departures.hasNext());
+            assertEquals(pattern.getDepartureTime(1, trip), departures.next().intValue());
+        }
+        assertFalse(departures.hasNext());
+    }
+
+    public void testNextAndPreviousTrips() {
+        assertEquals(0, pattern.getNextTrip(0, 0, false, true));
+        assertEquals(1, pattern.getNextTrip(0, 6 * 3600 + 61, false, true));
+        assertEquals(1, pattern.getNextTrip(0, 6 * 3600 + 660, false, true));
+        assertEquals(5, pattern.getNextTrip(0, 6 * 3600 + 3060, false, true));
+        assertEquals(6, pattern.getNextTrip(0, 6 * 3600 + 3061, false, true));
+        assertEquals(7, pattern.getNextTrip(1, 7 * 3600 + 631, false, true));
+        assertEquals(-1, pattern.getNextTrip(0, 7 * 3600 + 1861, false, true));
+
+        assertEquals(-1, pattern.getPreviousTrip(0, 6 * 3600 + 599, false, false));
+        assertEquals(0, pattern.getPreviousTrip(0, 6 * 3600 + 600, false, false));
+        assertEquals(5, pattern.getPreviousTrip(1, 7 * 3600 + 899, false, false));
+        assertEquals(7, pattern.getPreviousTrip(1, 10 * 3600, false, false));
+
+        /* the pattern agrees with itself */
+        for (int time = 6 * 3600; time < 8 * 3600; time += 97) {
+            int next = pattern.getNextTrip(1, time, false, true);
+            if (next >= 0) {
+                assertTrue(pattern.getDepartureTime(1, next) >= time);
+                if (next > 0) {
+                    assertTrue(pattern.getDepartureTime(1, next - 1) < time);
+                }
+            }
+        }
+    }
+
+    public void testRejectsOverlapsAndOtherTimes() {
+        assertFalse(pattern.addWindows(trip, stopTimes, Arrays.asList(makeFrequency(
+                7 * 3600 + 900, 9 * 3600, 1800))));
+        stopTimes.get(2).setArrivalTime(1000);
+        assertFalse(pattern.addWindows(trip, stopTimes, Arrays.asList(makeFrequency(9 * 3600,
+                10 * 3600, 1800))));
+        assertEquals(8, pattern.getNumTrips());
+    }
+
+    private Frequency makeFrequency(int start, int end, int headway) {
+        Frequency frequency = new Frequency();
+        frequency.setTrip(trip);
+        frequency.setStartTime(start);
+        frequency.setEndTime(end);
+        frequency.setHeadwaySecs(headway);
+        return frequency;
+    }
+}
@@ -0,0 +1,344 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+
+package org.opentripplanner.routing.edgetype;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import org.opentripplanner.common.geometry.GeometryUtils;
+import org.opentripplanner.routing.algorithm.AStar;
+import org.opentripplanner.routing.algorithm.BidirectionalDijkstra;
+import org.opentripplanner.routing.algorithm.Dijkstra;
+import org.opentripplanner.routing.contraction.ContractionHierarchy;
+import org.opentripplanner.routing.contraction.ContractionHierarchySet;
+import org.opentripplanner.routing.contraction.ModeAndOptimize;
+import org.opentripplanner.routing.core.Edge;
+import org.opentripplanner.routing.core.Graph;
+import org.opentripplanner.routing.core.OptimizeType;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.TraverseMode;
+import org.opentripplanner.routing.core.TraverseModeSet;
+import org.opentripplanner.routing.core.TraverseOptions;
+import org.opentripplanner.routing.core.TraverseResult;
+import org.opentripplanner.routing.core.Vertex;
+import org.opentripplanner.routing.impl.ContractionRoutingServiceImpl;
+import org.opentripplanner.routing.impl.DistanceLibrary;
+import org.opentripplanner.routing.spt.GraphPath;
+import org.opentripplanner.routing.spt.SPTEdge;
+import org.opentripplanner.routing.spt.ShortestPathTree;
+
+import com.vividsolutions.jts.geom.LineString;
+
+public class TestStreetClosures extends TestCase {
+
+    private static final int N = 6;
+
+    private Graph graph;
+
+    private Vertex[][] verticesIn;
+
+    private Vertex[][] verticesOut;
+
+    public void setUp() {
+        graph = new Graph();
+        verticesIn = new Vertex[N][N];
+        verticesOut = new Vertex[N][N];
+        for (int y = 0; y < N; ++y) {
+            for (int x = 0; x < N; ++x) {
+                double xc = x * 0.001 - 71;
+                double yc = y * 0.001 + 40;
+                verticesIn[y][x] = graph.addVertex(new EndpointVertex("(" + x + ", " + y
+                        + ") in", xc, yc));
+                verticesOut[y][x] = graph.addVertex(new EndpointVertex("(" + x + ", " + y
+                        + ") out", xc, yc));
+            }
+        }
+        /* streets both ways between neighbouring corners, along x and along y */
+        for (int y = 0; y < N; ++y) {
+            for (int x = 0; x < N - 1; ++x) {
+                addStreet("a(" + x + ", " + y + ")", x, y, x + 1, y);
+                addStreet("d(" + y + ", " + x + ")", y, x, y, x + 1);
+            }
+        }
+        /* and every turn at every corner, except back the way you came */
+        for (int y = 0; y < N; ++y) {
+            for (int x = 0; x < N; ++x) {
+                for (Edge in : graph.getIncoming(verticesIn[y][x])) {
+                    StreetVertex fromv = (StreetVertex) in.getFromVertex();
+                    for (Edge out : graph.getOutgoing(verticesOut[y][x])) {
+                        StreetVertex tov = (StreetVertex) out.getToVertex();
+                        if (!tov.getEdgeId().equals(fromv.getEdgeId())) {
+                            graph.addEdge(new TurnEdge(fromv, tov));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void addStreet(String id, int x1, int y1, int x2, int y2) {
+        double xc1 = x1 * 0.001 - 71, yc1 = y1 * 0.001 + 40;
+        double xc2 = x2 * 0.001 - 71, yc2 = y2 * 0.001 + 40;
+        LineString geometry = GeometryUtils.makeLineString(xc1, yc1, xc2, yc2);
+        double d = DistanceLibrary.distance(yc1, xc1, yc2, xc2);
+        StreetVertex forward = new StreetVertex(id, geometry, id, d, false);
+        StreetVertex back = new StreetVertex(id, (LineString) geometry.reverse(), id, d, true);
+        graph.addVertex(forward);
+        graph.addVertex(back);
+        graph.addEdge(new FreeEdge(verticesOut[y1][x1], forward));
+        graph.addEdge(new FreeEdge(forward, verticesIn[y2][x2]));
+        graph.addEdge(new FreeEdge(verticesOut[y2][x2], back));
+        graph.addEdge(new FreeEdge(back, verticesIn[y1][x1]));
+    }
+
+    private TraverseOptions walk() {
+        return new TraverseOptions(new TraverseModeSet(TraverseMode.WALK));
+    }
+
+    public void testClosures() {
+        StreetClosures closures = new StreetClosures(graph);
+        assertEquals(N * (N - 1) * 4, closures.getNumStreets());
+        assertTrue(closures.isEmpty());
+
+        StreetVertex street = (StreetVertex) graph.getVertex("a(2, 3)");
+        int streetId = street.getStreetId();
+        assertEquals(2, closures.getStreets("a(2, 3)").length);
+
+        int version = closures.getVersion();
+        assertEquals(2, closures.close("a(2, 3)"));
+        assertTrue(closures.getVersion() != version);
+        assertFalse(closures.isEmpty());
+        assertTrue(closures.isClosed(streetId));
+        assertEquals(StreetClosures.CLOSED, closures.getCostMultiplier(streetId));
+        assertEquals(2, closures.getAffectedStreets().length);
+        assertEquals(0, closures.close("no such street"));
+
+        closures.setCostMultiplier(streetId, 3);
+        assertEquals(StreetClosures.CLOSED, closures.getCostMultiplier(streetId));
+        closures.open(streetId);
+        assertFalse(closures.isClosed(streetId));
+        assertEquals(3.0, closures.getCostMultiplier(streetId));
+        assertEquals(2, closures.getAffectedStreets().length);
+        try {
+            closures.setCostMultiplier(streetId, 0.5);
+            fail("cost multipliers must not make streets cheaper");
+        } catch (IllegalArgumentException e) {
+        }
+        closures.setCostMultiplier(streetId, 1);
+        assertEquals(1.0, closures.getCostMultiplier(streetId));
+
+        closures.clear();
+        assertTrue(closures.isEmpty());
+        assertEquals(0, closures.getAffectedStreets().length);
+    }
+
+    public void testTraversal() {
+        StreetClosures closures = new StreetClosures(graph);
+        StreetVertex street = (StreetVertex) graph.getVertex("a(2, 3)");
+        TurnEdge turn = null;
+        for (Edge e : graph.getOutgoing(street)) {
+            if (e instanceof TurnEdge) {
+                turn = (TurnEdge) e;
+            }
+        }
+        TraverseOptions options = walk();
+        options.setStreetClosures(closures);
+        State s0 = new State(0);
+        TraverseResult open = turn.traverse(s0, options);
+        assertNotNull(open);
+
+        closures.setCostMultiplier(street.getStreetId(), 2);
+        TraverseResult slow = turn.traverse(s0, options);
+        assertEquals(open.weight * 2, slow.weight, 0.001);
+        assertEquals(open.state.getTime(), slow.state.getTime());
+
+        closures.close("a(2, 3)");
+        assertNull(turn.traverse(s0, options));
+        assertNull(turn.traverseBack(s0, options));
+        assertFalse(turn.canTraverse(options));
+        /* searches without the closures are not affected */
+        assertNotNull(turn.traverse(s0, walk()));
+    }
+
+    public void testBidirectionalDijkstra() {
+        StreetClosures closures = new StreetClosures(graph);
+        closures.close("a(2, 2)");
+        closures.close("d(2, 2)");
+        closures.setCostMultiplier("d(3, 1)", 4);
+        TraverseOptions options = walk();
+        options.setStreetClosures(closures);
+        TraverseOptions arriveBy = options.clone();
+        arriveBy.setArriveBy(true);
+
+        State init = new State(1000000000);
+        for (int i = 0; i < N * N; ++i) {
+            for (int j = 0; j < N * N; ++j) {
+                if (i == j) {
+                    continue;
+                }
+                Vertex from = verticesOut[i / N][i % N];
+                Vertex to = verticesIn[j / N][j % N];
+                Dijkstra dijkstra = new Dijkstra(graph, from, options, null);
+                double expected = dijkstra.getShortestPathTree(to, Double.POSITIVE_INFINITY)
+                        .getPath(to).vertices.lastElement().weightSum;
+
+                GraphPath path = BidirectionalDijkstra.getShortestPath(graph, from, to, init,
+                        options);
+                assertNotNull(path);
+                assertSame(from, path.vertices.firstElement().mirror);
+                assertSame(to, path.vertices.lastElement().mirror);
+                assertEquals(init.getTime(), path.vertices.firstElement().state.getTime());
+                assertEquals(expected, path.vertices.lastElement().weightSum, 0.001);
+
+                path = BidirectionalDijkstra.getShortestPath(graph, from, to, init, arriveBy);
+                assertNotNull(path);
+                assertEquals(init.getTime(), path.vertices.lastElement().state.getTime());
+                assertEquals(expected, path.vertices.firstElement().weightSum, 0.001);
+
+                /* no path within a tighter bound */
+                TraverseOptions bounded = options.clone();
+                bounded.maxWeight = expected - 1;
+                assertNull(BidirectionalDijkstra.getShortestPath(graph, from, to, init, bounded));
+            }
+        }
+    }
+
+    /**
+     * The search for a better path than the hierarchy finds around closures should be about as
+     * fast as plain A* over the affected queries.
+     */
+    public void testClosureFallbackLatency() {
+        ArrayList<ModeAndOptimize> modes = new ArrayList<ModeAndOptimize>();
+        modes.add(new ModeAndOptimize(TraverseMode.WALK, OptimizeType.QUICK));
+        ContractionHierarchySet hierarchies = new ContractionHierarchySet(graph, modes);
+        hierarchies.build();
+
+        StreetClosures closures = new StreetClosures(graph);
+        TraverseOptions options = walk();
+        options.setStreetClosures(closures);
+        TraverseOptions unclosed = walk();
+        ContractionHierarchy hierarchy = hierarchies.getHierarchy(options);
+        closures.close("a(2, 2)");
+        closures.close("d(2, 2)");
+        closures.close("a(2, 3)");
+        closures.setCostMultiplier("d(3, 1)", 4);
+
+        /* the queries whose best path is affected, bounded as the routing service bounds them */
+        State init = new State(1000000000);
+        ArrayList<Vertex[]> queries = new ArrayList<Vertex[]>();
+        ArrayList<TraverseOptions> bounds = new ArrayList<TraverseOptions>();
+        for (int i = 0; i < N * N; ++i) {
+            for (int j = 0; j < N * N; ++j) {
+                Vertex from = verticesOut[i / N][i % N];
+                Vertex to = verticesIn[j / N][j % N];
+                if (i == j || !closures.affects(hierarchy.getShortestPath(from, to, init,
+                        unclosed))) {
+                    continue;
+                }
+                GraphPath path = hierarchy.getShortestPath(from, to, init, options);
+                TraverseOptions bounded = options.clone();
+                bounded.maxWeight = path.vertices.lastElement().weightSum + 0.01;
+                queries.add(new Vertex[] { from, to });
+                bounds.add(bounded);
+            }
+        }
+        assertFalse(queries.isEmpty());
+
+        /* the fastest of several rounds, the first of which warms up */
+        long aStarTime = Long.MAX_VALUE, fallbackTime = Long.MAX_VALUE;
+        for (int round = 0; round < 5; ++round) {
+            long startClock = System.nanoTime();
+            for (Vertex[] query : queries) {
+                ShortestPathTree spt = AStar.getShortestPathTree(graph, query[0], query[1],
+                        init, options);
+                assertNotNull(spt.getPath(query[1]));
+            }
+            long endClock = System.nanoTime();
+            aStarTime = Math.min(aStarTime, endClock - startClock);
+
+            startClock = System.nanoTime();
+            for (int i = 0; i < queries.size(); ++i) {
+                Vertex[] query = queries.get(i);
+                assertNotNull(BidirectionalDijkstra.getShortestPath(graph, query[0], query[1],
+                        init, bounds.get(i)));
+            }
+            endClock = System.nanoTime();
+            fallbackTime = Math.min(fallbackTime, endClock - startClock);
+        }
+        assertTrue("fallback took " + fallbackTime / 1000000.0 + "ms for " + queries.size()
+                + " queries against " + aStarTime / 1000000.0 + "ms for A*",
+                fallbackTime <= aStarTime * 2);
+    }
+
+    public void testContractionHierarchy() {
+        ArrayList<ModeAndOptimize> modes = new ArrayList<ModeAndOptimize>();
+        modes.add(new ModeAndOptimize(TraverseMode.WALK, OptimizeType.QUICK));
+        ContractionHierarchySet hierarchies = new ContractionHierarchySet(graph, modes);
+        hierarchies.build();
+        ContractionRoutingServiceImpl routing = new ContractionRoutingServiceImpl();
+        routing.setHierarchies(hierarchies);
+
+        StreetClosures closures = new StreetClosures(graph);
+        TraverseOptions options = walk();
+        options.setStreetClosures(closures);
+        ContractionHierarchy hierarchy = hierarchies.getHierarchy(options);
+
+        /* the middle of the grid is closed, and one street is slow */
+        closures.close("a(2, 2)");
+        closures.close("d(2, 2)");
+        closures.close("a(2, 3)");
+        closures.setCostMultiplier("d(3, 1)", 4);
+        assertFalse(hierarchy.getBrokenShortcuts(closures).isEmpty());
+
+        State init = new State(1000000000);
+        for (int y1 = 0; y1 < N; ++y1) {
+            for (int x1 = 0; x1 < N; ++x1) {
+                for (int y2 = 0; y2 < N; ++y2) {
+                    for (int x2 = 0; x2 < N; ++x2) {
+                        if (x1 == x2 && y1 == y2) {
+                            continue;
+                        }
+                        Vertex from = verticesOut[y1][x1];
+                        Vertex to = verticesIn[y2][x2];
+                        Dijkstra dijkstra = new Dijkstra(graph, from, options, null);
+                        GraphPath expected = dijkstra.getShortestPathTree(to,
+                                Double.POSITIVE_INFINITY).getPath(to);
+                        assertNotNull(expected);
+
+                        GraphPath path = routing.route(from, to, init, options);
+                        assertNotNull(path);
+                        assertEquals(expected.vertices.lastElement().weightSum, path.vertices
+                                .lastElement().weightSum, 0.02);
+
+                        /* the hierarchy alone finds a path that is open, if not always the best */
+                        path = hierarchy.getShortestPath(from, to, init, options);
+                        assertNotNull(path);
+                        for (SPTEdge edge : path.edges) {
+                            int streetId = StreetClosures.getStreetId(edge.payload);
+                            assertFalse(streetId != -1 && closures.isClosed(streetId));
+                        }
+                    }
+                }
+            }
+        }
+
+        /* opening the streets again breaks no shortcuts */
+        closures.clear();
+        assertTrue(hierarchy.getBrokenShortcuts(closures).isEmpty());
+        GraphPath path = routing.route(verticesOut[0][0], verticesIn[N - 1][N - 1], init, options);
+        assertEquals((N - 1) * 2 + 1, path.edges.size());
+    }
+}
@@ -0,0 +1,136 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.edgetype;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Route;
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.Trip;
+
+public class TestTripTimesOverlay extends TestCase {
+
+    /* start, then departure, arrival pairs at three stops */
+    private static final int[][] TRIPS = { { 0, 0, 300, 360, 600, 600 },
+            { 600, 600, 960, 990, 1300, 1300 }, { 1200, 1200, 1500, 1560, 1800, 1800 } };
+
+    public void testNoUpdates() {
+        ArrayTripPattern pattern = makePattern();
+        TripTimesOverlay overlay = new TripTimesOverlay(pattern, 2);
+        for (int i = 0; i < 2; ++i) {
+            for (int trip = 0; trip < TRIPS.length; ++trip) {
+                assertEquals(pattern.getDepartureTime(i, trip), overlay.getDepartureTime(i, trip));
+                assertEquals(pattern.getArrivalTime(i, trip), overlay.getArrivalTime(i, trip));
+                assertEquals(pattern.getRunningTime(i, trip), overlay.getRunningTime(i, trip));
+                assertEquals(pattern.getDwellTime(i, trip), overlay.getDwellTime(i, trip));
+            }
+            assertEquals(pattern.getBestRunningTime(i), overlay.getBestRunningTime(i));
+            for (int time = -100; time < 2000; time += 50) {
+                assertEquals(pattern.getNextTrip(i, time, false, true), overlay.getNextTrip(i,
+                        time, false, true));
+                assertEquals(pattern.getPreviousTrip(i, time, false, false), overlay
+                        .getPreviousTrip(i, time, false, false));
+            }
+        }
+    }
+
+    public void testDelayedTripOvertaken() {
+        ArrayTripPattern pattern = makePattern();
+        TripTimesOverlay overlay = new TripTimesOverlay(pattern, 2).update(0, new int[] { 700,
+                1060 }, new int[] { 1000, 1300 });
+        assertTrue(overlay.isUpdated(0));
+        assertEquals(700, overlay.getDepartureTime(0, 0));
+        assertEquals(1000, overlay.getArrivalTime(0, 0));
+        assertEquals(300, overlay.getRunningTime(0, 0));
+        assertEquals(60, overlay.getDwellTime(1, 0));
+        assertEquals(600, overlay.getDepartureTime(0, 1));
+
+        /* trip 1 now leaves first */
+        assertEquals(1, overlay.getNextTrip(0, 0, false, true));
+        assertEquals(1, overlay.getNextTrip(0, 600, false, true));
+        assertEquals(0, overlay.getNextTrip(0, 601, false, true));
+        assertEquals(2, overlay.getNextTrip(0, 701, false, true));
+
+        /* and arrives first */
+        assertEquals(-1, overlay.getPreviousTrip(0, 959, false, false));
+        assertEquals(1, overlay.getPreviousTrip(0, 999, false, false));
+        assertEquals(0, overlay.getPreviousTrip(0, 1000, false, false));
+        assertEquals(0, overlay.getPreviousTrip(0, 1499, false, false));
+    }
+
+    public void testCancelledTrip() {
+        ArrayTripPattern pattern = makePattern();
+        TripTimesOverlay overlay = new TripTimesOverlay(pattern, 2).cancel(1);
+        assertTrue(overlay.isCancelled(1));
+        assertEquals(2, overlay.getNextTrip(0, 1, false, true));
+        assertEquals(0, overlay.getPreviousTrip(1, 1799, false, false));
+
+        TripTimesOverlay restored = overlay.restore(1);
+        assertEquals(0, restored.getNumUpdatedTrips());
+        assertEquals(1, restored.getNextTrip(0, 1, false, true));
+    }
+
+    public void testCopyOnWrite() {
+        ArrayTripPattern pattern = makePattern();
+        TripTimesOverlay first = new TripTimesOverlay(pattern, 2).update(2, new int[] { 1200,
+                1500 }, new int[] { 1400, 1700 });
+        TripTimesOverlay second = first.update(2, new int[] { 1300, 1600 }, new int[] { 1500,
+                1800 }).cancel(0);
+        assertEquals(1200, first.getDepartureTime(0, 2));
+        assertFalse(first.isCancelled(0));
+        assertEquals(1300, second.getDepartureTime(0, 2));
+        assertTrue(second.isCancelled(0));
+
+        /* a trip catching up bounds the running times from below */
+        assertEquals(200, first.getBestRunningTime(0));
+        assertEquals(200, second.getBestRunningTime(0));
+        assertEquals(300, pattern.getBestRunningTime(0));
+    }
+
+    private ArrayTripPattern makePattern() {
+        List<StopTime> stopTimes = new ArrayList<StopTime>();
+        for (int i = 0; i < 3; ++i) {
+            Stop stop = new Stop();
+            stop.setId(new AgencyAndId("agency", "stop" + i));
+            StopTime stopTime = new StopTime();
+            stopTime.setStop(stop);
+            stopTimes.add(stopTime);
+        }
+        BasicTripPattern pattern = new BasicTripPattern(makeTrip(0), stopTimes, null);
+        for (int t = 0; t < TRIPS.length; ++t) {
+            int[] trip = TRIPS[t];
+            for (int i = 0; i < 2; ++i) {
+                int departure = trip[2 * i + 1];
+                int arrival = trip[2 * i + 2];
+                pattern.addHop(i, t, departure, arrival - departure, arrival, departure
+                        - trip[2 * i], makeTrip(t));
+            }
+        }
+        return pattern.convertToArrayTripPattern();
+    }
+
+    private Trip makeTrip(int i) {
+        Route route = new Route();
+        route.setId(new AgencyAndId("agency", "route"));
+        Trip trip = new Trip();
+        trip.setId(new AgencyAndId("agency", "trip" + i));
+        trip.setRoute(route);
+        return trip;
+    }
+}
@@ -13,12 +13,26 @@
 
 package org.opentripplanner.routing.edgetype.loader;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StringReader;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.Iterator;
 
 import junit.framework.TestCase;
 
+import org.onebusaway.gtfs.impl.GtfsRelationalDaoImpl;
+import org.onebusaway.gtfs.model.Agency;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Frequency;
+import org.onebusaway.gtfs.model.Route;
+import org.onebusaway.gtfs.model.Trip;
 import org.opentripplanner.ConstantsForTests;
 import org.opentripplanner.common.geometry.GeometryUtils;
 import org.opentripplanner.gtfs.GtfsContext;
@@ -28,11 +42,14 @@ import org.opentripplanner.routing.core.Edge;
 import org.opentripplanner.routing.core.Graph;
 import org.opentripplanner.routing.core.GraphVertex;
 import org.opentripplanner.routing.core.OptimizeType;
+import org.opentripplanner.routing.core.RouteSpec;
 import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.TransitDictionary;
 import org.opentripplanner.routing.core.TraverseModeSet;
 import org.opentripplanner.routing.core.TraverseOptions;
 import org.opentripplanner.routing.core.Vertex;
 import org.opentripplanner.routing.edgetype.Alight;
+import org.opentripplanner.routing.edgetype.FrequencyBasedTripPattern;
 import org.opentripplanner.routing.edgetype.PatternAlight;
 import org.opentripplanner.routing.edgetype.PatternBoard;
 import org.opentripplanner.routing.edgetype.PatternDwell;
@@ -42,6 +59,9 @@ import org.opentripplanner.routing.edgetype.StreetVertex;
 import org.opentripplanner.routing.edgetype.TransferEdge;
 import org.opentripplanner.routing.edgetype.TurnEdge;
 import org.opentripplanner.routing.edgetype.factory.GTFSPatternHopFactory;
+import org.opentripplanner.routing.realtime.TimetableUpdater;
+import org.opentripplanner.routing.realtime.TripUpdatePoller;
+import org.opentripplanner.routing.realtime.TripUpdateReader;
 import org.opentripplanner.routing.spt.GraphPath;
 import org.opentripplanner.routing.spt.SPTEdge;
 import org.opentripplanner.routing.spt.ShortestPathTree;
@@ -444,8 +464,38 @@ public class TestPatternHopFactory extends TestCase {
         assertEquals(4, path.vertices.size());
         endTime = new GregorianCalendar(2009, 8, 7, 14, 40, 0).getTimeInMillis();
         assertEquals(endTime, path.vertices.lastElement().state.getTime());
+
+        // the runs are computed from the frequencies rather than stored
+        Vertex depart = graph.getVertex("agency_U_agency_15.1_1_D");
+        PatternHop hop = null;
+        for (Edge e : graph.getOutgoing(depart)) {
+            if (e instanceof PatternHop) {
+                hop = (PatternHop) e;
+            }
+        }
+        assertNotNull(hop);
+        assertTrue(hop.getPattern() instanceof FrequencyBasedTripPattern);
+        assertEquals(6, hop.getPattern().getNumTrips());
     }
     
+    public void testBannedRoutes() {
+        Vertex stop_a = graph.getVertex("agency_A_depart");
+        Vertex stop_c = graph.getVertex("agency_C_arrive");
+        TraverseOptions options = new TraverseOptions(context);
+        options.modes = new TraverseModeSet("TRANSIT");
+        State start = new State(new GregorianCalendar(2009, 8, 7, 0, 0, 0).getTimeInMillis());
+
+        ShortestPathTree spt = AStar.getShortestPathTree(graph, stop_a, stop_c, start, options);
+        GraphPath path = spt.getPath(stop_c);
+        assertNotNull(path);
+
+        // route 1 is the only way from A
+        options = options.clone();
+        options.bannedRoutes.add(new RouteSpec("agency", "1"));
+        spt = AStar.getShortestPathTree(graph, stop_a, stop_c, start, options);
+        assertNull(spt.getPath(stop_c));
+    }
+
     public void testFewestTransfers() {
         Vertex stop_c = graph.getVertex("agency_C");
         Vertex stop_d = graph.getVertex("agency_D");
@@ -488,4 +538,181 @@ public class TestPatternHopFactory extends TestCase {
         State endState = path.vertices.lastElement().state;
         assertEquals(new GregorianCalendar(2009, 8, 1, 16, 0, 34).getTimeInMillis(), endState.getTime());
     }
-}
\ No newline at end of file
+
+    public void testSameGraphWithThreads() throws Exception {
+        for (String path : new String[] { ConstantsForTests.FAKE_GTFS,
+                ConstantsForTests.CALTRAIN_GTFS }) {
+            GtfsContext context = GtfsLibrary.readGtfs(new File(path));
+            Graph serial = new Graph();
+            GTFSPatternHopFactory factory = new GTFSPatternHopFactory(context);
+            factory.setThreads(1);
+            factory.run(serial);
+
+            Graph parallel = new Graph();
+            factory = new GTFSPatternHopFactory(context);
+            factory.setThreads(4);
+            factory.run(parallel);
+
+            assertEquals(serial.getVertices().size(), parallel.getVertices().size());
+            for (GraphVertex gv : serial.getVertices()) {
+                GraphVertex other = parallel.getGraphVertex(gv.vertex.getLabel());
+                assertNotNull(other);
+                assertEquals(gv.getOutgoing().size(), other.getOutgoing().size());
+                Iterator<Edge> edges = other.getOutgoing().iterator();
+                for (Edge e : gv.getOutgoing()) {
+                    Edge o = edges.next();
+                    assertEquals(e.getClass(), o.getClass());
+                    assertEquals(e.getToVertex().getLabel(), o.getToVertex().getLabel());
+                    if (e instanceof PatternHop) {
+                        /* by text, since some of Caltrain's hops start at NaN */
+                        assertEquals(e.getGeometry().toText(), o.getGeometry().toText());
+                    }
+                }
+            }
+        }
+    }
+
+    public void testSlimSerializedGraph() throws Exception {
+        /* no GTFS trip, route or agency is written with the graph */
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes) {
+            {
+                enableReplaceObject(true);
+            }
+
+            protected Object replaceObject(Object obj) throws IOException {
+                assertFalse(obj.getClass().getName(), obj instanceof Trip
+                        || obj instanceof Route || obj instanceof Agency);
+                return obj;
+            }
+        };
+        out.writeObject(graph);
+        out.close();
+
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes
+                .toByteArray()));
+        Graph loaded = (Graph) in.readObject();
+        in.close();
+
+        /* routes and trips are still named from the dictionary */
+        Vertex stop_a = loaded.getVertex("agency_A_depart");
+        Vertex stop_c = loaded.getVertex("agency_C_arrive");
+        TraverseOptions options = new TraverseOptions(context);
+        options.modes = new TraverseModeSet("TRANSIT");
+        State start = new State(new GregorianCalendar(2009, 8, 7, 0, 0, 0).getTimeInMillis());
+        ShortestPathTree spt = AStar.getShortestPathTree(loaded, stop_a, stop_c, start, options);
+        GraphPath path = spt.getPath(stop_c);
+        assertNotNull(path);
+        boolean hops = false;
+        for (SPTEdge e : path.edges) {
+            if (e.payload instanceof PatternHop) {
+                hops = true;
+                assertEquals("1", e.getName());
+                Trip trip = e.getTrip();
+                assertEquals("agency", trip.getId().getAgencyId());
+                assertEquals("1", trip.getRoute().getShortName());
+                assertEquals(context.getDao().getTripForId(trip.getId()).getTripHeadsign(),
+                        trip.getTripHeadsign());
+            }
+        }
+        assertTrue(hops);
+
+        /* the loaded dictionary can look trips up by id */
+        TransitDictionary dictionary = loaded.getService(TransitDictionary.class);
+        int code = dictionary.getTripCode(new AgencyAndId("agency", "1.1"));
+        assertTrue(code >= 0);
+        assertSame(dictionary.getTrip(code), dictionary.getTrip(code));
+        assertEquals("1.1", dictionary.getTrip(code).getId().getId());
+    }
+
+    public void testRealtimeUpdates() throws Exception {
+        Vertex stop_a = graph.getVertex("agency_A_depart");
+        Vertex stop_c = graph.getVertex("agency_C_arrive");
+        TimetableUpdater updater = new TimetableUpdater(graph);
+        long midnight = new GregorianCalendar(2009, 8, 7, 0, 0, 0).getTimeInMillis();
+        TraverseOptions options = new TraverseOptions(context);
+        options.modes = new TraverseModeSet("TRANSIT");
+
+        /* trip 1.1 reaches C at 00:20 */
+        assertEquals(20 * 60, arrivalAtC(stop_a, stop_c, midnight, options.clone()));
+
+        /* five minutes late from B */
+        String csv = "trip_id,stop_id,arrival_delay,departure_delay,schedule_relationship\n"
+                + "1.1,B,300,,\n";
+        TraverseOptions pinned = options.clone();
+        pinned.getTimetableSnapshot(graph.getService(TransitDictionary.class));
+        assertEquals(1, updater.applyUpdates(new TripUpdateReader(new StringReader(csv),
+                "agency"), 10));
+        assertEquals(25 * 60, arrivalAtC(stop_a, stop_c, midnight, options.clone()));
+
+        /* a search that began before the update does not see it */
+        assertEquals(20 * 60, arrivalAtC(stop_a, stop_c, midnight, pinned));
+
+        /* half an hour late from A, so that trip 1.2 overtakes it */
+        csv = "trip_id,stop_id,arrival_delay,departure_delay\n1.1,A,1800,1800\n";
+        updater.applyUpdates(new TripUpdateReader(new StringReader(csv), "agency"), 10);
+        assertEquals(40 * 60, arrivalAtC(stop_a, stop_c, midnight, options.clone()));
+
+        /* cancelled, then restored */
+        csv = "trip_id,stop_id,schedule_relationship\n1.1,,CANCELED\n";
+        updater.applyUpdates(new TripUpdateReader(new StringReader(csv), "agency"), 10);
+        assertEquals(40 * 60, arrivalAtC(stop_a, stop_c, midnight, options.clone()));
+        csv = "trip_id,stop_id\n1.1,\n1.2,\n";
+        assertEquals(2, updater.applyUpdates(new TripUpdateReader(new StringReader(csv),
+                "agency"), 1));
+        assertNull(graph.getService(TransitDictionary.class).getTimetableSnapshot());
+        assertEquals(20 * 60, arrivalAtC(stop_a, stop_c, midnight, options.clone()));
+
+        /* unknown trips and stops are skipped */
+        csv = "trip_id,stop_id,arrival_delay\nno_such_trip,A,60\n1.1,Z,60\n";
+        assertEquals(0, updater.applyUpdates(new TripUpdateReader(new StringReader(csv),
+                "agency"), 10));
+    }
+
+    public void testRealtimeUpdatesOfExpandedFrequencies() throws Exception {
+        /* trip 8.1 is interlined, so its runs are expanded into its pattern */
+        GtfsContext context = GtfsLibrary.readGtfs(new File(ConstantsForTests.FAKE_GTFS));
+        GtfsRelationalDaoImpl dao = (GtfsRelationalDaoImpl) context.getDao();
+        Frequency frequency = new Frequency();
+        frequency.setTrip(dao.getTripForId(new AgencyAndId("agency", "8.1")));
+        frequency.setStartTime(15 * 3600);
+        frequency.setEndTime(17 * 3600);
+        frequency.setHeadwaySecs(3600);
+        dao.saveEntity(frequency);
+        Graph graph = new Graph();
+        new GTFSPatternHopFactory(context).run(graph);
+
+        /* an update can't say which run it is for, so it is skipped */
+        TimetableUpdater updater = new TimetableUpdater(graph);
+        String csv = "trip_id,stop_id,arrival_delay\n8.1,K,300\n1.1,B,300\n";
+        assertEquals(1, updater.applyUpdates(new TripUpdateReader(new StringReader(csv),
+                "agency"), 10));
+    }
+
+    public void testTripUpdatePoller() throws Exception {
+        File file = File.createTempFile("trip-updates", ".txt");
+        try {
+            FileWriter out = new FileWriter(file);
+            out.write("trip_id,stop_id,arrival_delay\n1.1,B,300\n");
+            out.close();
+            TripUpdatePoller poller = new TripUpdatePoller();
+            poller.setGraph(graph);
+            poller.setPath(file);
+            poller.setAgencyId("agency");
+            assertEquals(1, poller.poll());
+            assertNotNull(graph.getService(TransitDictionary.class).getTimetableSnapshot());
+            /* read again only once the file changes */
+            assertEquals(0, poller.poll());
+        } finally {
+            file.delete();
+        }
+    }
+
+    private long arrivalAtC(Vertex stop_a, Vertex stop_c, long midnight, TraverseOptions options) {
+        ShortestPathTree spt = AStar.getShortestPathTree(graph, stop_a, stop_c,
+                new State(midnight), options);
+        GraphPath path = spt.getPath(stop_c);
+        assertNotNull(path);
+        return (path.vertices.lastElement().state.getTime() - midnight) / 1000;
+    }
+}
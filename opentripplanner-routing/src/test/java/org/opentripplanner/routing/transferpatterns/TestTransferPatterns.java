@@ -0,0 +1,109 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.transferpatterns;
+
+import java.io.File;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.onebusaway.gtfs.impl.calendar.CalendarServiceDataFactoryImpl;
+import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
+import org.opentripplanner.ConstantsForTests;
+import org.opentripplanner.gtfs.GtfsContext;
+import org.opentripplanner.gtfs.GtfsLibrary;
+import org.opentripplanner.routing.algorithm.AStar;
+import org.opentripplanner.routing.core.Graph;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.TransitStop;
+import org.opentripplanner.routing.core.TraverseOptions;
+import org.opentripplanner.routing.core.Vertex;
+import org.opentripplanner.routing.edgetype.factory.GTFSPatternHopFactory;
+import org.opentripplanner.routing.services.RoutingService;
+import org.opentripplanner.routing.spt.GraphPath;
+import org.opentripplanner.routing.spt.ShortestPathTree;
+import org.opentripplanner.routing.transit.TransitTimetable;
+
+public class TestTransferPatterns extends TestCase {
+
+    public void testCaltrain() throws Exception {
+        GtfsContext context = GtfsLibrary.readGtfs(new File(ConstantsForTests.CALTRAIN_GTFS));
+        Graph graph = new Graph();
+        GTFSPatternHopFactory factory = new GTFSPatternHopFactory(context);
+        factory.run(graph);
+        CalendarServiceDataFactoryImpl calendarFactory = new CalendarServiceDataFactoryImpl();
+        calendarFactory.setGtfsDao(context.getDao());
+        graph.putService(CalendarServiceData.class, calendarFactory.createData());
+
+        TransferPatterns transferPatterns = new TransferPatternsBuilder(graph).build();
+        graph.putService(TransferPatterns.class, transferPatterns);
+        TransitTimetable timetable = transferPatterns.getTimetable();
+        assertTrue(timetable.getNumStops() > 0);
+        assertTrue(timetable.getNumPatterns() > 0);
+
+        TransferPatternsRoutingServiceImpl service = new TransferPatternsRoutingServiceImpl(graph,
+                null);
+        TraverseOptions options = new TraverseOptions();
+        options.setGtfsContext(context);
+
+        long[] times = { new GregorianCalendar(2009, 8, 8, 7, 50, 0).getTimeInMillis(),
+                new GregorianCalendar(2009, 8, 8, 17, 30, 0).getTimeInMillis(),
+                new GregorianCalendar(2009, 8, 12, 13, 0, 0).getTimeInMillis() };
+        int found = 0;
+        for (int from = 0; from < timetable.getNumStops(); from += 3) {
+            Vertex origin = timetable.getStop(from);
+            for (int to = 0; to < timetable.getNumStops(); to += 2) {
+                Vertex target = timetable.getStop(to);
+                if (origin == target) {
+                    continue;
+                }
+                for (long time : times) {
+                    ShortestPathTree spt = AStar.getShortestPathTree(graph, origin, target,
+                            new State(time), options);
+                    GraphPath expected = spt == null ? null : spt.getPath(target);
+                    GraphPath path = service.route(origin, target, new State(time), options);
+                    if (expected == null) {
+                        continue;
+                    }
+                    assertNotNull(path);
+                    assertEquals(origin, path.vertices.firstElement().mirror);
+                    assertEquals(target, path.vertices.lastElement().mirror);
+                    assertTrue(path.vertices.lastElement().state.getTime() <= expected.vertices
+                            .lastElement().state.getTime());
+                    ++found;
+                }
+            }
+        }
+        assertTrue(found > 0);
+
+        /* anything but stop to stop goes to the fallback */
+        final GraphPath fallbackPath = new GraphPath();
+        service.setFallback(new RoutingService() {
+            public GraphPath route(Vertex fromVertex, Vertex toVertex, State state,
+                    TraverseOptions options) {
+                return fallbackPath;
+            }
+
+            public GraphPath route(Vertex fromVertex, Vertex toVertex,
+                    List<Vertex> intermediateVertices, State state, TraverseOptions options) {
+                return fallbackPath;
+            }
+        });
+        Vertex street = timetable.getDepartVertex(0);
+        assertFalse(street instanceof TransitStop);
+        assertSame(fallbackPath, service.route(street, timetable.getStop(1), new State(times[0]),
+                options));
+    }
+}
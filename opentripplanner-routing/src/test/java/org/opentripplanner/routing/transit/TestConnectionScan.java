@@ -0,0 +1,178 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.transit;
+
+import java.io.File;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.onebusaway.gtfs.impl.calendar.CalendarServiceDataFactoryImpl;
+import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
+import org.opentripplanner.ConstantsForTests;
+import org.opentripplanner.common.model.T2;
+import org.opentripplanner.gtfs.GtfsContext;
+import org.opentripplanner.gtfs.GtfsLibrary;
+import org.opentripplanner.routing.algorithm.AStar;
+import org.opentripplanner.routing.core.Graph;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.TransitDictionary;
+import org.opentripplanner.routing.core.TraverseOptions;
+import org.opentripplanner.routing.core.Vertex;
+import org.opentripplanner.routing.edgetype.TimetableSnapshot;
+import org.opentripplanner.routing.edgetype.TripPattern;
+import org.opentripplanner.routing.edgetype.TripTimesOverlay;
+import org.opentripplanner.routing.edgetype.factory.GTFSPatternHopFactory;
+import org.opentripplanner.routing.impl.ConnectionScanServiceImpl;
+import org.opentripplanner.routing.spt.GraphPath;
+import org.opentripplanner.routing.spt.ShortestPathTree;
+
+public class TestConnectionScan extends TestCase {
+
+    private GtfsContext context;
+
+    private Graph graph;
+
+    private ConnectionScanServiceImpl service;
+
+    public void setUp() throws Exception {
+        context = GtfsLibrary.readGtfs(new File(ConstantsForTests.CALTRAIN_GTFS));
+        graph = new Graph();
+        GTFSPatternHopFactory factory = new GTFSPatternHopFactory(context);
+        factory.run(graph);
+        CalendarServiceDataFactoryImpl calendarFactory = new CalendarServiceDataFactoryImpl();
+        calendarFactory.setGtfsDao(context.getDao());
+        graph.putService(CalendarServiceData.class, calendarFactory.createData());
+        service = new ConnectionScanServiceImpl(graph);
+    }
+
+    public void testConnectionTable() {
+        ConnectionTable table = service.getConnectionTable();
+        assertTrue(table.getNumConnections() > 0);
+        int[] connections = table.getConnections();
+        for (int c = 1; c < table.getNumConnections(); ++c) {
+            assertTrue(connections[(c - 1) * ConnectionTable.CONNECTION_SIZE
+                    + ConnectionTable.DEPARTURE_TIME] <= connections[c
+                    * ConnectionTable.CONNECTION_SIZE + ConnectionTable.DEPARTURE_TIME]);
+        }
+        int time = connections[ConnectionTable.DEPARTURE_TIME] + 1;
+        int first = table.getFirstConnection(time);
+        assertTrue(connections[first * ConnectionTable.CONNECTION_SIZE
+                + ConnectionTable.DEPARTURE_TIME] >= time);
+        assertTrue(connections[(first - 1) * ConnectionTable.CONNECTION_SIZE
+                + ConnectionTable.DEPARTURE_TIME] < time);
+    }
+
+    public void testRealTime() {
+        ConnectionTable scheduled = service.getConnectionTable();
+        assertSame(scheduled, service.getConnectionTable());
+        assertNull(scheduled.getSnapshot());
+
+        /* cancel the first trip of the first pattern */
+        TransitTimetable timetable = scheduled.getTimetable();
+        TripPattern pattern = timetable.getPattern(0);
+        int hops = timetable.getPatternStops(0).length - 1;
+        HashMap<TripPattern, TripTimesOverlay> changes = new HashMap<TripPattern, TripTimesOverlay>();
+        changes.put(pattern, new TripTimesOverlay(pattern, hops).cancel(0));
+        TransitDictionary dictionary = graph.getService(TransitDictionary.class);
+        dictionary.setTimetableSnapshot(new TimetableSnapshot().update(changes));
+
+        ConnectionTable updated = service.getConnectionTable();
+        assertNotSame(scheduled, updated);
+        assertSame(timetable, updated.getTimetable());
+        assertEquals(scheduled.getNumConnections() - hops, updated.getNumConnections());
+        int[] connections = updated.getConnections();
+        for (int c = 0; c < updated.getNumConnections(); ++c) {
+            int trip = connections[c * ConnectionTable.CONNECTION_SIZE + ConnectionTable.TRIP];
+            assertFalse(updated.getTripPattern(trip) == 0 && updated.getTripIndex(trip) == 0);
+        }
+
+        dictionary.setTimetableSnapshot(null);
+        assertNull(service.getConnectionTable().getSnapshot());
+    }
+
+    public void testEarliestArrival() {
+        TransitTimetable timetable = service.getConnectionTable().getTimetable();
+        TraverseOptions options = new TraverseOptions();
+        options.setGtfsContext(context);
+
+        long[] times = { new GregorianCalendar(2009, 8, 8, 7, 50, 0).getTimeInMillis(),
+                new GregorianCalendar(2009, 8, 12, 13, 0, 0).getTimeInMillis() };
+        int found = 0;
+        for (int from = 0; from < timetable.getNumStops(); from += 3) {
+            Vertex origin = timetable.getStop(from);
+            for (long time : times) {
+                Map<Vertex, Long> arrivals = service.getEarliestArrivals(origin, new State(time),
+                        options);
+                for (int to = 0; to < timetable.getNumStops(); to += 2) {
+                    Vertex target = timetable.getStop(to);
+                    if (origin == target) {
+                        continue;
+                    }
+                    ShortestPathTree spt = AStar.getShortestPathTree(graph, origin, target,
+                            new State(time), options);
+                    GraphPath expected = spt == null ? null : spt.getPath(target);
+                    long arrival = service.getEarliestArrival(origin, target, new State(time),
+                            options);
+                    Long oneToAll = arrivals.get(target);
+                    assertEquals(arrival, oneToAll == null ? -1 : oneToAll.longValue());
+                    if (expected == null) {
+                        continue;
+                    }
+                    assertTrue(arrival >= time);
+                    assertTrue(arrival <= expected.vertices.lastElement().state.getTime());
+                    ++found;
+                }
+            }
+        }
+        assertTrue(found > 0);
+    }
+
+    public void testProfiles() {
+        TransitTimetable timetable = service.getConnectionTable().getTimetable();
+        TraverseOptions options = new TraverseOptions();
+        options.setGtfsContext(context);
+
+        long start = new GregorianCalendar(2009, 8, 8, 6, 0, 0).getTimeInMillis();
+        long end = new GregorianCalendar(2009, 8, 8, 10, 0, 0).getTimeInMillis();
+        long latestArrival = new GregorianCalendar(2009, 8, 8, 12, 0, 0).getTimeInMillis();
+        int found = 0;
+        for (int from = 0; from < timetable.getNumStops(); from += 5) {
+            Vertex origin = timetable.getStop(from);
+            Map<Vertex, List<T2<Long, Long>>> profiles = service.getProfiles(origin, new State(
+                    start), end, latestArrival, options);
+            for (Map.Entry<Vertex, List<T2<Long, Long>>> entry : profiles.entrySet()) {
+                long lastDeparture = Long.MIN_VALUE, lastArrival = Long.MIN_VALUE;
+                for (T2<Long, Long> journey : entry.getValue()) {
+                    long departure = journey.getFirst(), arrival = journey.getSecond();
+                    assertTrue(departure >= start && departure <= end);
+                    assertTrue(arrival <= latestArrival);
+                    /* Pareto-optimal: later departures must arrive later */
+                    assertTrue(departure > lastDeparture);
+                    assertTrue(arrival > lastArrival);
+                    lastDeparture = departure;
+                    lastArrival = arrival;
+                    long earliest = service.getEarliestArrival(origin, entry.getKey(), new State(
+                            departure), options);
+                    assertEquals(arrival, earliest);
+                    ++found;
+                }
+            }
+        }
+        assertTrue(found > 0);
+    }
+}
@@ -0,0 +1,116 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+
+import junit.framework.TestCase;
+
+import org.opentripplanner.common.geometry.PackedCoordinateSequence;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+public class TestCompactElevationProfile extends TestCase {
+
+    /**
+     * A profile sampled every 10m along a 95m street, climbing 1.23m a sample
+     */
+    private PackedCoordinateSequence makeProfile() {
+        double[] coords = new double[11 * 2];
+        for (int i = 0; i < 10; ++i) {
+            coords[i * 2] = i * 10;
+            coords[i * 2 + 1] = 1500 + i * 1.23;
+        }
+        coords[20] = 95;
+        coords[21] = 1490;
+        return new PackedCoordinateSequence.Double(coords, 2);
+    }
+
+    public void testCompact() {
+        PackedCoordinateSequence profile = makeProfile();
+        PackedCoordinateSequence compact = CompactElevationProfile.compact(profile);
+        assertTrue(compact instanceof CompactElevationProfile);
+        assertEquals(profile.size(), compact.size());
+        Coordinate[] coords = compact.toCoordinateArray();
+        for (int i = 0; i < profile.size(); ++i) {
+            assertEquals(profile.getX(i), compact.getX(i), 1e-4);
+            assertEquals(profile.getY(i), compact.getY(i), 0.05);
+            assertEquals(compact.getX(i), coords[i].x);
+            assertEquals(compact.getY(i), coords[i].y);
+        }
+        assertSame(compact, CompactElevationProfile.compact(compact));
+    }
+
+    public void testReverse() {
+        PackedCoordinateSequence profile = makeProfile();
+        CompactElevationProfile compact = (CompactElevationProfile) CompactElevationProfile
+                .compact(profile);
+        CompactElevationProfile reverse = compact.reverse();
+        int size = profile.size();
+        assertEquals(0, reverse.getX(0), 1e-4);
+        assertEquals(5, reverse.getX(1), 1e-4);
+        assertEquals(95, reverse.getX(size - 1), 1e-4);
+        for (int i = 0; i < size; ++i) {
+            assertEquals(95 - profile.getX(size - 1 - i), reverse.getX(i), 1e-4);
+            assertEquals(profile.getY(size - 1 - i), reverse.getY(i), 0.05);
+        }
+        assertEquals(compact.getY(3), reverse.reverse().getY(3));
+    }
+
+    public void testPartial() {
+        PackedCoordinateSequence profile = makeProfile();
+        PackedCoordinateSequence compact = CompactElevationProfile.compact(profile);
+        PackedCoordinateSequence partial = ElevationUtils.getPartialElevationProfile(profile, 15,
+                60);
+        PackedCoordinateSequence compactPartial = ElevationUtils.getPartialElevationProfile(
+                compact, 15, 60);
+        assertEquals(5, compactPartial.size());
+        for (int i = 0; i < partial.size(); ++i) {
+            assertEquals(partial.getX(i), compactPartial.getX(i), 1e-4);
+            assertEquals(partial.getY(i), compactPartial.getY(i), 0.05);
+        }
+    }
+
+    public void testNotFixedStep() {
+        PackedCoordinateSequence profile = new PackedCoordinateSequence.Double(new double[] { 0,
+                10, 10, 11, 25, 12, 30, 13 }, 2);
+        assertSame(profile, CompactElevationProfile.compact(profile));
+    }
+
+    /**
+     * Compares the serialized size of many profiles, so that class descriptors don't count
+     */
+    public void testSize() throws Exception {
+        PackedCoordinateSequence[] profiles = new PackedCoordinateSequence[1000];
+        PackedCoordinateSequence[] compact = new PackedCoordinateSequence[profiles.length];
+        for (int i = 0; i < profiles.length; ++i) {
+            profiles[i] = makeProfile();
+            compact[i] = CompactElevationProfile.compact(profiles[i]);
+        }
+        int doubleSize = getSerializedSize(profiles);
+        int compactSize = getSerializedSize(compact);
+        assertTrue(compactSize < doubleSize);
+        assertTrue(compactSize + " bytes compact, " + doubleSize + " bytes as doubles",
+                compactSize * 3 < doubleSize);
+    }
+
+    private int getSerializedSize(Object o) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(o);
+        out.close();
+        return bytes.size();
+    }
+}